@@ -0,0 +1,104 @@
+package com.eagle.recorderdemo;
+
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+
+import com.eagle.recorderdemo.audio.AudioSource;
+import com.eagle.recorderdemo.audio.PcmConverter;
+import com.eagle.recorderdemo.audio.PipelineMetrics;
+
+import java.io.IOException;
+
+/**
+ * {@link AudioSource} reading from an {@link AudioRecord}. Float capture is reduced to PCM16
+ * in place while it is copied out.
+ */
+class AudioRecordSource implements AudioSource {
+
+    private final AudioRecord mAudioRecord;
+    private final PcmConverter mConverter;
+    private final float[] mFloats;
+    private volatile PipelineMetrics mMetrics;
+
+    /**
+     * @param maxReadBytes largest PCM16 read that will be asked for
+     * @param dither TPDF dither when converting float capture
+     */
+    AudioRecordSource(AudioRecord audioRecord, int maxReadBytes, boolean dither) {
+        mAudioRecord = audioRecord;
+        if (audioRecord.getAudioFormat() == AudioFormat.ENCODING_PCM_FLOAT) {
+            mConverter = new PcmConverter(PcmConverter.Encoding.PCM16, dither);
+            mFloats = new float[maxReadBytes / 2];
+        } else {
+            mConverter = null;
+            mFloats = null;
+        }
+    }
+
+    /** Has read errors counted in {@code metrics}. */
+    void setMetrics(PipelineMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    AudioRecord getAudioRecord() {
+        return mAudioRecord;
+    }
+
+    @Override
+    public int getSampleRate() {
+        return mAudioRecord.getSampleRate();
+    }
+
+    @Override
+    public int getChannels() {
+        return mAudioRecord.getChannelCount();
+    }
+
+    @Override
+    public void start() throws IOException {
+        try {
+            mAudioRecord.startRecording();
+        } catch (IllegalStateException e) {
+            throw new IOException("Failed to start AudioRecord", e);
+        }
+    }
+
+    @Override
+    public int read(byte[] dst, int offset, int length) throws IOException {
+        int read;
+        if (mConverter == null) {
+            read = mAudioRecord.read(dst, offset, length);
+        } else {
+            read = mAudioRecord.read(mFloats, 0, Math.min(length / 2, mFloats.length),
+                    AudioRecord.READ_BLOCKING);
+            if (read > 0) {
+                read = mConverter.convert(mFloats, 0, read, dst, offset);
+            }
+        }
+        if (read < 0) {
+            PipelineMetrics metrics = mMetrics;
+            if (metrics != null) {
+                metrics.onReadError(read);
+            }
+            if (read == AudioRecord.ERROR_DEAD_OBJECT) {
+                throw new IOException("AudioRecord died");
+            }
+            return 0;
+        }
+        return read;
+    }
+
+    @Override
+    public void stop() {
+        try {
+            mAudioRecord.stop();
+        } catch (IllegalStateException e) {
+            // never started
+        }
+    }
+
+    @Override
+    public void close() {
+        mAudioRecord.release();
+    }
+}
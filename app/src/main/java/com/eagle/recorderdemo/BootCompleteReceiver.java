@@ -4,13 +4,32 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Build;
+import android.os.SystemClock;
 import android.util.Log;
 
 public class BootCompleteReceiver extends BroadcastReceiver {
 
     @Override
-    public void onReceive(Context context, Intent intent) {
+    public void onReceive(final Context context, Intent intent) {
         Log.d("RecordService", "boot completed");
+        // Recordings the last shutdown cut short are repaired before recording resumes; anything
+        // written since boot belongs to this run and is left alone.
+        final long bootMillis = System.currentTimeMillis() - SystemClock.elapsedRealtime();
+        final PendingResult result = goAsync();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    SoundRecorder.recoverRecordings(bootMillis);
+                    startRecordService(context);
+                } finally {
+                    result.finish();
+                }
+            }
+        }, "RecorderRecovery").start();
+    }
+
+    private static void startRecordService(Context context) {
         Intent i = new Intent(RecordService.SERVICE_ACTION)
                 .setClass(context, RecordService.class);
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
@@ -18,6 +37,5 @@ public class BootCompleteReceiver extends BroadcastReceiver {
         } else {
             context.startService(i);
         }
-
     }
 }
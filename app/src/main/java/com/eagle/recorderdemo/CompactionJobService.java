@@ -0,0 +1,242 @@
+package com.eagle.recorderdemo;
+
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.Context;
+import android.os.Process;
+import android.os.SystemClock;
+import android.os.SystemProperties;
+import android.util.Log;
+
+import com.eagle.recorderdemo.audio.Compactor;
+import com.eagle.recorderdemo.audio.RecordingInfo;
+import com.eagle.recorderdemo.audio.WorkBudget;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Compacts recordings past a given age while the device is idle or charging, see
+ * {@link Compactor}.
+ *
+ * JobScheduler only combines constraints with "and", so the same job is scheduled twice, once
+ * on idle and once on charging, and whichever starts first does the work. Files are compacted on
+ * a small pool of background priority threads within a {@link WorkBudget}, which is what keeps
+ * it out of the way of capture: units that record all the time are never without a recording,
+ * so the run goes on beside it and only gives way when the system stops the job. The file at
+ * hand is then left as it was and the rest wait for the next run.
+ */
+public class CompactionJobService extends JobService {
+
+    private static final String TAG = "RecorderDemo";
+
+    // Off by default: compaction is lossy unless the codec is lossless.
+    static final String PROP_COMPACT = "recorddemo.compact";
+    private static final String PROP_COMPACT_AGE_HOURS = "recorddemo.compact.age_hours";
+    private static final int DEFAULT_COMPACT_AGE_HOURS = 24;
+    private static final String PROP_COMPACT_RATE = "recorddemo.compact.rate";
+    private static final int DEFAULT_COMPACT_RATE = 16000;
+    // adpcm (default), lossless or pcm, see Compactor.Codec
+    private static final String PROP_COMPACT_CODEC = "recorddemo.compact.codec";
+    private static final String PROP_COMPACT_THREADS = "recorddemo.compact.threads";
+    private static final int DEFAULT_COMPACT_THREADS = 1;
+    private static final int MAX_COMPACT_THREADS = 2;
+    // Share of one CPU each worker may use, and disk traffic of all of them together.
+    private static final String PROP_COMPACT_CPU_PCT = "recorddemo.compact.cpu_pct";
+    private static final int DEFAULT_COMPACT_CPU_PCT = 25;
+    private static final String PROP_COMPACT_IO_KBPS = "recorddemo.compact.io_kbps";
+    private static final int DEFAULT_COMPACT_IO_KBPS = 2048;
+
+    private static final int JOB_ID_IDLE = 0x52430001;
+    private static final int JOB_ID_CHARGING = 0x52430002;
+    private static final long PERIOD_MS = TimeUnit.HOURS.toMillis(6);
+
+    // One run at a time, whichever of the two jobs started it.
+    private static final AtomicBoolean sRunning = new AtomicBoolean();
+
+    private volatile boolean mStopped;
+    private Thread mRun;
+
+    /** Schedules the idle and the charging job unless they are pending already. */
+    static void schedule(Context context) {
+        JobScheduler scheduler = (JobScheduler) context.getSystemService(
+                Context.JOB_SCHEDULER_SERVICE);
+        ComponentName service = new ComponentName(context, CompactionJobService.class);
+        if (scheduler.getPendingJob(JOB_ID_IDLE) == null) {
+            scheduler.schedule(new JobInfo.Builder(JOB_ID_IDLE, service)
+                    .setRequiresDeviceIdle(true)
+                    .setPeriodic(PERIOD_MS)
+                    .setPersisted(true)
+                    .build());
+        }
+        if (scheduler.getPendingJob(JOB_ID_CHARGING) == null) {
+            scheduler.schedule(new JobInfo.Builder(JOB_ID_CHARGING, service)
+                    .setRequiresCharging(true)
+                    .setPeriodic(PERIOD_MS)
+                    .setPersisted(true)
+                    .build());
+        }
+    }
+
+    @Override
+    public boolean onStartJob(final JobParameters params) {
+        if (!SystemProperties.getBoolean(PROP_COMPACT, false)
+                || !sRunning.compareAndSet(false, true)) {
+            return false;
+        }
+        mStopped = false;
+        mRun = new Thread("RecorderCompaction") {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                boolean finished = false;
+                try {
+                    finished = compactAll();
+                } finally {
+                    sRunning.set(false);
+                    SoundRecorder.refreshCatalog();
+                    jobFinished(params, !finished);
+                }
+            }
+        };
+        mRun.start();
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        mStopped = true;
+        Thread run = mRun;
+        if (run != null) {
+            run.interrupt();
+        }
+        return true;
+    }
+
+    /** Returns whether every recording due was dealt with. */
+    private boolean compactAll() {
+        long start = SystemClock.elapsedRealtime();
+        File[] files = SoundRecorder.getRecordDir().listFiles();
+        if (files == null) {
+            return true;
+        }
+        Arrays.sort(files);
+        int threads = Math.max(1, Math.min(MAX_COMPACT_THREADS,
+                SystemProperties.getInt(PROP_COMPACT_THREADS, DEFAULT_COMPACT_THREADS)));
+        WorkBudget budget = new WorkBudget(
+                SystemProperties.getInt(PROP_COMPACT_CPU_PCT, DEFAULT_COMPACT_CPU_PCT) / 100f,
+                SystemProperties.getLong(PROP_COMPACT_IO_KBPS, DEFAULT_COMPACT_IO_KBPS) * 1024);
+        final Compactor compactor = new Compactor(
+                SystemProperties.getInt(PROP_COMPACT_RATE, DEFAULT_COMPACT_RATE), getCodec(),
+                budget, SoundRecorder.RECORDING_RATE, SoundRecorder.FRAME_BYTES / 2);
+        final Compactor.Control control = new Compactor.Control() {
+            @Override
+            public boolean isStopped() {
+                return mStopped;
+            }
+        };
+
+        long before = System.currentTimeMillis() - TimeUnit.HOURS.toMillis(
+                SystemProperties.getInt(PROP_COMPACT_AGE_HOURS, DEFAULT_COMPACT_AGE_HOURS));
+        List<File> due = new ArrayList<>();
+        for (File file : files) {
+            if (!RecordingInfo.isRecording(file) || file.lastModified() >= before) {
+                continue;
+            }
+            try {
+                if (!compactor.isCompact(RecordingInfo.probe(file, SoundRecorder.RECORDING_RATE,
+                        SoundRecorder.FRAME_BYTES / 2))) {
+                    due.add(file);
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "compaction skips unreadable " + file.getName());
+            }
+        }
+        if (due.isEmpty()) {
+            return true;
+        }
+        Log.d(TAG, "compacting " + due.size() + " recordings on " + threads + " threads, "
+                + budget);
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, "RecorderCompactor");
+            }
+        });
+        List<Future<Compactor.Result>> results = new ArrayList<>();
+        for (final File file : due) {
+            results.add(pool.submit(new Callable<Compactor.Result>() {
+                @Override
+                public Compactor.Result call() throws IOException, InterruptedException {
+                    return control.isStopped() ? null : compactor.compact(file, control);
+                }
+            }));
+        }
+        pool.shutdown();
+        long saved = 0;
+        int compacted = 0;
+        boolean complete = true;
+        for (int i = 0; i < results.size(); i++) {
+            try {
+                Compactor.Result result = results.get(i).get();
+                if (result == null) {
+                    complete = false;
+                    continue;
+                }
+                compacted++;
+                saved += result.oldBytes - result.newBytes;
+                Log.i(TAG, "compacted " + result);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof CancellationException
+                        || e.getCause() instanceof InterruptedException) {
+                    complete = false;
+                } else {
+                    Log.w(TAG, "could not compact " + due.get(i).getName(), e.getCause());
+                }
+            } catch (InterruptedException e) {
+                // Stopped by the system; the workers see the same flag.
+                pool.shutdownNow();
+                complete = false;
+                break;
+            }
+        }
+        Log.d(TAG, "compaction " + (complete ? "done" : "stopped") + ": " + compacted + " of "
+                + due.size() + " recordings, " + saved + " bytes saved in "
+                + (SystemClock.elapsedRealtime() - start) + " ms, " + budget);
+        return complete;
+    }
+
+    private static Compactor.Codec getCodec() {
+        String name = SystemProperties.get(PROP_COMPACT_CODEC, null);
+        if (name != null) {
+            for (Compactor.Codec codec : Compactor.Codec.values()) {
+                if (codec.name().equalsIgnoreCase(name.trim())) {
+                    return codec;
+                }
+            }
+        }
+        return Compactor.Codec.ADPCM;
+    }
+}
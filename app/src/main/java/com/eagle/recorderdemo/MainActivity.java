@@ -71,11 +71,23 @@ public class MainActivity extends AppCompatActivity implements SoundRecorder.Rec
                     }
                 });
                 break;
+            case STARTING:
+            case STOPPING:
+                final String text = state.name();
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mState.setText(text);
+                    }
+                });
+                break;
             case RECORDING:
+            case ARMED:
+                final String active = state.name();
                 mHandler.post(new Runnable() {
                     @Override
                     public void run() {
-                        mState.setText("RECORDING");
+                        mState.setText(active);
                         mVUMeter.setRecorder(mServce.getSoundRecorder());
                     }
                 });
@@ -0,0 +1,117 @@
+package com.eagle.recorderdemo;
+
+import android.media.AudioTrack;
+import android.os.Process;
+import android.util.Log;
+
+import com.eagle.recorderdemo.audio.AudioSink;
+import com.eagle.recorderdemo.audio.JitterBuffer;
+
+/**
+ * {@link AudioSink} playing captured audio through a low latency {@link AudioTrack}, used for
+ * monitoring.
+ *
+ * {@link #write} only copies into a {@link JitterBuffer}, so the pipeline consumer feeding it
+ * keeps up with capture. A thread of its own feeds the track one burst at a time, paced by the
+ * track's blocking writes, which keeps a slow or stalled output from holding anything up and
+ * lets the jitter buffer absorb the drift between the two clocks.
+ */
+class MonitorSink implements AudioSink {
+
+    private static final String TAG = "RecorderDemo";
+    private static final long CLOSE_TIMEOUT_MS = 200;
+
+    private final AudioTrack mAudioTrack;
+    private final JitterBuffer mJitter;
+    private final byte[] mBurst;
+    private volatile boolean mClosed;
+    // What the track reported before it was released, for toString() afterwards.
+    private volatile boolean mReleased;
+    private volatile String mDescription;
+    private Thread mThread;
+
+    /**
+     * @param burstBytes how much is written to the track at a time
+     */
+    MonitorSink(AudioTrack audioTrack, JitterBuffer jitter, int burstBytes) {
+        mAudioTrack = audioTrack;
+        mJitter = jitter;
+        mBurst = new byte[burstBytes];
+    }
+
+    JitterBuffer getJitterBuffer() {
+        return mJitter;
+    }
+
+    synchronized void play() {
+        if (mThread != null || mClosed) {
+            return;
+        }
+        mAudioTrack.play();
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+                feed();
+            }
+        }, "RecorderMonitor");
+        mThread.start();
+    }
+
+    private void feed() {
+        while (!mClosed) {
+            mJitter.read(mBurst, 0, mBurst.length);
+            int written = mAudioTrack.write(mBurst, 0, mBurst.length);
+            if (written < 0) {
+                Log.w(TAG, "monitor track write failed: " + written);
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void write(byte[] src, int offset, int length) {
+        mJitter.write(src, offset, length);
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() {
+        Thread thread;
+        synchronized (this) {
+            mClosed = true;
+            thread = mThread;
+        }
+        try {
+            mAudioTrack.pause();
+            mAudioTrack.flush();
+            mAudioTrack.stop();
+        } catch (IllegalStateException e) {
+            // never played
+        }
+        if (thread != null) {
+            try {
+                thread.join(CLOSE_TIMEOUT_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        mDescription = describeTrack();
+        mReleased = true;
+        mAudioTrack.release();
+    }
+
+    private String describeTrack() {
+        return "track underruns=" + mAudioTrack.getUnderrunCount() + ", buffer="
+                + mAudioTrack.getBufferSizeInFrames() + " frames";
+    }
+
+    @Override
+    public String toString() {
+        return "MonitorSink{" + (mReleased ? mDescription : describeTrack()) + ", " + mJitter
+                + "}";
+    }
+}
@@ -0,0 +1,242 @@
+package com.eagle.recorderdemo;
+
+import android.media.AudioAttributes;
+import android.media.AudioFormat;
+import android.media.AudioTrack;
+import android.os.Process;
+import android.util.Log;
+
+import com.eagle.recorderdemo.audio.PlaybackSource;
+import com.eagle.recorderdemo.audio.PlaybackSources;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Plays a recording on its own thread, feeding {@link AudioTrack#write(ByteBuffer, int, int)}
+ * straight from a {@link PlaybackSource} (a memory mapping for PCM recordings).
+ *
+ * The track is opened with the sample rate and channel layout of the file. Pause, resume and
+ * seek may be called from any thread; they are carried out by the playback thread between two
+ * writes, so the track is only ever touched from one thread. Seeks are frame-accurate.
+ */
+class Player {
+
+    private static final String TAG = "RecorderDemo";
+
+    // Largest write per call; bounds how long a pause or seek waits for the playback thread.
+    private static final int WRITE_MILLIS = 20;
+    private static final long DRAIN_TIMEOUT_MS = 2000;
+
+    interface Listener {
+        /** Called on the playback thread once playback ended, was stopped or failed. */
+        void onPlaybackFinished(Player player);
+    }
+
+    private final File mFile;
+    private final int mDefaultSampleRate;
+    private final int mDefaultChannels;
+    private final Listener mListener;
+    private final Object mLock = new Object();
+    private final Thread mThread;
+
+    private volatile boolean mStopped;
+    private volatile boolean mPaused;
+    // Guarded by mLock; -1 if none.
+    private long mPendingSeekFrame = -1;
+
+    private volatile AudioTrack mTrack;
+    private volatile int mSampleRate;
+    // Frame the track's playback head counts from since the last flush.
+    private volatile long mBaseFrame;
+
+    Player(File file, int defaultSampleRate, int defaultChannels, Listener listener) {
+        mFile = file;
+        mDefaultSampleRate = defaultSampleRate;
+        mDefaultChannels = defaultChannels;
+        mListener = listener;
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+                play();
+            }
+        }, "RecorderPlayback");
+    }
+
+    void start() {
+        mThread.start();
+    }
+
+    void pause() {
+        mPaused = true;
+    }
+
+    void resume() {
+        synchronized (mLock) {
+            mPaused = false;
+            mLock.notifyAll();
+        }
+    }
+
+    boolean isPaused() {
+        return mPaused;
+    }
+
+    void seekToFrame(long frame) {
+        synchronized (mLock) {
+            mPendingSeekFrame = Math.max(0, frame);
+            mLock.notifyAll();
+        }
+    }
+
+    void seekToMillis(long millis) {
+        int rate = mSampleRate > 0 ? mSampleRate : mDefaultSampleRate;
+        seekToFrame(millis * rate / 1000);
+    }
+
+    /** Frame currently being heard. */
+    long getPositionFrames() {
+        AudioTrack track = mTrack;
+        if (track == null) {
+            return mBaseFrame;
+        }
+        return mBaseFrame + (track.getPlaybackHeadPosition() & 0xFFFFFFFFL);
+    }
+
+    long getPositionMillis() {
+        int rate = mSampleRate > 0 ? mSampleRate : mDefaultSampleRate;
+        return getPositionFrames() * 1000 / rate;
+    }
+
+    /**
+     * Stops playback and waits up to {@code timeoutMillis} for the thread to finish.
+     */
+    void stop(long timeoutMillis) {
+        synchronized (mLock) {
+            mStopped = true;
+            mLock.notifyAll();
+        }
+        if (Thread.currentThread() != mThread) {
+            try {
+                mThread.join(timeoutMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void play() {
+        PlaybackSource source = null;
+        AudioTrack track = null;
+        try {
+            source = PlaybackSources.open(mFile, mDefaultSampleRate, mDefaultChannels);
+            mSampleRate = source.getSampleRate();
+            track = createTrack(source.getSampleRate(), source.getChannels());
+            mTrack = track;
+            int frameBytes = source.getChannels() * 2;
+            int chunk = Math.max(frameBytes,
+                    source.getSampleRate() * WRITE_MILLIS / 1000 * frameBytes);
+            Log.d(TAG, "play " + mFile.getName() + " with " + source.getClass().getSimpleName()
+                    + ", " + source.getSampleRate() + " Hz x " + source.getChannels()
+                    + ", " + source.getFrameCount() + " frames");
+            track.play();
+            long written = 0;
+            boolean trackPaused = false;
+            while (!mStopped) {
+                long seek;
+                synchronized (mLock) {
+                    seek = mPendingSeekFrame;
+                    mPendingSeekFrame = -1;
+                    if (seek < 0 && mPaused && !mStopped) {
+                        if (!trackPaused) {
+                            track.pause();
+                            trackPaused = true;
+                        }
+                        mLock.wait();
+                        continue;
+                    }
+                }
+                if (seek >= 0) {
+                    track.pause();
+                    track.flush();
+                    source.seekFrame(seek);
+                    mBaseFrame = source.getFramePosition();
+                    written = 0;
+                    trackPaused = true;
+                    continue;
+                }
+                if (trackPaused) {
+                    track.play();
+                    trackPaused = false;
+                }
+                ByteBuffer buffer = source.next(chunk);
+                if (buffer == null) {
+                    drain(track, written);
+                    break;
+                }
+                int result = track.write(buffer, buffer.remaining(), AudioTrack.WRITE_BLOCKING);
+                if (result < 0) {
+                    throw new IOException("AudioTrack write failed: " + result);
+                }
+                source.advance(result);
+                written += result / frameBytes;
+            }
+        } catch (IOException | IllegalStateException e) {
+            Log.e(TAG, "Failed to play " + mFile, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            mBaseFrame = getPositionFrames();
+            mTrack = null;
+            if (track != null) {
+                track.release();
+            }
+            if (source != null) {
+                try {
+                    source.close();
+                } catch (IOException e) { /* ignore */ }
+            }
+            mListener.onPlaybackFinished(this);
+        }
+    }
+
+    /**
+     * Lets the track play out what was written before returning.
+     */
+    private void drain(AudioTrack track, long writtenFrames) throws InterruptedException {
+        track.stop();
+        long deadline = System.currentTimeMillis() + DRAIN_TIMEOUT_MS;
+        while (!mStopped && System.currentTimeMillis() < deadline
+                && (track.getPlaybackHeadPosition() & 0xFFFFFFFFL) < writtenFrames) {
+            Thread.sleep(WRITE_MILLIS);
+        }
+    }
+
+    private static AudioTrack createTrack(int sampleRate, int channels) {
+        AudioFormat.Builder format = new AudioFormat.Builder()
+                .setEncoding(AudioFormat.ENCODING_PCM_16BIT)
+                .setSampleRate(sampleRate);
+        if (channels == 1) {
+            format.setChannelMask(AudioFormat.CHANNEL_OUT_MONO);
+        } else if (channels == 2) {
+            format.setChannelMask(AudioFormat.CHANNEL_OUT_STEREO);
+        } else {
+            format.setChannelIndexMask((1 << channels) - 1);
+        }
+        AudioFormat audioFormat = format.build();
+        int minBuffer = AudioTrack.getMinBufferSize(sampleRate,
+                channels == 1 ? AudioFormat.CHANNEL_OUT_MONO : AudioFormat.CHANNEL_OUT_STEREO,
+                AudioFormat.ENCODING_PCM_16BIT);
+        return new AudioTrack.Builder()
+                .setAudioAttributes(new AudioAttributes.Builder()
+                        .setUsage(AudioAttributes.USAGE_MEDIA)
+                        .setContentType(AudioAttributes.CONTENT_TYPE_MUSIC)
+                        .build())
+                .setAudioFormat(audioFormat)
+                .setBufferSizeInBytes(Math.max(minBuffer, 1) * 2)
+                .setTransferMode(AudioTrack.MODE_STREAM)
+                .build();
+    }
+}
@@ -7,22 +7,56 @@ import android.app.PendingIntent;
 import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
+import android.media.MediaRecorder;
 import android.os.Binder;
 import android.os.Build;
 import android.os.IBinder;
+import android.os.SystemProperties;
 import android.util.Log;
 
+import com.eagle.recorderdemo.audio.AudioSink;
+import com.eagle.recorderdemo.audio.FrameRingBuffer;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Collections;
+import java.util.List;
+
 public class RecordService extends Service {
 
     private static final String TAG = RecordService.class.getSimpleName();
 
+    // Callers from other apps need PERMISSION_CONTROL, which only apps signed like this one get.
+    public static final String PERMISSION_CONTROL =
+            "com.eagle.recorderdemo.permission.CONTROL_RECORDING";
     public static final String SERVICE_ACTION = "imotor.intent.action.RECORD_SERVICE";
+    // Pre-roll capture, see SoundRecorder#arm(). A trigger may carry EXTRA_REASON for the log.
+    public static final String ACTION_ARM = "imotor.intent.action.RECORD_ARM";
+    public static final String ACTION_DISARM = "imotor.intent.action.RECORD_DISARM";
+    public static final String ACTION_TRIGGER = "imotor.intent.action.RECORD_TRIGGER";
+    public static final String EXTRA_REASON = "reason";
+    // Extra recordings beside the main one, see SessionManager. A start names the session in
+    // EXTRA_SESSION and may set the source (a MediaRecorder.AudioSource), rate, channels,
+    // codec (pcm, adpcm or lossless) and echo canceler; a stop needs the name only.
+    public static final String ACTION_START_SESSION =
+            "imotor.intent.action.RECORD_SESSION_START";
+    public static final String ACTION_STOP_SESSION = "imotor.intent.action.RECORD_SESSION_STOP";
+    public static final String EXTRA_SESSION = "session";
+    public static final String EXTRA_AUDIO_SOURCE = "audio_source";
+    public static final String EXTRA_SAMPLE_RATE = "sample_rate";
+    public static final String EXTRA_CHANNELS = "channels";
+    public static final String EXTRA_CODEC = "codec";
+    public static final String EXTRA_ECHO_CANCELER = "echo_canceler";
 
     private final IBinder mLocalBinder = new LocalBinder();
     private static final String CHANNEL_ID = "com.imotor.recorderdemo";
     private static final int NOTIFICATION_ID = 1;
+    // Bound on how long onDestroy() waits for the recording to be written out.
+    private static final long STOP_TIMEOUT_MS = 2000;
 
     private SoundRecorder mSoundRecorder;
+    private SessionManager mSessions;
     private Notification.Builder mNotificationBuilder;
 
     @Override
@@ -30,6 +64,7 @@ public class RecordService extends Service {
         super.onCreate();
         Log.d(TAG, "onCreate");
         mSoundRecorder  = SoundRecorder.getInstance(this.getApplicationContext());
+        mSessions = new SessionManager(mSoundRecorder);
         NotificationManager notificationManager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
         NotificationChannel c = new NotificationChannel(CHANNEL_ID,
                 getString(R.string.app_name),
@@ -50,6 +85,12 @@ public class RecordService extends Service {
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
             startForeground(NOTIFICATION_ID, buildNotification(false));
         }
+        if (SystemProperties.getBoolean(SoundRecorder.PROP_PREROLL, false)) {
+            mSoundRecorder.arm();
+        }
+        if (SystemProperties.getBoolean(CompactionJobService.PROP_COMPACT, false)) {
+            CompactionJobService.schedule(this);
+        }
     }
 
     @Override
@@ -61,11 +102,44 @@ public class RecordService extends Service {
                 if (!mSoundRecorder.isRecording()) {
                     mSoundRecorder.startRecording();
                 }
+            } else if (ACTION_ARM.equals(action)) {
+                mSoundRecorder.arm();
+            } else if (ACTION_DISARM.equals(action)) {
+                mSoundRecorder.disarm();
+            } else if (ACTION_TRIGGER.equals(action)) {
+                String reason = intent.getStringExtra(EXTRA_REASON);
+                mSoundRecorder.trigger(reason != null ? reason : "intent");
+            } else if (ACTION_START_SESSION.equals(action)) {
+                startSession(intent);
+            } else if (ACTION_STOP_SESSION.equals(action)) {
+                String name = intent.getStringExtra(EXTRA_SESSION);
+                if (name == null || !mSessions.stop(name)) {
+                    Log.w(TAG, "no session " + name + " to stop");
+                }
             }
         }
         return super.onStartCommand(intent, flags, startId);
     }
 
+    private void startSession(Intent intent) {
+        String name = intent.getStringExtra(EXTRA_SESSION);
+        if (name == null) {
+            Log.w(TAG, "session start without " + EXTRA_SESSION);
+            return;
+        }
+        SessionManager.Config config = new SessionManager.Config(name,
+                intent.getIntExtra(EXTRA_AUDIO_SOURCE, MediaRecorder.AudioSource.MIC),
+                intent.getIntExtra(EXTRA_SAMPLE_RATE, SoundRecorder.RECORDING_RATE),
+                intent.getIntExtra(EXTRA_CHANNELS, 1),
+                intent.getStringExtra(EXTRA_CODEC),
+                intent.getBooleanExtra(EXTRA_ECHO_CANCELER, false));
+        try {
+            mSessions.start(config);
+        } catch (IOException | IllegalArgumentException | IllegalStateException e) {
+            Log.w(TAG, "could not start session " + name, e);
+        }
+    }
+
     public void setRecordListener(SoundRecorder.RecordStateListener listener) {
         mSoundRecorder.setRecordingListener(listener);
     }
@@ -101,9 +175,11 @@ public class RecordService extends Service {
         super.onDestroy();
         Log.d(TAG, "onDestory");
         cancelNotification();
-        if (mSoundRecorder.isRecording()) {
-            mSoundRecorder.stopRecording();
+        if (mSoundRecorder.isRecording() || mSoundRecorder.isArmed()) {
+            mSoundRecorder.stopRecording(STOP_TIMEOUT_MS);
         }
+        mSoundRecorder.releaseWarmSession();
+        mSessions.release(STOP_TIMEOUT_MS);
         mSoundRecorder = null;
     }
 
@@ -111,6 +187,103 @@ public class RecordService extends Service {
         RecordService getService() {
             return RecordService.this;
         }
+
+        /** Health counters of the current or last recording, {@code null} before the first. */
+        SoundRecorder.Health getHealth() {
+            SoundRecorder recorder = mSoundRecorder;
+            return recorder != null ? recorder.getHealth() : null;
+        }
+
+        /**
+         * Measures the speaker to microphone round trip while idle, see
+         * {@link SoundRecorder#measureLoopbackLatency()}. Blocks; not for the main thread.
+         */
+        long measureLoopbackLatency() {
+            SoundRecorder recorder = mSoundRecorder;
+            return recorder != null ? recorder.measureLoopbackLatency() : -1;
+        }
+
+        /**
+         * Feeds {@code sink} from the running and later recordings, see
+         * {@link SoundRecorder#attachSink}.
+         */
+        void attachSink(String name, AudioSink sink, FrameRingBuffer.ConsumerPolicy policy) {
+            SoundRecorder recorder = mSoundRecorder;
+            if (recorder != null) {
+                recorder.attachSink(name, sink, policy);
+            }
+        }
+
+        boolean detachSink(AudioSink sink) {
+            SoundRecorder recorder = mSoundRecorder;
+            return recorder != null && recorder.detachSink(sink);
+        }
+
+        /** Starts pre-roll capture while idle, see {@link SoundRecorder#arm()}. */
+        boolean arm() {
+            SoundRecorder recorder = mSoundRecorder;
+            return recorder != null && recorder.arm();
+        }
+
+        void disarm() {
+            SoundRecorder recorder = mSoundRecorder;
+            if (recorder != null) {
+                recorder.disarm();
+            }
+        }
+
+        /** Saves the pre-roll and post-roll around now, see {@link SoundRecorder#trigger}. */
+        boolean trigger(String reason) {
+            SoundRecorder recorder = mSoundRecorder;
+            return recorder != null && recorder.trigger(reason);
+        }
+
+        /**
+         * Recordings started in {@code [fromMillis, toMillis)}, see
+         * {@link RecordingCatalog#queryByTime}. Reads the database; not for the main thread.
+         */
+        List<RecordingCatalog.Entry> queryRecordings(long fromMillis, long toMillis) {
+            SoundRecorder recorder = mSoundRecorder;
+            return recorder != null ? recorder.getCatalog().queryByTime(fromMillis, toMillis)
+                    : Collections.<RecordingCatalog.Entry>emptyList();
+        }
+
+        /** Loudest recordings first, see {@link RecordingCatalog#queryLoudest}. */
+        List<RecordingCatalog.Entry> queryLoudest(float minDb, boolean byRms, int limit) {
+            SoundRecorder recorder = mSoundRecorder;
+            return recorder != null ? recorder.getCatalog().queryLoudest(minDb, byRms, limit)
+                    : Collections.<RecordingCatalog.Entry>emptyList();
+        }
+
+        /**
+         * Starts a recording beside the main one, see {@link SessionManager#start}. Opens the
+         * source and the file; not for the main thread.
+         *
+         * @throws IllegalArgumentException if {@code config} is not one sessions can record
+         */
+        SessionManager.Info startSession(SessionManager.Config config) throws IOException {
+            return mSessions.start(config);
+        }
+
+        boolean stopSession(String name) {
+            return mSessions.stop(name);
+        }
+
+        /** State and counters of the running and recently ended sessions. */
+        List<SessionManager.Info> getSessions() {
+            return mSessions.getSessions();
+        }
+    }
+
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        SoundRecorder recorder = mSoundRecorder;
+        if (recorder == null) {
+            writer.println("destroyed");
+            return;
+        }
+        recorder.dump(writer);
+        mSessions.dump(writer);
     }
 
 
@@ -0,0 +1,155 @@
+package com.eagle.recorderdemo;
+
+import android.media.AudioRecord;
+import android.media.audiofx.AcousticEchoCanceler;
+import android.util.Log;
+
+import com.eagle.recorderdemo.audio.FrameRingBuffer;
+import com.eagle.recorderdemo.audio.ReadSizeController;
+import com.eagle.recorderdemo.audio.SegmentWriter;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Everything a recording needs before its first sample: the AudioRecord with its echo
+ * canceler, the monitor, the ring and, when prepared ahead of time, the output file
+ * already open under a temporary name.
+ *
+ * A session is used for one recording. Prepared while the recorder is idle, it turns the start
+ * of the next recording into renaming a file and starting the AudioRecord.
+ */
+class RecordSession {
+
+    private static final String TAG = "RecorderDemo";
+
+    /** Prefix of the temporary name an output file is opened under before it is used. */
+    static final String WARM_PREFIX = "warm_";
+    static final String WARM_EXTENSION = "part";
+
+    final AudioRecordSource source;
+    final MonitorSink monitor;
+    final ReadSizeController readSize;
+    final FrameRingBuffer ring;
+    final int frameBytes;
+    // Configuration the session was built for; a different one means it cannot be reused.
+    final String config;
+    final long preparedNanos;
+
+    private final AcousticEchoCanceler mEchoCanceler;
+    private File mWarmFile;
+    private SegmentWriter mWarmWriter;
+    private File mFile;
+
+    RecordSession(AudioRecord audioRecord, MonitorSink monitor,
+            AcousticEchoCanceler echoCanceler, ReadSizeController readSize,
+            FrameRingBuffer ring, int frameBytes, boolean dither, String config) {
+        this.source = new AudioRecordSource(audioRecord, frameBytes, dither);
+        this.monitor = monitor;
+        this.readSize = readSize;
+        this.ring = ring;
+        this.frameBytes = frameBytes;
+        this.config = config;
+        this.preparedNanos = System.nanoTime();
+        mEchoCanceler = echoCanceler;
+    }
+
+    /**
+     * Hands over the output file that was opened ahead of time under {@code warmFile}.
+     */
+    synchronized void setWarmOutput(File warmFile, SegmentWriter writer) {
+        mWarmFile = warmFile;
+        mWarmWriter = writer;
+    }
+
+    synchronized boolean hasWarmOutput() {
+        return mWarmWriter != null;
+    }
+
+    /**
+     * Makes {@code file} the output of this session: the file opened ahead of time is renamed
+     * to it, or else an empty one is created.
+     *
+     * @return whether {@code file} exists now
+     */
+    synchronized boolean claimFile(File file) {
+        mFile = file;
+        if (mWarmWriter != null) {
+            if (mWarmFile.renameTo(file)) {
+                return true;
+            }
+            Log.w(TAG, "could not rename " + mWarmFile + ", opening " + file + " cold");
+            discardWarmOutput();
+        }
+        try {
+            return file.createNewFile() || file.exists();
+        } catch (IOException e) {
+            Log.w(TAG, "error", e);
+            return false;
+        }
+    }
+
+    /**
+     * Returns the writer opened ahead of time if {@code file} is the one it was claimed as, at
+     * most once; {@code null} means the caller opens {@code file} itself.
+     */
+    synchronized SegmentWriter takeWriter(File file) {
+        if (mWarmWriter == null || !file.equals(mFile)) {
+            return null;
+        }
+        SegmentWriter writer = mWarmWriter;
+        mWarmWriter = null;
+        mWarmFile = null;
+        return writer;
+    }
+
+    /** Closes and deletes the output file opened ahead of time, for a session that needs none. */
+    synchronized void discardWarmOutput() {
+        if (mWarmWriter != null) {
+            try {
+                mWarmWriter.close();
+            } catch (IOException e) { /* ignore */ }
+            mWarmWriter = null;
+        }
+        if (mWarmFile != null) {
+            mWarmFile.delete();
+            mWarmFile = null;
+        }
+    }
+
+    /**
+     * Deletes the file claimed with {@link #claimFile}, and the output opened ahead of time if
+     * it was never taken, for a start that failed before anything was written.
+     */
+    synchronized void discardClaimedFile() {
+        if (mWarmWriter != null) {
+            try {
+                mWarmWriter.close();
+            } catch (IOException e) { /* ignore */ }
+            mWarmWriter = null;
+            mWarmFile = null;
+        }
+        if (mFile != null) {
+            mFile.delete();
+            mFile = null;
+        }
+    }
+
+    /** Releases everything this session still holds. */
+    synchronized void release() {
+        discardWarmOutput();
+        if (mEchoCanceler != null) {
+            mEchoCanceler.release();
+        }
+        if (monitor != null) {
+            monitor.close();
+        }
+        source.close();
+    }
+
+    @Override
+    public String toString() {
+        return "RecordSession{config=" + config + ", warm output=" + (mWarmWriter != null)
+                + ", aec=" + (mEchoCanceler != null) + "}";
+    }
+}
@@ -0,0 +1,505 @@
+package com.eagle.recorderdemo;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.eagle.recorderdemo.audio.CatalogWriter;
+import com.eagle.recorderdemo.audio.RecordingInfo;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps one row per recording in a small SQLite database, so listing recordings by time or
+ * loudness is an indexed query rather than a walk over every file and sidecar.
+ *
+ * Rows are written as recordings go: when one starts, at checkpoints while it runs and once it
+ * is closed, when the file is probed for its final length and levels. All writes go through a
+ * single thread, in order. {@link #rebuild} brings the catalog in line with the directory when
+ * it is missing or stale: files whose row still matches their size and modification time are
+ * skipped, the rest are probed on a bounded pool and stored in batches that are committed one
+ * by one, so a rebuild that is cut short resumes where it stopped the next time.
+ */
+public class RecordingCatalog extends SQLiteOpenHelper {
+
+    private static final String TAG = "RecorderDemo";
+
+    public static final int STATUS_RECORDING = 0;
+    public static final int STATUS_COMPLETE = 1;
+    public static final int STATUS_FAILED = 2;
+
+    private static final String DATABASE_NAME = "catalog.db";
+    private static final int DATABASE_VERSION = 1;
+    private static final String TABLE = "recordings";
+    private static final String COLUMN_PATH = "path";
+    private static final String COLUMN_FORMAT = "format";
+    private static final String COLUMN_SAMPLE_RATE = "sample_rate";
+    private static final String COLUMN_CHANNELS = "channels";
+    private static final String COLUMN_START = "start_ms";
+    private static final String COLUMN_DURATION = "duration_ms";
+    private static final String COLUMN_SIZE = "size_bytes";
+    private static final String COLUMN_MODIFIED = "modified_ms";
+    private static final String COLUMN_PEAK = "peak_db";
+    private static final String COLUMN_RMS = "rms_db";
+    private static final String COLUMN_STATUS = "status";
+    private static final String[] COLUMNS = {COLUMN_PATH, COLUMN_FORMAT, COLUMN_SAMPLE_RATE,
+            COLUMN_CHANNELS, COLUMN_START, COLUMN_DURATION, COLUMN_SIZE, COLUMN_MODIFIED,
+            COLUMN_PEAK, COLUMN_RMS, COLUMN_STATUS};
+
+    // Rows a rebuild commits per transaction.
+    private static final int REBUILD_BATCH = 32;
+
+    /** A row of the catalog. */
+    public static final class Entry {
+        public final RecordingInfo info;
+        public final int status;
+
+        Entry(RecordingInfo info, int status) {
+            this.info = info;
+            this.status = status;
+        }
+
+        @Override
+        public String toString() {
+            return info + " status=" + status;
+        }
+    }
+
+    /** What a recording being written looks like before it can be probed. */
+    private static final class Active {
+        final long startMillis;
+        final String format;
+        final int sampleRate;
+        final int channels;
+
+        Active(long startMillis, String format, int sampleRate, int channels) {
+            this.startMillis = startMillis;
+            this.format = format;
+            this.sampleRate = sampleRate;
+            this.channels = channels;
+        }
+    }
+
+    private final int mDefaultSampleRate;
+    private final int mDefaultChannels;
+    private final ExecutorService mWriter = Executors.newSingleThreadExecutor(
+            new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            return new Thread(r, "RecorderCatalog");
+        }
+    });
+    // Recordings being written, by path; a rebuild leaves their rows alone.
+    private final Map<String, Active> mActive = new HashMap<>();
+    private final AtomicBoolean mRebuilding = new AtomicBoolean();
+    private final AtomicInteger mRebuildPending = new AtomicInteger();
+    private final AtomicInteger mRebuildStored = new AtomicInteger();
+    private final AtomicInteger mRebuildFailed = new AtomicInteger();
+    private volatile int mRebuildDeleted;
+    private volatile long mRebuildMillis = -1;
+
+    /**
+     * @param defaultSampleRate assumed for headerless PCM
+     * @param defaultChannels assumed for headerless PCM
+     */
+    public RecordingCatalog(Context context, int defaultSampleRate, int defaultChannels) {
+        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        mDefaultSampleRate = defaultSampleRate;
+        mDefaultChannels = defaultChannels;
+        setWriteAheadLoggingEnabled(true);
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE + " ("
+                + COLUMN_PATH + " TEXT PRIMARY KEY NOT NULL, "
+                + COLUMN_FORMAT + " TEXT, "
+                + COLUMN_SAMPLE_RATE + " INTEGER, "
+                + COLUMN_CHANNELS + " INTEGER, "
+                + COLUMN_START + " INTEGER NOT NULL, "
+                + COLUMN_DURATION + " INTEGER NOT NULL, "
+                + COLUMN_SIZE + " INTEGER NOT NULL, "
+                + COLUMN_MODIFIED + " INTEGER NOT NULL, "
+                + COLUMN_PEAK + " REAL, "
+                + COLUMN_RMS + " REAL, "
+                + COLUMN_STATUS + " INTEGER NOT NULL)");
+        db.execSQL("CREATE INDEX recordings_start ON " + TABLE + " (" + COLUMN_START + ")");
+        db.execSQL("CREATE INDEX recordings_peak ON " + TABLE + " (" + COLUMN_PEAK + ")");
+        db.execSQL("CREATE INDEX recordings_rms ON " + TABLE + " (" + COLUMN_RMS + ")");
+    }
+
+    /** The catalog only mirrors the files, so an old one is dropped and rebuilt. */
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE);
+        onCreate(db);
+    }
+
+    /**
+     * Returns the listener that keeps the row of {@code file} up to date while it is written
+     * through a {@link CatalogWriter}, and adds the row.
+     *
+     * @param format one of the {@code RecordingInfo.FORMAT_} names
+     */
+    public CatalogWriter.Listener track(File file, String format, int sampleRate, int channels) {
+        return track(file, format, sampleRate, channels, System.currentTimeMillis());
+    }
+
+    /**
+     * Like {@link #track(File, String, int, int)} for a recording whose first frame was
+     * captured at {@code startMillis} rather than now.
+     */
+    public CatalogWriter.Listener track(final File file, String format, final int sampleRate,
+            int channels, long startMillis) {
+        final String path = file.getAbsolutePath();
+        final Active active = new Active(startMillis, format, sampleRate, channels);
+        synchronized (mActive) {
+            mActive.put(path, active);
+        }
+        submit(new Runnable() {
+            @Override
+            public void run() {
+                store(new RecordingInfo(file, active.format, active.sampleRate, active.channels,
+                        active.startMillis, 0, file.length(), file.lastModified(), Float.NaN,
+                        Float.NaN), STATUS_RECORDING);
+            }
+        });
+        return new CatalogWriter.Listener() {
+            @Override
+            public void onCheckpoint(final long frames) {
+                submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        ContentValues values = new ContentValues();
+                        values.put(COLUMN_DURATION, frames * 1000 / sampleRate);
+                        values.put(COLUMN_SIZE, file.length());
+                        values.put(COLUMN_MODIFIED, file.lastModified());
+                        getWritableDatabase().update(TABLE, values, COLUMN_PATH + " = ?",
+                                new String[] {path});
+                    }
+                });
+            }
+
+            @Override
+            public void onClosed(long frames, final boolean failed) {
+                submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        finish(file, active, failed);
+                    }
+                });
+            }
+        };
+    }
+
+    private void finish(File file, Active active, boolean failed) {
+        String path = file.getAbsolutePath();
+        try {
+            if (!file.exists()) {
+                // Nothing reached the disk, or it was deleted already.
+                getWritableDatabase().delete(TABLE, COLUMN_PATH + " = ?", new String[] {path});
+                return;
+            }
+            RecordingInfo probed;
+            try {
+                probed = RecordingInfo.probe(file, mDefaultSampleRate, mDefaultChannels);
+            } catch (IOException e) {
+                Log.w(TAG, "catalog could not probe " + file.getName(), e);
+                probed = new RecordingInfo(file, active.format, active.sampleRate,
+                        active.channels, active.startMillis, 0, file.length(),
+                        file.lastModified(), Float.NaN, Float.NaN);
+                failed = true;
+            }
+            // The start is known here, rather than derived from when the file was last written.
+            store(new RecordingInfo(file, probed.format, probed.sampleRate, probed.channels,
+                    active.startMillis, probed.durationMillis, probed.sizeBytes,
+                    probed.modifiedMillis, probed.peakDb, probed.rmsDb),
+                    failed ? STATUS_FAILED : STATUS_COMPLETE);
+        } finally {
+            synchronized (mActive) {
+                mActive.remove(path);
+            }
+        }
+    }
+
+    /**
+     * Brings the catalog in line with the recordings in {@code dir} on a thread of its own,
+     * probing up to {@code threads} files at once. Does nothing if a rebuild is running.
+     */
+    public void rebuild(final File dir, final int threads) {
+        if (!mRebuilding.compareAndSet(false, true)) {
+            return;
+        }
+        new Thread("RecorderCatalogRebuild") {
+            @Override
+            public void run() {
+                long start = SystemClock.elapsedRealtime();
+                try {
+                    reconcile(dir, Math.max(1, threads));
+                    mRebuildMillis = SystemClock.elapsedRealtime() - start;
+                    Log.d(TAG, "catalog rebuilt in " + mRebuildMillis + " ms: stored "
+                            + mRebuildStored.get() + ", unreadable " + mRebuildFailed.get()
+                            + ", deleted " + mRebuildDeleted);
+                } catch (InterruptedException | ExecutionException | RuntimeException e) {
+                    Log.w(TAG, "catalog rebuild failed", e);
+                } finally {
+                    mRebuildPending.set(0);
+                    mRebuilding.set(false);
+                }
+            }
+        }.start();
+    }
+
+    private void reconcile(File dir, int threads)
+            throws InterruptedException, ExecutionException {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        final Map<String, long[]> rows = new HashMap<>();
+        Cursor cursor = getReadableDatabase().query(TABLE,
+                new String[] {COLUMN_PATH, COLUMN_MODIFIED, COLUMN_SIZE, COLUMN_STATUS},
+                null, null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                rows.put(cursor.getString(0), new long[] {
+                        cursor.getLong(1), cursor.getLong(2), cursor.getInt(3)});
+            }
+        } finally {
+            cursor.close();
+        }
+
+        List<File> stale = new ArrayList<>();
+        Set<String> present = new HashSet<>();
+        for (File file : files) {
+            if (!RecordingInfo.isRecording(file)) {
+                continue;
+            }
+            String path = file.getAbsolutePath();
+            present.add(path);
+            long[] row = rows.get(path);
+            // A row still marked recording is left over from a process that died mid-way.
+            if (row == null || row[0] != file.lastModified() || row[1] != file.length()
+                    || row[2] == STATUS_RECORDING) {
+                stale.add(file);
+            }
+        }
+        final List<String> missing = new ArrayList<>();
+        for (String path : rows.keySet()) {
+            if (!present.contains(path)) {
+                missing.add(path);
+            }
+        }
+        submitAndWait(new Runnable() {
+            @Override
+            public void run() {
+                mRebuildDeleted = deleteRows(missing);
+            }
+        });
+        if (stale.isEmpty()) {
+            return;
+        }
+
+        mRebuildStored.set(0);
+        mRebuildFailed.set(0);
+        mRebuildPending.set(stale.size());
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, stale.size()),
+                new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "RecorderCatalogProbe");
+            }
+        });
+        try {
+            CompletionService<RecordingInfo> probes = new ExecutorCompletionService<>(pool);
+            for (final File file : stale) {
+                probes.submit(new Callable<RecordingInfo>() {
+                    @Override
+                    public RecordingInfo call() {
+                        try {
+                            return RecordingInfo.probe(file, mDefaultSampleRate,
+                                    mDefaultChannels);
+                        } catch (IOException | RuntimeException e) {
+                            mRebuildFailed.incrementAndGet();
+                            // Stored as failed so the next rebuild does not probe it again.
+                            long modified = file.lastModified();
+                            return new RecordingInfo(file, null, 0, 0, modified, 0,
+                                    file.length(), modified, Float.NaN, Float.NaN);
+                        }
+                    }
+                });
+            }
+            final List<RecordingInfo> batch = new ArrayList<>(REBUILD_BATCH);
+            for (int i = stale.size(); i > 0; i--) {
+                batch.add(probes.take().get());
+                mRebuildPending.decrementAndGet();
+                if (batch.size() == REBUILD_BATCH || i == 1) {
+                    submitAndWait(new Runnable() {
+                        @Override
+                        public void run() {
+                            storeBatch(batch);
+                        }
+                    });
+                    batch.clear();
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /** Stores rebuilt rows in one transaction, skipping recordings that started meanwhile. */
+    private void storeBatch(List<RecordingInfo> batch) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (RecordingInfo info : batch) {
+                if (isActive(info.file.getAbsolutePath())) {
+                    continue;
+                }
+                store(info, info.format != null ? STATUS_COMPLETE : STATUS_FAILED);
+                mRebuildStored.incrementAndGet();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private int deleteRows(List<String> paths) {
+        if (paths.isEmpty()) {
+            return 0;
+        }
+        int deleted = 0;
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (String path : paths) {
+                if (!isActive(path)) {
+                    deleted += db.delete(TABLE, COLUMN_PATH + " = ?", new String[] {path});
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return deleted;
+    }
+
+    private boolean isActive(String path) {
+        synchronized (mActive) {
+            return mActive.containsKey(path);
+        }
+    }
+
+    private void store(RecordingInfo info, int status) {
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_PATH, info.file.getAbsolutePath());
+        values.put(COLUMN_FORMAT, info.format);
+        values.put(COLUMN_SAMPLE_RATE, info.sampleRate);
+        values.put(COLUMN_CHANNELS, info.channels);
+        values.put(COLUMN_START, info.startMillis);
+        values.put(COLUMN_DURATION, info.durationMillis);
+        values.put(COLUMN_SIZE, info.sizeBytes);
+        values.put(COLUMN_MODIFIED, info.modifiedMillis);
+        // SQLite has no NaN; recordings without levels sort below any level.
+        putLevel(values, COLUMN_PEAK, info.peakDb);
+        putLevel(values, COLUMN_RMS, info.rmsDb);
+        values.put(COLUMN_STATUS, status);
+        getWritableDatabase().insertWithOnConflict(TABLE, null, values,
+                SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    private static void putLevel(ContentValues values, String column, float db) {
+        if (Float.isNaN(db)) {
+            values.putNull(column);
+        } else {
+            values.put(column, db);
+        }
+    }
+
+    /** Recordings started in {@code [fromMillis, toMillis)}, oldest first. */
+    public List<Entry> queryByTime(long fromMillis, long toMillis) {
+        return query(COLUMN_START + " >= ? AND " + COLUMN_START + " < ?",
+                new String[] {Long.toString(fromMillis), Long.toString(toMillis)},
+                COLUMN_START, null);
+    }
+
+    /**
+     * Recordings whose peak, or RMS if {@code byRms}, reaches {@code minDb} dBFS, loudest
+     * first, at most {@code limit} of them.
+     */
+    public List<Entry> queryLoudest(float minDb, boolean byRms, int limit) {
+        String column = byRms ? COLUMN_RMS : COLUMN_PEAK;
+        return query(column + " >= ?", new String[] {Float.toString(minDb)},
+                column + " DESC", Integer.toString(limit));
+    }
+
+    private List<Entry> query(String selection, String[] args, String orderBy, String limit) {
+        List<Entry> entries = new ArrayList<>();
+        Cursor cursor = getReadableDatabase().query(TABLE, COLUMNS, selection, args, null,
+                null, orderBy, limit);
+        try {
+            while (cursor.moveToNext()) {
+                RecordingInfo info = new RecordingInfo(new File(cursor.getString(0)),
+                        cursor.getString(1), cursor.getInt(2), cursor.getInt(3),
+                        cursor.getLong(4), cursor.getLong(5), cursor.getLong(6),
+                        cursor.getLong(7), cursor.isNull(8) ? Float.NaN : cursor.getFloat(8),
+                        cursor.isNull(9) ? Float.NaN : cursor.getFloat(9));
+                entries.add(new Entry(info, cursor.getInt(10)));
+            }
+        } finally {
+            cursor.close();
+        }
+        return entries;
+    }
+
+    private void submit(final Runnable write) {
+        mWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    write.run();
+                } catch (RuntimeException e) {
+                    Log.w(TAG, "catalog write failed", e);
+                }
+            }
+        });
+    }
+
+    private void submitAndWait(Runnable write) throws InterruptedException, ExecutionException {
+        mWriter.submit(write).get();
+    }
+
+    public void dump(PrintWriter pw) {
+        int active;
+        synchronized (mActive) {
+            active = mActive.size();
+        }
+        pw.println("catalog: active=" + active + (mRebuilding.get()
+                ? " rebuilding, pending=" + mRebuildPending.get() : " last rebuild "
+                        + mRebuildMillis + " ms") + " stored=" + mRebuildStored.get()
+                + " unreadable=" + mRebuildFailed.get() + " deleted=" + mRebuildDeleted);
+    }
+}
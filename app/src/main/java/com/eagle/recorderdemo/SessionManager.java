@@ -0,0 +1,416 @@
+package com.eagle.recorderdemo;
+
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import android.media.MediaRecorder;
+import android.media.audiofx.AcousticEchoCanceler;
+import android.os.Process;
+import android.os.SystemProperties;
+import android.util.Log;
+
+import com.eagle.recorderdemo.audio.BufferPool;
+import com.eagle.recorderdemo.audio.CaptureSession;
+import com.eagle.recorderdemo.audio.CatalogWriter;
+import com.eagle.recorderdemo.audio.EncodingWriter;
+import com.eagle.recorderdemo.audio.GapLog;
+import com.eagle.recorderdemo.audio.ImaAdpcm;
+import com.eagle.recorderdemo.audio.LosslessCodec;
+import com.eagle.recorderdemo.audio.PeakFile;
+import com.eagle.recorderdemo.audio.PeakWriter;
+import com.eagle.recorderdemo.audio.PipelineMetrics;
+import com.eagle.recorderdemo.audio.RecordingInfo;
+import com.eagle.recorderdemo.audio.SegmentWriter;
+import com.eagle.recorderdemo.audio.WavFormat;
+import com.eagle.recorderdemo.audio.WavWriter;
+import com.eagle.recorderdemo.audio.WriterPool;
+import com.eagle.recorderdemo.audio.WriterStats;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Runs recordings beside the one {@link SoundRecorder} makes, each from its own audio source in
+ * its own rate, channels and codec, for instance {@code VOICE_RECOGNITION} next to {@code MIC}.
+ *
+ * Every session captures on a thread of its own, since reads block, into buffers of one
+ * {@link BufferPool} and is written by one {@link WriterPool}, so the threads and the buffer
+ * memory of all sessions together stay bounded. Files go to the record directory under the
+ * session name and are entered in the catalog like any other recording, kept from the storage
+ * janitor while they are written, with a gap log of the audio dropped. Whether two sources can
+ * really be captured at once is up to the audio HAL; a source it refuses fails the start.
+ */
+class SessionManager {
+
+    private static final String TAG = "RecorderDemo";
+
+    private static final String PROP_WRITER_THREADS = "recorddemo.sessions.writer_threads";
+    private static final int DEFAULT_WRITER_THREADS = 2;
+    // Buffer memory all sessions share; a session that finds none free drops audio.
+    private static final String PROP_BUFFER_POOL_KB = "recorddemo.sessions.buffer_pool_kb";
+    private static final int DEFAULT_BUFFER_POOL_KB = 2048;
+    private static final String PROP_MAX_SESSIONS = "recorddemo.sessions.max";
+    private static final int DEFAULT_MAX_SESSIONS = 4;
+
+    private static final int BUFFER_BYTES = 8 * 1024;
+    private static final int READ_MS = 20;
+    // Buffers one session may have queued for writing, about a second of 48 kHz stereo.
+    private static final int LANE_BUFFERS = 24;
+    // Ended sessions kept for getSessions() and dump.
+    private static final int MAX_FINISHED = 8;
+    private static final long STOP_GRACE_MS = 500;
+
+    // Names end up in file names, so they are kept to characters safe there.
+    private static final Pattern NAME = Pattern.compile("[A-Za-z0-9_-]{1,32}");
+    private static final int MIN_SAMPLE_RATE = 8000;
+    private static final int MAX_SAMPLE_RATE = 48000;
+
+    /** What a session records and how. */
+    static final class Config {
+        final String name;
+        /** One of {@link MediaRecorder.AudioSource}. */
+        final int audioSource;
+        final int sampleRate;
+        final int channels;
+        /** {@link SoundRecorder#CODEC_PCM}, {@code CODEC_ADPCM} or {@code CODEC_LOSSLESS}. */
+        final String codec;
+        final boolean echoCanceler;
+
+        Config(String name, int audioSource, int sampleRate, int channels, String codec,
+                boolean echoCanceler) {
+            this.name = name;
+            this.audioSource = audioSource;
+            this.sampleRate = sampleRate;
+            this.channels = channels;
+            this.codec = codec != null ? codec : SoundRecorder.CODEC_PCM;
+            this.echoCanceler = echoCanceler;
+        }
+    }
+
+    /** State and counters of a session as returned by {@link #getSessions()}. */
+    static final class Info {
+        final String name;
+        final int audioSource;
+        final CaptureSession.State state;
+        final File file;
+        final long startMillis;
+        final long capturedBytes;
+        final long writtenBytes;
+        /** Captured audio lost because no buffer or lane slot was free. */
+        final long droppedBytes;
+        final PipelineMetrics metrics;
+        final WriterStats writer;
+        final Throwable failure;
+
+        Info(Session session) {
+            CaptureSession capture = session.capture;
+            name = session.config.name;
+            audioSource = session.config.audioSource;
+            state = capture.getState();
+            file = session.file;
+            startMillis = capture.getStartMillis();
+            capturedBytes = capture.getCapturedBytes();
+            writtenBytes = capture.getWrittenBytes();
+            droppedBytes = capture.getDroppedBytes();
+            metrics = capture.getMetrics();
+            writer = session.output.getStats();
+            failure = capture.getFailure();
+        }
+    }
+
+    private static final class Session {
+        final Config config;
+        final File file;
+        final SegmentWriter output;
+        final AcousticEchoCanceler echoCanceler;
+        CaptureSession capture;
+
+        Session(Config config, File file, SegmentWriter output,
+                AcousticEchoCanceler echoCanceler) {
+            this.config = config;
+            this.file = file;
+            this.output = output;
+            this.echoCanceler = echoCanceler;
+        }
+    }
+
+    private final SoundRecorder mRecorder;
+    private final BufferPool mBuffers;
+    private final WriterPool mWriters;
+    private final int mMaxSessions;
+
+    // Guarded by this.
+    private final Map<String, Session> mRunning = new LinkedHashMap<>();
+    private final ArrayDeque<Session> mFinished = new ArrayDeque<>();
+    private boolean mReleased;
+
+    SessionManager(SoundRecorder recorder) {
+        mRecorder = recorder;
+        int buffers = Math.max(LANE_BUFFERS, SystemProperties.getInt(PROP_BUFFER_POOL_KB,
+                DEFAULT_BUFFER_POOL_KB) * 1024 / BUFFER_BYTES);
+        mBuffers = new BufferPool(BUFFER_BYTES, buffers);
+        mWriters = new WriterPool(Math.max(1, SystemProperties.getInt(PROP_WRITER_THREADS,
+                DEFAULT_WRITER_THREADS)), "RecorderSessionWriter");
+        mMaxSessions = Math.max(1, SystemProperties.getInt(PROP_MAX_SESSIONS,
+                DEFAULT_MAX_SESSIONS));
+    }
+
+    /**
+     * Starts recording {@code config} under its name.
+     *
+     * @throws IllegalArgumentException if {@code config} is not one sessions can record
+     * @throws IllegalStateException if a session of that name runs or no more may run
+     * @throws IOException if the source or the output cannot be opened
+     */
+    synchronized Info start(Config config) throws IOException {
+        checkConfig(config);
+        if (mReleased) {
+            throw new IllegalStateException("released");
+        }
+        if (mRunning.containsKey(config.name)) {
+            throw new IllegalStateException("session " + config.name + " already running");
+        }
+        if (mRunning.size() >= mMaxSessions) {
+            throw new IllegalStateException("already " + mRunning.size() + " sessions running");
+        }
+        int frameBytes = config.channels * 2;
+        int readBytes = Math.min(BUFFER_BYTES / frameBytes,
+                config.sampleRate * READ_MS / 1000) * frameBytes;
+        int channelMask = config.channels == 1
+                ? AudioFormat.CHANNEL_IN_MONO : AudioFormat.CHANNEL_IN_STEREO;
+        int minBufferSize = AudioRecord.getMinBufferSize(config.sampleRate, channelMask,
+                AudioFormat.ENCODING_PCM_16BIT);
+        if (minBufferSize <= 0) {
+            throw new IOException("unsupported format " + config.sampleRate + " Hz x "
+                    + config.channels);
+        }
+        AudioRecord audioRecord = new AudioRecord(config.audioSource, config.sampleRate,
+                channelMask, AudioFormat.ENCODING_PCM_16BIT,
+                Math.max(minBufferSize, 4 * readBytes));
+        if (audioRecord.getState() != AudioRecord.STATE_INITIALIZED) {
+            audioRecord.release();
+            throw new IOException("audio source " + config.audioSource + " unavailable");
+        }
+        AcousticEchoCanceler echoCanceler = config.echoCanceler
+                ? SoundRecorder.createEchoCanceler(audioRecord.getAudioSessionId()) : null;
+
+        File file = new File(SoundRecorder.getRecordDir(), String.format(Locale.US,
+                "recording_%s_%s.%s", SoundRecorder.getDisplayTime(), config.name,
+                SoundRecorder.CODEC_LOSSLESS.equals(config.codec) ? "rlac" : "wav"));
+        SegmentWriter output;
+        try {
+            output = openOutput(file, config);
+        } catch (IOException | RuntimeException e) {
+            if (echoCanceler != null) {
+                echoCanceler.release();
+            }
+            audioRecord.release();
+            throw e;
+        }
+
+        final Session session = new Session(config, file, output, echoCanceler);
+        PipelineMetrics metrics = new PipelineMetrics(config.sampleRate, frameBytes, "file");
+        WriterPool.Lane lane = mWriters.newLane(mBuffers, LANE_BUFFERS, output);
+        lane.setMetrics(metrics);
+        AudioRecordSource source = new AudioRecordSource(audioRecord, readBytes, false);
+        source.setMetrics(metrics);
+        GapLog gapLog = new GapLog(GapLog.sidecarFor(file), config.sampleRate, frameBytes);
+        session.capture = new CaptureSession(config.name, source, mBuffers, lane, gapLog,
+                readBytes, metrics, new CaptureSession.Listener() {
+            @Override
+            public void onStateChanged(CaptureSession capture, CaptureSession.State state) {
+                onSessionState(session, state);
+            }
+        });
+        mRunning.put(config.name, session);
+        session.capture.start("RecorderSession-" + config.name);
+        Log.d(TAG, "session " + config.name + " from source " + config.audioSource + " to "
+                + file.getName() + ", " + mRunning.size() + " running");
+        return new Info(session);
+    }
+
+    /** Rejects what callers from other processes could ask for but sessions cannot record. */
+    private static void checkConfig(Config config) {
+        if (config.name == null || !NAME.matcher(config.name).matches()) {
+            throw new IllegalArgumentException("session name must match " + NAME + ": "
+                    + config.name);
+        }
+        if (config.channels != 1 && config.channels != 2) {
+            throw new IllegalArgumentException("unsupported channel count " + config.channels);
+        }
+        if (config.sampleRate < MIN_SAMPLE_RATE || config.sampleRate > MAX_SAMPLE_RATE) {
+            throw new IllegalArgumentException("unsupported sample rate " + config.sampleRate);
+        }
+        if (config.audioSource < MediaRecorder.AudioSource.DEFAULT
+                || config.audioSource > MediaRecorder.getAudioSourceMax()) {
+            throw new IllegalArgumentException("unknown audio source " + config.audioSource);
+        }
+        if (!SoundRecorder.CODEC_PCM.equals(config.codec)
+                && !SoundRecorder.CODEC_ADPCM.equals(config.codec)
+                && !SoundRecorder.CODEC_LOSSLESS.equals(config.codec)) {
+            throw new IllegalArgumentException("unknown codec " + config.codec);
+        }
+    }
+
+    private void onSessionState(Session session, CaptureSession.State state) {
+        switch (state) {
+            case STARTING:
+                Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+                break;
+            case STOPPED:
+            case FAILED:
+                if (session.echoCanceler != null) {
+                    session.echoCanceler.release();
+                }
+                synchronized (this) {
+                    mRunning.remove(session.config.name);
+                    mFinished.addFirst(session);
+                    while (mFinished.size() > MAX_FINISHED) {
+                        mFinished.removeLast();
+                    }
+                }
+                if (state == CaptureSession.State.FAILED) {
+                    Log.w(TAG, "session failed: " + session.capture,
+                            session.capture.getFailure());
+                } else {
+                    Log.d(TAG, "session done: " + session.capture);
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Opens the file writer, codec and sidecars of a session, the same stack a
+     * {@link SoundRecorder} recording gets in the session's format.
+     */
+    private SegmentWriter openOutput(File file, Config config) throws IOException {
+        int frameBytes = config.channels * 2;
+        SegmentWriter writer = SoundRecorder.openFileWriter(file);
+        String format;
+        try {
+            if (SoundRecorder.CODEC_ADPCM.equals(config.codec)) {
+                WavFormat wavFormat = WavFormat.imaAdpcm(config.sampleRate, config.channels,
+                        SoundRecorder.ADPCM_BLOCK_ALIGN);
+                writer = new EncodingWriter(new WavWriter(writer, wavFormat,
+                        wavFormat.byteRate * SoundRecorder.WAV_CHECKPOINT_SECONDS),
+                        new ImaAdpcm.Encoder(config.channels, SoundRecorder.ADPCM_BLOCK_ALIGN),
+                        frameBytes);
+                format = RecordingInfo.FORMAT_WAV_ADPCM;
+            } else if (SoundRecorder.CODEC_LOSSLESS.equals(config.codec)) {
+                LosslessCodec.writeHeader(writer, config.sampleRate, config.channels);
+                writer = new EncodingWriter(writer, new LosslessCodec.Encoder(config.channels,
+                        SoundRecorder.LOSSLESS_BLOCK_FRAMES), frameBytes);
+                format = RecordingInfo.FORMAT_LOSSLESS;
+            } else {
+                WavFormat wavFormat = WavFormat.pcm(config.sampleRate, config.channels, 16);
+                writer = new WavWriter(writer, wavFormat,
+                        wavFormat.byteRate * SoundRecorder.WAV_CHECKPOINT_SECONDS);
+                format = RecordingInfo.FORMAT_WAV;
+            }
+        } catch (IOException e) {
+            writer.close();
+            throw e;
+        }
+        writer = new PeakWriter(writer, PeakFile.sidecarFor(file), config.sampleRate,
+                config.channels);
+        long checkpointBytes = (long) config.sampleRate * frameBytes * SystemProperties.getInt(
+                SoundRecorder.PROP_CATALOG_CHECKPOINT_SEC,
+                SoundRecorder.DEFAULT_CATALOG_CHECKPOINT_SEC);
+        return new CatalogWriter(writer, frameBytes, checkpointBytes, mRecorder.protect(file,
+                mRecorder.getCatalog().track(file, format, config.sampleRate, config.channels)));
+    }
+
+    /**
+     * Asks session {@code name} to stop and returns at once; what was captured is still written.
+     *
+     * @return {@code false} if no such session runs
+     */
+    boolean stop(String name) {
+        final Session session;
+        synchronized (this) {
+            session = mRunning.get(name);
+        }
+        if (session == null) {
+            return false;
+        }
+        session.capture.stop();
+        return true;
+    }
+
+    /**
+     * Stops every session and waits up to {@code timeoutMs} for their files to be closed.
+     * Sessions whose source does not return within a grace period are stopped forcibly.
+     */
+    void stopAll(long timeoutMs) {
+        List<Session> sessions;
+        synchronized (this) {
+            sessions = new ArrayList<>(mRunning.values());
+        }
+        for (Session session : sessions) {
+            session.capture.stop();
+        }
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        try {
+            for (Session session : sessions) {
+                long left = deadline - System.currentTimeMillis();
+                if (!session.capture.join(Math.max(1, Math.min(left, STOP_GRACE_MS)))) {
+                    session.capture.forceStop();
+                    if (!session.capture.join(Math.max(1, deadline
+                            - System.currentTimeMillis()))) {
+                        Log.w(TAG, "session " + session.config.name + " did not stop");
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Stops every session and the writer threads; the manager cannot be used after. */
+    void release(long timeoutMs) {
+        synchronized (this) {
+            mReleased = true;
+        }
+        stopAll(timeoutMs);
+        mWriters.shutdown();
+    }
+
+    /** Running sessions in the order they started, then ended ones, latest first. */
+    synchronized List<Info> getSessions() {
+        List<Info> infos = new ArrayList<>(mRunning.size() + mFinished.size());
+        for (Session session : mRunning.values()) {
+            infos.add(new Info(session));
+        }
+        for (Session session : mFinished) {
+            infos.add(new Info(session));
+        }
+        return infos;
+    }
+
+    void dump(PrintWriter pw) {
+        List<Session> sessions;
+        int running;
+        synchronized (this) {
+            sessions = new ArrayList<>(mRunning.values());
+            running = sessions.size();
+            sessions.addAll(mFinished);
+        }
+        pw.println("sessions: " + running + " running of max " + mMaxSessions + ", "
+                + mWriters.getThreadCount() + " writer threads, " + mBuffers);
+        for (Session session : sessions) {
+            pw.println("  " + session.capture + " file=" + session.file.getName());
+            pw.println("    lane: " + session.capture.getLane());
+            pw.println("    writer: " + session.output.getStats());
+            session.capture.getMetrics().dump(pw, "    ");
+        }
+    }
+}
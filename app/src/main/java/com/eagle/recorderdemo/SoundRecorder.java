@@ -26,25 +26,73 @@ import android.media.MediaRecorder;
 import android.media.audiofx.AcousticEchoCanceler;
 import android.media.audiofx.AudioEffect;
 import android.media.audiofx.BassBoost;
-import android.os.AsyncTask;
 import android.os.Environment;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.Process;
 import android.os.SystemClock;
 import android.os.SystemProperties;
+import android.system.ErrnoException;
+import android.system.Os;
 import android.provider.MediaStore;
 import android.util.Log;
 
-import java.io.BufferedInputStream;
+import com.eagle.recorderdemo.audio.AudioPipeline;
+import com.eagle.recorderdemo.audio.AudioSink;
+import com.eagle.recorderdemo.audio.CaptureClock;
+import com.eagle.recorderdemo.audio.CatalogWriter;
+import com.eagle.recorderdemo.audio.ChannelSegmentWriter;
+import com.eagle.recorderdemo.audio.ChunkedFile;
+import com.eagle.recorderdemo.audio.ChunkedWriter;
+import com.eagle.recorderdemo.audio.EncodingWriter;
+import com.eagle.recorderdemo.audio.EventCapture;
+import com.eagle.recorderdemo.audio.FrameRingBuffer;
+import com.eagle.recorderdemo.audio.GapLog;
+import com.eagle.recorderdemo.audio.Histogram;
+import com.eagle.recorderdemo.audio.ImaAdpcm;
+import com.eagle.recorderdemo.audio.JitterBuffer;
+import com.eagle.recorderdemo.audio.LevelMeter;
+import com.eagle.recorderdemo.audio.LoopbackAnalyzer;
+import com.eagle.recorderdemo.audio.LosslessCodec;
+import com.eagle.recorderdemo.audio.PeakFile;
+import com.eagle.recorderdemo.audio.PeakWriter;
+import com.eagle.recorderdemo.audio.PipelineMetrics;
+import com.eagle.recorderdemo.audio.ReadSizeController;
+import com.eagle.recorderdemo.audio.RecordingInfo;
+import com.eagle.recorderdemo.audio.RecordingRecovery;
+import com.eagle.recorderdemo.audio.RollingSegmentWriter;
+import com.eagle.recorderdemo.audio.SegmentWriter;
+import com.eagle.recorderdemo.audio.SegmentWriters;
+import com.eagle.recorderdemo.audio.SilenceGate;
+import com.eagle.recorderdemo.audio.StorageJanitor;
+import com.eagle.recorderdemo.audio.SyncPolicy;
+import com.eagle.recorderdemo.audio.WavFormat;
+import com.eagle.recorderdemo.audio.WavWriter;
+import com.eagle.recorderdemo.audio.WriterStats;
+
 import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.io.FileDescriptor;
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.channels.FileChannel;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
  * A helper class to provide methods to record audio input from the MIC to the internal storage
@@ -55,7 +103,7 @@ public class SoundRecorder {
     private static final String TAG = "RecorderDemo";
 
 
-    private static final int RECORDING_RATE = 32000; // can go up to 44K, if needed
+    static final int RECORDING_RATE = 32000; // can go up to 44K, if needed
     private static final int CHANNEL_IN = AudioFormat.CHANNEL_IN_STEREO;
     private static final int FORMAT = AudioFormat.ENCODING_PCM_16BIT;
 
@@ -64,25 +112,190 @@ public class SoundRecorder {
     private static int BUFFER_SIZE = AudioRecord
             .getMinBufferSize(RECORDING_RATE, CHANNEL_IN, FORMAT);
 
-    private static final int CHANNELS_OUT = AudioFormat.CHANNEL_OUT_MONO;
+    private static final long PLAYER_STOP_TIMEOUT_MS = 500;
+    // Warm sessions: while idle the AudioRecord, monitor track, echo canceler, ring and output
+    // file of the next recording are prepared, so starting is a rename and startRecording().
+    // Only once the recorder has recorded or been armed; until then it holds nothing.
+    private static final String PROP_WARM = "recorddemo.warm";
+    // How long a start waits for a warm session still being prepared.
+    private static final long WARMUP_WAIT_MS = 1000;
+    private static final ExecutorService WARMUP_EXECUTOR = Executors.newSingleThreadExecutor(
+            new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            return new Thread(r, "RecorderWarmup");
+        }
+    });
+    // Monitoring: a jitter buffer between capture and a low latency track holds the latency
+    // between these bounds, starting at the lower one.
+    private static final String PROP_MONITOR_TARGET_MS = "recorddemo.monitor.target_ms";
+    private static final int DEFAULT_MONITOR_TARGET_MS = 10;
+    private static final String PROP_MONITOR_MAX_MS = "recorddemo.monitor.max_ms";
+    private static final int DEFAULT_MONITOR_MAX_MS = 80;
+    // Used when the HAL does not report its output burst.
+    private static final int DEFAULT_MONITOR_BURST_FRAMES = 256;
+    // Loopback measurement: silence, then a noise burst, captured for a second in short reads.
+    private static final int LOOPBACK_LEAD_MS = 200;
+    private static final int LOOPBACK_BURST_FRAMES = 2048;
+    private static final int LOOPBACK_CAPTURE_MS = 1000;
+    private static final int LOOPBACK_READ_MS = 5;
+    // Start request to first captured buffer above this counts as a missed start.
+    private static final String PROP_START_TARGET_MS = "recorddemo.start.target_ms";
+    private static final int DEFAULT_START_TARGET_MS = 50;
+    // How long a stop lets the current read finish before the AudioRecord is stopped under it.
+    private static final long STOP_GRACE_MS = 500;
+
+    // Bytes per stereo PCM16 frame as written to disk.
+    static final int FRAME_BYTES = 4;
+
+    // Adaptive read size: reads grow under jitter or backpressure and shrink back when quiet,
+    // between these bounds. The AudioRecord itself is opened for the upper bound.
+    private static final String PROP_ADAPTIVE_READ = "recorddemo.buffer.adaptive";
+    private static final String PROP_READ_MIN_MS = "recorddemo.buffer.min_ms";
+    private static final int DEFAULT_READ_MIN_MS = 20;
+    private static final String PROP_READ_MAX_MS = "recorddemo.buffer.max_ms";
+    private static final int DEFAULT_READ_MAX_MS = 160;
+    // Where the read size a recording settled on is kept for the next one.
+    private static final String PREFS_TUNING = "tuning";
+    private static final String KEY_READ_BYTES = "read_bytes";
+
+    // How much audio the capture/writer ring can hold before frames are dropped.
+    private static final String PROP_RING_MS = "recorddemo.ring.ms";
+    private static final int DEFAULT_RING_MS = 2000;
+    // If true the capture thread waits briefly for the writer before dropping a frame.
+    private static final String PROP_RING_WAIT = "recorddemo.ring.wait";
+    private static final long RING_MAX_WAIT_MS = 5;
+    // stream|channel|mapped, see SegmentWriter.Mode
+    private static final String PROP_WRITER = "recorddemo.writer";
+    private static final String PROP_WRITER_BLOCK_KB = "recorddemo.writer.block_kb";
+    private static final String PROP_WRITER_PREALLOC_MB = "recorddemo.writer.prealloc_mb";
+    // none|interval|bytes, see SyncPolicy: how much audio a power cut can cost at most.
+    private static final String PROP_SYNC = "recorddemo.sync";
+    private static final String PROP_SYNC_INTERVAL_MS = "recorddemo.sync.interval_ms";
+    private static final long DEFAULT_SYNC_INTERVAL_MS = 1000;
+    private static final String PROP_SYNC_MB = "recorddemo.sync.mb";
+    private static final long DEFAULT_SYNC_MB = 4;
+    // wav (default), pcm for headerless output or chunked for checksummed, indexed blocks
+    private static final String PROP_CONTAINER = "recorddemo.container";
+    private static final String CONTAINER_PCM = "pcm";
+    private static final String CONTAINER_CHUNKED = "chunked";
+    // Duration of one block of the chunked container.
+    private static final String PROP_CHUNK_MS = "recorddemo.chunk.ms";
+    private static final int DEFAULT_CHUNK_MS = 1000;
+    // How often the WAV header sizes are brought up to date while recording.
+    static final int WAV_CHECKPOINT_SECONDS = 1;
+    // pcm (default), adpcm (IMA ADPCM in WAV, 4:1) or lossless (.rlac)
+    private static final String PROP_CODEC = "recorddemo.codec";
+    static final String CODEC_PCM = "pcm";
+    static final String CODEC_ADPCM = "adpcm";
+    static final String CODEC_LOSSLESS = "lossless";
+    static final int ADPCM_BLOCK_ALIGN = 2048;
+    static final int LOSSLESS_BLOCK_FRAMES = 4096;
+    // Silence gating: skip idle audio and list the skipped ranges in a .gaps sidecar.
+    private static final String PROP_VAD = "recorddemo.vad";
+    private static final String PROP_VAD_THRESHOLD_DB = "recorddemo.vad.threshold_db";
+    private static final int DEFAULT_VAD_THRESHOLD_DB = -45;
+    private static final String PROP_VAD_HANGOVER_MS = "recorddemo.vad.hangover_ms";
+    private static final int DEFAULT_VAD_HANGOVER_MS = 600;
+    private static final String PROP_VAD_PREROLL_MS = "recorddemo.vad.preroll_ms";
+    private static final int DEFAULT_VAD_PREROLL_MS = 300;
+    // Min/max/RMS overview of each recording in a .peaks sidecar, on by default.
+    private static final String PROP_PEAKS = "recorddemo.peaks";
+    // TPDF dither when reducing float capture to 16 bit
+    private static final String PROP_DITHER = "recorddemo.dither";
+    // How many level snapshots per second the meter publishes.
+    private static final String PROP_METER_RATE = "recorddemo.meter.hz";
+    private static final int DEFAULT_METER_RATE = 30;
+    static final float METER_FLOOR_DB = -60f;
+    // Loop recording: roll over to a new file by duration and/or size and keep the rec
+    // directory within a quota, pausing while free space is below the watermark.
+    private static final String PROP_LOOP = "recorddemo.loop";
+    private static final String PROP_LOOP_SEGMENT_SEC = "recorddemo.loop.segment_sec";
+    private static final int DEFAULT_SEGMENT_SEC = 600;
+    private static final String PROP_LOOP_SEGMENT_MB = "recorddemo.loop.segment_mb";
+    private static final String PROP_LOOP_QUOTA_MB = "recorddemo.loop.quota_mb";
+    private static final long DEFAULT_QUOTA_MB = 2048;
+    private static final String PROP_LOOP_MIN_FREE_MB = "recorddemo.loop.min_free_mb";
+    private static final long DEFAULT_MIN_FREE_MB = 200;
+    // Pre-roll: while armed the last seconds of capture are held in memory, and a trigger saves
+    // them with the seconds after it to a new file. A peak at or above the trigger level is a
+    // trigger; a level of 0 dB or more leaves triggering to intents and binder calls.
+    static final String PROP_PREROLL = "recorddemo.preroll";
+    private static final String PROP_PREROLL_SEC = "recorddemo.preroll.sec";
+    private static final int DEFAULT_PREROLL_SEC = 10;
+    private static final String PROP_POSTROLL_SEC = "recorddemo.preroll.post_sec";
+    private static final int DEFAULT_POSTROLL_SEC = 10;
+    private static final String PROP_PREROLL_TRIGGER_DB = "recorddemo.preroll.trigger_db";
+    private static final int DEFAULT_PREROLL_TRIGGER_DB = -20;
+    // How far saving an event may fall behind capture before it loses audio.
+    private static final int PREROLL_SLACK_MS = 2000;
+    // Catalog of recordings: rows are brought up to date this often while recording, and a
+    // rebuild probes this many files at once.
+    static final String PROP_CATALOG_CHECKPOINT_SEC = "recorddemo.catalog.checkpoint_sec";
+    static final int DEFAULT_CATALOG_CHECKPOINT_SEC = 10;
+    private static final String PROP_CATALOG_THREADS = "recorddemo.catalog.threads";
+    private static final int DEFAULT_CATALOG_THREADS = 2;
 
 
     public static final String DIR_NAME = "rec";
-    private File mOutputFileName = null;
+    private volatile File mOutputFileName = null;
     private final AudioManager mAudioManager;
     private final Handler mHandler;
     private final Context mContext;
-    private State mState = State.IDLE;
-
-    private AsyncTask<Void, Void, Void> mRecordingAsyncTask;
-    private AsyncTask<Void, Void, Void> mPlayingAsyncTask;
+    private volatile State mState = State.IDLE;
+    // Times each state was entered, indexed by ordinal, and when the current one was.
+    private final AtomicLongArray mStateEntries = new AtomicLongArray(State.values().length);
+    private volatile long mStateSinceMillis = System.currentTimeMillis();
+
+    // Guards state changes and the session fields below; notified when a session ends.
+    private final Object mStateLock = new Object();
+    private Thread mSession;
+    private AudioRecordSource mSource;
+    private volatile long mStopRequestedNanos;
+    // Start request to first captured buffer, and stop request to closed file.
+    private final Histogram mStartLatency = new Histogram();
+    private final Histogram mStopLatency = new Histogram();
+    private volatile Player mPlayer;
     private RecordStateListener mListener;
-    private AcousticEchoCanceler canceler;
-
-    private volatile double mMaxAmp = 0.0f;
+    // Session prepared for the next recording, and the warm-up preparing it; guarded by
+    // mStateLock.
+    private RecordSession mWarmSession;
+    private Future<?> mWarmup;
+    // Set by the first recording or armed capture; no warm-up before.
+    private volatile boolean mWarmupAllowed;
+    private final AtomicLong mWarmStarts = new AtomicLong();
+    private final AtomicLong mColdStarts = new AtomicLong();
+    private final AtomicLong mStartTargetMisses = new AtomicLong();
+
+    private final LevelMeter mMeter;
+    private volatile LevelMeter.Listener mLevelListener;
+    // Set while armed; the meter triggers it at mTriggerDb and above.
+    private volatile EventCapture mEvents;
+    private volatile float mTriggerDb;
+    private volatile EventCapture mLastEvents;
+    private final AtomicLong mEventFiles = new AtomicLong();
+    private volatile AudioPipeline mPipeline;
+    // Pipeline and output of the current or last recording, kept for dump().
+    private volatile AudioPipeline mLastPipeline;
+    private volatile SegmentWriter mLastOutput;
+    private volatile MonitorSink mLastMonitor;
+    // Sinks fed by every recording besides the file and the monitor; guarded by mStateLock.
+    private final List<SinkAttachment> mAttachedSinks = new ArrayList<>();
+    // Guarded by mStateLock; keeps recordings and warm-ups off the microphone meanwhile.
+    private boolean mMeasuringLoopback;
+    private final Histogram mLoopbackLatency = new Histogram();
+    // Dates the blocks of the chunked container; one per recording.
+    private volatile CaptureClock mCaptureClock;
+    private StorageJanitor mJanitor;
+    private final RecordingCatalog mCatalog;
 
+    /**
+     * Recording goes IDLE, STARTING, RECORDING, STOPPING and back to IDLE, passing through ERROR
+     * if it fails; playback goes from IDLE to PLAYING and back. Armed capture goes from IDLE to
+     * ARMED and leaves the same way as a recording, through STOPPING.
+     */
     public enum State {
-        IDLE, RECORDING, ERROR, PLAYING
+        IDLE, STARTING, RECORDING, STOPPING, ERROR, PLAYING, ARMED
     }
 
     private static SoundRecorder sInstatnce;
@@ -98,10 +311,36 @@ public class SoundRecorder {
         mAudioManager = (AudioManager) context.getSystemService(Context.AUDIO_SERVICE);
         mHandler = new Handler(Looper.getMainLooper());
         mContext = context;
+        mMeter = new LevelMeter(2, RECORDING_RATE,
+                SystemProperties.getInt(PROP_METER_RATE, DEFAULT_METER_RATE));
+        mMeter.setListener(new LevelMeter.Listener() {
+            @Override
+            public void onLevels(float peak, float rms) {
+                EventCapture events = mEvents;
+                if (events != null && LevelMeter.toDb(peak) >= mTriggerDb) {
+                    events.trigger("level");
+                }
+                LevelMeter.Listener listener = mLevelListener;
+                if (listener != null) {
+                    listener.onLevels(peak, rms);
+                }
+            }
+        });
+        mCatalog = new RecordingCatalog(context, RECORDING_RATE, FRAME_BYTES / 2);
+        mCatalog.rebuild(getRecordDir(), SystemProperties.getInt(PROP_CATALOG_THREADS,
+                DEFAULT_CATALOG_THREADS));
+        WARMUP_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                deleteStaleWarmFiles();
+            }
+        });
     }
 
+    /** Whether a recording is starting or running. */
     public boolean isRecording() {
-        return mState == State.RECORDING;
+        State state = mState;
+        return state == State.STARTING || state == State.RECORDING;
     }
 
     public void setRecordingListener(RecordStateListener listener) {
@@ -112,220 +351,1178 @@ public class SoundRecorder {
         return mState;
     }
 
+    /**
+     * Returns the peak sidecar of the current or last recording, which {@link PeakFile} can read
+     * while the recording is still running.
+     */
+    public File getPeakFile() {
+        File file = mOutputFileName;
+        return file != null ? PeakFile.sidecarFor(file) : null;
+    }
+
+    /** Returns the catalog of the recordings in the record directory. */
+    public RecordingCatalog getCatalog() {
+        return mCatalog;
+    }
+
+    /**
+     * Has the catalog catch up with recordings changed behind the recorder's back, if there is
+     * a recorder in this process; otherwise the next one does when it is created.
+     */
+    static void refreshCatalog() {
+        SoundRecorder recorder = sInstatnce;
+        if (recorder != null) {
+            recorder.mCatalog.rebuild(getRecordDir(), SystemProperties.getInt(
+                    PROP_CATALOG_THREADS, DEFAULT_CATALOG_THREADS));
+        }
+    }
+
+    /**
+     * Returns the current level on a 0..100 scale, 0 being {@value #METER_FLOOR_DB} dBFS or less.
+     */
     public int getMaxAmplitude() {
-        if (mState != State.RECORDING) {
+        State state = mState;
+        if (state != State.RECORDING && state != State.ARMED) {
             return 0;
         }
-        return (int)mMaxAmp;
+        return mMeter.getAmplitude(METER_FLOOR_DB);
+    }
+
+    /**
+     * Pushes every level publication to {@code listener} on the meter thread of the recording or
+     * armed capture, or stops doing so if {@code null}.
+     */
+    public void setLevelListener(LevelMeter.Listener listener) {
+        mLevelListener = listener;
+    }
+
+    /**
+     * Has {@code sink} fed with the captured audio of the running recording, if any, and of every
+     * later one, on a thread of its own, until it is detached. It is flushed at the end of each
+     * recording but never closed. {@code policy} decides what happens when it falls behind;
+     * only {@link FrameRingBuffer.ConsumerPolicy#BLOCK} can make capture drop frames.
+     */
+    public void attachSink(String name, AudioSink sink, FrameRingBuffer.ConsumerPolicy policy) {
+        synchronized (mStateLock) {
+            mAttachedSinks.add(new SinkAttachment(name, sink, policy));
+            if (mPipeline != null && !mPipeline.attach(name, sink, policy)) {
+                Log.w(TAG, "sink " + name + " not attached to the running recording");
+            }
+        }
+        Log.d(TAG, "attached sink " + name + " " + policy);
+    }
+
+    /**
+     * Stops feeding {@code sink}, in the running recording as well as later ones.
+     *
+     * @return whether {@code sink} was attached
+     */
+    public boolean detachSink(AudioSink sink) {
+        synchronized (mStateLock) {
+            boolean attached = false;
+            for (int i = mAttachedSinks.size() - 1; i >= 0; i--) {
+                if (mAttachedSinks.get(i).sink == sink) {
+                    mAttachedSinks.remove(i);
+                    attached = true;
+                }
+            }
+            if (mPipeline != null) {
+                mPipeline.detach(sink);
+            }
+            return attached;
+        }
     }
 
     /**
-     * Starts recording from the MIC.
+     * Copies the latest per-channel peak/RMS levels into {@code snapshot}.
+     */
+    public void readLevels(LevelMeter.Snapshot snapshot) {
+        mMeter.read(snapshot);
+    }
+
+    /**
+     * Starts recording from the MIC on a dedicated capture thread. The state goes to
+     * {@link State#STARTING} at once and to {@link State#RECORDING} with the first captured
+     * buffer.
      */
     public void startRecording() {
-        if (mState != State.IDLE) {
-            Log.w(TAG, "Requesting to start recording while state was not IDLE");
+        final long requested = System.nanoTime();
+        synchronized (mStateLock) {
+            if (mState != State.IDLE || mMeasuringLoopback) {
+                Log.w(TAG, "Requesting to start recording while state was " + mState);
+                return;
+            }
+            moveTo(State.STARTING);
+            mStopRequestedNanos = 0;
+            mSession = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+                    record(requested);
+                }
+            }, "RecorderCapture");
+            mSession.start();
+        }
+    }
+
+    /**
+     * Body of the capture thread: opens the AudioRecord and the output, runs the pipeline until
+     * stopped and closes everything again.
+     */
+    private void record(final long requestedNanos) {
+        mWarmupAllowed = true;
+        RecordSession session = takeWarmSession();
+        final boolean warm = session != null;
+        if (session == null) {
+            try {
+                session = prepareSession(false);
+            } catch (IOException | RuntimeException e) {
+                Log.e(TAG, "Failed to prepare recording: " + e, e);
+                mOutputFileName = null;
+                finishSession(true);
+                return;
+            }
+        }
+        File file = recordFile(null);
+        if (!session.claimFile(file)) {
+            Log.e(TAG, "create output file failed ");
+            session.release();
+            mOutputFileName = null;
+            finishSession(true);
+            scheduleWarmup();
             return;
         }
+        mOutputFileName = file;
+        (warm ? mWarmStarts : mColdStarts).incrementAndGet();
+
+        ReadSizeController readSize = session.readSize;
+        AudioRecordSource source = session.source;
+        MonitorSink monitor = session.monitor;
+        FrameRingBuffer ring = session.ring;
+        SegmentWriter out = null;
+        boolean failed = false;
+        mCaptureClock = new CaptureClock();
+        try {
+            out = openOutput(session);
+            AudioPipeline pipeline = new AudioPipeline(source, ring, mMeter, out);
+            PipelineMetrics metrics = new PipelineMetrics(RECORDING_RATE, FRAME_BYTES, "file");
+            if (monitor != null) {
+                pipeline.attach("monitor", monitor, FrameRingBuffer.ConsumerPolicy.SKIP_AHEAD);
+            }
+            pipeline.setCaptureClock(mCaptureClock);
+            pipeline.setMetrics(metrics);
+            pipeline.setReadSizeController(readSize);
+            pipeline.setListener(new AudioPipeline.Listener() {
+                @Override
+                public void onFirstBuffer(AudioPipeline pipeline, long nanos) {
+                    long latency = nanos - requestedNanos;
+                    mStartLatency.record(latency);
+                    long target = TimeUnit.MILLISECONDS.toNanos(SystemProperties.getInt(
+                            PROP_START_TARGET_MS, DEFAULT_START_TARGET_MS));
+                    if (latency > target) {
+                        mStartTargetMisses.incrementAndGet();
+                        Log.w(TAG, "first sample " + TimeUnit.NANOSECONDS.toMillis(latency)
+                                + " ms after " + (warm ? "warm" : "cold") + " start, target "
+                                + TimeUnit.NANOSECONDS.toMillis(target) + " ms");
+                    } else {
+                        Log.d(TAG, "first sample " + TimeUnit.NANOSECONDS.toMillis(latency)
+                                + " ms after " + (warm ? "warm" : "cold") + " start");
+                    }
+                    synchronized (mStateLock) {
+                        if (mState == State.STARTING) {
+                            moveTo(State.RECORDING);
+                        }
+                    }
+                }
+            });
+            source.setMetrics(metrics);
+            mLastOutput = out;
+            mLastMonitor = monitor;
+            mLastPipeline = pipeline;
+            synchronized (mStateLock) {
+                for (SinkAttachment attachment : mAttachedSinks) {
+                    pipeline.attach(attachment.name, attachment.sink, attachment.policy);
+                }
+                mPipeline = pipeline;
+                mSource = source;
+                if (mState == State.STOPPING) {
+                    pipeline.stop();
+                }
+            }
+            if (monitor != null) {
+                monitor.play();
+            }
+            mMeter.reset();
+            pipeline.run();
+            synchronized (mStateLock) {
+                mSource = null;
+            }
+            Log.d(TAG, "record pipeline : " + pipeline);
+            if (pipeline.hasFailed()) {
+                Log.e(TAG, "Failed to record data: " + pipeline.getFailure(),
+                        pipeline.getFailure());
+                failed = true;
+            }
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "Failed to record data: " + e, e);
+            failed = true;
+            if (out == null) {
+                // Nothing was written; the claimed file must not outlive the failed start.
+                session.discardClaimedFile();
+                mOutputFileName = null;
+            }
+        } finally {
+            synchronized (mStateLock) {
+                mPipeline = null;
+                mSource = null;
+            }
+            Log.d(TAG, "record ring : " + ring);
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed to close record file", e);
+                }
+                long stopRequested = mStopRequestedNanos;
+                if (stopRequested != 0) {
+                    long latency = System.nanoTime() - stopRequested;
+                    mStopLatency.record(latency);
+                    Log.d(TAG, "file closed " + TimeUnit.NANOSECONDS.toMillis(latency)
+                            + " ms after stop");
+                }
+                Log.d(TAG, "record writer : " + out.getStats());
+                if (out instanceof SilenceGate) {
+                    Log.d(TAG, "record gate : " + out);
+                }
+            }
+            session.release();
+            if (readSize != null) {
+                Log.d(TAG, "record " + readSize);
+                mContext.getSharedPreferences(PREFS_TUNING, Context.MODE_PRIVATE).edit()
+                        .putInt(KEY_READ_BYTES, readSize.getReadBytes())
+                        .apply();
+            }
+            finishSession(failed);
+            scheduleWarmup();
+        }
+    }
+
+    /**
+     * Starts capturing into the pre-roll on a dedicated capture thread without writing anything,
+     * until {@link #disarm()}. Each {@link #trigger} then saves the last
+     * {@value #PROP_PREROLL_SEC} seconds and the following {@value #PROP_POSTROLL_SEC} seconds to
+     * a new file, as does a peak at {@value #PROP_PREROLL_TRIGGER_DB} or above.
+     *
+     * @return whether the recorder was idle and is armed now
+     */
+    public boolean arm() {
+        synchronized (mStateLock) {
+            if (mState != State.IDLE || mMeasuringLoopback) {
+                Log.w(TAG, "Requesting to arm while state was " + mState);
+                return false;
+            }
+            moveTo(State.ARMED);
+            mStopRequestedNanos = 0;
+            mSession = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+                    captureArmed();
+                }
+            }, "RecorderCapture");
+            mSession.start();
+        }
+        return true;
+    }
+
+    /**
+     * Stops armed capture. An event being saved ends with what was captured up to now.
+     */
+    public void disarm() {
+        final Thread session = requestStop(true);
+        if (session != null) {
+            mHandler.postDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    forceStopSource(session);
+                }
+            }, STOP_GRACE_MS);
+        }
+    }
 
-        mRecordingAsyncTask = new AsyncTask<Void, Void, Void>() {
+    public boolean isArmed() {
+        return mState == State.ARMED;
+    }
 
-            private AudioRecord mAudioRecord;
-            private AudioTrack mAudioTrack;
+    /**
+     * Saves the pre-roll and post-roll around now, or extends the event being saved.
+     *
+     * @return whether the recorder is armed
+     */
+    public boolean trigger(String reason) {
+        EventCapture events = mEvents;
+        if (events == null) {
+            Log.w(TAG, "trigger " + reason + " while not armed");
+            return false;
+        }
+        Log.d(TAG, "trigger " + reason + (events.trigger(reason) ? ": new event" : ""));
+        return true;
+    }
 
+    /**
+     * Body of the capture thread while armed: the pipeline only fills the pre-roll, and the
+     * events it saves open files of their own.
+     */
+    private void captureArmed() {
+        mWarmupAllowed = true;
+        RecordSession session = takeWarmSession();
+        if (session == null) {
+            try {
+                session = prepareSession(false);
+            } catch (IOException | RuntimeException e) {
+                Log.e(TAG, "Failed to prepare armed capture: " + e, e);
+                finishSession(true);
+                return;
+            }
+        }
+        // Events open files of their own when triggered.
+        session.discardWarmOutput();
+        AudioRecordSource source = session.source;
+        MonitorSink monitor = session.monitor;
+        // Not followed by any file: events start clocks of their own from its marks.
+        mCaptureClock = new CaptureClock();
+        EventCapture events = createEventCapture(mCaptureClock);
+        boolean failed = false;
+        try {
+            AudioPipeline pipeline = new AudioPipeline(source, session.ring, mMeter, events);
+            pipeline.setCaptureClock(mCaptureClock);
+            PipelineMetrics metrics = new PipelineMetrics(RECORDING_RATE, FRAME_BYTES,
+                    "preroll");
+            if (monitor != null) {
+                pipeline.attach("monitor", monitor, FrameRingBuffer.ConsumerPolicy.SKIP_AHEAD);
+            }
+            pipeline.setMetrics(metrics);
+            pipeline.setReadSizeController(session.readSize);
+            source.setMetrics(metrics);
+            mLastOutput = null;
+            mLastMonitor = monitor;
+            mLastPipeline = pipeline;
+            mLastEvents = events;
+            mTriggerDb = SystemProperties.getInt(PROP_PREROLL_TRIGGER_DB,
+                    DEFAULT_PREROLL_TRIGGER_DB);
+            synchronized (mStateLock) {
+                for (SinkAttachment attachment : mAttachedSinks) {
+                    pipeline.attach(attachment.name, attachment.sink, attachment.policy);
+                }
+                mPipeline = pipeline;
+                mSource = source;
+                if (mState == State.STOPPING) {
+                    pipeline.stop();
+                }
+            }
+            if (monitor != null) {
+                monitor.play();
+            }
+            mMeter.reset();
+            mEvents = events;
+            Log.d(TAG, "armed: " + events);
+            pipeline.run();
+            Log.d(TAG, "armed pipeline : " + pipeline);
+            if (pipeline.hasFailed()) {
+                Log.e(TAG, "Failed to capture pre-roll: " + pipeline.getFailure(),
+                        pipeline.getFailure());
+                failed = true;
+            }
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Failed to capture pre-roll: " + e, e);
+            failed = true;
+        } finally {
+            mEvents = null;
+            synchronized (mStateLock) {
+                mPipeline = null;
+                mSource = null;
+            }
+            events.close();
+            long stopRequested = mStopRequestedNanos;
+            if (stopRequested != 0) {
+                mStopLatency.record(System.nanoTime() - stopRequested);
+            }
+            session.release();
+            finishSession(failed);
+            scheduleWarmup();
+        }
+    }
+
+    private EventCapture createEventCapture(CaptureClock clock) {
+        return new EventCapture(RECORDING_RATE, FRAME_BYTES,
+                1000 * SystemProperties.getInt(PROP_PREROLL_SEC, DEFAULT_PREROLL_SEC),
+                1000 * SystemProperties.getInt(PROP_POSTROLL_SEC, DEFAULT_POSTROLL_SEC),
+                PREROLL_SLACK_MS, clock, new EventCapture.OutputFactory() {
             @Override
-            protected void onPreExecute() {
-                boolean result = createRecordFile();
-                if (!result) {
-                    mOutputFileName = null;
-                    setCurrentState(State.ERROR);
-                } else {
-                    setCurrentState(State.RECORDING);
+            public SegmentWriter open(String reason, CaptureClock clock) throws IOException {
+                File file = newRecordFile(String.format(Locale.US, "event%03d",
+                        mEventFiles.incrementAndGet()));
+                if (file == null) {
+                    throw new IOException("Failed to create event file");
                 }
+                SegmentWriter writer = openSegmentWriter(file, null, clock);
+                mOutputFileName = file;
+                mLastOutput = writer;
+                return writer;
+            }
+        }, new EventCapture.Listener() {
+            @Override
+            public void onEventStarted(String reason) {
+                Log.i(TAG, "event " + reason + ": saving to " + mOutputFileName);
             }
 
             @Override
-            protected Void doInBackground(Void... params) {
-                if (mOutputFileName == null) {
-                    Log.e(TAG, "create output file failed ");
-                    return null;
+            public void onEventFinished(long bytes, long lostBytes, Throwable failure) {
+                if (failure != null) {
+                    Log.e(TAG, "Failed to save event: " + failure, failure);
+                } else {
+                    Log.i(TAG, "event saved: " + bytes + " bytes, lost " + lostBytes);
                 }
+            }
+        });
+    }
+
+    /**
+     * Builds everything a recording needs before its first sample. With {@code openOutput} the
+     * output file is opened too, under a temporary name it keeps until the recording starts.
+     * Runs on the warm-up thread, or on the capture thread when no warm session is ready.
+     */
+    private RecordSession prepareSession(boolean openOutput) throws IOException {
+        ReadSizeController readSize = createReadSizeController();
+        int frameBytes = readSize != null ? readSize.getMaxBytes() : BUFFER_SIZE;
+        int recordBufferSize = readSize != null
+                ? Math.max(BUFFER_SIZE, 2 * frameBytes) : BUFFER_SIZE;
+        Log.d(TAG, "BUFFER SIZE : " + recordBufferSize + " (min " + BUFFER_SIZE
+                + "), " + readSize);
+        AudioRecord audioRecord = new AudioRecord(MediaRecorder.AudioSource.MIC,
+                RECORDING_RATE, CHANNEL_IN, FORMAT, recordBufferSize);
+
+        MonitorSink monitor = createMonitor();
+        RecordSession session = new RecordSession(audioRecord, monitor,
+                createEchoCanceler(audioRecord.getAudioSessionId()), readSize,
+                createRingBuffer(frameBytes,
+                        readSize != null ? readSize.getReadBytes() : frameBytes),
+                frameBytes, SystemProperties.getBoolean(PROP_DITHER, true), sessionConfig());
+        if (openOutput) {
+            File warmFile = new File(getRecordDir(), RecordSession.WARM_PREFIX
+                    + System.nanoTime() + "." + RecordSession.WARM_EXTENSION);
+            try {
+                session.setWarmOutput(warmFile, openFileWriter(warmFile));
+            } catch (IOException | RuntimeException e) {
+                warmFile.delete();
+                session.release();
+                throw e;
+            }
+        }
+        return session;
+    }
+
+    /**
+     * Returns the monitor for a new recording, or {@code null} unless monitoring is turned on
+     * with {@code recorddemo.audiotrack}.
+     */
+    private MonitorSink createMonitor() {
+        if (!hasPlaybackTrack()) {
+            Log.d(TAG, "not config playback track please set prop 'recorddemo.audiotrack' true");
+            return null;
+        }
+        int burstFrames = getOutputBurstFrames();
+        int framesPerMs = RECORDING_RATE / 1000;
+        int minTarget = Math.max(burstFrames, framesPerMs
+                * SystemProperties.getInt(PROP_MONITOR_TARGET_MS, DEFAULT_MONITOR_TARGET_MS));
+        int maxTarget = Math.max(minTarget, framesPerMs
+                * SystemProperties.getInt(PROP_MONITOR_MAX_MS, DEFAULT_MONITOR_MAX_MS));
+        JitterBuffer jitter = new JitterBuffer(RECORDING_RATE, FRAME_BYTES, minTarget, maxTarget,
+                burstFrames);
+        MonitorSink monitor = new MonitorSink(createLowLatencyTrack(), jitter,
+                burstFrames * FRAME_BYTES);
+        Log.d(TAG, "create " + monitor);
+        return monitor;
+    }
 
-                Log.d(TAG, "BUFFER SIZE : " + BUFFER_SIZE);
-                mAudioRecord = new AudioRecord(MediaRecorder.AudioSource.MIC,
-                        RECORDING_RATE, CHANNEL_IN, FORMAT, BUFFER_SIZE);
+    private AudioTrack createLowLatencyTrack() {
+        return new AudioTrack.Builder()
+                .setAudioAttributes(new AudioAttributes.Builder()
+                        .setUsage(AudioAttributes.USAGE_MEDIA)
+                        .setContentType(AudioAttributes.CONTENT_TYPE_MUSIC)
+                        .build())
+                .setAudioFormat(new AudioFormat.Builder()
+                        .setEncoding(FORMAT)
+                        .setSampleRate(RECORDING_RATE)
+                        .setChannelMask(CHANNEL_OUT)
+                        .build())
+                .setBufferSizeInBytes(AudioTrack.getMinBufferSize(RECORDING_RATE, CHANNEL_OUT,
+                        FORMAT))
+                .setPerformanceMode(AudioTrack.PERFORMANCE_MODE_LOW_LATENCY)
+                .setTransferMode(AudioTrack.MODE_STREAM)
+                .build();
+    }
 
-                int minTrackBufferSize = AudioTrack.getMinBufferSize(RECORDING_RATE, CHANNEL_OUT, FORMAT);
-                boolean hasPlaybackTrack = hasPlaybackTrack();
+    /** Frames the output device consumes per burst, as the audio HAL reports it. */
+    private int getOutputBurstFrames() {
+        String frames = mAudioManager.getProperty(AudioManager.PROPERTY_OUTPUT_FRAMES_PER_BUFFER);
+        try {
+            return frames != null ? Math.max(1, Integer.parseInt(frames))
+                    : DEFAULT_MONITOR_BURST_FRAMES;
+        } catch (NumberFormatException e) {
+            return DEFAULT_MONITOR_BURST_FRAMES;
+        }
+    }
+
+    /**
+     * Plays a noise burst through the monitor output and times how long it takes to come back
+     * through the microphone, from handing it to the track to reading it from the AudioRecord.
+     * That round trip is about what monitoring adds on top of the jitter buffer. Blocks for
+     * about a second, so call it off the main thread, and only while idle.
+     *
+     * @return round trip in nanoseconds, or -1 if busy or the burst was not heard back
+     */
+    public long measureLoopbackLatency() {
+        synchronized (mStateLock) {
+            if (mState != State.IDLE || mSession != null || mMeasuringLoopback) {
+                Log.w(TAG, "Requesting loopback measurement while state was " + mState);
+                return -1;
+            }
+            mMeasuringLoopback = true;
+        }
+        // The warm session holds the microphone.
+        releaseWarmSession();
+        try {
+            long nanos = runLoopback();
+            if (nanos >= 0) {
+                mLoopbackLatency.record(nanos);
+            }
+            return nanos;
+        } finally {
+            synchronized (mStateLock) {
+                mMeasuringLoopback = false;
+            }
+            scheduleWarmup();
+        }
+    }
 
-                if (!hasPlaybackTrack) {
-                    Log.d(TAG, "not config playback track please set prop 'recorddemo.audiotrack' true");
+    private long runLoopback() {
+        final LoopbackAnalyzer analyzer = new LoopbackAnalyzer(FRAME_BYTES / 2,
+                LOOPBACK_BURST_FRAMES, System.nanoTime());
+        AudioRecord audioRecord = new AudioRecord(MediaRecorder.AudioSource.MIC, RECORDING_RATE,
+                CHANNEL_IN, FORMAT, BUFFER_SIZE);
+        final AudioTrack audioTrack = createLowLatencyTrack();
+        final AtomicLong burstNanos = new AtomicLong();
+        final AtomicBoolean done = new AtomicBoolean();
+        Thread player = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+                byte[] silence = new byte[RECORDING_RATE / 1000 * LOOPBACK_LEAD_MS * FRAME_BYTES];
+                byte[] burst = analyzer.getBurst();
+                audioTrack.write(silence, 0, silence.length);
+                burstNanos.set(System.nanoTime());
+                audioTrack.write(burst, 0, burst.length);
+                while (!done.get() && audioTrack.write(silence, 0, silence.length) > 0) {
+                    // keep the output running until the capture is complete
                 }
+            }
+        }, "RecorderLoopback");
+
+        int readFrames = RECORDING_RATE / 1000 * LOOPBACK_READ_MS;
+        int reads = LOOPBACK_CAPTURE_MS / LOOPBACK_READ_MS;
+        byte[] capture = new byte[reads * readFrames * FRAME_BYTES];
+        // When each read returned, to date the frame the burst is found at.
+        long[] readEnds = new long[reads];
+        int captured = 0;
+        try {
+            audioRecord.startRecording();
+            audioTrack.play();
+            player.start();
+            for (int i = 0; i < reads; i++) {
+                int length = readFrames * FRAME_BYTES;
+                int read = 0;
+                while (read < length) {
+                    int n = audioRecord.read(capture, captured * FRAME_BYTES + read,
+                            length - read);
+                    if (n <= 0) {
+                        Log.w(TAG, "loopback capture failed: " + n);
+                        return -1;
+                    }
+                    read += n;
+                }
+                readEnds[i] = System.nanoTime();
+                captured += readFrames;
+            }
+        } catch (IllegalStateException e) {
+            Log.w(TAG, "loopback measurement failed", e);
+            return -1;
+        } finally {
+            done.set(true);
+            try {
+                audioTrack.pause();
+                audioTrack.flush();
+                audioTrack.stop();
+            } catch (IllegalStateException e) {
+                // never played
+            }
+            try {
+                player.join(PLAYER_STOP_TIMEOUT_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            audioTrack.release();
+            try {
+                audioRecord.stop();
+            } catch (IllegalStateException e) {
+                // never started
+            }
+            audioRecord.release();
+        }
+
+        int frame = analyzer.find(capture, 0, captured);
+        long written = burstNanos.get();
+        if (frame < 0 || written == 0) {
+            Log.w(TAG, "loopback burst not found, best correlation "
+                    + analyzer.getCorrelation());
+            return -1;
+        }
+        // The burst was captured as many frames before its read returned as followed it.
+        int read = frame / readFrames;
+        long framesAfter = (long) (read + 1) * readFrames - frame;
+        long heard = readEnds[read] - framesAfter * 1000000000L / RECORDING_RATE;
+        long nanos = heard - written;
+        Log.d(TAG, String.format(Locale.US, "loopback round trip %.1f ms, correlation %.2f",
+                nanos / 1e6, analyzer.getCorrelation()));
+        return nanos >= 0 ? nanos : -1;
+    }
+
+    /**
+     * What a prepared session depends on; a warm session built for a different configuration
+     * is thrown away rather than used.
+     */
+    private String sessionConfig() {
+        return SystemProperties.getBoolean(PROP_ADAPTIVE_READ, true)
+                + "/" + SystemProperties.getInt(PROP_READ_MIN_MS, DEFAULT_READ_MIN_MS)
+                + "/" + SystemProperties.getInt(PROP_READ_MAX_MS, DEFAULT_READ_MAX_MS)
+                + "/" + SystemProperties.getInt(PROP_RING_MS, DEFAULT_RING_MS)
+                + "/" + SystemProperties.getBoolean(PROP_RING_WAIT, false)
+                + "/" + SystemProperties.getBoolean(PROP_DITHER, true)
+                + "/" + hasPlaybackTrack()
+                + "/" + SystemProperties.getInt(PROP_MONITOR_TARGET_MS, DEFAULT_MONITOR_TARGET_MS)
+                + "/" + SystemProperties.getInt(PROP_MONITOR_MAX_MS, DEFAULT_MONITOR_MAX_MS)
+                + "/" + SystemProperties.get(PROP_WRITER, "")
+                + "/" + SystemProperties.get(PROP_WRITER_BLOCK_KB, "")
+                + "/" + SystemProperties.get(PROP_WRITER_PREALLOC_MB, "")
+                + "/" + getSyncPolicy();
+    }
+
+    /**
+     * Returns the warm session if it still fits the configuration, waiting for one being
+     * prepared rather than building a second AudioRecord next to it. {@code null} means the
+     * caller prepares a cold one.
+     */
+    private RecordSession takeWarmSession() {
+        if (!SystemProperties.getBoolean(PROP_WARM, true)) {
+            releaseWarmSession();
+            return null;
+        }
+        Future<?> warmup;
+        synchronized (mStateLock) {
+            warmup = mWarmup;
+        }
+        if (warmup != null) {
+            try {
+                warmup.get(WARMUP_WAIT_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException | TimeoutException | CancellationException e) {
+                Log.w(TAG, "no warm session: " + e);
+            }
+        }
+        RecordSession session;
+        synchronized (mStateLock) {
+            session = mWarmSession;
+            mWarmSession = null;
+        }
+        if (session != null && !session.config.equals(sessionConfig())) {
+            Log.d(TAG, "configuration changed, dropping " + session);
+            session.release();
+            session = null;
+        }
+        return session;
+    }
 
-                if (hasPlaybackTrack) {
-                    mAudioTrack = new AudioTrack.Builder()
-                            .setAudioAttributes(new AudioAttributes.Builder()
-                                    .setUsage(AudioAttributes.USAGE_MEDIA)
-                                    .setContentType(AudioAttributes.CONTENT_TYPE_MUSIC)
-                                    .build())
-                            .setAudioFormat(new AudioFormat.Builder()
-                                    .setEncoding(FORMAT)
-                                    .setSampleRate(RECORDING_RATE)
-                                    .setChannelMask(CHANNEL_OUT)
-                                    .build())
-                            .setBufferSizeInBytes(minTrackBufferSize)
-                            .setTransferMode(AudioTrack.MODE_STREAM)
-                            .build();
+    /**
+     * Prepares the session of the next recording in the background, unless one is ready, the
+     * recorder has not been used yet or warm sessions are turned off with {@value #PROP_WARM}.
+     */
+    private void scheduleWarmup() {
+        if (!mWarmupAllowed || !SystemProperties.getBoolean(PROP_WARM, true)) {
+            return;
+        }
+        synchronized (mStateLock) {
+            if (mWarmSession != null || (mWarmup != null && !mWarmup.isDone())) {
+                return;
+            }
+            mWarmup = WARMUP_EXECUTOR.submit(new Runnable() {
+                @Override
+                public void run() {
+                    warmUp();
                 }
+            });
+        }
+    }
 
-                initAEC(mAudioRecord.getAudioSessionId());
+    private void warmUp() {
+        long start = System.nanoTime();
+        RecordSession session;
+        try {
+            session = prepareSession(true);
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Failed to prepare warm session: " + e);
+            return;
+        }
+        synchronized (mStateLock) {
+            if (mWarmSession == null && mSession == null && !mMeasuringLoopback) {
+                mWarmSession = session;
+                session = null;
+            }
+        }
+        if (session != null) {
+            // A recording started cold in the meantime; it owns the microphone now.
+            session.release();
+            return;
+        }
+        Log.d(TAG, "warm session ready in "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+    }
 
-                FileOutputStream fos = null;
-                try {
-                    fos = new FileOutputStream(mOutputFileName);
-                    if (FORMAT == AudioFormat.ENCODING_PCM_FLOAT) {
-                        float[] buffer = new float[BUFFER_SIZE];
-                        if (hasPlaybackTrack) {
-                            mAudioTrack.play();
-                        }
-                        mAudioRecord.startRecording();
-                        while (!isCancelled()) {
-                            int read = mAudioRecord.read(buffer, 0, buffer.length, AudioRecord.READ_BLOCKING);
-                            byte[] data = convertTo16Bit(buffer);
-                            //Log.d(TAG, " read  ====> " + read + " data size : " + data.length);
-                            fos.write(data, 0, data.length);
-                        }
-                    } else {
-                        byte[] buffer = new byte[BUFFER_SIZE];
-                        if (hasPlaybackTrack) {
-                            mAudioTrack.play();
-                        }
-                        mAudioRecord.startRecording();
-                        while (!isCancelled()) {
-                            int read = mAudioRecord.read(buffer, 0, buffer.length);
-                            long v = 0;
-                            // 将 buffer 内容取出，进行平方和运算
-                            for (int i = 0; i < read; i++) {
-                                v += buffer[i] * buffer[i];
-                            }
-                            // 平方和除以数据总长度，得到音量大小。
-                            double mean = v / (double) read;
-                            mMaxAmp = 10 * Math.log10(mean);
-
-                            if (hasPlaybackTrack) {
-                                if (read > 0) {
-                                    int result = mAudioTrack.write(buffer, 0, read);
-                                    //Log.d(TAG, " write result  ====> " + result);
-                                }
-                            }
-                            fos.write(buffer, 0, read);
-                        }
-                    }
-                } catch (IOException | NullPointerException | IndexOutOfBoundsException e) {
-                    Log.e(TAG, "Failed to record data: " + e, e);
-                    e.printStackTrace();
-                    setCurrentState(State.ERROR);
-                } finally {
-                    if (fos != null) {
-                        try {
-                            fos.close();
-                        } catch (IOException e) {
-                            // ignore
-                        }
-                    }
-                    if (hasPlaybackTrack) {
-                        mAudioTrack.stop();;
-                        mAudioTrack.release();
-                        mAudioTrack = null;
-                    }
-                    mAudioRecord.release();
-                    mAudioRecord = null;
+    /**
+     * Repairs recordings a crash or power cut left unclosed, see {@link RecordingRecovery}.
+     * Only files last written before {@code modifiedBeforeMillis} are looked at, so one being
+     * recorded is never touched.
+     */
+    static void recoverRecordings(long modifiedBeforeMillis) {
+        long start = SystemClock.elapsedRealtime();
+        int repaired = 0;
+        for (RecordingRecovery.Result result : RecordingRecovery.recoverAll(getRecordDir(),
+                FRAME_BYTES, modifiedBeforeMillis)) {
+            if (result.outcome == RecordingRecovery.Outcome.REPAIRED) {
+                repaired++;
+                Log.i(TAG, "recovered " + result);
+            } else if (result.outcome == RecordingRecovery.Outcome.UNREADABLE) {
+                Log.w(TAG, "could not recover " + result);
+            }
+        }
+        Log.d(TAG, "recovery repaired " + repaired + " recordings in "
+                + (SystemClock.elapsedRealtime() - start) + " ms");
+    }
+
+    /**
+     * Removes output files a previous process opened ahead of time and never used.
+     */
+    private static void deleteStaleWarmFiles() {
+        File[] files = getRecordDir().listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (name.startsWith(RecordSession.WARM_PREFIX)
+                    && name.endsWith("." + RecordSession.WARM_EXTENSION)) {
+                Log.d(TAG, "delete stale " + name);
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Gives back the microphone, track and output file held by the warm session, if any.
+     */
+    public void releaseWarmSession() {
+        RecordSession session;
+        synchronized (mStateLock) {
+            session = mWarmSession;
+            mWarmSession = null;
+        }
+        if (session != null) {
+            session.release();
+        }
+    }
+
+    /**
+     * Ends the state machine run of a recording: through {@link State#ERROR} if it failed, then
+     * back to {@link State#IDLE}.
+     */
+    private void finishSession(boolean failed) {
+        synchronized (mStateLock) {
+            if (failed) {
+                moveTo(State.ERROR);
+            }
+            moveTo(State.IDLE);
+            mSession = null;
+            mStateLock.notifyAll();
+        }
+    }
+
+    /**
+     * Returns the controller for the read size of a new recording, starting where the last one
+     * settled, or {@code null} if reads should always fill a whole {@link #BUFFER_SIZE}.
+     */
+    private ReadSizeController createReadSizeController() {
+        if (!SystemProperties.getBoolean(PROP_ADAPTIVE_READ, true)) {
+            return null;
+        }
+        int bytesPerSecond = RECORDING_RATE * FRAME_BYTES;
+        int minBytes = bytesPerSecond / 1000
+                * SystemProperties.getInt(PROP_READ_MIN_MS, DEFAULT_READ_MIN_MS);
+        int maxBytes = bytesPerSecond / 1000
+                * SystemProperties.getInt(PROP_READ_MAX_MS, DEFAULT_READ_MAX_MS);
+        int initial = mContext.getSharedPreferences(PREFS_TUNING, Context.MODE_PRIVATE)
+                .getInt(KEY_READ_BYTES, BUFFER_SIZE);
+        return new ReadSizeController(RECORDING_RATE, FRAME_BYTES, minBytes, maxBytes, initial,
+                new ReadSizeController.Listener() {
+            @Override
+            public void onReadSizeChanged(int oldBytes, int newBytes, String reason) {
+                Log.i(TAG, "read size " + oldBytes + " -> " + newBytes + " bytes: " + reason);
+            }
+        });
+    }
+
+    /**
+     * @param frameBytes size of each ring frame, the largest read
+     * @param readBytes expected read size, which decides how many frames hold the ring time
+     */
+    private FrameRingBuffer createRingBuffer(int frameBytes, int readBytes) {
+        int bytesPerSecond = RECORDING_RATE * FRAME_BYTES;
+        int ringMs = SystemProperties.getInt(PROP_RING_MS, DEFAULT_RING_MS);
+        int frames = Math.max(2, (int) ((long) bytesPerSecond * ringMs / 1000 / readBytes));
+        FrameRingBuffer.OverflowPolicy policy = SystemProperties.getBoolean(PROP_RING_WAIT, false)
+                ? FrameRingBuffer.OverflowPolicy.WAIT_THEN_DROP
+                : FrameRingBuffer.OverflowPolicy.DROP_NEWEST;
+        FrameRingBuffer ring = new FrameRingBuffer(frames, frameBytes, policy, RING_MAX_WAIT_MS);
+        Log.d(TAG, "create " + ring);
+        return ring;
+    }
+
+    private SegmentWriter openOutput(RecordSession session) throws IOException {
+        if (!SystemProperties.getBoolean(PROP_LOOP, false)) {
+            return openSegmentWriter(mOutputFileName, session, mCaptureClock);
+        }
+        long segmentBytes = Long.MAX_VALUE;
+        int segmentSeconds = SystemProperties.getInt(PROP_LOOP_SEGMENT_SEC, DEFAULT_SEGMENT_SEC);
+        if (segmentSeconds > 0) {
+            segmentBytes = (long) segmentSeconds * RECORDING_RATE * FRAME_BYTES;
+        }
+        long segmentMb = SystemProperties.getLong(PROP_LOOP_SEGMENT_MB, 0);
+        if (segmentMb > 0) {
+            segmentBytes = Math.min(segmentBytes, segmentMb * 1024 * 1024);
+        }
+        Log.d(TAG, "loop recording, segment " + segmentBytes + " bytes");
+        return new RollingSegmentWriter(new LoopSegmentFactory(session), segmentBytes, FRAME_BYTES,
+                getStorageJanitor());
+    }
+
+    private synchronized StorageJanitor getStorageJanitor() {
+        if (mJanitor == null) {
+            long mb = 1024 * 1024;
+            long minFree = SystemProperties.getLong(PROP_LOOP_MIN_FREE_MB, DEFAULT_MIN_FREE_MB) * mb;
+            mJanitor = new StorageJanitor(getRecordDir(),
+                    SystemProperties.getLong(PROP_LOOP_QUOTA_MB, DEFAULT_QUOTA_MB) * mb,
+                    minFree, minFree + minFree / 4, new StorageJanitor.Listener() {
+                @Override
+                public void onEvicted(File file, long bytes) {
+                    Log.d(TAG, "evicted " + file.getName() + " (" + bytes + " bytes)");
                 }
-                return null;
+
+                @Override
+                public void onLowSpaceChanged(boolean low, long freeBytes) {
+                    Log.w(TAG, (low ? "pausing" : "resuming") + " loop recording, free "
+                            + freeBytes);
+                }
+            });
+        }
+        return mJanitor;
+    }
+
+    /**
+     * Opens the consecutive files of a loop recording and hands finished ones to the janitor.
+     */
+    private class LoopSegmentFactory implements RollingSegmentWriter.SegmentFactory {
+        // Holds the output opened ahead of time for the first segment.
+        private final RecordSession mSession;
+        private File mFile;
+
+        LoopSegmentFactory(RecordSession session) {
+            mSession = session;
+        }
+
+        @Override
+        public SegmentWriter openSegment(int index) throws IOException {
+            File file = index == 0 ? mOutputFileName
+                    : newRecordFile(String.format(Locale.US, "%03d", index));
+            if (file == null) {
+                throw new IOException("Failed to create segment " + index);
+            }
+            mFile = file;
+            mOutputFileName = file;
+            return openSegmentWriter(file, index == 0 ? mSession : null, mCaptureClock);
+        }
+
+        @Override
+        public void onSegmentClosed(int index, SegmentWriter segment) {
+            Log.d(TAG, "segment " + index + " closed : " + mFile.getName() + " "
+                    + segment.position() + " bytes");
+            if (segment instanceof SilenceGate) {
+                Log.d(TAG, "segment " + index + " " + segment);
             }
+            // The file was unprotected as it closed, see protect(File, Listener).
+            mJanitor.requestSweep();
+        }
+    }
 
+    /**
+     * Opens {@code file} with the configured codec, container and sidecars, taking over the file
+     * {@code session} opened ahead of time if it was claimed as {@code file}, and enters it in
+     * the catalog. The janitor leaves the file alone until it is closed.
+     *
+     * @param clock dates the frames written, {@code null} to date them from the time of opening
+     */
+    private SegmentWriter openSegmentWriter(File file, RecordSession session, CaptureClock clock)
+            throws IOException {
+        SegmentWriter writer = session != null ? session.takeWriter(file) : null;
+        if (writer == null) {
+            writer = openFileWriter(file);
+        }
+        try {
+            writer = wrapCodec(file, writer, clock);
+        } catch (IOException e) {
+            writer.close();
+            throw e;
+        }
+        if (SystemProperties.getBoolean(PROP_PEAKS, true)) {
+            writer = new PeakWriter(writer, PeakFile.sidecarFor(file), RECORDING_RATE,
+                    FRAME_BYTES / 2);
+        }
+        long checkpointBytes = (long) RECORDING_RATE * FRAME_BYTES * SystemProperties.getInt(
+                PROP_CATALOG_CHECKPOINT_SEC, DEFAULT_CATALOG_CHECKPOINT_SEC);
+        long startMillis = System.currentTimeMillis();
+        if (clock != null) {
+            // Once marked, the clock is following a recording into its next segment.
+            long mark = clock.getMarkNanos();
+            startMillis = (mark != 0 ? clock.toEpochMicros(mark) : clock.getStartMicros()) / 1000;
+        }
+        writer = new CatalogWriter(writer, FRAME_BYTES, checkpointBytes, protect(file,
+                mCatalog.track(file, getCatalogFormat(), RECORDING_RATE, FRAME_BYTES / 2,
+                        startMillis)));
+        if (!SystemProperties.getBoolean(PROP_VAD, false)) {
+            return writer;
+        }
+        return new SilenceGate(writer,
+                new GapLog(GapLog.sidecarFor(file), RECORDING_RATE, FRAME_BYTES),
+                RECORDING_RATE, FRAME_BYTES,
+                SystemProperties.getInt(PROP_VAD_THRESHOLD_DB, DEFAULT_VAD_THRESHOLD_DB),
+                SystemProperties.getInt(PROP_VAD_HANGOVER_MS, DEFAULT_VAD_HANGOVER_MS),
+                SystemProperties.getInt(PROP_VAD_PREROLL_MS, DEFAULT_VAD_PREROLL_MS));
+    }
+
+    /**
+     * Protects {@code file} from eviction by the janitor until {@code listener} learns it is
+     * closed, and returns the listener to use instead.
+     */
+    CatalogWriter.Listener protect(final File file, final CatalogWriter.Listener listener) {
+        final StorageJanitor janitor = getStorageJanitor();
+        janitor.protect(file);
+        return new CatalogWriter.Listener() {
             @Override
-            protected void onPostExecute(Void aVoid) {
-                mState = State.IDLE;
-                mRecordingAsyncTask = null;
+            public void onCheckpoint(long frames) {
+                listener.onCheckpoint(frames);
             }
 
             @Override
-            protected void onCancelled() {
-                if (mState == State.RECORDING) {
-                    Log.d(TAG, "Stopping the recording ...");
-                    setCurrentState(State.IDLE);
-                } else {
-                    Log.w(TAG, "Requesting to stop recording while state was not RECORDING");
+            public void onClosed(long frames, boolean failed) {
+                try {
+                    listener.onClosed(frames, failed);
+                } finally {
+                    janitor.unprotect(file);
                 }
-                mRecordingAsyncTask = null;
             }
-
         };
+    }
 
-        mRecordingAsyncTask.execute();
+    /** Names the format {@link #wrapCodec} writes as the catalog does. */
+    private String getCatalogFormat() {
+        switch (getCodec()) {
+            case CODEC_ADPCM:
+                return RecordingInfo.FORMAT_WAV_ADPCM;
+            case CODEC_LOSSLESS:
+                return RecordingInfo.FORMAT_LOSSLESS;
+            default:
+                String container = getContainer();
+                if (CONTAINER_CHUNKED.equals(container)) {
+                    return RecordingInfo.FORMAT_CHUNKED;
+                }
+                return CONTAINER_PCM.equals(container) ? RecordingInfo.FORMAT_PCM
+                        : RecordingInfo.FORMAT_WAV;
+        }
     }
 
-    //消除回音
-    public boolean initAEC(int audioSession) {
-        if (canceler != null) {
-            return false;
+    /** Opens the configured file writer on {@code file}, without any codec or container. */
+    static SegmentWriter openFileWriter(File file) throws IOException {
+        SegmentWriter.Mode mode = SegmentWriters.parseMode(
+                SystemProperties.get(PROP_WRITER, null), SegmentWriter.Mode.CHANNEL);
+        int blockSize = SystemProperties.getInt(PROP_WRITER_BLOCK_KB,
+                SegmentWriters.DEFAULT_BLOCK_SIZE / 1024) * 1024;
+        long preallocate = SystemProperties.getLong(PROP_WRITER_PREALLOC_MB,
+                SegmentWriters.DEFAULT_PREALLOCATE_BYTES / (1024 * 1024)) * 1024 * 1024;
+        SyncPolicy sync = getSyncPolicy();
+        Log.d(TAG, "open " + mode + " writer, block " + blockSize + " prealloc " + preallocate
+                + ", " + sync);
+        return SegmentWriters.open(file, mode, blockSize, preallocate, FALLOCATE, sync);
+    }
+
+    private static SyncPolicy getSyncPolicy() {
+        switch (SyncPolicy.parseMode(SystemProperties.get(PROP_SYNC, null),
+                SyncPolicy.Mode.INTERVAL)) {
+            case INTERVAL:
+                return SyncPolicy.interval(SystemProperties.getLong(PROP_SYNC_INTERVAL_MS,
+                        DEFAULT_SYNC_INTERVAL_MS));
+            case BYTES:
+                return SyncPolicy.bytes(SystemProperties.getLong(PROP_SYNC_MB, DEFAULT_SYNC_MB)
+                        * 1024 * 1024);
+            default:
+                return SyncPolicy.NONE;
         }
+    }
 
-        AudioEffect.Descriptor[] descriptors = AudioEffect.queryEffects();
-        for (AudioEffect.Descriptor descriptor : descriptors) {
-            Log.d(TAG, " descriptor : " + descriptor.name + " type : "  + descriptor.type + " uuid : " + descriptor.uuid + " " + descriptor.connectMode);
+    /**
+     * Puts the configured container and compression stage in front of the file writer.
+     */
+    private SegmentWriter wrapCodec(File file, SegmentWriter writer, CaptureClock clock)
+            throws IOException {
+        int channels = FRAME_BYTES / 2;
+        switch (getCodec()) {
+            case CODEC_ADPCM: {
+                WavFormat format = WavFormat.imaAdpcm(RECORDING_RATE, channels, ADPCM_BLOCK_ALIGN);
+                WavWriter wav = new WavWriter(writer, format,
+                        format.byteRate * WAV_CHECKPOINT_SECONDS);
+                return new EncodingWriter(wav, new ImaAdpcm.Encoder(channels, ADPCM_BLOCK_ALIGN),
+                        FRAME_BYTES);
+            }
+            case CODEC_LOSSLESS:
+                LosslessCodec.writeHeader(writer, RECORDING_RATE, channels);
+                return new EncodingWriter(writer,
+                        new LosslessCodec.Encoder(channels, LOSSLESS_BLOCK_FRAMES), FRAME_BYTES);
+            default:
+                String container = getContainer();
+                if (CONTAINER_CHUNKED.equals(container)) {
+                    int frames = (int) ((long) RECORDING_RATE
+                            * SystemProperties.getInt(PROP_CHUNK_MS, DEFAULT_CHUNK_MS) / 1000);
+                    return new ChunkedWriter(writer, ChunkedFile.indexFor(file), RECORDING_RATE,
+                            channels, Math.max(1, frames), clock);
+                }
+                if (CONTAINER_PCM.equals(container)) {
+                    return writer;
+                }
+                WavFormat format = WavFormat.pcm(RECORDING_RATE, channels, 16);
+                return new WavWriter(writer, format, format.byteRate * WAV_CHECKPOINT_SECONDS);
         }
-        Log.d(TAG, "AcousticEchoCanceler isAvailable : " + AcousticEchoCanceler.isAvailable());
-        if (!AcousticEchoCanceler.isAvailable()){
+    }
 
-            return false;
+    private String getCodec() {
+        return SystemProperties.get(PROP_CODEC, CODEC_PCM);
+    }
+
+    private String getFileExtension() {
+        String codec = getCodec();
+        if (CODEC_LOSSLESS.equals(codec)) {
+            return "rlac";
         }
-        canceler = AcousticEchoCanceler.create(audioSession);
-        if (canceler!=null) {
-            canceler.setEnabled(true);
-            return canceler.getEnabled();
-        }else{
-            return false;
+        if (CODEC_ADPCM.equals(codec)) {
+            return "wav";
+        }
+        String container = getContainer();
+        if (CONTAINER_CHUNKED.equals(container)) {
+            return ChunkedFile.EXTENSION;
         }
+        return CONTAINER_PCM.equals(container) ? "pcm" : "wav";
+    }
 
+    private String getContainer() {
+        return SystemProperties.get(PROP_CONTAINER, "wav");
     }
 
-    private void setCurrentState(State state) {
-        if (mState != state) {
-            mState = state;
-            if (mState != State.RECORDING) {
-                mMaxAmp = 0.0f;
+    /**
+     * Reserves real extents with {@code fallocate(2)} instead of the sparse length extension.
+     */
+    private static final ChannelSegmentWriter.Preallocator FALLOCATE =
+            new ChannelSegmentWriter.Preallocator() {
+        @Override
+        public void preallocate(FileDescriptor fd, FileChannel channel, long offset, long length)
+                throws IOException {
+            try {
+                Os.posix_fallocate(fd, offset, length);
+            } catch (ErrnoException e) {
+                Log.w(TAG, "fallocate failed, extending instead: " + e);
+                ChannelSegmentWriter.EXTEND_LENGTH.preallocate(fd, channel, offset, length);
             }
-            if (mListener != null) {
-                Log.d(TAG, "onRecordState : " + state);
-                mListener.onRecordState(state);
+        }
+    };
+
+    // Effects the platform offers, looked up once per process rather than per recording.
+    private static AudioEffect.Descriptor[] sEffects;
+    private static boolean sEchoCancelerAvailable;
+
+    private static synchronized boolean isEchoCancelerAvailable() {
+        if (sEffects == null) {
+            sEffects = AudioEffect.queryEffects();
+            for (AudioEffect.Descriptor descriptor : sEffects) {
+                Log.d(TAG, " descriptor : " + descriptor.name + " type : "  + descriptor.type + " uuid : " + descriptor.uuid + " " + descriptor.connectMode);
             }
+            sEchoCancelerAvailable = AcousticEchoCanceler.isAvailable();
+            Log.d(TAG, "AcousticEchoCanceler isAvailable : " + sEchoCancelerAvailable);
         }
+        return sEchoCancelerAvailable;
     }
 
-
-    private byte[] convertTo16Bit(float[] data) {
-        short[] shortValue = new short[data.length];
-        byte[] byte16bit = new byte[shortValue.length *2];
-        for (int i=0; i<data.length; i++) {
-            shortValue[i] = (short) (32768 * data[i]);
+    //消除回音
+    static AcousticEchoCanceler createEchoCanceler(int audioSession) {
+        if (!isEchoCancelerAvailable()) {
+            return null;
+        }
+        AcousticEchoCanceler canceler = AcousticEchoCanceler.create(audioSession);
+        if (canceler != null) {
+            canceler.setEnabled(true);
         }
-        byte16bit = toByteArray(shortValue);
-        return byte16bit;
+        return canceler;
     }
 
-    private byte[] toByteArray(short[] src) {
-        int count = src.length;
-        byte[] dest = new byte[count << 1];
-        for (int i=0; i< count; i++) {
-            dest[i * 2] = (byte) (src[i]);
-            dest[i * 2 + 1] = (byte) (src[i] >> 8);
+    /**
+     * Enters {@code state} and tells the listener on the main thread, in order. Callers hold
+     * {@link #mStateLock}.
+     */
+    private void moveTo(final State state) {
+        if (mState == state) {
+            return;
         }
-        return dest;
+        mState = state;
+        mStateEntries.incrementAndGet(state.ordinal());
+        mStateSinceMillis = System.currentTimeMillis();
+        Log.d(TAG, "onRecordState : " + state);
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                RecordStateListener listener = mListener;
+                if (listener != null) {
+                    listener.onRecordState(state);
+                }
+            }
+        });
     }
 
-    private boolean createRecordFile() {
+
+    static File getRecordDir() {
         String sampleDirPath = Environment.getExternalStorageDirectory().getAbsolutePath() + File.separator+DIR_NAME+File.separator;
         File sampleDir = new File(sampleDirPath);
         Log.d(TAG, "sampleDirPath : " + sampleDirPath);
@@ -336,31 +1533,130 @@ public class SoundRecorder {
             sampleDir = new File("/sdcard/"+DIR_NAME);
             sampleDir.mkdirs();
         }// Workaround for broken sdcard support on the device.
+        return sampleDir;
+    }
 
-
-
+    /**
+     * Names a recording file started now; {@code suffix} tells apart files created within the
+     * same second.
+     */
+    private File recordFile(String suffix) {
+        File sampleDir = getRecordDir();
         Log.d(TAG, "sampleDir : " + sampleDir.getAbsolutePath());
-        String fileName = String.format(Locale.US, "%s_%s.pcm", "recording", getDisplayTime());
+        String fileName = String.format(Locale.US, "%s_%s%s.%s", "recording", getDisplayTime(),
+                suffix != null ? "_" + suffix : "", getFileExtension());
+        return new File(sampleDir, fileName);
+    }
+
+    /**
+     * Creates a new, empty recording file, see {@link #recordFile(String)}.
+     */
+    private File newRecordFile(String suffix) {
         try {
-            mOutputFileName = new File(sampleDir, fileName);
-            mOutputFileName.createNewFile();
+            File file = recordFile(suffix);
+            file.createNewFile();
+            return file;
         } catch (IOException e) {
-            mOutputFileName = null;
             Log.w(TAG, "error", e);
+            return null;
+        }
+    }
+
+    /**
+     * Asks the recording to stop and returns at once. What was captured is still written and
+     * the file closed; {@link State#IDLE} follows once that is done.
+     */
+    public void stopRecording() {
+        final Thread session = requestStop(false);
+        if (session != null) {
+            mHandler.postDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    forceStopSource(session);
+                }
+            }, STOP_GRACE_MS);
+        }
+    }
+
+    /**
+     * Stops the recording and waits up to {@code timeoutMillis} until its file is closed.
+     *
+     * @return whether the recording has ended
+     */
+    public boolean stopRecording(long timeoutMillis) {
+        Thread session = requestStop(false);
+        if (session == null) {
+            return true;
+        }
+        long deadline = SystemClock.elapsedRealtime() + timeoutMillis;
+        try {
+            session.join(Math.min(timeoutMillis, STOP_GRACE_MS));
+            forceStopSource(session);
+            long left = deadline - SystemClock.elapsedRealtime();
+            if (left > 0) {
+                session.join(left);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (session.isAlive()) {
+            Log.w(TAG, "recording did not stop within " + timeoutMillis + " ms");
             return false;
         }
         return true;
     }
 
-    public void stopRecording() {
-        if (mRecordingAsyncTask != null) {
-            mRecordingAsyncTask.cancel(true);
+    /**
+     * Moves a starting or running recording, or armed capture, to {@link State#STOPPING} and
+     * stops its pipeline after the current read. Returns its capture thread, or {@code null} if
+     * none is running. With {@code armedOnly} a recording is left running.
+     */
+    private Thread requestStop(boolean armedOnly) {
+        AudioPipeline pipeline;
+        synchronized (mStateLock) {
+            if (armedOnly && mState != State.ARMED) {
+                return null;
+            }
+            if (mState == State.STARTING || mState == State.RECORDING
+                    || mState == State.ARMED) {
+                mStopRequestedNanos = System.nanoTime();
+                moveTo(State.STOPPING);
+            }
+            pipeline = mPipeline;
+            if (mSession == null) {
+                return null;
+            }
+        }
+        if (pipeline != null) {
+            pipeline.stop();
+        }
+        return mSession;
+    }
+
+    /**
+     * Stops the AudioRecord of {@code session} if its capture loop is still waiting in a read
+     * the grace period after a stop, so the pipeline can drain and close the file.
+     */
+    private void forceStopSource(Thread session) {
+        synchronized (mStateLock) {
+            if (session == mSession && mSource != null) {
+                Log.w(TAG, "capture still blocked " + STOP_GRACE_MS + " ms after stop");
+                mSource.stop();
+            }
         }
     }
 
     public void stopPlaying() {
-        if (mPlayingAsyncTask != null) {
-            mPlayingAsyncTask.cancel(true);
+        Player player;
+        synchronized (mStateLock) {
+            player = mPlayer;
+            mPlayer = null;
+            if (player != null && mState == State.PLAYING) {
+                moveTo(State.IDLE);
+            }
+        }
+        if (player != null) {
+            player.stop(PLAYER_STOP_TIMEOUT_MS);
         }
     }
 
@@ -368,82 +1664,179 @@ public class SoundRecorder {
      * Starts playback of the recorded audio file.
      */
     public void startPlay() {
-        if (mState != State.IDLE) {
-            Log.w(TAG, "Requesting to play while state was not IDLE");
+        File file = mOutputFileName;
+        if (file == null || !file.exists()) {
+            // there is no recording to play
             return;
         }
+        synchronized (mStateLock) {
+            if (mState != State.IDLE) {
+                Log.w(TAG, "Requesting to play while state was " + mState);
+                return;
+            }
+            mAudioManager.setStreamVolume(AudioManager.STREAM_MUSIC,
+                    mAudioManager.getStreamMaxVolume(AudioManager.STREAM_MUSIC), 0 /* flags */);
+            moveTo(State.PLAYING);
+            mPlayer = new Player(file, RECORDING_RATE, FRAME_BYTES / 2, new Player.Listener() {
+                @Override
+                public void onPlaybackFinished(Player player) {
+                    synchronized (mStateLock) {
+                        if (mPlayer == player) {
+                            mPlayer = null;
+                            moveTo(State.IDLE);
+                        }
+                    }
+                }
+            });
+            mPlayer.start();
+        }
+    }
 
-        if (!mOutputFileName.exists()) {
-            // there is no recording to play
-            return;
+    public void pausePlaying() {
+        if (mPlayer != null) {
+            mPlayer.pause();
         }
-        final int intSize = AudioTrack.getMinBufferSize(RECORDING_RATE, CHANNELS_OUT, FORMAT);
+    }
 
-        mPlayingAsyncTask = new AsyncTask<Void, Void, Void>() {
+    public void resumePlaying() {
+        if (mPlayer != null) {
+            mPlayer.resume();
+        }
+    }
 
-            private AudioTrack mAudioTrack;
+    /**
+     * Moves playback to {@code millis} from the start of the recording, to the nearest frame.
+     */
+    public void seekTo(long millis) {
+        if (mPlayer != null) {
+            mPlayer.seekToMillis(millis);
+        }
+    }
 
-            @Override
-            protected void onPreExecute() {
-                mAudioManager.setStreamVolume(AudioManager.STREAM_MUSIC,
-                        mAudioManager.getStreamMaxVolume(AudioManager.STREAM_MUSIC), 0 /* flags */);
-                mState = State.PLAYING;
-            }
+    /**
+     * Returns the playback position in milliseconds, or -1 when not playing.
+     */
+    public long getPlaybackPosition() {
+        Player player = mPlayer;
+        return player != null ? player.getPositionMillis() : -1;
+    }
 
-            @Override
-            protected Void doInBackground(Void... params) {
-                try {
-                    mAudioTrack = new AudioTrack(AudioManager.STREAM_MUSIC, RECORDING_RATE,
-                            CHANNELS_OUT, FORMAT, intSize, AudioTrack.MODE_STREAM);
-                    byte[] buffer = new byte[intSize * 2];
-                    FileInputStream in = null;
-                    BufferedInputStream bis = null;
-                    mAudioTrack.setVolume(AudioTrack.getMaxVolume());
-                    mAudioTrack.play();
-                    try {
-                        in = new FileInputStream(mOutputFileName);
-                        bis = new BufferedInputStream(in);
-                        int read;
-                        while (!isCancelled() && (read = bis.read(buffer, 0, buffer.length)) > 0) {
-                            mAudioTrack.write(buffer, 0, read);
-                        }
-                    } catch (IOException e) {
-                        Log.e(TAG, "Failed to read the sound file into a byte array", e);
-                    } finally {
-                        try {
-                            if (in != null) {
-                                in.close();
-                            }
-                            if (bis != null) {
-                                bis.close();
-                            }
-                        } catch (IOException e) { /* ignore */}
-
-                        mAudioTrack.release();
-                    }
-                } catch (IllegalStateException e) {
-                    Log.e(TAG, "Failed to start playback", e);
-                }
-                return null;
-            }
+    /**
+     * Prints the state history and the health counters of the current or last recording, for
+     * {@code dumpsys activity service}.
+     */
+    public void dump(PrintWriter pw) {
+        pw.println("state=" + mState + " since "
+                + new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US)
+                        .format(new Date(mStateSinceMillis)));
+        StringBuilder entries = new StringBuilder("state entries:");
+        for (State state : State.values()) {
+            entries.append(' ').append(state).append('=')
+                    .append(mStateEntries.get(state.ordinal()));
+        }
+        pw.println(entries);
+        pw.println("start latency: " + mStartLatency.format(1000000, "ms"));
+        pw.println("stop latency: " + mStopLatency.format(1000000, "ms"));
+        RecordSession warm;
+        synchronized (mStateLock) {
+            warm = mWarmSession;
+        }
+        pw.println("starts: warm=" + mWarmStarts.get() + " cold=" + mColdStarts.get()
+                + " over target=" + mStartTargetMisses.get() + " (target "
+                + SystemProperties.getInt(PROP_START_TARGET_MS, DEFAULT_START_TARGET_MS)
+                + " ms), next: " + (warm != null ? warm : "cold"));
+        pw.println("loopback latency: " + mLoopbackLatency.format(1000000, "ms"));
+        EventCapture events = mLastEvents;
+        if (events != null) {
+            pw.println((events == mEvents ? "armed: " : "last armed: ") + events);
+        }
+        mCatalog.dump(pw);
+        pw.println("file=" + mOutputFileName);
+        AudioPipeline pipeline = mLastPipeline;
+        if (pipeline == null) {
+            pw.println("no recording yet");
+            return;
+        }
+        pw.println((pipeline == mPipeline ? "current" : "last") + " recording: " + pipeline);
+        pw.println("  ring: " + pipeline.getRing());
+        PipelineMetrics metrics = pipeline.getMetrics();
+        if (metrics != null) {
+            metrics.dump(pw, "  ");
+        }
+        SegmentWriter out = mLastOutput;
+        if (out != null) {
+            pw.println("  writer: " + out.getStats());
+        }
+        MonitorSink monitor = mLastMonitor;
+        if (monitor != null) {
+            pw.println("  monitor: " + monitor);
+        }
+        pw.println("  consumers:");
+        pipeline.dumpAttachments(pw, "    ");
+    }
 
-            @Override
-            protected void onPostExecute(Void aVoid) {
-                cleanup();
-            }
+    /**
+     * Returns the health counters of the current or last recording, or {@code null} before the
+     * first one. The counters keep updating while that recording runs.
+     */
+    public Health getHealth() {
+        AudioPipeline pipeline = mLastPipeline;
+        if (pipeline == null) {
+            return null;
+        }
+        long[] entries = new long[State.values().length];
+        for (int i = 0; i < entries.length; i++) {
+            entries[i] = mStateEntries.get(i);
+        }
+        SegmentWriter out = mLastOutput;
+        return new Health(mState, mStateSinceMillis, entries, pipeline == mPipeline,
+                pipeline.getRing().getOverflowCount(), pipeline.getMetrics(),
+                out != null ? out.getStats() : null, mStartLatency, mStopLatency);
+    }
 
-            @Override
-            protected void onCancelled() {
-                cleanup();
-            }
+    /**
+     * Health of a recording as returned by {@link #getHealth()}.
+     */
+    public static final class Health {
+        public final State state;
+        public final long stateSinceMillis;
+        /** Times each state was entered, indexed by {@link State#ordinal()}. */
+        public final long[] stateEntries;
+        public final boolean recording;
+        /** Buffers dropped because the writer fell behind. */
+        public final long overruns;
+        public final PipelineMetrics metrics;
+        public final WriterStats writer;
+        /** Nanos from each start request to the first captured buffer. */
+        public final Histogram startLatency;
+        /** Nanos from each stop request to the closed file. */
+        public final Histogram stopLatency;
+
+        Health(State state, long stateSinceMillis, long[] stateEntries, boolean recording,
+                long overruns, PipelineMetrics metrics, WriterStats writer,
+                Histogram startLatency, Histogram stopLatency) {
+            this.state = state;
+            this.stateSinceMillis = stateSinceMillis;
+            this.stateEntries = stateEntries;
+            this.recording = recording;
+            this.overruns = overruns;
+            this.metrics = metrics;
+            this.writer = writer;
+            this.startLatency = startLatency;
+            this.stopLatency = stopLatency;
+        }
+    }
 
-            private void cleanup() {
-                mState = State.IDLE;
-                mPlayingAsyncTask = null;
-            }
-        };
+    private static final class SinkAttachment {
+        final String name;
+        final AudioSink sink;
+        final FrameRingBuffer.ConsumerPolicy policy;
 
-        mPlayingAsyncTask.execute();
+        SinkAttachment(String name, AudioSink sink, FrameRingBuffer.ConsumerPolicy policy) {
+            this.name = name;
+            this.sink = sink;
+            this.policy = policy;
+        }
     }
 
     public interface RecordStateListener {
@@ -456,6 +1849,7 @@ public class SoundRecorder {
         Log.d(TAG, "cleanup() is called");
         stopPlaying();
         stopRecording();
+        releaseWarmSession();
     }
 
 
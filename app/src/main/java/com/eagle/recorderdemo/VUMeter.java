@@ -22,21 +22,65 @@ import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.drawable.Drawable;
 import android.util.AttributeSet;
-import android.util.Log;
+import android.view.Choreographer;
 import android.view.View;
 
-public class VUMeter extends View {
+import com.eagle.recorderdemo.audio.LevelMeter;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Needle meter driven by level pushes from the {@link SoundRecorder}.
+ *
+ * Each push only folds its levels into the loudest seen since the last frame and, if no frame is
+ * pending, schedules a {@link Choreographer} frame. The needle follows the RMS of the last push
+ * until the next one arrives, rising with the attack and falling with the dropoff ballistics, and
+ * a mark above it holds the peak for a moment before falling back. Frames keep coming while
+ * either moves and stop once both rest, so an idle, detached or hidden meter does no work at all.
+ */
+public class VUMeter extends View implements LevelMeter.Listener, Choreographer.FrameCallback {
     static final float PIVOT_RADIUS = 3.5f;
     static final float PIVOT_Y_OFFSET = 10f;
     static final float SHADOW_OFFSET = 2.0f;
-    static final float DROPOFF_STEP = 0.18f;
-    static final float SURGE_STEP = 0.35f;
-    static final long  ANIMATION_INTERVAL = 70;
-    
-    Paint mPaint, mShadow;
+    // Needle ballistics: exponential attack, linear fall back (the old 0.18 rad per 70 ms).
+    static final float ATTACK_SECONDS = 0.03f;
+    static final float DROPOFF_RADIANS_PER_SECOND = 2.6f;
+    static final float REST_EPSILON = 0.002f;
+    static final float MAX_FRAME_SECONDS = 0.1f;
+    // Peak mark: held this long after the last higher peak, then falls like the needle.
+    static final float PEAK_HOLD_SECONDS = 1.0f;
+    static final float PEAK_MARK_LENGTH = 0.15f;
+
+    static final float MIN_ANGLE = (float) Math.PI / 8;
+    static final float MAX_ANGLE = (float) Math.PI * 7 / 8;
+
+    Paint mPaint, mShadow, mPeakPaint;
     float mCurrentAngle;
+    float mTargetAngle;
+    float mPeakAngle;
+    float mPeakHoldSeconds;
+    long mLastFrameNanos;
+    // Levels of the last push taken, which stay the target until the next one.
+    float mRms;
+    float mPeak;
 
     SoundRecorder mRecorder;
+    boolean mListening;
+
+    // Loudest levels pushed since the last frame, as float bits (non-negative floats order as
+    // ints), NONE when nothing was pushed.
+    private static final int NONE = -1;
+    private final AtomicInteger mPendingRms = new AtomicInteger(NONE);
+    private final AtomicInteger mPendingPeak = new AtomicInteger(NONE);
+    private final AtomicBoolean mFrameScheduled = new AtomicBoolean();
+    private final Runnable mScheduleFrame = new Runnable() {
+        @Override
+        public void run() {
+            mLastFrameNanos = 0;
+            Choreographer.getInstance().postFrameCallback(VUMeter.this);
+        }
+    };
 
     public VUMeter(Context context) {
         super(context);
@@ -56,53 +100,183 @@ public class VUMeter extends View {
         mPaint.setColor(Color.WHITE);
         mShadow = new Paint(Paint.ANTI_ALIAS_FLAG);
         mShadow.setColor(Color.argb(60, 0, 0, 0));
+        mPeakPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        mPeakPaint.setColor(Color.argb(255, 255, 64, 32));
         
         mRecorder = null;
         
-        mCurrentAngle = 0;
+        mCurrentAngle = MIN_ANGLE;
+        mTargetAngle = MIN_ANGLE;
+        mPeakAngle = MIN_ANGLE;
     }
 
     public void setRecorder(SoundRecorder recorder) {
-    	mRecorder = recorder;
-    	invalidate();
+        if (mRecorder == recorder) {
+            return;
+        }
+        stopListening();
+        mRecorder = recorder;
+        mPendingRms.set(NONE);
+        mPendingPeak.set(NONE);
+        mRms = 0;
+        mPeak = 0;
+        updateListening();
+        // Let the needle fall back to rest.
+        requestFrame();
     }
-    
+
     @Override
-    protected void onDraw(Canvas canvas) {
-        super.onDraw(canvas);
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        updateListening();
+    }
 
-        final float minAngle = (float)Math.PI/8;
-        final float maxAngle = (float)Math.PI*7/8;
-                
-        float angle = minAngle;
-        if (mRecorder != null) {
-            angle += (float)(maxAngle - minAngle)*mRecorder.getMaxAmplitude()/100;
+    @Override
+    protected void onDetachedFromWindow() {
+        stopListening();
+        super.onDetachedFromWindow();
+    }
+
+    @Override
+    public void onVisibilityAggregated(boolean isVisible) {
+        super.onVisibilityAggregated(isVisible);
+        updateListening();
+    }
+
+    private void updateListening() {
+        boolean listen = mRecorder != null && isAttachedToWindow() && isShown();
+        if (listen == mListening) {
+            return;
         }
+        if (listen) {
+            mListening = true;
+            mRecorder.setLevelListener(this);
+        } else {
+            stopListening();
+        }
+    }
+
+    private void stopListening() {
+        if (mListening) {
+            mListening = false;
+            if (mRecorder != null) {
+                mRecorder.setLevelListener(null);
+            }
+        }
+        removeCallbacks(mScheduleFrame);
+        Choreographer.getInstance().removeFrameCallback(this);
+        mFrameScheduled.set(false);
+    }
 
-        if (angle > mCurrentAngle) {
-            mCurrentAngle = angle;
+    /**
+     * Called on the meter thread of the recording for every level publication.
+     */
+    @Override
+    public void onLevels(float peak, float rms) {
+        foldMax(mPendingRms, rms);
+        foldMax(mPendingPeak, peak);
+        requestFrame();
+    }
+
+    private static void foldMax(AtomicInteger pending, float level) {
+        int bits = Float.floatToRawIntBits(Math.max(0f, level));
+        int held;
+        do {
+            held = pending.get();
+        } while (bits > held && !pending.compareAndSet(held, bits));
+    }
+
+    private static float toAngle(float level) {
+        return MIN_ANGLE + (MAX_ANGLE - MIN_ANGLE)
+                * LevelMeter.toScale(level, SoundRecorder.METER_FLOOR_DB);
+    }
+
+    private void requestFrame() {
+        if (mFrameScheduled.compareAndSet(false, true)) {
+            post(mScheduleFrame);
+        }
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        int rms = mPendingRms.getAndSet(NONE);
+        int peak = mPendingPeak.getAndSet(NONE);
+        boolean pushed = rms != NONE;
+        if (pushed) {
+            mRms = Float.intBitsToFloat(rms);
+            mPeak = peak != NONE ? Float.intBitsToFloat(peak) : mRms;
+        }
+        SoundRecorder.State state = mRecorder != null ? mRecorder.getState() : null;
+        if (state != SoundRecorder.State.RECORDING && state != SoundRecorder.State.ARMED) {
+            mRms = 0;
+            mPeak = 0;
+        }
+        mTargetAngle = toAngle(mRms);
+
+        float dt = mLastFrameNanos == 0 ? 0
+                : Math.min(MAX_FRAME_SECONDS, (frameTimeNanos - mLastFrameNanos) / 1e9f);
+        mLastFrameNanos = frameTimeNanos;
+        if (mTargetAngle > mCurrentAngle) {
+            mCurrentAngle += (mTargetAngle - mCurrentAngle)
+                    * (1 - (float) Math.exp(-dt / ATTACK_SECONDS));
         } else {
-            mCurrentAngle = Math.max(angle, mCurrentAngle - DROPOFF_STEP);
+            mCurrentAngle = Math.max(mTargetAngle, mCurrentAngle - DROPOFF_RADIANS_PER_SECOND * dt);
         }
 
-        mCurrentAngle = Math.min(maxAngle, mCurrentAngle);
+        float peakAngle = toAngle(mPeak);
+        if (pushed && peakAngle >= mPeakAngle) {
+            mPeakAngle = peakAngle;
+            mPeakHoldSeconds = PEAK_HOLD_SECONDS;
+        } else if (mPeakHoldSeconds > 0) {
+            mPeakHoldSeconds -= dt;
+        } else {
+            mPeakAngle -= DROPOFF_RADIANS_PER_SECOND * dt;
+        }
+        // The mark never sits below the needle, and rests on it once it has fallen.
+        mPeakAngle = Math.max(mPeakAngle, mCurrentAngle);
+        invalidate();
+
+        boolean needleMoving = Math.abs(mTargetAngle - mCurrentAngle) > REST_EPSILON;
+        boolean peakMoving = mPeakAngle - mCurrentAngle > REST_EPSILON;
+        if (needleMoving || peakMoving || mPendingRms.get() != NONE) {
+            Choreographer.getInstance().postFrameCallback(this);
+        } else {
+            mCurrentAngle = mTargetAngle;
+            mPeakAngle = mCurrentAngle;
+            mFrameScheduled.set(false);
+            // A push that raced with the check above would otherwise be lost.
+            if (mPendingRms.get() != NONE) {
+                requestFrame();
+            }
+        }
+    }
 
+    @Override
+    protected void onDraw(Canvas canvas) {
+        super.onDraw(canvas);
+
+        float angle = Math.max(MIN_ANGLE, Math.min(MAX_ANGLE, mCurrentAngle));
         float w = getWidth();
         float h = getHeight();
         float pivotX = w/2;
         float pivotY = h - PIVOT_RADIUS - PIVOT_Y_OFFSET;
         float l = h*4/5;
-        float sin = (float) Math.sin(mCurrentAngle);
-        float cos = (float) Math.cos(mCurrentAngle);
+        float sin = (float) Math.sin(angle);
+        float cos = (float) Math.cos(angle);
         float x0 = pivotX - l*cos;
         float y0 = pivotY - l*sin;
         canvas.drawLine(x0 + SHADOW_OFFSET, y0 + SHADOW_OFFSET, pivotX + SHADOW_OFFSET, pivotY + SHADOW_OFFSET, mShadow);
         canvas.drawCircle(pivotX + SHADOW_OFFSET, pivotY + SHADOW_OFFSET, PIVOT_RADIUS, mShadow);
         canvas.drawLine(x0, y0, pivotX, pivotY, mPaint);
         canvas.drawCircle(pivotX, pivotY, PIVOT_RADIUS, mPaint);
-        
-        if (mRecorder != null && mRecorder.getState() == SoundRecorder.State.RECORDING) {
-            postInvalidateDelayed(ANIMATION_INTERVAL);
+
+        if (mPeakAngle - angle > REST_EPSILON) {
+            float peak = Math.min(MAX_ANGLE, mPeakAngle);
+            float peakSin = (float) Math.sin(peak);
+            float peakCos = (float) Math.cos(peak);
+            float inner = l * (1 - PEAK_MARK_LENGTH);
+            canvas.drawLine(pivotX - inner*peakCos, pivotY - inner*peakSin,
+                    pivotX - l*peakCos, pivotY - l*peakSin, mPeakPaint);
         }
     }
-}
\ No newline at end of file
+}
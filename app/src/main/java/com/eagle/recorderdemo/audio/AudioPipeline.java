@@ -0,0 +1,466 @@
+package com.eagle.recorderdemo.audio;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Capture loop of a recording, independent of where the audio comes from and where it goes.
+ *
+ * {@link #run()} reads the {@link AudioSource} on the calling thread straight into the frames of
+ * a {@link FrameRingBuffer} and publishes them, and does nothing else. A writer thread drains the
+ * ring into the {@link AudioSink}s in order. When the ring is full the source is still drained
+ * into a scratch buffer so it never overruns, and the frame is counted as dropped.
+ *
+ * Everything else that wants the audio, such as the meter, a monitor or an analysis, is
+ * {@link #attach attached} as a consumer of the ring with a cursor and a thread of its own, and
+ * can come and go while the pipeline runs. However slow such a sink is, it only ever costs
+ * capture what its {@link FrameRingBuffer.ConsumerPolicy} says. Neither loop allocates. The
+ * pipeline starts and stops the source but opens and closes nothing; sources and sinks stay
+ * owned by the caller.
+ */
+public final class AudioPipeline implements Runnable {
+
+    public interface Listener {
+        /**
+         * Called on the capture thread once the first buffer was read, with the
+         * {@link System#nanoTime()} the read returned at.
+         */
+        void onFirstBuffer(AudioPipeline pipeline, long nanos);
+    }
+
+    private static final long WRITER_POLL_MS = 100;
+
+    private final AudioSource mSource;
+    private final FrameRingBuffer mRing;
+    private final AudioSink[] mSinks;
+
+    // Capture time of each ring slot, indexed like the ring itself.
+    private final long[] mStamps;
+    private final int mStampMask;
+
+    private volatile CaptureClock mClock;
+    private volatile PipelineMetrics mMetrics;
+    private volatile ReadSizeController mReadSize;
+    private volatile Listener mListener;
+    // Guarded by this; started with the pipeline or, if it already runs, when attached.
+    private final List<Attachment> mAttachments = new ArrayList<>();
+    private boolean mRunning;
+    private boolean mFinished;
+    private volatile boolean mStopped;
+    private volatile Throwable mFailure;
+
+    private volatile long mCapturedBytes;
+    private volatile long mWrittenBytes;
+    private volatile long mLatencyCount;
+    private volatile long mLatencyNanos;
+    private volatile long mMaxLatencyNanos;
+
+    /**
+     * @param meter fed with the captured buffers on a consumer thread of its own, skipping ahead
+     *         if it falls behind; may be {@code null}
+     * @param sinks written on the writer thread in this order
+     */
+    public AudioPipeline(AudioSource source, FrameRingBuffer ring, final LevelMeter meter,
+            AudioSink... sinks) {
+        mSource = source;
+        mRing = ring;
+        mSinks = sinks;
+        mStamps = new long[ring.capacity()];
+        mStampMask = ring.capacity() - 1;
+        if (meter != null) {
+            attach("meter", new AudioSink() {
+                @Override
+                public void write(byte[] src, int offset, int length) {
+                    meter.process(src, offset, length);
+                }
+
+                @Override
+                public void flush() {
+                }
+
+                @Override
+                public void close() {
+                }
+            }, FrameRingBuffer.ConsumerPolicy.SKIP_AHEAD);
+        }
+    }
+
+    /**
+     * Captures until {@link #stop()} is called, the source ends or a sink fails, then lets the
+     * writer drain what is queued. A sink failure is reported by {@link #getFailure()}.
+     */
+    @Override
+    public void run() {
+        Writer writer = new Writer();
+        try {
+            synchronized (this) {
+                mRunning = true;
+                for (Iterator<Attachment> it = mAttachments.iterator(); it.hasNext(); ) {
+                    if (!it.next().begin()) {
+                        it.remove();
+                    }
+                }
+            }
+            mSource.start();
+            writer.start();
+            capture();
+        } catch (IOException | RuntimeException e) {
+            fail(e);
+        } finally {
+            mRing.close();
+            List<Attachment> attachments;
+            synchronized (this) {
+                mFinished = true;
+                attachments = new ArrayList<>(mAttachments);
+            }
+            boolean interrupted = false;
+            while (writer.isAlive()) {
+                try {
+                    writer.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            for (Attachment attachment : attachments) {
+                while (attachment.isAlive()) {
+                    try {
+                        attachment.join();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            }
+            mSource.stop();
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void capture() throws IOException {
+        byte[] scratch = new byte[mRing.frameBytes()];
+        PipelineMetrics metrics = mMetrics;
+        ReadSizeController readSize = mReadSize;
+        Listener listener = mListener;
+        if (metrics != null) {
+            metrics.onStart(System.nanoTime());
+        }
+        while (!mStopped && mFailure == null) {
+            byte[] frame = mRing.claim();
+            byte[] buffer = frame != null ? frame : scratch;
+            int length = readSize != null
+                    ? Math.min(buffer.length, readSize.getReadBytes()) : buffer.length;
+            long start = metrics != null ? System.nanoTime() : 0;
+            int read = mSource.read(buffer, 0, length);
+            long end = System.nanoTime();
+            if (metrics != null) {
+                metrics.onRead(length, read, start, end);
+            }
+            if (read < 0) {
+                break;
+            }
+            if (read == 0) {
+                if (readSize != null) {
+                    readSize.onRead(read, end, mRing);
+                }
+                continue;
+            }
+            if (listener != null && mCapturedBytes == 0) {
+                listener.onFirstBuffer(this, end);
+            }
+            mCapturedBytes += read;
+            if (frame != null) {
+                mStamps[(int) mRing.getPublishedCount() & mStampMask] = end;
+                mRing.publish(read);
+            }
+            if (readSize != null) {
+                readSize.onRead(read, end, mRing);
+            }
+        }
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Has {@code sink} written every captured buffer from now on, on a thread of its own named
+     * after it, until it is {@link #detach detached} or the pipeline ends; it is flushed then
+     * but not closed. May be called before or while the pipeline runs. A sink that fails is
+     * detached without failing the recording.
+     *
+     * @param policy what happens when the sink falls behind the ring
+     * @return {@code false} if the pipeline has already ended or no thread could be started
+     *         for the sink
+     */
+    public synchronized boolean attach(String name, AudioSink sink,
+            FrameRingBuffer.ConsumerPolicy policy) {
+        if (mFinished) {
+            return false;
+        }
+        Attachment attachment = new Attachment(name, sink, policy);
+        if (mRunning && !attachment.begin()) {
+            return false;
+        }
+        mAttachments.add(attachment);
+        return true;
+    }
+
+    /**
+     * Stops writing to {@code sink} after the buffer it is handling, without waiting for it.
+     *
+     * @return whether {@code sink} was attached
+     */
+    public synchronized boolean detach(AudioSink sink) {
+        for (int i = 0; i < mAttachments.size(); i++) {
+            Attachment attachment = mAttachments.get(i);
+            if (attachment.mSink == sink) {
+                mAttachments.remove(i);
+                attachment.end();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Prints one line per attached sink, each starting with {@code prefix}. */
+    public synchronized void dumpAttachments(PrintWriter pw, String prefix) {
+        for (Attachment attachment : mAttachments) {
+            pw.println(prefix + attachment);
+        }
+    }
+
+    /**
+     * Has the capture time of each buffer marked on {@code clock} right before it is written.
+     */
+    public void setCaptureClock(CaptureClock clock) {
+        mClock = clock;
+    }
+
+    /**
+     * Has the reads and sink writes of the next {@link #run()} recorded in {@code metrics},
+     * whose sink labels must match the sinks of this pipeline.
+     */
+    public void setMetrics(PipelineMetrics metrics) {
+        if (metrics != null && metrics.getSinkCount() != mSinks.length) {
+            throw new IllegalArgumentException("metrics for " + metrics.getSinkCount()
+                    + " sinks, pipeline has " + mSinks.length);
+        }
+        mMetrics = metrics;
+    }
+
+    public PipelineMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * Lets {@code controller} choose the size of each read instead of always filling a whole
+     * ring frame. Its upper bound should not exceed {@link FrameRingBuffer#frameBytes()}.
+     */
+    public void setReadSizeController(ReadSizeController controller) {
+        mReadSize = controller;
+    }
+
+    public ReadSizeController getReadSizeController() {
+        return mReadSize;
+    }
+
+    /**
+     * Makes {@link #run()} return after the current read; safe from any thread.
+     */
+    public void stop() {
+        mStopped = true;
+    }
+
+    public boolean isStopped() {
+        return mStopped;
+    }
+
+    public boolean hasFailed() {
+        return mFailure != null;
+    }
+
+    /** The first error of the source or a sink, or {@code null}. */
+    public Throwable getFailure() {
+        return mFailure;
+    }
+
+    private void fail(Throwable t) {
+        if (mFailure == null) {
+            mFailure = t;
+        }
+    }
+
+    public FrameRingBuffer getRing() {
+        return mRing;
+    }
+
+    /** Bytes read from the source, including those dropped at the ring. */
+    public long getCapturedBytes() {
+        return mCapturedBytes;
+    }
+
+    /** Bytes handed to the sinks. */
+    public long getWrittenBytes() {
+        return mWrittenBytes;
+    }
+
+    /** Buffers that made it through the ring. */
+    public long getLatencyCount() {
+        return mLatencyCount;
+    }
+
+    /** Mean time from the end of a read until all sinks accepted the buffer. */
+    public long getMeanLatencyNanos() {
+        long count = mLatencyCount;
+        return count > 0 ? mLatencyNanos / count : 0;
+    }
+
+    public long getMaxLatencyNanos() {
+        return mMaxLatencyNanos;
+    }
+
+    @Override
+    public String toString() {
+        return "AudioPipeline{captured=" + mCapturedBytes + ", written=" + mWrittenBytes
+                + ", dropped=" + mRing.getOverflowCount()
+                + ", latency mean/max=" + TimeUnit.NANOSECONDS.toMicros(getMeanLatencyNanos())
+                + "/" + TimeUnit.NANOSECONDS.toMicros(mMaxLatencyNanos) + "us"
+                + (mFailure != null ? ", failed=" + mFailure : "") + "}";
+    }
+
+    private class Writer extends Thread {
+        Writer() {
+            super("RecorderWriter");
+        }
+
+        @Override
+        public void run() {
+            FrameRingBuffer ring = mRing;
+            PipelineMetrics metrics = mMetrics;
+            long sequence = 0;
+            try {
+                while (!ring.isDrained()) {
+                    byte[] frame = ring.peek();
+                    if (frame == null) {
+                        ring.await(WRITER_POLL_MS, TimeUnit.MILLISECONDS);
+                        continue;
+                    }
+                    int length = ring.peekLength();
+                    long stamp = mStamps[(int) sequence++ & mStampMask];
+                    CaptureClock clock = mClock;
+                    if (clock != null) {
+                        clock.mark(stamp);
+                    }
+                    long before = metrics != null ? System.nanoTime() : 0;
+                    for (int i = 0; i < mSinks.length; i++) {
+                        mSinks[i].write(frame, 0, length);
+                        if (metrics != null) {
+                            long after = System.nanoTime();
+                            metrics.onSinkWrite(i, after - before);
+                            before = after;
+                        }
+                    }
+                    long latency = System.nanoTime() - stamp;
+                    ring.release();
+                    mWrittenBytes += length;
+                    mLatencyCount++;
+                    mLatencyNanos += latency;
+                    if (latency > mMaxLatencyNanos) {
+                        mMaxLatencyNanos = latency;
+                    }
+                }
+            } catch (IOException | InterruptedException | RuntimeException e) {
+                fail(e);
+                // Unblock a producer that may be waiting for space.
+                ring.close();
+            }
+        }
+    }
+
+    /**
+     * An attached sink: a consumer of the ring and the thread that feeds the sink from it.
+     */
+    private final class Attachment extends Thread {
+        private final String mName;
+        private final AudioSink mSink;
+        private final FrameRingBuffer.ConsumerPolicy mPolicy;
+        private final byte[] mBuffer;
+        private volatile FrameRingBuffer.Consumer mConsumer;
+        private volatile boolean mDetached;
+        private volatile long mWritten;
+        private volatile Throwable mSinkFailure;
+
+        Attachment(String name, AudioSink sink, FrameRingBuffer.ConsumerPolicy policy) {
+            super("RecorderSink-" + name);
+            mName = name;
+            mSink = sink;
+            mPolicy = policy;
+            mBuffer = new byte[mRing.frameBytes()];
+        }
+
+        /**
+         * Takes a cursor at the current head of the ring and starts feeding the sink.
+         *
+         * @return {@code false} if the thread could not be started; the cursor is gone again
+         */
+        boolean begin() {
+            FrameRingBuffer.Consumer consumer = mRing.addConsumer(mPolicy);
+            mConsumer = consumer;
+            try {
+                start();
+                return true;
+            } catch (OutOfMemoryError | IllegalThreadStateException e) {
+                // Left behind, a BLOCK cursor nobody advances would stall capture for good.
+                mRing.removeConsumer(consumer);
+                mSinkFailure = e;
+                return false;
+            }
+        }
+
+        /** Makes the thread stop within a poll period, without interrupting the sink. */
+        void end() {
+            mDetached = true;
+            LockSupport.unpark(this);
+        }
+
+        @Override
+        public void run() {
+            FrameRingBuffer.Consumer consumer = mConsumer;
+            try {
+                while (!mDetached) {
+                    int length = consumer.read(mBuffer, 0);
+                    if (length < 0) {
+                        if (consumer.isDrained()) {
+                            break;
+                        }
+                        consumer.await(WRITER_POLL_MS, TimeUnit.MILLISECONDS);
+                        continue;
+                    }
+                    mSink.write(mBuffer, 0, length);
+                    mWritten += length;
+                }
+                mSink.flush();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (IOException | RuntimeException e) {
+                mSinkFailure = e;
+            } finally {
+                mRing.removeConsumer(consumer);
+            }
+        }
+
+        @Override
+        public String toString() {
+            FrameRingBuffer.Consumer consumer = mConsumer;
+            return mName + ": written=" + mWritten + " "
+                    + (consumer != null ? consumer : mPolicy)
+                    + (mSinkFailure != null ? " failed=" + mSinkFailure : "");
+        }
+    }
+}
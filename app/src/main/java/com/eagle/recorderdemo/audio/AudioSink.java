@@ -0,0 +1,17 @@
+package com.eagle.recorderdemo.audio;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Consumer of captured interleaved PCM16, such as a recording file or a monitor output.
+ */
+public interface AudioSink extends Closeable {
+
+    void write(byte[] src, int offset, int length) throws IOException;
+
+    /**
+     * Hands everything written so far on. For files it does not imply {@code fsync}.
+     */
+    void flush() throws IOException;
+}
@@ -0,0 +1,30 @@
+package com.eagle.recorderdemo.audio;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Where an {@link AudioPipeline} gets its audio from: the microphone on a device, a synthetic
+ * signal on a build machine.
+ *
+ * Audio is delivered as interleaved little-endian PCM16 in whole frames. {@link #read} is only
+ * called from the capture thread.
+ */
+public interface AudioSource extends Closeable {
+
+    int getSampleRate();
+
+    int getChannels();
+
+    void start() throws IOException;
+
+    /**
+     * Blocks until audio is available and copies up to {@code length} bytes of it into
+     * {@code dst}.
+     *
+     * @return number of bytes read, 0 if nothing arrived this time, -1 once the source has ended
+     */
+    int read(byte[] dst, int offset, int length) throws IOException;
+
+    void stop();
+}
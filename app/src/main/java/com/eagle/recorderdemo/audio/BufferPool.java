@@ -0,0 +1,76 @@
+package com.eagle.recorderdemo.audio;
+
+import java.util.ArrayDeque;
+import java.util.Locale;
+
+/**
+ * Fixed size byte buffers shared by several capture sessions, with a bound on how many exist.
+ *
+ * Buffers are allocated as they are first needed, up to the bound, and recycled after that, so
+ * the memory all sessions hold together stays within {@code capacity * bufferSize} however many
+ * there are. {@link #acquire()} never blocks: when every buffer is out it returns {@code null}
+ * and the caller decides what to drop, since a capture thread cannot wait.
+ */
+public final class BufferPool {
+
+    private final int mBufferSize;
+    private final int mCapacity;
+
+    // Guarded by this.
+    private final ArrayDeque<byte[]> mFree = new ArrayDeque<>();
+    private int mAllocated;
+    private int mInUse;
+    private int mHighWaterMark;
+    private long mMisses;
+
+    public BufferPool(int bufferSize, int capacity) {
+        mBufferSize = bufferSize;
+        mCapacity = capacity;
+    }
+
+    public int getBufferSize() {
+        return mBufferSize;
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    /** Returns a buffer of {@link #getBufferSize()} bytes, or {@code null} if all are out. */
+    public synchronized byte[] acquire() {
+        byte[] buffer = mFree.pollFirst();
+        if (buffer == null) {
+            if (mAllocated == mCapacity) {
+                mMisses++;
+                return null;
+            }
+            buffer = new byte[mBufferSize];
+            mAllocated++;
+        }
+        mInUse++;
+        mHighWaterMark = Math.max(mHighWaterMark, mInUse);
+        return buffer;
+    }
+
+    /** Returns {@code buffer}, which must have come from {@link #acquire()}. */
+    public synchronized void release(byte[] buffer) {
+        mInUse--;
+        mFree.addFirst(buffer);
+    }
+
+    public synchronized int getInUse() {
+        return mInUse;
+    }
+
+    /** Acquisitions that found every buffer out. */
+    public synchronized long getMisses() {
+        return mMisses;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US, "BufferPool{%d x %d bytes, allocated=%d, inUse=%d, "
+                + "highWater=%d, misses=%d}", mCapacity, mBufferSize, mAllocated, mInUse,
+                mHighWaterMark, mMisses);
+    }
+}
@@ -0,0 +1,54 @@
+package com.eagle.recorderdemo.audio;
+
+/**
+ * Tells sinks when the audio they are writing was captured.
+ *
+ * The {@link AudioPipeline} marks the {@link System#nanoTime()} at which each buffer finished
+ * reading before handing it to its sinks; a sink can then date any frame of the buffer. Wall
+ * clock times are derived from one reference taken at construction, so they stay monotonic even
+ * if the system clock is changed during a recording.
+ */
+public final class CaptureClock {
+
+    private final long mBaseNanos;
+    private final long mBaseMicros;
+    private volatile long mMarkNanos;
+
+    public CaptureClock() {
+        mBaseNanos = System.nanoTime();
+        mBaseMicros = System.currentTimeMillis() * 1000;
+    }
+
+    private CaptureClock(long baseNanos, long baseMicros) {
+        mBaseNanos = baseNanos;
+        mBaseMicros = baseMicros;
+    }
+
+    /**
+     * Returns a clock on the same reference whose start is the {@link System#nanoTime()} reading
+     * {@code nanos}. It is never marked, so sinks date what they write from its frame count.
+     */
+    public CaptureClock startingAt(long nanos) {
+        return new CaptureClock(nanos, toEpochMicros(nanos));
+    }
+
+    /** Records that the buffer about to be written finished capturing at {@code nanos}. */
+    public void mark(long nanos) {
+        mMarkNanos = nanos;
+    }
+
+    /** The last {@link #mark}, or 0 if there was none. */
+    public long getMarkNanos() {
+        return mMarkNanos;
+    }
+
+    /** Converts a {@link System#nanoTime()} reading into microseconds since the epoch. */
+    public long toEpochMicros(long nanos) {
+        return mBaseMicros + (nanos - mBaseNanos) / 1000;
+    }
+
+    /** Wall clock time of the reference point, in microseconds since the epoch. */
+    public long getStartMicros() {
+        return mBaseMicros;
+    }
+}
@@ -0,0 +1,268 @@
+package com.eagle.recorderdemo.audio;
+
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * One of several recordings running side by side: a source captured on a thread of its own into
+ * buffers of a shared {@link BufferPool}, written by a lane of a shared {@link WriterPool}.
+ *
+ * Reads block, so every session needs its capture thread, but the writing of all of them is
+ * done by the pool. Capture never waits for either: when the pool has no buffer free or the lane
+ * is full the read still happens, so the source does not overrun, and the audio is counted as
+ * dropped instead and, if the session has a {@link GapLog}, marked there so the file still maps
+ * onto the capture timeline. The session owns its source, the sinks of its lane and the gap log
+ * and closes them when it ends.
+ */
+public final class CaptureSession implements Runnable {
+
+    public enum State {
+        IDLE, STARTING, RUNNING, STOPPING, STOPPED, FAILED
+    }
+
+    public interface Listener {
+        /** Called on the capture thread, in order. */
+        void onStateChanged(CaptureSession session, State state);
+    }
+
+    private final String mName;
+    private final AudioSource mSource;
+    private final BufferPool mBuffers;
+    private final WriterPool.Lane mLane;
+    private final GapLog mGapLog;
+    private final int mFrameBytes;
+    private final PipelineMetrics mMetrics;
+    private final int mReadBytes;
+    private final Listener mListener;
+
+    private volatile State mState = State.IDLE;
+    private volatile boolean mStopped;
+    private volatile Throwable mFailure;
+    private volatile long mStartMillis;
+    private volatile long mCapturedBytes;
+    private volatile long mDroppedBytes;
+    // Capture thread only: bytes handed to the lane, and dropped ones not yet in the gap log.
+    private long mSubmittedBytes;
+    private long mPendingGapBytes;
+    private Thread mThread;
+
+    /**
+     * @param gapLog marks where dropped audio is missing from the file, may be {@code null}
+     * @param readBytes bytes asked of the source per read, at most a pool buffer and a multiple
+     *         of the frame size
+     * @param metrics receives the read counters; the lane should have it for sink times
+     */
+    public CaptureSession(String name, AudioSource source, BufferPool buffers,
+            WriterPool.Lane lane, GapLog gapLog, int readBytes, PipelineMetrics metrics,
+            Listener listener) {
+        if (readBytes <= 0 || readBytes > buffers.getBufferSize()) {
+            throw new IllegalArgumentException("read of " + readBytes + " bytes does not fit "
+                    + buffers);
+        }
+        mName = name;
+        mSource = source;
+        mBuffers = buffers;
+        mLane = lane;
+        mGapLog = gapLog;
+        mFrameBytes = source.getChannels() * 2;
+        mReadBytes = readBytes;
+        mMetrics = metrics;
+        mListener = listener;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    /** Starts capturing on a new thread named {@code threadName}. */
+    public synchronized void start(String threadName) {
+        if (mThread != null) {
+            throw new IllegalStateException(mName + " already started");
+        }
+        mThread = new Thread(this, threadName);
+        mThread.start();
+    }
+
+    /** Asks the session to end after the read in progress; returns at once. */
+    public void stop() {
+        mStopped = true;
+    }
+
+    /**
+     * Waits up to {@code millis} for the session to end.
+     *
+     * @return whether it has ended
+     */
+    public boolean join(long millis) throws InterruptedException {
+        Thread thread;
+        synchronized (this) {
+            thread = mThread;
+        }
+        if (thread != null) {
+            thread.join(millis);
+            return !thread.isAlive();
+        }
+        return true;
+    }
+
+    /**
+     * Stops the source under a read that does not return, so that {@link #stop()} takes effect.
+     */
+    public void forceStop() {
+        mStopped = true;
+        mSource.stop();
+    }
+
+    @Override
+    public void run() {
+        moveTo(State.STARTING);
+        try {
+            mSource.start();
+            mStartMillis = System.currentTimeMillis();
+            moveTo(State.RUNNING);
+            capture();
+        } catch (IOException | RuntimeException e) {
+            mFailure = e;
+        } finally {
+            moveTo(State.STOPPING);
+            mSource.stop();
+            try {
+                mLane.close();
+            } catch (IOException e) {
+                if (mFailure == null) {
+                    mFailure = e;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            try {
+                mSource.close();
+            } catch (IOException e) {
+                // nothing left to lose
+            }
+            if (mGapLog != null) {
+                try {
+                    mGapLog.close();
+                } catch (IOException e) {
+                    if (mFailure == null) {
+                        mFailure = e;
+                    }
+                }
+            }
+            if (mFailure == null) {
+                mFailure = mLane.getFailure();
+            }
+            moveTo(mFailure == null ? State.STOPPED : State.FAILED);
+        }
+    }
+
+    private void capture() throws IOException {
+        byte[] scratch = new byte[mReadBytes];
+        PipelineMetrics metrics = mMetrics;
+        if (metrics != null) {
+            metrics.onStart(System.nanoTime());
+        }
+        while (!mStopped && mLane.getFailure() == null) {
+            byte[] buffer = mBuffers.acquire();
+            byte[] dst = buffer != null ? buffer : scratch;
+            long start = metrics != null ? System.nanoTime() : 0;
+            int read;
+            try {
+                read = mSource.read(dst, 0, mReadBytes);
+            } catch (IOException | RuntimeException e) {
+                if (buffer != null) {
+                    mBuffers.release(buffer);
+                }
+                throw e;
+            }
+            long end = System.nanoTime();
+            if (metrics != null) {
+                metrics.onRead(mReadBytes, read, start, end);
+            }
+            if (read <= 0) {
+                if (buffer != null) {
+                    mBuffers.release(buffer);
+                }
+                if (read < 0) {
+                    break;
+                }
+                continue;
+            }
+            mCapturedBytes += read;
+            if (buffer != null && mLane.submit(buffer, read, end)) {
+                if (mPendingGapBytes > 0) {
+                    markGap();
+                }
+                mSubmittedBytes += read;
+            } else {
+                if (buffer != null) {
+                    mBuffers.release(buffer);
+                }
+                mDroppedBytes += read;
+                mPendingGapBytes += read;
+            }
+        }
+        if (mPendingGapBytes > 0) {
+            markGap();
+        }
+    }
+
+    /** Enters the audio dropped since the last marker in front of the frames submitted next. */
+    private void markGap() throws IOException {
+        if (mGapLog != null) {
+            mGapLog.append(mSubmittedBytes / mFrameBytes, mPendingGapBytes / mFrameBytes);
+        }
+        mPendingGapBytes = 0;
+    }
+
+    private void moveTo(State state) {
+        mState = state;
+        if (mListener != null) {
+            mListener.onStateChanged(this, state);
+        }
+    }
+
+    public State getState() {
+        return mState;
+    }
+
+    /** What ended the session, {@code null} unless it is {@link State#FAILED}. */
+    public Throwable getFailure() {
+        return mFailure;
+    }
+
+    /** Wall clock time capture started, 0 before. */
+    public long getStartMillis() {
+        return mStartMillis;
+    }
+
+    public long getCapturedBytes() {
+        return mCapturedBytes;
+    }
+
+    public long getWrittenBytes() {
+        return mLane.getWrittenBytes();
+    }
+
+    /** Captured audio that never reached the sinks because no buffer or lane slot was free. */
+    public long getDroppedBytes() {
+        return mDroppedBytes;
+    }
+
+    public PipelineMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    public WriterPool.Lane getLane() {
+        return mLane;
+    }
+
+    @Override
+    public String toString() {
+        Throwable failure = mFailure;
+        return String.format(Locale.US, "CaptureSession{%s, %s, %d Hz x %d, captured=%d, "
+                + "written=%d, dropped=%d%s}", mName, mState, mSource.getSampleRate(),
+                mSource.getChannels(), mCapturedBytes, getWrittenBytes(), mDroppedBytes,
+                failure != null ? ", failed=" + failure : "");
+    }
+}
@@ -0,0 +1,91 @@
+package com.eagle.recorderdemo.audio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Passes PCM16 on to another {@link SegmentWriter} unchanged while reporting its progress to a
+ * recording catalog: a checkpoint every so many captured bytes and the end of the recording.
+ *
+ * Frames are counted as they are written, before compression, so the catalog learns the
+ * duration without having to know the container. The listener runs on the writer
+ * thread and must only hand the update on.
+ */
+public final class CatalogWriter implements SegmentWriter {
+
+    public interface Listener {
+        /** Called after every {@code checkpointBytes} of captured audio. */
+        void onCheckpoint(long frames);
+
+        /** Called once the writer below is closed, or failed to close. */
+        void onClosed(long frames, boolean failed);
+    }
+
+    private final SegmentWriter mOut;
+    private final int mFrameBytes;
+    private final long mCheckpointBytes;
+    private final Listener mListener;
+
+    private long mBytes;
+    private long mNextCheckpoint;
+    private boolean mClosed;
+
+    public CatalogWriter(SegmentWriter out, int frameBytes, long checkpointBytes,
+            Listener listener) {
+        mOut = out;
+        mFrameBytes = frameBytes;
+        mCheckpointBytes = Math.max(frameBytes, checkpointBytes);
+        mNextCheckpoint = mCheckpointBytes;
+        mListener = listener;
+    }
+
+    @Override
+    public void write(byte[] src, int offset, int length) throws IOException {
+        mOut.write(src, offset, length);
+        mBytes += length;
+        if (mBytes >= mNextCheckpoint) {
+            mNextCheckpoint = (mBytes / mCheckpointBytes + 1) * mCheckpointBytes;
+            mListener.onCheckpoint(mBytes / mFrameBytes);
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        mOut.flush();
+    }
+
+    @Override
+    public long position() {
+        return mOut.position();
+    }
+
+    @Override
+    public long committedPosition() {
+        return mOut.committedPosition();
+    }
+
+    @Override
+    public void writeAt(long position, ByteBuffer src) throws IOException {
+        mOut.writeAt(position, src);
+    }
+
+    @Override
+    public WriterStats getStats() {
+        return mOut.getStats();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        boolean failed = true;
+        try {
+            mOut.close();
+            failed = false;
+        } finally {
+            mListener.onClosed(mBytes / mFrameBytes, failed);
+        }
+    }
+}
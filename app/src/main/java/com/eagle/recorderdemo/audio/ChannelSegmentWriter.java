@@ -0,0 +1,226 @@
+package com.eagle.recorderdemo.audio;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Coalesces small capture buffers into large block-aligned writes through a {@link FileChannel}.
+ *
+ * Data is staged in a direct {@link ByteBuffer} of {@code blockSize} bytes and only written when
+ * the block is full, so a recording costs one syscall per block instead of one per
+ * {@code AudioRecord} buffer. Ahead of the write position the file is grown in
+ * {@code preallocateBytes} chunks through a {@link Preallocator} to keep its extents contiguous;
+ * {@link #close()} trims the file back to the bytes actually written.
+ *
+ * When the {@link SyncPolicy} calls for a sync, the part of the block staged so far is written
+ * in place and the channel forced, but the block stays where it is: once full it is completed
+ * with one write of the remainder, so syncing neither rewrites data nor breaks the alignment of
+ * later blocks.
+ */
+public final class ChannelSegmentWriter implements SegmentWriter {
+
+    /**
+     * Reserves file space ahead of the writer.
+     */
+    public interface Preallocator {
+        void preallocate(FileDescriptor fd, FileChannel channel, long offset, long length)
+                throws IOException;
+    }
+
+    /**
+     * Portable fallback: extends the file length. Most file systems make this a sparse extent,
+     * so it saves metadata updates but does not guarantee contiguous blocks.
+     */
+    public static final Preallocator EXTEND_LENGTH = new Preallocator() {
+        @Override
+        public void preallocate(FileDescriptor fd, FileChannel channel, long offset, long length)
+                throws IOException {
+            if (channel.size() < offset + length) {
+                channel.write(ByteBuffer.allocate(1), offset + length - 1);
+            }
+        }
+    };
+
+    private static final int ALIGNMENT = 4096;
+
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    private final ByteBuffer mBlock;
+    private final long mPreallocateBytes;
+    private final Preallocator mPreallocator;
+    private final SyncPolicy mSync;
+    private final WriterStats mStats = new WriterStats();
+
+    // Start of the current block in the file; a multiple of the block size except after flush().
+    private long mFlushed;
+    // Leading bytes of the current block a sync has already written to the channel.
+    private int mStagedWritten;
+    private long mAllocated;
+    private long mSynced;
+    private long mFirstUnsyncedNanos;
+
+    public ChannelSegmentWriter(File file, int blockSize, long preallocateBytes,
+            Preallocator preallocator) throws IOException {
+        this(file, blockSize, preallocateBytes, preallocator, SyncPolicy.NONE);
+    }
+
+    public ChannelSegmentWriter(File file, int blockSize, long preallocateBytes,
+            Preallocator preallocator, SyncPolicy sync) throws IOException {
+        if (blockSize < ALIGNMENT || blockSize % ALIGNMENT != 0) {
+            throw new IllegalArgumentException("blockSize must be a multiple of " + ALIGNMENT);
+        }
+        mFile = new RandomAccessFile(file, "rw");
+        mFile.setLength(0);
+        mChannel = mFile.getChannel();
+        mBlock = ByteBuffer.allocateDirect(blockSize);
+        mPreallocateBytes = preallocateBytes;
+        mPreallocator = preallocator;
+        mSync = sync;
+    }
+
+    @Override
+    public void write(byte[] src, int offset, int length) throws IOException {
+        if (length > 0 && position() == mSynced) {
+            mFirstUnsyncedNanos = System.nanoTime();
+        }
+        while (length > 0) {
+            int chunk = Math.min(length, mBlock.remaining());
+            mBlock.put(src, offset, chunk);
+            offset += chunk;
+            length -= chunk;
+            if (!mBlock.hasRemaining()) {
+                writeBlock();
+            }
+        }
+        if (mSync.isDue(position() - mSynced, mFirstUnsyncedNanos, System.nanoTime())) {
+            sync();
+        }
+    }
+
+    /**
+     * Writes the staged part of the block in place and forces everything written so far to
+     * storage, header patches included.
+     */
+    public void sync() throws IOException {
+        int staged = mBlock.position();
+        if (staged > mStagedWritten) {
+            ByteBuffer part = mBlock.duplicate();
+            part.flip();
+            part.position(mStagedWritten);
+            writeOut(part);
+            mStagedWritten = staged;
+        }
+        long start = System.nanoTime();
+        mChannel.force(false);
+        mStats.onSync(System.nanoTime() - start);
+        mSynced = position();
+    }
+
+    /**
+     * Writes the partially filled block. The next block then starts unaligned, so callers should
+     * only flush at checkpoints, not per buffer.
+     */
+    @Override
+    public void flush() throws IOException {
+        if (mBlock.position() > 0) {
+            writeBlock();
+        }
+    }
+
+    private void writeBlock() throws IOException {
+        mBlock.flip();
+        int length = mBlock.limit();
+        mBlock.position(mStagedWritten);
+        writeOut(mBlock);
+        mFlushed += length;
+        mStagedWritten = 0;
+        mBlock.clear();
+    }
+
+    /** Writes {@code part} of the block to where it belongs in the file. */
+    private void writeOut(ByteBuffer part) throws IOException {
+        int length = part.remaining();
+        if (length == 0) {
+            return;
+        }
+        ensureAllocated(mFlushed + part.limit());
+        long start = System.nanoTime();
+        while (part.hasRemaining()) {
+            mChannel.write(part, mFlushed + part.position());
+        }
+        mStats.onWrite(length, System.nanoTime() - start);
+    }
+
+    private void ensureAllocated(long end) throws IOException {
+        if (mPreallocator == null || mPreallocateBytes <= 0 || end <= mAllocated) {
+            return;
+        }
+        long length = Math.max(mPreallocateBytes, end - mAllocated);
+        mPreallocator.preallocate(mFile.getFD(), mChannel, mAllocated, length);
+        mAllocated += length;
+        mStats.onPreallocate();
+    }
+
+    @Override
+    public long position() {
+        return mFlushed + mBlock.position();
+    }
+
+    @Override
+    public long committedPosition() {
+        return mFlushed + mStagedWritten;
+    }
+
+    @Override
+    public void writeAt(long position, ByteBuffer src) throws IOException {
+        if (position + src.remaining() > position()) {
+            throw new IOException("writeAt past end: " + position);
+        }
+        int start = src.position();
+        int limit = src.limit();
+        // The part that is already in the file goes through the channel...
+        long committed = committedPosition();
+        if (position < committed) {
+            int head = (int) Math.min(src.remaining(), committed - position);
+            src.limit(start + head);
+            long begin = System.nanoTime();
+            long at = position;
+            while (src.hasRemaining()) {
+                at += mChannel.write(src, at);
+            }
+            mStats.onWrite(head, System.nanoTime() - begin);
+            src.limit(limit);
+        }
+        // ...and whatever lies in the current block is patched there as well, including what a
+        // sync wrote out already, since the block is what completes the file later.
+        long end = position + (limit - start);
+        for (long at = Math.max(position, mFlushed); at < end; at++) {
+            mBlock.put((int) (at - mFlushed), src.get(start + (int) (at - position)));
+        }
+        src.position(limit);
+    }
+
+    @Override
+    public WriterStats getStats() {
+        return mStats;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+            mChannel.truncate(mFlushed);
+            if (mSync.isEnabled()) {
+                long start = System.nanoTime();
+                mChannel.force(true);
+                mStats.onSync(System.nanoTime() - start);
+            }
+        } finally {
+            mFile.close();
+        }
+    }
+}
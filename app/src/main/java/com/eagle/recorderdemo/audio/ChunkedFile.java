@@ -0,0 +1,401 @@
+package com.eagle.recorderdemo.audio;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Reader for the chunked recording container written by {@link ChunkedWriter}.
+ *
+ * Layout, all little-endian:
+ * <pre>
+ *   file header  32 bytes  "RCHK", version u16, channels u16, sample rate, frames per block,
+ *                          start time (us since the epoch), reserved
+ *   block        32 bytes  "RBK1", sequence, capture time of the first frame (us), first frame,
+ *                          payload bytes, CRC-32C of the header up to here and the payload
+ *                followed by the PCM16 payload; only the last block may be short
+ * </pre>
+ * Because blocks have a fixed size, seeking by frame is a multiplication. Seeking by capture time
+ * (which drifts from the frame count across dropped audio) is a binary search over the sparse
+ * index sidecar followed by a few block headers; without a sidecar, the index is rebuilt from
+ * every {@link #INDEX_INTERVAL}th block header. A torn or damaged block only affects itself,
+ * and {@link #verify(int)} checks blocks in parallel.
+ */
+public final class ChunkedFile implements Closeable {
+
+    public static final String EXTENSION = "rblk";
+    public static final String INDEX_EXTENSION = "ridx";
+
+    static final int MAGIC = 0x4B484352; // "RCHK"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 32;
+    static final int BLOCK_MAGIC = 0x314B4252; // "RBK1"
+    static final int BLOCK_HEADER_SIZE = 32;
+    static final int INDEX_MAGIC = 0x58444952; // "RIDX"
+    static final int INDEX_HEADER_SIZE = 16;
+    static final int INDEX_ENTRY_SIZE = 24;
+    /** Blocks per index entry. */
+    static final int INDEX_INTERVAL = 16;
+
+    /**
+     * Header fields of one block, filled in by {@link #readBlock}.
+     */
+    public static final class Block {
+        public int sequence;
+        public long captureMicros;
+        public long firstFrame;
+        public int length;
+        /** Whether magic, sequence, length and checksum all matched. */
+        public boolean valid;
+    }
+
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    private final int mSampleRate;
+    private final int mChannels;
+    private final int mFramesPerBlock;
+    private final long mStartMicros;
+    private final long mStride;
+    private final int mBlockCount;
+    private final long mLastBlockFrames;
+
+    // Sparse index: capture time of every INDEX_INTERVAL-th block.
+    private long[] mIndexMicros;
+    private final ByteBuffer mHeader = ByteBuffer.allocate(BLOCK_HEADER_SIZE)
+            .order(ByteOrder.LITTLE_ENDIAN);
+
+    private ChunkedFile(File file, RandomAccessFile raf) throws IOException {
+        mFile = raf;
+        mChannel = mFile.getChannel();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        if (!readFully(mChannel, header, 0) || header.getInt(0) != MAGIC) {
+            throw new IOException(file + " is not a chunked recording");
+        }
+        mChannels = header.getShort(6);
+        mSampleRate = header.getInt(8);
+        mFramesPerBlock = header.getInt(12);
+        mStartMicros = header.getLong(16);
+        if (mChannels <= 0 || mFramesPerBlock <= 0) {
+            throw new IOException(file + " has a bad header");
+        }
+        int frameBytes = mChannels * 2;
+        mStride = BLOCK_HEADER_SIZE + (long) mFramesPerBlock * frameBytes;
+
+        long body = mChannel.size() - HEADER_SIZE;
+        int full = (int) (body / mStride);
+        long rest = body % mStride;
+        int count = full;
+        long lastFrames = mFramesPerBlock;
+        if (rest >= BLOCK_HEADER_SIZE + frameBytes) {
+            // A short final block, or the torn tail of an interrupted recording.
+            Block last = new Block();
+            readHeader(full, last);
+            if (last.sequence == full && last.length > 0
+                    && BLOCK_HEADER_SIZE + last.length <= rest) {
+                count++;
+                lastFrames = last.length / frameBytes;
+            }
+        }
+        mBlockCount = count;
+        mLastBlockFrames = lastFrames;
+        loadIndex(indexFor(file));
+    }
+
+    public static ChunkedFile open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            return new ChunkedFile(file, raf);
+        } catch (IOException | RuntimeException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    /** Whether {@code header}, the first bytes of a file, starts a chunked recording. */
+    public static boolean isChunked(ByteBuffer header) {
+        return header.remaining() >= 4
+                && header.duplicate().order(ByteOrder.LITTLE_ENDIAN).getInt() == MAGIC;
+    }
+
+    /** The sparse index sidecar of {@code recording}. */
+    public static File indexFor(File recording) {
+        String name = recording.getName();
+        int dot = name.lastIndexOf('.');
+        if (dot > 0) {
+            name = name.substring(0, dot);
+        }
+        return new File(recording.getParentFile(), name + "." + INDEX_EXTENSION);
+    }
+
+    static ByteBuffer fileHeader(int sampleRate, int channels, int framesPerBlock,
+            long startMicros) {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putShort((short) VERSION).putShort((short) channels)
+                .putInt(sampleRate).putInt(framesPerBlock).putLong(startMicros);
+        header.position(0);
+        return header;
+    }
+
+    static ByteBuffer indexHeader() {
+        ByteBuffer header = ByteBuffer.allocate(INDEX_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(INDEX_MAGIC).putInt(VERSION).putInt(INDEX_INTERVAL);
+        header.position(0);
+        return header;
+    }
+
+    private void loadIndex(File indexFile) throws IOException {
+        int entries = (mBlockCount + INDEX_INTERVAL - 1) / INDEX_INTERVAL;
+        long[] micros = new long[entries];
+        int loaded = 0;
+        if (indexFile.length() >= INDEX_HEADER_SIZE) {
+            RandomAccessFile raf = new RandomAccessFile(indexFile, "r");
+            try {
+                FileChannel channel = raf.getChannel();
+                ByteBuffer header = ByteBuffer.allocate(INDEX_HEADER_SIZE)
+                        .order(ByteOrder.LITTLE_ENDIAN);
+                if (readFully(channel, header, 0) && header.getInt(0) == INDEX_MAGIC
+                        && header.getInt(8) == INDEX_INTERVAL) {
+                    int available = (int) Math.min(entries,
+                            (channel.size() - INDEX_HEADER_SIZE) / INDEX_ENTRY_SIZE);
+                    ByteBuffer data = ByteBuffer.allocate(available * INDEX_ENTRY_SIZE)
+                            .order(ByteOrder.LITTLE_ENDIAN);
+                    readFully(channel, data, INDEX_HEADER_SIZE);
+                    for (; loaded < available; loaded++) {
+                        int base = loaded * INDEX_ENTRY_SIZE;
+                        if (data.getLong(base) != (long) loaded * INDEX_INTERVAL) {
+                            break;
+                        }
+                        micros[loaded] = data.getLong(base + 8);
+                    }
+                }
+            } finally {
+                raf.close();
+            }
+        }
+        // Entries the sidecar is missing come from the block headers themselves.
+        Block block = new Block();
+        for (int i = loaded; i < entries; i++) {
+            readHeader(i * INDEX_INTERVAL, block);
+            micros[i] = block.captureMicros;
+        }
+        mIndexMicros = micros;
+    }
+
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    public int getChannels() {
+        return mChannels;
+    }
+
+    public int getFramesPerBlock() {
+        return mFramesPerBlock;
+    }
+
+    public int getBlockCount() {
+        return mBlockCount;
+    }
+
+    public long getFrameCount() {
+        if (mBlockCount == 0) {
+            return 0;
+        }
+        return (long) (mBlockCount - 1) * mFramesPerBlock + mLastBlockFrames;
+    }
+
+    /** Wall clock time the recording started at, in microseconds since the epoch. */
+    public long getStartMicros() {
+        return mStartMicros;
+    }
+
+    long blockOffset(int sequence) {
+        return HEADER_SIZE + sequence * mStride;
+    }
+
+    /** The block holding {@code frame}. */
+    public int findBlockByFrame(long frame) {
+        return (int) Math.max(0, Math.min(mBlockCount - 1, frame / mFramesPerBlock));
+    }
+
+    /**
+     * Returns the last block captured at or before {@code epochMicros}, or 0 if the time lies
+     * before the recording.
+     */
+    public synchronized int findBlockByTime(long epochMicros) throws IOException {
+        if (mBlockCount == 0) {
+            return 0;
+        }
+        int entry = lastAtOrBefore(mIndexMicros, epochMicros);
+        int low = entry * INDEX_INTERVAL;
+        int high = Math.min(mBlockCount - 1, low + INDEX_INTERVAL - 1);
+        Block block = new Block();
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            readHeader(mid, block);
+            if (block.captureMicros <= epochMicros) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    private static int lastAtOrBefore(long[] sorted, long value) {
+        int low = 0;
+        int high = sorted.length - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (sorted[mid] <= value) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Reads block {@code sequence} into {@code payload} (from its position) and checks it. Safe
+     * to call from several threads.
+     */
+    public void readBlock(int sequence, ByteBuffer payload, Block block) throws IOException {
+        readBlock(sequence, payload, block, new Crc32c(),
+                ByteBuffer.allocate(BLOCK_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN));
+    }
+
+    private void readBlock(int sequence, ByteBuffer payload, Block block, Crc32c crc,
+            ByteBuffer header) throws IOException {
+        long offset = blockOffset(sequence);
+        header.clear();
+        readFully(mChannel, header, offset);
+        parseHeader(header, block);
+        int expected = (int) ((sequence == mBlockCount - 1 ? mLastBlockFrames : mFramesPerBlock)
+                * mChannels * 2);
+        int start = payload.position();
+        int length = Math.min(expected, payload.remaining());
+        payload.limit(start + length);
+        readFully(mChannel, payload, offset + BLOCK_HEADER_SIZE);
+        payload.limit(payload.position()).position(start);
+        int checksum = header.getInt(BLOCK_HEADER_SIZE - 4);
+        crc.reset();
+        header.position(0).limit(BLOCK_HEADER_SIZE - 4);
+        crc.update(header);
+        crc.update(payload.duplicate());
+        block.valid = block.valid && block.sequence == sequence && block.length == expected
+                && length == expected && crc.getValue() == checksum;
+    }
+
+    private synchronized void readHeader(int sequence, Block block) throws IOException {
+        mHeader.clear();
+        readFully(mChannel, mHeader, blockOffset(sequence));
+        parseHeader(mHeader, block);
+    }
+
+    private static void parseHeader(ByteBuffer header, Block block) {
+        block.valid = header.getInt(0) == BLOCK_MAGIC;
+        block.sequence = header.getInt(4);
+        block.captureMicros = header.getLong(8);
+        block.firstFrame = header.getLong(16);
+        block.length = header.getInt(24);
+    }
+
+    /**
+     * Checks every block on {@code threads} threads and returns the sequence numbers of the
+     * damaged ones, in order.
+     */
+    public List<Integer> verify(int threads) throws IOException, InterruptedException {
+        threads = Math.max(1, Math.min(threads, mBlockCount));
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<List<Integer>>> parts = new ArrayList<>();
+            int per = (mBlockCount + threads - 1) / Math.max(1, threads);
+            for (int first = 0; first < mBlockCount; first += per) {
+                final int from = first;
+                final int to = Math.min(mBlockCount, first + per);
+                parts.add(executor.submit(new Callable<List<Integer>>() {
+                    @Override
+                    public List<Integer> call() throws IOException {
+                        return verifyRange(from, to);
+                    }
+                }));
+            }
+            List<Integer> damaged = new ArrayList<>();
+            for (Future<List<Integer>> part : parts) {
+                damaged.addAll(part.get());
+            }
+            Collections.sort(damaged);
+            return damaged;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Returns the length of the file up to the end of its last intact block, which is what is
+     * left to keep of a recording that was cut short, or the header size if no block is intact.
+     */
+    public long getIntactLength() throws IOException {
+        ByteBuffer payload = ByteBuffer.allocateDirect(mFramesPerBlock * mChannels * 2);
+        ByteBuffer header = ByteBuffer.allocate(BLOCK_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        Crc32c crc = new Crc32c();
+        Block block = new Block();
+        for (int i = mBlockCount - 1; i >= 0; i--) {
+            payload.clear();
+            readBlock(i, payload, block, crc, header);
+            if (block.valid) {
+                return blockOffset(i) + BLOCK_HEADER_SIZE + block.length;
+            }
+        }
+        return HEADER_SIZE;
+    }
+
+    private List<Integer> verifyRange(int from, int to) throws IOException {
+        List<Integer> damaged = new ArrayList<>();
+        ByteBuffer payload = ByteBuffer.allocateDirect(mFramesPerBlock * mChannels * 2);
+        ByteBuffer header = ByteBuffer.allocate(BLOCK_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        Crc32c crc = new Crc32c();
+        Block block = new Block();
+        for (int i = from; i < to; i++) {
+            payload.clear();
+            readBlock(i, payload, block, crc, header);
+            if (!block.valid) {
+                damaged.add(i);
+            }
+        }
+        return damaged;
+    }
+
+    private static boolean readFully(FileChannel channel, ByteBuffer dst, long position)
+            throws IOException {
+        while (dst.hasRemaining()) {
+            int read = channel.read(dst, position);
+            if (read < 0) {
+                return false;
+            }
+            position += read;
+        }
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mFile.close();
+    }
+}
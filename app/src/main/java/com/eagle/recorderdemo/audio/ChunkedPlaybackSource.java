@@ -0,0 +1,112 @@
+package com.eagle.recorderdemo.audio;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * {@link PlaybackSource} over a {@link ChunkedFile}, one block at a time through a reused direct
+ * buffer. Damaged blocks play as silence of the same length so the timeline stays intact, and
+ * seeking reads only the target block.
+ */
+public final class ChunkedPlaybackSource implements PlaybackSource {
+
+    private final ChunkedFile mFile;
+    private final int mFrameBytes;
+    private final ByteBuffer mPayload;
+    private final ChunkedFile.Block mBlock = new ChunkedFile.Block();
+
+    // Block currently in mPayload, -1 for none.
+    private int mLoaded = -1;
+    private long mFrame;
+    private int mDamagedBlocks;
+
+    public ChunkedPlaybackSource(File file) throws IOException {
+        mFile = ChunkedFile.open(file);
+        mFrameBytes = mFile.getChannels() * 2;
+        mPayload = ByteBuffer.allocateDirect(mFile.getFramesPerBlock() * mFrameBytes)
+                .order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    public ChunkedFile getFile() {
+        return mFile;
+    }
+
+    /** Blocks that failed their checksum while playing. */
+    public int getDamagedBlocks() {
+        return mDamagedBlocks;
+    }
+
+    @Override
+    public int getSampleRate() {
+        return mFile.getSampleRate();
+    }
+
+    @Override
+    public int getChannels() {
+        return mFile.getChannels();
+    }
+
+    @Override
+    public long getFrameCount() {
+        return mFile.getFrameCount();
+    }
+
+    @Override
+    public long getFramePosition() {
+        return mFrame;
+    }
+
+    @Override
+    public void seekFrame(long frame) {
+        mFrame = Math.max(0, Math.min(frame, getFrameCount()));
+    }
+
+    /**
+     * Moves to the first frame of the block captured at {@code epochMicros}.
+     */
+    public void seekTime(long epochMicros) throws IOException {
+        seekFrame((long) mFile.findBlockByTime(epochMicros) * mFile.getFramesPerBlock());
+    }
+
+    @Override
+    public ByteBuffer next(int maxBytes) throws IOException {
+        if (mFrame >= getFrameCount()) {
+            return null;
+        }
+        int framesPerBlock = mFile.getFramesPerBlock();
+        int sequence = (int) (mFrame / framesPerBlock);
+        if (sequence != mLoaded) {
+            mPayload.clear();
+            mFile.readBlock(sequence, mPayload, mBlock);
+            if (!mBlock.valid) {
+                mDamagedBlocks++;
+                for (int i = mPayload.position(); i < mPayload.limit(); i++) {
+                    mPayload.put(i, (byte) 0);
+                }
+            }
+            mLoaded = sequence;
+        }
+        int start = (int) (mFrame - (long) sequence * framesPerBlock) * mFrameBytes;
+        int end = Math.min(mPayload.capacity(), start + maxBytes - maxBytes % mFrameBytes);
+        mPayload.limit(Math.max(start, Math.min(end, blockBytes(sequence)))).position(start);
+        return mPayload;
+    }
+
+    private int blockBytes(int sequence) {
+        long frames = Math.min(mFile.getFramesPerBlock(),
+                getFrameCount() - (long) sequence * mFile.getFramesPerBlock());
+        return (int) frames * mFrameBytes;
+    }
+
+    @Override
+    public void advance(int bytes) {
+        mFrame = Math.min(getFrameCount(), mFrame + bytes / mFrameBytes);
+    }
+
+    @Override
+    public void close() throws IOException {
+        mFile.close();
+    }
+}
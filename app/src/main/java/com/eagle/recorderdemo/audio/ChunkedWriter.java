@@ -0,0 +1,188 @@
+package com.eagle.recorderdemo.audio;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Frames PCM16 into the fixed-duration, checksummed blocks of a {@link ChunkedFile} on its way to
+ * another {@link SegmentWriter}.
+ *
+ * Every block carries its sequence number, the capture time of its first frame and a CRC-32C,
+ * so damage stays confined to the block it hits. Every {@link ChunkedFile#INDEX_INTERVAL}th block
+ * also gets an entry in the sparse index sidecar, which is appended to as the recording grows.
+ * {@link #position()} counts PCM bytes like {@link EncodingWriter} does.
+ */
+public final class ChunkedWriter implements SegmentWriter {
+
+    private final SegmentWriter mOut;
+    private final File mIndexFile;
+    private final CaptureClock mClock;
+    private final int mSampleRate;
+    private final int mFrameBytes;
+    private final long mStartMicros;
+
+    private final byte[] mBlock;
+    private final ByteBuffer mHeader = ByteBuffer.allocate(ChunkedFile.BLOCK_HEADER_SIZE)
+            .order(ByteOrder.LITTLE_ENDIAN);
+    private final ByteBuffer mIndexEntry = ByteBuffer.allocate(ChunkedFile.INDEX_ENTRY_SIZE)
+            .order(ByteOrder.LITTLE_ENDIAN);
+    private final Crc32c mCrc = new Crc32c();
+    private FileOutputStream mIndex;
+    private boolean mIndexFailed;
+
+    private int mFill;
+    private long mBlockMicros;
+    private int mSequence;
+    private long mBlockPcmBytes;
+    private long mFileOffset;
+
+    /**
+     * @param indexFile sparse index sidecar, see {@link ChunkedFile#indexFor(File)}
+     * @param clock dates the blocks; without one, times are derived from the frame count
+     */
+    public ChunkedWriter(SegmentWriter out, File indexFile, int sampleRate, int channels,
+            int framesPerBlock, CaptureClock clock) throws IOException {
+        mOut = out;
+        mIndexFile = indexFile;
+        mClock = clock;
+        mSampleRate = sampleRate;
+        mFrameBytes = channels * 2;
+        mStartMicros = clock != null ? clock.getStartMicros() : System.currentTimeMillis() * 1000;
+        mBlock = new byte[framesPerBlock * mFrameBytes];
+
+        ByteBuffer header = ChunkedFile.fileHeader(sampleRate, channels, framesPerBlock,
+                mStartMicros);
+        out.write(header.array(), 0, header.limit());
+        mFileOffset = header.limit();
+    }
+
+    @Override
+    public void write(byte[] src, int offset, int length) throws IOException {
+        int end = offset + length;
+        while (offset < end) {
+            if (mFill == 0) {
+                mBlockMicros = dateFrame(end - offset);
+            }
+            int chunk = Math.min(end - offset, mBlock.length - mFill);
+            System.arraycopy(src, offset, mBlock, mFill, chunk);
+            mFill += chunk;
+            offset += chunk;
+            if (mFill == mBlock.length) {
+                writeBlock();
+            }
+        }
+    }
+
+    /**
+     * Capture time of the frame {@code bytesLeft} bytes before the end of the current write.
+     */
+    private long dateFrame(int bytesLeft) {
+        long mark = mClock != null ? mClock.getMarkNanos() : 0;
+        if (mark == 0) {
+            return mStartMicros + (mBlockPcmBytes / mFrameBytes) * 1000000L / mSampleRate;
+        }
+        return mClock.toEpochMicros(mark) - (bytesLeft / mFrameBytes) * 1000000L / mSampleRate;
+    }
+
+    private void writeBlock() throws IOException {
+        int frames = mFill / mFrameBytes;
+        int payload = frames * mFrameBytes;
+        mHeader.clear();
+        mHeader.putInt(ChunkedFile.BLOCK_MAGIC)
+                .putInt(mSequence)
+                .putLong(mBlockMicros)
+                .putLong(mBlockPcmBytes / mFrameBytes)
+                .putInt(payload);
+        mCrc.reset();
+        mCrc.update(mHeader.array(), 0, ChunkedFile.BLOCK_HEADER_SIZE - 4);
+        mCrc.update(mBlock, 0, payload);
+        mHeader.putInt(mCrc.getValue());
+        if (mSequence % ChunkedFile.INDEX_INTERVAL == 0) {
+            appendIndex();
+        }
+        mOut.write(mHeader.array(), 0, ChunkedFile.BLOCK_HEADER_SIZE);
+        mOut.write(mBlock, 0, payload);
+        mFileOffset += ChunkedFile.BLOCK_HEADER_SIZE + payload;
+        mBlockPcmBytes += payload;
+        mSequence++;
+        mFill = 0;
+    }
+
+    private void appendIndex() {
+        if (mIndexFailed) {
+            return;
+        }
+        try {
+            if (mIndex == null) {
+                mIndex = new FileOutputStream(mIndexFile);
+                mIndex.write(ChunkedFile.indexHeader().array());
+            }
+            mIndexEntry.clear();
+            mIndexEntry.putLong(mSequence).putLong(mBlockMicros).putLong(mFileOffset);
+            mIndex.write(mIndexEntry.array());
+        } catch (IOException e) {
+            // The index can always be rebuilt from the blocks; keep recording.
+            mIndexFailed = true;
+            closeIndex();
+        }
+    }
+
+    private void closeIndex() {
+        if (mIndex != null) {
+            try {
+                mIndex.close();
+            } catch (IOException e) { /* ignore */ }
+            mIndex = null;
+        }
+    }
+
+    /** Blocks written so far. */
+    public int getBlockCount() {
+        return mSequence;
+    }
+
+    /**
+     * Passes the flush on; a partially filled block stays pending so every block but the last
+     * has the full duration.
+     */
+    @Override
+    public void flush() throws IOException {
+        mOut.flush();
+    }
+
+    @Override
+    public long position() {
+        return mBlockPcmBytes + mFill;
+    }
+
+    /** PCM bytes whose blocks have been handed downstream. */
+    @Override
+    public long committedPosition() {
+        return mBlockPcmBytes;
+    }
+
+    @Override
+    public void writeAt(long position, ByteBuffer src) throws IOException {
+        throw new IOException("chunked streams cannot be patched");
+    }
+
+    @Override
+    public WriterStats getStats() {
+        return mOut.getStats();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (mFill >= mFrameBytes) {
+                writeBlock();
+            }
+        } finally {
+            closeIndex();
+            mOut.close();
+        }
+    }
+}
@@ -0,0 +1,400 @@
+package com.eagle.recorderdemo.audio;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.concurrent.CancellationException;
+
+/**
+ * Rewrites a recording in a compact form: downmixed to mono, resampled to a lower rate and
+ * compressed, with its sidecars brought along.
+ *
+ * The new recording is written next to the original under a temporary name and synced, then
+ * decoded back and checked against what went in: the same number of frames and, for lossless
+ * output, the same samples bit for bit, or for IMA ADPCM the same energy within a decibel. Only
+ * then is it renamed over the original, which is atomic where the name stays the same; where it
+ * changes (a {@code .pcm} or chunked recording becoming {@code .wav}) the new file appears
+ * before the old one is deleted, so a crash can leave both but never neither. The next run then
+ * finds the new file in the way; if it passes the same check against the original it is taken
+ * for the output of the interrupted run and the job is finished, otherwise it is left alone. The
+ * peak and gap sidecars follow, and the modification time is carried over so the recording keeps
+ * its age.
+ */
+public final class Compactor {
+
+    public enum Codec {
+        /** IMA ADPCM in WAVE, 4:1. */
+        ADPCM,
+        /** {@link LosslessCodec} stream, {@code .rlac}. */
+        LOSSLESS,
+        /** PCM16 WAVE; only downmixing and resampling save space. */
+        PCM
+    }
+
+    /** Asked between steps whether to give up; a stopped compaction leaves the original. */
+    public interface Control {
+        boolean isStopped();
+    }
+
+    /** What compaction did to one recording. */
+    public static final class Result {
+        public final File original;
+        public final File output;
+        public final long oldBytes;
+        public final long newBytes;
+        public final long frames;
+
+        Result(File original, File output, long oldBytes, long newBytes, long frames) {
+            this.original = original;
+            this.output = output;
+            this.oldBytes = oldBytes;
+            this.newBytes = newBytes;
+            this.frames = frames;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%s -> %s %d -> %d bytes, %d frames",
+                    original.getName(), output.getName(), oldBytes, newBytes, frames);
+        }
+    }
+
+    private static final String TEMP_SUFFIX = ".compact";
+    private static final int CHUNK_FRAMES = 8192;
+    private static final int ADPCM_BLOCK_ALIGN = 1024;
+    private static final int LOSSLESS_BLOCK_FRAMES = 4096;
+    // Written data is synced in groups of this much, and whatever is left on close.
+    private static final long SYNC_BYTES = 4 * 1024 * 1024;
+    // How far the energy of lossy output may stray from that of its input.
+    private static final double VERIFY_TOLERANCE_DB = 1.0;
+    // Below this mean square (about -90 dBFS) energies are not compared.
+    private static final double SILENT_MEAN_SQUARE = 1.0;
+    // How much longer or shorter than the original a file left in the way may be to be checked.
+    private static final long LEFT_OVER_TOLERANCE_MS = 50;
+
+    private final int mSampleRate;
+    private final Codec mCodec;
+    private final WorkBudget mBudget;
+    private final int mDefaultSampleRate;
+    private final int mDefaultChannels;
+
+    /**
+     * @param sampleRate rate to resample to; recordings at or below it keep their rate
+     * @param defaultSampleRate assumed for headerless PCM
+     * @param defaultChannels assumed for headerless PCM
+     */
+    public Compactor(int sampleRate, Codec codec, WorkBudget budget, int defaultSampleRate,
+            int defaultChannels) {
+        mSampleRate = sampleRate;
+        mCodec = codec;
+        mBudget = budget;
+        mDefaultSampleRate = defaultSampleRate;
+        mDefaultChannels = defaultChannels;
+    }
+
+    /** Whether compacting {@code info} would gain nothing. */
+    public boolean isCompact(RecordingInfo info) {
+        if (info.channels != 1 || info.sampleRate > mSampleRate) {
+            return false;
+        }
+        switch (mCodec) {
+            case ADPCM:
+                return RecordingInfo.FORMAT_WAV_ADPCM.equals(info.format);
+            case LOSSLESS:
+                return RecordingInfo.FORMAT_LOSSLESS.equals(info.format);
+            default:
+                return !RecordingInfo.FORMAT_PCM.equals(info.format)
+                        && !RecordingInfo.FORMAT_CHUNKED.equals(info.format);
+        }
+    }
+
+    /** Returns where the compacted form of {@code file} ends up. */
+    public File outputFor(File file) {
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        if (dot > 0) {
+            name = name.substring(0, dot);
+        }
+        return new File(file.getParentFile(), name + (mCodec == Codec.LOSSLESS ? ".rlac" : ".wav"));
+    }
+
+    /**
+     * Compacts {@code file}, leaving it untouched if anything fails or {@code control} stops it.
+     *
+     * @throws CancellationException if stopped
+     */
+    public Result compact(File file, Control control) throws IOException, InterruptedException {
+        File output = outputFor(file);
+        boolean leftOver = !output.equals(file) && output.exists();
+        if (leftOver && !isSameLength(file, output)) {
+            throw new IOException(output.getName() + " is in the way");
+        }
+        File dir = file.getParentFile();
+        File temp = new File(dir, output.getName() + TEMP_SUFFIX);
+        File peaks = PeakFile.sidecarFor(output);
+        File tempPeaks = new File(dir, peaks.getName() + TEMP_SUFFIX);
+        File gaps = GapLog.sidecarFor(file);
+        File tempGaps = new File(dir, gaps.getName() + TEMP_SUFFIX);
+        long modified = file.lastModified();
+        long oldBytes = file.length();
+        boolean done = false;
+        try {
+            Written written = write(file, temp, tempPeaks, control);
+            sync(temp);
+            sync(tempPeaks);
+            verify(temp, written, control);
+            if (leftOver) {
+                try {
+                    verify(output, written, control);
+                } catch (IOException e) {
+                    throw new IOException(output.getName() + " is in the way", e);
+                }
+            }
+            boolean hasGaps = gaps.isFile()
+                    && rescaleGaps(gaps, tempGaps, written.inRate, written.outRate);
+            temp.setLastModified(modified);
+            if (!temp.renameTo(output)) {
+                throw new IOException("cannot rename " + temp.getName());
+            }
+            done = true;
+            if (!output.equals(file)) {
+                file.delete();
+                ChunkedFile.indexFor(file).delete();
+            }
+            if (!tempPeaks.renameTo(peaks)) {
+                peaks.delete();
+            }
+            if (hasGaps && !tempGaps.renameTo(gaps)) {
+                gaps.delete();
+            }
+            return new Result(file, output, oldBytes, output.length(), written.frames);
+        } finally {
+            if (!done) {
+                temp.delete();
+            }
+            tempPeaks.delete();
+            tempGaps.delete();
+        }
+    }
+
+    /** Cheap test whether {@code other} may be a compacted {@code file}, before the real check. */
+    private boolean isSameLength(File file, File other) throws IOException {
+        long duration = RecordingInfo.probe(file, mDefaultSampleRate, mDefaultChannels)
+                .durationMillis;
+        long otherDuration = RecordingInfo.probe(other, mDefaultSampleRate, mDefaultChannels)
+                .durationMillis;
+        return Math.abs(duration - otherDuration) <= LEFT_OVER_TOLERANCE_MS;
+    }
+
+    /** What went into the new recording, to check it against. */
+    private static final class Written {
+        int inRate;
+        int outRate;
+        long frames;
+        final Crc32c crc = new Crc32c();
+        double squares;
+    }
+
+    private Written write(File file, File temp, File tempPeaks, Control control)
+            throws IOException, InterruptedException {
+        Written written = new Written();
+        PlaybackSource source = PlaybackSources.open(file, mDefaultSampleRate, mDefaultChannels);
+        SegmentWriter out = null;
+        try {
+            int channels = source.getChannels();
+            written.inRate = source.getSampleRate();
+            written.outRate = Math.min(mSampleRate, written.inRate);
+            Resampler resampler = written.outRate != written.inRate
+                    ? new Resampler(written.inRate, written.outRate) : null;
+            out = new PeakWriter(open(temp, written.outRate), tempPeaks, written.outRate, 1);
+
+            int frameBytes = channels * 2;
+            byte[] frame = new byte[CHUNK_FRAMES * frameBytes];
+            short[] mono = new short[CHUNK_FRAMES];
+            short[] resampled = new short[resampler != null
+                    ? resampler.maxOutput(CHUNK_FRAMES) : CHUNK_FRAMES];
+            byte[] pcm = new byte[resampled.length * 2];
+            while (true) {
+                checkStopped(control);
+                long start = System.nanoTime();
+                ByteBuffer view = source.next(frame.length);
+                int count;
+                int read = 0;
+                if (view != null) {
+                    read = view.remaining() / frameBytes * frameBytes;
+                    view.get(frame, 0, read);
+                    source.advance(read);
+                    count = downmix(frame, read / frameBytes, channels, mono);
+                    if (resampler != null) {
+                        count = resampler.process(mono, 0, count, resampled, 0);
+                    } else {
+                        System.arraycopy(mono, 0, resampled, 0, count);
+                    }
+                } else {
+                    count = resampler != null ? resampler.finish(resampled, 0) : 0;
+                }
+                for (int i = 0; i < count; i++) {
+                    short sample = resampled[i];
+                    pcm[2 * i] = (byte) sample;
+                    pcm[2 * i + 1] = (byte) (sample >> 8);
+                    written.squares += (double) sample * sample;
+                }
+                out.write(pcm, 0, count * 2);
+                written.crc.update(pcm, 0, count * 2);
+                written.frames += count;
+                mBudget.charge(System.nanoTime() - start, read + count * 2);
+                if (view == null) {
+                    break;
+                }
+            }
+            SegmentWriter closing = out;
+            out = null;
+            closing.close();
+            return written;
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // Already failing; the temporary file is deleted.
+                }
+            }
+            source.close();
+        }
+    }
+
+    private SegmentWriter open(File temp, int sampleRate) throws IOException {
+        SegmentWriter writer = SegmentWriters.open(temp, SegmentWriter.Mode.CHANNEL,
+                SegmentWriters.DEFAULT_BLOCK_SIZE, 0, null, SyncPolicy.bytes(SYNC_BYTES));
+        try {
+            switch (mCodec) {
+                case ADPCM: {
+                    WavFormat format = WavFormat.imaAdpcm(sampleRate, 1, ADPCM_BLOCK_ALIGN);
+                    // The header is written once, on close; a failed file is deleted anyway.
+                    WavWriter wav = new WavWriter(writer, format, Long.MAX_VALUE);
+                    return new EncodingWriter(wav, new ImaAdpcm.Encoder(1, ADPCM_BLOCK_ALIGN), 2);
+                }
+                case LOSSLESS:
+                    LosslessCodec.writeHeader(writer, sampleRate, 1);
+                    return new EncodingWriter(writer,
+                            new LosslessCodec.Encoder(1, LOSSLESS_BLOCK_FRAMES), 2);
+                default:
+                    return new WavWriter(writer, WavFormat.pcm(sampleRate, 1, 16),
+                            Long.MAX_VALUE);
+            }
+        } catch (IOException | RuntimeException e) {
+            writer.close();
+            throw e;
+        }
+    }
+
+    /** Averages the channels of {@code frames} PCM16 frames into {@code mono}. */
+    static int downmix(byte[] pcm, int frames, int channels, short[] mono) {
+        int offset = 0;
+        for (int i = 0; i < frames; i++) {
+            int sum = 0;
+            for (int channel = 0; channel < channels; channel++) {
+                sum += (short) ((pcm[offset] & 0xFF) | (pcm[offset + 1] << 8));
+                offset += 2;
+            }
+            mono[i] = (short) (sum / channels);
+        }
+        return frames;
+    }
+
+    /** Decodes {@code temp} back and checks it holds what was written into it. */
+    private void verify(File temp, Written written, Control control)
+            throws IOException, InterruptedException {
+        RecordingDecoder decoder = RecordingDecoder.open(temp, written.outRate, 1);
+        try {
+            if (decoder.getChannels() != 1 || decoder.getSampleRate() != written.outRate) {
+                throw new IOException("verify: decoded as " + decoder.getSampleRate() + " Hz, "
+                        + decoder.getChannels() + " channels");
+            }
+            byte[] pcm = new byte[CHUNK_FRAMES * 2];
+            Crc32c crc = new Crc32c();
+            double squares = 0;
+            long frames = 0;
+            while (true) {
+                checkStopped(control);
+                long start = System.nanoTime();
+                int read = decoder.read(pcm, 0, pcm.length);
+                if (read < 0) {
+                    break;
+                }
+                crc.update(pcm, 0, read);
+                for (int i = 0; i + 1 < read; i += 2) {
+                    int sample = (short) ((pcm[i] & 0xFF) | (pcm[i + 1] << 8));
+                    squares += (double) sample * sample;
+                }
+                frames += read / 2;
+                mBudget.charge(System.nanoTime() - start, read);
+            }
+            if (frames != written.frames) {
+                throw new IOException("verify: " + frames + " frames, wrote "
+                        + written.frames);
+            }
+            if (mCodec != Codec.ADPCM) {
+                if (crc.getValue() != written.crc.getValue()) {
+                    throw new IOException("verify: samples differ");
+                }
+                return;
+            }
+            double in = written.squares / Math.max(1, frames);
+            double out = squares / Math.max(1, frames);
+            if (in >= SILENT_MEAN_SQUARE || out >= SILENT_MEAN_SQUARE) {
+                double db = 10 * Math.log10(Math.max(out, SILENT_MEAN_SQUARE)
+                        / Math.max(in, SILENT_MEAN_SQUARE));
+                if (Math.abs(db) > VERIFY_TOLERANCE_DB) {
+                    throw new IOException(String.format(Locale.US,
+                            "verify: energy off by %.2f dB", db));
+                }
+            }
+        } finally {
+            decoder.close();
+        }
+    }
+
+    /**
+     * Writes the gaps of {@code gaps} at the new rate to {@code temp}.
+     *
+     * @return whether there was anything to write
+     */
+    private static boolean rescaleGaps(File gaps, File temp, int inRate, int outRate)
+            throws IOException {
+        long[][] markers = GapLog.read(gaps);
+        if (markers.length == 0) {
+            return false;
+        }
+        GapLog log = new GapLog(temp, outRate, 2);
+        try {
+            for (long[] marker : markers) {
+                log.append(marker[0] * outRate / inRate, marker[1] * outRate / inRate);
+            }
+        } finally {
+            log.close();
+        }
+        sync(temp);
+        return true;
+    }
+
+    private static void checkStopped(Control control) {
+        if (control != null && control.isStopped()) {
+            throw new CancellationException("compaction stopped");
+        }
+    }
+
+    private static void sync(File file) throws IOException {
+        if (!file.isFile()) {
+            return;
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.getChannel().force(true);
+        } finally {
+            raf.close();
+        }
+    }
+}
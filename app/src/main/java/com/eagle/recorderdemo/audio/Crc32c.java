@@ -0,0 +1,82 @@
+package com.eagle.recorderdemo.audio;
+
+import java.nio.ByteBuffer;
+
+/**
+ * CRC-32C (Castagnoli), the checksum of iSCSI and ext4 metadata, computed slicing-by-8.
+ *
+ * {@code java.util.zip.CRC32C} only exists from Java 9 and is missing on Android, hence this
+ * table-driven version. Instances are not thread-safe; the tables are shared.
+ */
+public final class Crc32c {
+
+    private static final int POLY = 0x82F63B78; // reflected 0x1EDC6F41
+    private static final int[][] TABLES = new int[8][256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i;
+            for (int k = 0; k < 8; k++) {
+                crc = (crc >>> 1) ^ ((crc & 1) != 0 ? POLY : 0);
+            }
+            TABLES[0][i] = crc;
+        }
+        for (int i = 0; i < 256; i++) {
+            for (int t = 1; t < 8; t++) {
+                int previous = TABLES[t - 1][i];
+                TABLES[t][i] = (previous >>> 8) ^ TABLES[0][previous & 0xff];
+            }
+        }
+    }
+
+    private int mCrc = 0xFFFFFFFF;
+
+    public void reset() {
+        mCrc = 0xFFFFFFFF;
+    }
+
+    public int getValue() {
+        return ~mCrc;
+    }
+
+    public void update(byte[] b, int offset, int length) {
+        int[] t0 = TABLES[0], t1 = TABLES[1], t2 = TABLES[2], t3 = TABLES[3];
+        int[] t4 = TABLES[4], t5 = TABLES[5], t6 = TABLES[6], t7 = TABLES[7];
+        int crc = mCrc;
+        int end = offset + length;
+        for (; offset + 8 <= end; offset += 8) {
+            int lo = crc ^ ((b[offset] & 0xff) | (b[offset + 1] & 0xff) << 8
+                    | (b[offset + 2] & 0xff) << 16 | (b[offset + 3] & 0xff) << 24);
+            crc = t7[lo & 0xff] ^ t6[(lo >>> 8) & 0xff] ^ t5[(lo >>> 16) & 0xff] ^ t4[lo >>> 24]
+                    ^ t3[b[offset + 4] & 0xff] ^ t2[b[offset + 5] & 0xff]
+                    ^ t1[b[offset + 6] & 0xff] ^ t0[b[offset + 7] & 0xff];
+        }
+        for (; offset < end; offset++) {
+            crc = (crc >>> 8) ^ t0[(crc ^ b[offset]) & 0xff];
+        }
+        mCrc = crc;
+    }
+
+    /**
+     * Consumes the remaining bytes of {@code buffer}, heap or direct.
+     */
+    public void update(ByteBuffer buffer) {
+        if (buffer.hasArray()) {
+            update(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            buffer.position(buffer.limit());
+            return;
+        }
+        int[] t0 = TABLES[0];
+        int crc = mCrc;
+        while (buffer.hasRemaining()) {
+            crc = (crc >>> 8) ^ t0[(crc ^ buffer.get()) & 0xff];
+        }
+        mCrc = crc;
+    }
+
+    public static int compute(byte[] b, int offset, int length) {
+        Crc32c crc = new Crc32c();
+        crc.update(b, offset, length);
+        return crc.getValue();
+    }
+}
@@ -0,0 +1,122 @@
+package com.eagle.recorderdemo.audio;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * {@link PlaybackSource} for compressed recordings, decoded with a {@link RecordingDecoder} into
+ * one reused direct buffer. Seeking is still frame-accurate, but has to decode its way forward
+ * from the start or the current position.
+ */
+public final class DecodedPlaybackSource implements PlaybackSource {
+
+    private static final int BUFFER_BYTES = 64 * 1024;
+
+    private final File mFileName;
+    private final int mDefaultSampleRate;
+    private final int mDefaultChannels;
+    private final byte[] mPcm = new byte[BUFFER_BYTES];
+    private final ByteBuffer mView = ByteBuffer.allocateDirect(BUFFER_BYTES)
+            .order(ByteOrder.LITTLE_ENDIAN);
+
+    private RecordingDecoder mDecoder;
+    private final int mFrameBytes;
+    // Decoded but not yet played bytes of mView.
+    private int mOffset;
+    private int mEnd;
+    private long mFrame;
+    private boolean mEnded;
+
+    public DecodedPlaybackSource(File file, int defaultSampleRate, int defaultChannels)
+            throws IOException {
+        mFileName = file;
+        mDefaultSampleRate = defaultSampleRate;
+        mDefaultChannels = defaultChannels;
+        mDecoder = RecordingDecoder.open(file, defaultSampleRate, defaultChannels);
+        mFrameBytes = mDecoder.getChannels() * 2;
+    }
+
+    @Override
+    public int getSampleRate() {
+        return mDecoder.getSampleRate();
+    }
+
+    @Override
+    public int getChannels() {
+        return mDecoder.getChannels();
+    }
+
+    @Override
+    public long getFrameCount() {
+        return -1;
+    }
+
+    @Override
+    public long getFramePosition() {
+        return mFrame;
+    }
+
+    @Override
+    public void seekFrame(long frame) throws IOException {
+        frame = Math.max(0, frame);
+        long buffered = (mEnd - mOffset) / mFrameBytes;
+        if (frame >= mFrame && frame < mFrame + buffered) {
+            advance((int) (frame - mFrame) * mFrameBytes);
+            return;
+        }
+        if (frame < mFrame) {
+            mDecoder.close();
+            mDecoder = RecordingDecoder.open(mFileName, mDefaultSampleRate, mDefaultChannels);
+            mFrame = 0;
+            mEnded = false;
+        } else {
+            mFrame += buffered;
+        }
+        mOffset = 0;
+        mEnd = 0;
+        while (mFrame < frame && !mEnded) {
+            int want = (int) Math.min(mPcm.length / mFrameBytes, frame - mFrame) * mFrameBytes;
+            int read = mDecoder.read(mPcm, 0, want);
+            if (read <= 0) {
+                mEnded = true;
+                break;
+            }
+            mFrame += read / mFrameBytes;
+        }
+    }
+
+    @Override
+    public ByteBuffer next(int maxBytes) throws IOException {
+        if (mOffset == mEnd) {
+            if (mEnded) {
+                return null;
+            }
+            int read = mDecoder.read(mPcm, 0, mPcm.length);
+            if (read <= 0) {
+                mEnded = true;
+                return null;
+            }
+            mView.clear();
+            mView.put(mPcm, 0, read);
+            mOffset = 0;
+            mEnd = read;
+        }
+        mView.limit(Math.min(mEnd, mOffset + maxBytes - maxBytes % mFrameBytes)).position(mOffset);
+        return mView;
+    }
+
+    @Override
+    public void advance(int bytes) {
+        bytes -= bytes % mFrameBytes;
+        bytes = Math.min(bytes, mEnd - mOffset);
+        mFrame += bytes / mFrameBytes;
+        mOffset += bytes;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mDecoder.close();
+    }
+}
@@ -0,0 +1,106 @@
+package com.eagle.recorderdemo.audio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Compresses PCM with a {@link FrameEncoder} on its way to another {@link SegmentWriter}.
+ *
+ * Incoming PCM is gathered into one preallocated block; each full block is encoded into a
+ * second preallocated buffer and written downstream, so the stage allocates nothing while
+ * recording. {@link #position()} counts PCM bytes, which keeps duration-based decisions (such as
+ * segment rollover) independent of the compression ratio.
+ */
+public final class EncodingWriter implements SegmentWriter {
+
+    private final SegmentWriter mOut;
+    private final FrameEncoder mEncoder;
+    private final int mFrameBytes;
+    private final byte[] mBlock;
+    private final byte[] mEncoded;
+
+    private int mFill;
+    private long mEncodedPcmBytes;
+    private volatile long mEncodedBytes;
+
+    public EncodingWriter(SegmentWriter out, FrameEncoder encoder, int frameBytes) {
+        mOut = out;
+        mEncoder = encoder;
+        mFrameBytes = frameBytes;
+        mBlock = new byte[encoder.framesPerBlock() * frameBytes];
+        mEncoded = new byte[encoder.maxEncodedBytes()];
+    }
+
+    @Override
+    public void write(byte[] src, int offset, int length) throws IOException {
+        while (length > 0) {
+            int chunk = Math.min(length, mBlock.length - mFill);
+            System.arraycopy(src, offset, mBlock, mFill, chunk);
+            mFill += chunk;
+            offset += chunk;
+            length -= chunk;
+            if (mFill == mBlock.length) {
+                encodeBlock();
+            }
+        }
+    }
+
+    private void encodeBlock() throws IOException {
+        int frames = mFill / mFrameBytes;
+        int length = mEncoder.encode(mBlock, 0, frames, mEncoded);
+        mOut.write(mEncoded, 0, length);
+        mEncodedPcmBytes += frames * mFrameBytes;
+        mEncodedBytes += length;
+        mFill = 0;
+    }
+
+    /** Compressed bytes produced so far. */
+    public long getEncodedBytes() {
+        return mEncodedBytes;
+    }
+
+    /**
+     * Passes the flush on; a partially filled block stays pending since blocks have a fixed
+     * number of frames.
+     */
+    @Override
+    public void flush() throws IOException {
+        mOut.flush();
+    }
+
+    @Override
+    public long position() {
+        return mEncodedPcmBytes + mFill;
+    }
+
+    /** PCM bytes whose encoded blocks have been handed downstream. */
+    @Override
+    public long committedPosition() {
+        return mEncodedPcmBytes;
+    }
+
+    @Override
+    public void writeAt(long position, ByteBuffer src) throws IOException {
+        throw new IOException("encoded streams cannot be patched");
+    }
+
+    @Override
+    public WriterStats getStats() {
+        return mOut.getStats();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            long frames = position() / mFrameBytes;
+            if (mFill >= mFrameBytes) {
+                encodeBlock();
+            }
+            if (mOut instanceof WavWriter) {
+                ((WavWriter) mOut).setFrameCount(frames);
+            }
+        } finally {
+            mOut.close();
+        }
+    }
+}
@@ -0,0 +1,260 @@
+package com.eagle.recorderdemo.audio;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sink of an armed pipeline: keeps the last seconds of audio in a {@link PreRollBuffer} and,
+ * when {@link #trigger triggered}, saves them together with the seconds that follow.
+ *
+ * While nothing happens the only work per buffer is a copy into the pre-roll; no file is
+ * touched. A trigger hands a new output from the {@link OutputFactory} to a committing thread,
+ * which writes the pre-roll from where the event started and then follows the live stream until
+ * the post-roll has passed. Triggers during the post-roll extend it instead of starting another
+ * file. The committing thread must keep within the slack of the buffer; what it loses if it
+ * falls further behind is counted, not waited for.
+ */
+public final class EventCapture implements AudioSink {
+
+    public interface OutputFactory {
+        /**
+         * Opens the output of a new event, already wrapped in codec and container.
+         *
+         * @param clock starts at the first frame of the event, {@code null} if there is none
+         */
+        SegmentWriter open(String reason, CaptureClock clock) throws IOException;
+    }
+
+    public interface Listener {
+        /** Called on the committing thread once the output of an event is open. */
+        void onEventStarted(String reason);
+
+        /**
+         * Called on the committing thread once the output of an event is closed, or failed
+         * with {@code failure}.
+         */
+        void onEventFinished(long bytes, long lostBytes, Throwable failure);
+    }
+
+    private static final long POLL_MS = 20;
+    private static final int COPY_BYTES = 64 * 1024;
+
+    private final PreRollBuffer mBuffer;
+    private final int mFrameBytes;
+    private final long mBytesPerSecond;
+    private final CaptureClock mClock;
+    private final long mPreRollBytes;
+    private final long mPostRollBytes;
+    private final OutputFactory mFactory;
+    private final Listener mListener;
+
+    // Guarded by this.
+    private Committer mCommitter;
+    private boolean mEnded;
+
+    private volatile long mEvents;
+    private volatile long mTriggers;
+
+    /**
+     * @param preRollMs audio before a trigger that is saved with it
+     * @param postRollMs audio after the last trigger of an event that is saved with it
+     * @param slackMs how far the committing thread may fall behind before it loses audio
+     * @param clock marked with the capture time of each buffer before it is written here, dates
+     *         the events; may be {@code null}
+     */
+    public EventCapture(int sampleRate, int frameBytes, int preRollMs, int postRollMs,
+            int slackMs, CaptureClock clock, OutputFactory factory, Listener listener) {
+        long bytesPerSecond = (long) sampleRate * frameBytes;
+        mFrameBytes = frameBytes;
+        mBytesPerSecond = bytesPerSecond;
+        mClock = clock;
+        mPreRollBytes = bytesPerSecond * preRollMs / 1000 / frameBytes * frameBytes;
+        mPostRollBytes = bytesPerSecond * postRollMs / 1000 / frameBytes * frameBytes;
+        mBuffer = new PreRollBuffer((int) (mPreRollBytes + bytesPerSecond * slackMs / 1000),
+                frameBytes);
+        mFactory = factory;
+        mListener = listener;
+    }
+
+    public PreRollBuffer getBuffer() {
+        return mBuffer;
+    }
+
+    @Override
+    public void write(byte[] src, int offset, int length) {
+        mBuffer.write(src, offset, length);
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    /**
+     * Saves the pre-roll and what follows until the post-roll after this trigger has passed.
+     * Safe from any thread and cheap enough for a meter callback.
+     *
+     * @return {@code true} if this starts a new event, {@code false} if it extends the current
+     *         one or the capture has ended
+     */
+    public synchronized boolean trigger(String reason) {
+        if (mEnded) {
+            return false;
+        }
+        mTriggers++;
+        // The mark and the byte count are not taken together; they agree to within a read.
+        long mark = mClock != null ? mClock.getMarkNanos() : 0;
+        long now = mBuffer.getWrittenBytes();
+        if (mCommitter != null && mCommitter.extend(now + mPostRollBytes)) {
+            return false;
+        }
+        long start = Math.max(mBuffer.getOldestPosition(), now - mPreRollBytes);
+        start = (start + mFrameBytes - 1) / mFrameBytes * mFrameBytes;
+        CaptureClock clock = null;
+        if (mark != 0) {
+            clock = mClock.startingAt(
+                    mark - (now - start) * TimeUnit.SECONDS.toNanos(1) / mBytesPerSecond);
+        }
+        mCommitter = new Committer(reason, start, now + mPostRollBytes, clock);
+        mEvents++;
+        mCommitter.start();
+        return true;
+    }
+
+    /** Whether an event is being saved. */
+    public synchronized boolean isCommitting() {
+        return mCommitter != null && mCommitter.isAlive();
+    }
+
+    public long getEventCount() {
+        return mEvents;
+    }
+
+    public long getTriggerCount() {
+        return mTriggers;
+    }
+
+    /**
+     * Stops accepting triggers and waits for the event being saved, which ends early with the
+     * audio captured so far.
+     */
+    @Override
+    public void close() {
+        Committer committer;
+        synchronized (this) {
+            mEnded = true;
+            committer = mCommitter;
+        }
+        if (committer == null) {
+            return;
+        }
+        boolean interrupted = false;
+        while (committer.isAlive()) {
+            try {
+                committer.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "EventCapture{pre=%d, post=%d, buffer=%d bytes direct, "
+                + "events=%d, triggers=%d, committing=%b}", mPreRollBytes, mPostRollBytes,
+                mBuffer.capacity(), mEvents, mTriggers, isCommitting());
+    }
+
+    private final class Committer extends Thread {
+        private final String mReason;
+        private final long mStart;
+        private final CaptureClock mStartClock;
+        // Guarded by EventCapture.this.
+        private long mEnd;
+        private boolean mDone;
+
+        Committer(String reason, long start, long end, CaptureClock startClock) {
+            super("RecorderEvent");
+            mReason = reason;
+            mStart = start;
+            mEnd = end;
+            mStartClock = startClock;
+        }
+
+        /** Moves the end of the event, unless it has already been reached. */
+        boolean extend(long end) {
+            if (mDone) {
+                return false;
+            }
+            mEnd = Math.max(mEnd, end);
+            return true;
+        }
+
+        /** Returns the end, or marks the event done if {@code position} has reached it. */
+        private long endOrFinish(long position) {
+            synchronized (EventCapture.this) {
+                if (position >= mEnd || mEnded) {
+                    mDone = true;
+                }
+                return mEnd;
+            }
+        }
+
+        @Override
+        public void run() {
+            PreRollBuffer.Reader reader = mBuffer.newReader();
+            byte[] copy = new byte[COPY_BYTES / mFrameBytes * mFrameBytes];
+            long position = mStart;
+            long lost = 0;
+            Throwable failure = null;
+            SegmentWriter out = null;
+            try {
+                out = mFactory.open(mReason, mStartClock);
+                mListener.onEventStarted(mReason);
+                while (true) {
+                    long end = endOrFinish(position);
+                    long available = mBuffer.getWrittenBytes();
+                    if (mDone) {
+                        // Captured by the time the capture ended, or the end of the event.
+                        end = Math.min(end, available);
+                        if (position >= end) {
+                            break;
+                        }
+                    } else if (position >= available) {
+                        TimeUnit.MILLISECONDS.sleep(POLL_MS);
+                        continue;
+                    }
+                    int length = (int) Math.min(copy.length, Math.min(end, available) - position);
+                    if (!reader.read(position, copy, 0, length)) {
+                        long oldest = mBuffer.getOldestPosition();
+                        long resume = (oldest + mFrameBytes - 1) / mFrameBytes * mFrameBytes;
+                        lost += resume - position;
+                        position = resume;
+                        continue;
+                    }
+                    out.write(copy, 0, length);
+                    position += length;
+                }
+            } catch (IOException | InterruptedException | RuntimeException e) {
+                failure = e;
+            } finally {
+                synchronized (EventCapture.this) {
+                    mDone = true;
+                }
+                if (out != null) {
+                    try {
+                        out.close();
+                    } catch (IOException e) {
+                        if (failure == null) {
+                            failure = e;
+                        }
+                    }
+                }
+                mListener.onEventFinished(position - mStart - lost, lost, failure);
+            }
+        }
+    }
+}
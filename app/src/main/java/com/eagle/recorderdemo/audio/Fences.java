@@ -0,0 +1,72 @@
+package com.eagle.recorderdemo.audio;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Field;
+
+/**
+ * Load and store fences for the seqlocks of {@link FrameRingBuffer} and {@link PreRollBuffer},
+ * where a reader copies plain data and then re-checks a volatile to learn whether the writer got
+ * to it meanwhile.
+ *
+ * The runtime has {@code Unsafe.loadFence()} and {@code storeFence()} but the SDK does not expose
+ * them, so they are looked up once and bound into method handles, which cost a call per fence
+ * and allocate nothing. Where the lookup fails {@link #isAvailable()} is {@code false}; the
+ * fences then do nothing and callers have to fall back to locking.
+ */
+final class Fences {
+
+    private static final MethodHandle LOAD_FENCE;
+    private static final MethodHandle STORE_FENCE;
+
+    static {
+        MethodHandle load = null;
+        MethodHandle store = null;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            Object unsafe = field.get(null);
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            load = lookup.unreflect(unsafeClass.getMethod("loadFence")).bindTo(unsafe);
+            store = lookup.unreflect(unsafeClass.getMethod("storeFence")).bindTo(unsafe);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            load = null;
+            store = null;
+        }
+        LOAD_FENCE = load;
+        STORE_FENCE = store;
+    }
+
+    private Fences() {
+    }
+
+    /** Whether the fences really order memory accesses. */
+    static boolean isAvailable() {
+        return LOAD_FENCE != null;
+    }
+
+    /** Keeps loads before the fence from being satisfied after loads behind it. */
+    static void loadFence() {
+        if (LOAD_FENCE != null) {
+            invoke(LOAD_FENCE);
+        }
+    }
+
+    /** Keeps stores behind the fence from becoming visible before stores before it. */
+    static void storeFence() {
+        if (STORE_FENCE != null) {
+            invoke(STORE_FENCE);
+        }
+    }
+
+    private static void invoke(MethodHandle fence) {
+        try {
+            fence.invokeExact();
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+}
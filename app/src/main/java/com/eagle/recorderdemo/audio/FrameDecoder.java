@@ -0,0 +1,18 @@
+package com.eagle.recorderdemo.audio;
+
+/**
+ * Counterpart of a {@link FrameEncoder}: expands one encoded block back to interleaved
+ * little-endian PCM16.
+ */
+public interface FrameDecoder {
+
+    /** Upper bound of the PCM bytes {@link #decode} produces for one block. */
+    int maxDecodedBytes();
+
+    /**
+     * Decodes the block in {@code in[offset, offset + length)} into {@code pcm}.
+     *
+     * @return number of PCM bytes written
+     */
+    int decode(byte[] in, int offset, int length, byte[] pcm, int pcmOffset);
+}
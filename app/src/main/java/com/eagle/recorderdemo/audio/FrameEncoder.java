@@ -0,0 +1,23 @@
+package com.eagle.recorderdemo.audio;
+
+/**
+ * Compresses fixed-size blocks of interleaved little-endian PCM16.
+ *
+ * Implementations keep all their working memory from construction on, so encoding allocates
+ * nothing.
+ */
+public interface FrameEncoder {
+
+    /** Sample frames per block; only the last block of a stream may be shorter. */
+    int framesPerBlock();
+
+    /** Upper bound of the bytes {@link #encode} produces for one block. */
+    int maxEncodedBytes();
+
+    /**
+     * Encodes {@code frames} frames from {@code pcm} into {@code out}.
+     *
+     * @return number of bytes written to {@code out}
+     */
+    int encode(byte[] pcm, int offset, int frames, byte[] out);
+}
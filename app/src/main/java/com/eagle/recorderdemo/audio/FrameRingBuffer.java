@@ -0,0 +1,488 @@
+package com.eagle.recorderdemo.audio;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A single-producer ring of preallocated audio frames, broadcast to any number of consumers.
+ *
+ * The capture thread {@link #claim()}s a frame, fills it in place and {@link #publish(int)}es it;
+ * the writer thread {@link #peek()}s, consumes and {@link #release()}s it. Neither side takes a
+ * lock and no memory is allocated after construction, so the total footprint is fixed at
+ * {@code capacity * frameBytes} no matter how far the writer falls behind. What happens when the
+ * ring is full is decided by the {@link OverflowPolicy}.
+ *
+ * Further {@link Consumer}s can be added and removed while frames flow, each with a cursor of
+ * its own, like the sequence barrier of a disruptor. A {@link ConsumerPolicy#BLOCK} consumer holds
+ * the producer back just like the writer does; the others never do and instead lose frames when
+ * they fall behind. They read by copying the frame out and then checking that the producer did
+ * not start refilling it meanwhile, so a slow one can never see a torn frame. Like a seqlock this
+ * needs fences the volatile cursors alone do not give: the producer's writes into a frame must
+ * not become visible before its claim, nor the consumer's copy be read after the check. Where
+ * {@link Fences} are not available the producer instead holds a lock on the slot from claim to
+ * publish, and those consumers copy under it, counting a slot being refilled as lost.
+ */
+public final class FrameRingBuffer {
+
+    public enum OverflowPolicy {
+        /** Drop the incoming frame immediately, never stalling the producer. */
+        DROP_NEWEST,
+        /** Wait up to the configured time for the consumer, then drop the incoming frame. */
+        WAIT_THEN_DROP
+    }
+
+    /** How a {@link Consumer} that falls behind is treated. */
+    public enum ConsumerPolicy {
+        /** Holds the producer back like the writer; the {@link OverflowPolicy} applies. */
+        BLOCK,
+        /** Loses the frames the producer reuses before it gets to them, oldest first. */
+        DROP,
+        /** Jumps to the newest frame once half the ring is behind it, for lowest latency. */
+        SKIP_AHEAD
+    }
+
+    private static final long CONSUMER_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+    private static final long PRODUCER_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(200);
+
+    private final byte[][] mFrames;
+    private final int[] mLengths;
+    private final int mMask;
+    private final int mFrameBytes;
+    private final OverflowPolicy mPolicy;
+    private final long mMaxWaitNanos;
+    // Without fences: the lock of every slot, held by the producer while it fills the slot.
+    private final ReentrantLock[] mSlotLocks;
+    // Producer only: slot whose lock it holds, or -1.
+    private int mLockedSlot = -1;
+
+    /** Sequence of the next frame to be published; written by the producer only. */
+    private final AtomicLong mHead = new AtomicLong();
+    /** Sequence of the next frame to be consumed; written by the consumer only. */
+    private final AtomicLong mTail = new AtomicLong();
+
+    /** Sequence of the frame the producer is filling; its slot is not safe to read. */
+    private final AtomicLong mClaimed = new AtomicLong(-1);
+
+    // Producer-local view of the slowest blocking cursor, refreshed only when the ring looks full.
+    private long mCachedTail;
+
+    // Copy-on-write; changed under the ring's lock, read by the producer without it.
+    private volatile Consumer[] mConsumers = new Consumer[0];
+
+    private volatile Thread mWaitingConsumer;
+    private volatile boolean mClosed;
+
+    private volatile int mHighWaterMark;
+    private volatile long mOverflowCount;
+
+    /**
+     * @param capacity number of frames, rounded up to the next power of two
+     * @param frameBytes size of every preallocated frame
+     * @param policy what to do with a new frame while the ring is full
+     * @param maxWaitMillis how long {@link OverflowPolicy#WAIT_THEN_DROP} may stall the producer
+     */
+    public FrameRingBuffer(int capacity, int frameBytes, OverflowPolicy policy, long maxWaitMillis) {
+        this(capacity, frameBytes, policy, maxWaitMillis, !Fences.isAvailable());
+    }
+
+    /** @param slotLocks whether to lock slots instead of relying on {@link Fences} */
+    FrameRingBuffer(int capacity, int frameBytes, OverflowPolicy policy, long maxWaitMillis,
+            boolean slotLocks) {
+        if (capacity <= 0 || frameBytes <= 0) {
+            throw new IllegalArgumentException("capacity and frameBytes must be positive");
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        mFrames = new byte[size][frameBytes];
+        mLengths = new int[size];
+        mMask = size - 1;
+        mFrameBytes = frameBytes;
+        mPolicy = policy;
+        mMaxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+        if (slotLocks) {
+            mSlotLocks = new ReentrantLock[size];
+            for (int i = 0; i < size; i++) {
+                mSlotLocks[i] = new ReentrantLock();
+            }
+        } else {
+            mSlotLocks = null;
+        }
+    }
+
+    /**
+     * Returns the frame the producer should fill next, or {@code null} if the ring stayed full and
+     * the frame has to be dropped. The drop is already accounted for in {@link #getOverflowCount()}.
+     */
+    public byte[] claim() {
+        long head = mHead.get();
+        if (head - mCachedTail > mMask) {
+            mCachedTail = gatingSequence();
+            if (head - mCachedTail > mMask && !waitForSpace(head)) {
+                mOverflowCount++;
+                return null;
+            }
+        }
+        int slot = (int) head & mMask;
+        if (mSlotLocks != null) {
+            // A claim that was not published still holds its slot, the same one.
+            if (mLockedSlot != slot) {
+                unlockSlot();
+                mSlotLocks[slot].lock();
+                mLockedSlot = slot;
+            }
+            mClaimed.set(head);
+        } else {
+            mClaimed.set(head);
+            // A later store may otherwise pass the volatile one: keep the refill behind the claim.
+            Fences.storeFence();
+        }
+        return mFrames[slot];
+    }
+
+    private void unlockSlot() {
+        if (mLockedSlot >= 0) {
+            mSlotLocks[mLockedSlot].unlock();
+            mLockedSlot = -1;
+        }
+    }
+
+    /** The slowest cursor the producer has to wait for. */
+    private long gatingSequence() {
+        long min = mTail.get();
+        for (Consumer consumer : mConsumers) {
+            if (consumer.mPolicy == ConsumerPolicy.BLOCK) {
+                min = Math.min(min, consumer.mSequence.get());
+            }
+        }
+        return min;
+    }
+
+    /**
+     * Makes the frame returned by the last successful {@link #claim()} visible to the consumer.
+     */
+    public void publish(int length) {
+        long head = mHead.get();
+        mLengths[(int) head & mMask] = length;
+        if (mSlotLocks != null) {
+            unlockSlot();
+        }
+        mHead.lazySet(head + 1);
+
+        int used = (int) (head + 1 - mTail.get());
+        if (used > mHighWaterMark) {
+            mHighWaterMark = used;
+        }
+        Thread consumer = mWaitingConsumer;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+        for (Consumer other : mConsumers) {
+            Thread waiting = other.mWaiting;
+            if (waiting != null) {
+                LockSupport.unpark(waiting);
+            }
+        }
+    }
+
+    private boolean waitForSpace(long head) {
+        if (mPolicy != OverflowPolicy.WAIT_THEN_DROP || mMaxWaitNanos <= 0) {
+            return false;
+        }
+        long deadline = System.nanoTime() + mMaxWaitNanos;
+        while (System.nanoTime() < deadline && !mClosed) {
+            LockSupport.parkNanos(PRODUCER_PARK_NANOS);
+            mCachedTail = gatingSequence();
+            if (head - mCachedTail <= mMask) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the oldest published frame without consuming it, or {@code null} if the ring is
+     * empty. Its valid length is {@link #peekLength()}.
+     */
+    public byte[] peek() {
+        long tail = mTail.get();
+        if (tail == mHead.get()) {
+            return null;
+        }
+        return mFrames[(int) tail & mMask];
+    }
+
+    public int peekLength() {
+        return mLengths[(int) mTail.get() & mMask];
+    }
+
+    /**
+     * Hands the frame returned by {@link #peek()} back to the producer.
+     */
+    public void release() {
+        mTail.lazySet(mTail.get() + 1);
+    }
+
+    /**
+     * Blocks the consumer until a frame is available, the ring is closed or the timeout expires.
+     *
+     * @return {@code true} if a frame is available
+     */
+    public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        mWaitingConsumer = Thread.currentThread();
+        try {
+            while (mTail.get() == mHead.get()) {
+                if (mClosed) {
+                    return false;
+                }
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                // Bounded park: a publish racing with the flag store costs at most one period.
+                LockSupport.parkNanos(this, Math.min(remaining, CONSUMER_PARK_NANOS));
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+            }
+            return true;
+        } finally {
+            mWaitingConsumer = null;
+        }
+    }
+
+    /**
+     * Marks the end of the stream. The consumer drains what is left and then sees
+     * {@link #isDrained()}.
+     */
+    public void close() {
+        mClosed = true;
+        Thread consumer = mWaitingConsumer;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+        for (Consumer other : mConsumers) {
+            Thread waiting = other.mWaiting;
+            if (waiting != null) {
+                LockSupport.unpark(waiting);
+            }
+        }
+    }
+
+    /**
+     * Adds a consumer that sees every frame published from now on, as far as {@code policy}
+     * lets it keep up. Safe while the producer runs.
+     */
+    public synchronized Consumer addConsumer(ConsumerPolicy policy) {
+        Consumer consumer = new Consumer(policy, mHead.get());
+        Consumer[] consumers = Arrays.copyOf(mConsumers, mConsumers.length + 1);
+        consumers[consumers.length - 1] = consumer;
+        mConsumers = consumers;
+        return consumer;
+    }
+
+    /** Removes {@code consumer}, which no longer holds the producer back. */
+    public synchronized void removeConsumer(Consumer consumer) {
+        Consumer[] consumers = mConsumers;
+        for (int i = 0; i < consumers.length; i++) {
+            if (consumers[i] == consumer) {
+                Consumer[] left = new Consumer[consumers.length - 1];
+                System.arraycopy(consumers, 0, left, 0, i);
+                System.arraycopy(consumers, i + 1, left, i, left.length - i);
+                mConsumers = left;
+                return;
+            }
+        }
+    }
+
+    /** Number of consumers added besides the writer. */
+    public int getConsumerCount() {
+        return mConsumers.length;
+    }
+
+    public boolean isClosed() {
+        return mClosed;
+    }
+
+    public boolean isDrained() {
+        return mClosed && mTail.get() == mHead.get();
+    }
+
+    public int size() {
+        return (int) (mHead.get() - mTail.get());
+    }
+
+    public int capacity() {
+        return mMask + 1;
+    }
+
+    public int frameBytes() {
+        return mFrameBytes;
+    }
+
+    /** Largest number of frames that were ever queued at once. */
+    public int getHighWaterMark() {
+        return mHighWaterMark;
+    }
+
+    /** Number of frames dropped because the ring was full. */
+    public long getOverflowCount() {
+        return mOverflowCount;
+    }
+
+    /** Number of frames published so far. */
+    public long getPublishedCount() {
+        return mHead.get();
+    }
+
+    @Override
+    public String toString() {
+        return "FrameRingBuffer{capacity=" + capacity() + ", frameBytes=" + mFrameBytes
+                + ", size=" + size() + ", highWater=" + mHighWaterMark
+                + ", overflows=" + mOverflowCount + ", policy=" + mPolicy
+                + ", consumers=" + mConsumers.length + "}";
+    }
+
+    /**
+     * A cursor of its own over the frames of the ring, used by one thread at a time.
+     */
+    public final class Consumer {
+        private final ConsumerPolicy mPolicy;
+        /** Sequence of the next frame to read. */
+        private final AtomicLong mSequence;
+        private volatile Thread mWaiting;
+        private volatile long mLost;
+
+        Consumer(ConsumerPolicy policy, long sequence) {
+            mPolicy = policy;
+            mSequence = new AtomicLong(sequence);
+        }
+
+        public ConsumerPolicy getPolicy() {
+            return mPolicy;
+        }
+
+        /**
+         * Copies the next frame to {@code dst}, which must have room for
+         * {@link FrameRingBuffer#frameBytes()}, and moves past it.
+         *
+         * @return bytes copied, or -1 if no frame is available
+         */
+        public int read(byte[] dst, int offset) {
+            while (true) {
+                long sequence = mSequence.get();
+                long head = mHead.get();
+                if (sequence >= head) {
+                    return -1;
+                }
+                if (mPolicy == ConsumerPolicy.SKIP_AHEAD && head - sequence > (mMask + 1) / 2) {
+                    mLost += head - 1 - sequence;
+                    sequence = head - 1;
+                }
+                if (mPolicy != ConsumerPolicy.BLOCK) {
+                    // The claimed slot is being refilled, so the frame after it is the oldest.
+                    long oldest = mClaimed.get() - mMask;
+                    if (sequence < oldest) {
+                        mLost += oldest - sequence;
+                        sequence = oldest;
+                    }
+                }
+                int slot = (int) sequence & mMask;
+                if (mPolicy != ConsumerPolicy.BLOCK && mSlotLocks != null) {
+                    int length = readLocked(slot, sequence, dst, offset);
+                    mSequence.lazySet(sequence + 1);
+                    if (length < 0) {
+                        mLost++;
+                        continue;
+                    }
+                    return length;
+                }
+                int length = mLengths[slot];
+                System.arraycopy(mFrames[slot], 0, dst, offset, length);
+                if (mPolicy != ConsumerPolicy.BLOCK) {
+                    // The copy's plain loads may otherwise be satisfied after the volatile one.
+                    Fences.loadFence();
+                    if (mClaimed.get() - mMask > sequence) {
+                        // Overwritten while copying.
+                        mLost++;
+                        mSequence.lazySet(sequence + 1);
+                        continue;
+                    }
+                }
+                mSequence.lazySet(sequence + 1);
+                return length;
+            }
+        }
+
+        /** Copies frame {@code sequence} under its slot lock; -1 if it is or was refilled. */
+        private int readLocked(int slot, long sequence, byte[] dst, int offset) {
+            ReentrantLock lock = mSlotLocks[slot];
+            if (!lock.tryLock()) {
+                return -1;
+            }
+            try {
+                if (mClaimed.get() - mMask > sequence) {
+                    return -1;
+                }
+                int length = mLengths[slot];
+                System.arraycopy(mFrames[slot], 0, dst, offset, length);
+                return length;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Blocks until a frame is available, the ring is closed or the timeout expires.
+         *
+         * @return {@code true} if a frame is available
+         */
+        public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            mWaiting = Thread.currentThread();
+            try {
+                while (mSequence.get() >= mHead.get()) {
+                    if (mClosed) {
+                        return false;
+                    }
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        return false;
+                    }
+                    LockSupport.parkNanos(this, Math.min(remaining, CONSUMER_PARK_NANOS));
+                    if (Thread.interrupted()) {
+                        throw new InterruptedException();
+                    }
+                }
+                return true;
+            } finally {
+                mWaiting = null;
+            }
+        }
+
+        /** Whether the ring is closed and this consumer has read everything published. */
+        public boolean isDrained() {
+            return mClosed && mSequence.get() >= mHead.get();
+        }
+
+        /** Frames published but not read yet. */
+        public int size() {
+            return (int) Math.max(0, mHead.get() - mSequence.get());
+        }
+
+        /** Frames this consumer missed because it fell behind. */
+        public long getLostCount() {
+            return mLost;
+        }
+
+        @Override
+        public String toString() {
+            return "Consumer{policy=" + mPolicy + ", behind=" + size() + ", lost=" + mLost + "}";
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package com.eagle.recorderdemo.audio;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Sidecar file listing the stretches of a recording that were not written.
+ *
+ * Each marker is a 16 byte big-endian record of the stored frame the gap sits in front of and the
+ * number of captured frames that were left out there, after a 16 byte header with the sample rate
+ * and frame size. Replaying the stored frames and inserting the gaps gives back the capture
+ * timeline. The file is only created once the first gap is appended.
+ */
+public final class GapLog implements Closeable {
+
+    public static final String EXTENSION = "gaps";
+
+    private static final int MAGIC = 0x47415053; // "GAPS"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int RECORD_SIZE = 16;
+
+    private final File mFile;
+    private final int mSampleRate;
+    private final int mFrameBytes;
+    private final byte[] mRecord = new byte[Math.max(HEADER_SIZE, RECORD_SIZE)];
+
+    private FileOutputStream mOut;
+    private int mCount;
+
+    public GapLog(File file, int sampleRate, int frameBytes) {
+        mFile = file;
+        mSampleRate = sampleRate;
+        mFrameBytes = frameBytes;
+    }
+
+    /**
+     * Returns the sidecar belonging to {@code recording}: same name, {@value #EXTENSION} extension.
+     */
+    public static File sidecarFor(File recording) {
+        String name = recording.getName();
+        int dot = name.lastIndexOf('.');
+        if (dot > 0) {
+            name = name.substring(0, dot);
+        }
+        return new File(recording.getParentFile(), name + "." + EXTENSION);
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    /** Number of markers appended so far. */
+    public int getCount() {
+        return mCount;
+    }
+
+    /**
+     * Records that {@code skippedFrames} captured frames are missing in front of stored frame
+     * {@code storedFrame}.
+     */
+    public void append(long storedFrame, long skippedFrames) throws IOException {
+        if (mOut == null) {
+            mOut = new FileOutputStream(mFile);
+            putInt(mRecord, 0, MAGIC);
+            putInt(mRecord, 4, VERSION);
+            putInt(mRecord, 8, mSampleRate);
+            putInt(mRecord, 12, mFrameBytes);
+            mOut.write(mRecord, 0, HEADER_SIZE);
+        }
+        putLong(mRecord, 0, storedFrame);
+        putLong(mRecord, 8, skippedFrames);
+        mOut.write(mRecord, 0, RECORD_SIZE);
+        mCount++;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (mOut != null) {
+            mOut.close();
+            mOut = null;
+        }
+    }
+
+    /**
+     * Reads back the markers of a sidecar as {@code {storedFrame, skippedFrames}} pairs. A torn
+     * last record is ignored.
+     */
+    public static long[][] read(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(file + " is not a gap log");
+            }
+            in.readInt(); // version
+            in.readInt(); // sample rate
+            in.readInt(); // frame bytes
+            int count = (int) ((file.length() - HEADER_SIZE) / RECORD_SIZE);
+            long[][] gaps = new long[Math.max(0, count)][2];
+            for (int i = 0; i < gaps.length; i++) {
+                gaps[i][0] = in.readLong();
+                gaps[i][1] = in.readLong();
+            }
+            return gaps;
+        } catch (EOFException e) {
+            throw new IOException(file + " is truncated", e);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void putInt(byte[] dst, int offset, int value) {
+        dst[offset] = (byte) (value >>> 24);
+        dst[offset + 1] = (byte) (value >>> 16);
+        dst[offset + 2] = (byte) (value >>> 8);
+        dst[offset + 3] = (byte) value;
+    }
+
+    private static void putLong(byte[] dst, int offset, long value) {
+        putInt(dst, offset, (int) (value >>> 32));
+        putInt(dst, offset + 4, (int) value);
+    }
+}
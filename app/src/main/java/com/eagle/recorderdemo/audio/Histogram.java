@@ -0,0 +1,107 @@
+package com.eagle.recorderdemo.audio;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Log-linear histogram of non-negative values, cheap enough to record every buffer of the
+ * capture loop.
+ *
+ * Values fall into one of four buckets per power of two, so percentiles are within 25% of the
+ * true value up to {@code 2^62}. Recording is a handful of arithmetic instructions and an
+ * ordered store, without locks or allocation; it must only be done from one thread at a time.
+ * Any thread may read, and sees a slightly stale but never torn view.
+ */
+public final class Histogram {
+
+    private static final int SUB_BITS = 2;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKETS);
+    private volatile long mCount;
+    private volatile long mSum;
+    private volatile long mMax;
+
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        int bucket = bucketOf(value);
+        mBuckets.lazySet(bucket, mBuckets.get(bucket) + 1);
+        mSum += value;
+        if (value > mMax) {
+            mMax = value;
+        }
+        mCount++;
+    }
+
+    static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /** Largest value that falls into {@code bucket}. */
+    static long upperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+        long sub = bucket % SUB_BUCKETS;
+        return ((SUB_BUCKETS + sub + 1) << (exponent - SUB_BITS)) - 1;
+    }
+
+    public long getCount() {
+        return mCount;
+    }
+
+    public long getMax() {
+        return mMax;
+    }
+
+    public long getMean() {
+        long count = mCount;
+        return count > 0 ? mSum / count : 0;
+    }
+
+    /**
+     * Returns a value that at least {@code percentile} percent of the recorded values do not
+     * exceed, within the resolution of the buckets.
+     */
+    public long getPercentile(double percentile) {
+        long count = 0;
+        long[] buckets = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = mBuckets.get(i);
+            count += buckets[i];
+        }
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += buckets[i];
+            if (seen >= rank) {
+                return Math.min(upperBound(i), mMax);
+            }
+        }
+        return mMax;
+    }
+
+    /** Summary with values divided by {@code scale} and suffixed with {@code unit}. */
+    public String format(long scale, String unit) {
+        return String.format(Locale.US, "n=%d mean=%d%s p50=%d%s p99=%d%s max=%d%s",
+                mCount, getMean() / scale, unit, getPercentile(50) / scale, unit,
+                getPercentile(99) / scale, unit, mMax / scale, unit);
+    }
+
+    @Override
+    public String toString() {
+        return format(1, "");
+    }
+}
@@ -0,0 +1,210 @@
+package com.eagle.recorderdemo.audio;
+
+/**
+ * IMA/DVI ADPCM in the block layout of WAVE format 0x0011.
+ *
+ * Each block starts with a 4 byte header per channel (the first sample verbatim and the step
+ * index), followed by groups of 4 bytes per channel holding 8 samples each, low nibble first.
+ * Four bits per sample give roughly 4:1 over PCM16 for a few adds and shifts per sample.
+ */
+public final class ImaAdpcm {
+
+    private static final int[] INDEX_TABLE = {
+            -1, -1, -1, -1, 2, 4, 6, 8,
+            -1, -1, -1, -1, 2, 4, 6, 8
+    };
+
+    private static final int[] STEP_TABLE = {
+            7, 8, 9, 10, 11, 12, 13, 14, 16, 17, 19, 21, 23, 25, 28, 31, 34, 37, 41, 45,
+            50, 55, 60, 66, 73, 80, 88, 97, 107, 118, 130, 143, 157, 173, 190, 209, 230,
+            253, 279, 307, 337, 371, 408, 449, 494, 544, 598, 658, 724, 796, 876, 963,
+            1060, 1166, 1282, 1411, 1552, 1707, 1878, 2066, 2272, 2499, 2749, 3024, 3327,
+            3660, 4026, 4428, 4871, 5358, 5894, 6484, 7132, 7845, 8630, 9493, 10442, 11487,
+            12635, 13899, 15289, 16818, 18500, 20350, 22385, 24623, 27086, 29794, 32767
+    };
+
+    private ImaAdpcm() {
+    }
+
+    /** Sample frames in a block of {@code blockAlign} bytes. */
+    public static int samplesPerBlock(int blockAlign, int channels) {
+        return (blockAlign - 4 * channels) * 8 / (4 * channels) + 1;
+    }
+
+    public static final class Encoder implements FrameEncoder {
+        private final int mChannels;
+        private final int mBlockAlign;
+        private final int mFramesPerBlock;
+        private final int[] mPredictor;
+        private final int[] mIndex;
+
+        /**
+         * @param blockAlign block size in bytes; {@code blockAlign - 4 * channels} must be a
+         *         multiple of {@code 4 * channels}
+         */
+        public Encoder(int channels, int blockAlign) {
+            if ((blockAlign - 4 * channels) % (4 * channels) != 0) {
+                throw new IllegalArgumentException("bad blockAlign " + blockAlign);
+            }
+            mChannels = channels;
+            mBlockAlign = blockAlign;
+            mFramesPerBlock = samplesPerBlock(blockAlign, channels);
+            mPredictor = new int[channels];
+            mIndex = new int[channels];
+        }
+
+        @Override
+        public int framesPerBlock() {
+            return mFramesPerBlock;
+        }
+
+        @Override
+        public int maxEncodedBytes() {
+            return mBlockAlign;
+        }
+
+        /**
+         * Always produces a full block; a short last block is padded with its final sample.
+         */
+        @Override
+        public int encode(byte[] pcm, int offset, int frames, byte[] out) {
+            int channels = mChannels;
+            int o = 0;
+            for (int c = 0; c < channels; c++) {
+                int first = sample(pcm, offset, c, 0, frames);
+                mPredictor[c] = first;
+                out[o++] = (byte) first;
+                out[o++] = (byte) (first >> 8);
+                out[o++] = (byte) mIndex[c];
+                out[o++] = 0;
+            }
+            for (int frame = 1; frame < mFramesPerBlock; frame += 8) {
+                for (int c = 0; c < channels; c++) {
+                    for (int k = 0; k < 8; k += 2) {
+                        int lo = encodeSample(c, sample(pcm, offset, c, frame + k, frames));
+                        int hi = encodeSample(c, sample(pcm, offset, c, frame + k + 1, frames));
+                        out[o++] = (byte) (lo | hi << 4);
+                    }
+                }
+            }
+            return o;
+        }
+
+        private int sample(byte[] pcm, int offset, int channel, int frame, int frames) {
+            if (frame >= frames) {
+                frame = Math.max(0, frames - 1);
+                if (frames == 0) {
+                    return 0;
+                }
+            }
+            int i = offset + (frame * mChannels + channel) * 2;
+            return (short) ((pcm[i] & 0xff) | (pcm[i + 1] << 8));
+        }
+
+        private int encodeSample(int c, int sample) {
+            int predictor = mPredictor[c];
+            int index = mIndex[c];
+            int step = STEP_TABLE[index];
+            int diff = sample - predictor;
+            int nibble = 0;
+            if (diff < 0) {
+                nibble = 8;
+                diff = -diff;
+            }
+            int delta = step >> 3;
+            if (diff >= step) {
+                nibble |= 4;
+                diff -= step;
+                delta += step;
+            }
+            step >>= 1;
+            if (diff >= step) {
+                nibble |= 2;
+                diff -= step;
+                delta += step;
+            }
+            step >>= 1;
+            if (diff >= step) {
+                nibble |= 1;
+                delta += step;
+            }
+            predictor += (nibble & 8) != 0 ? -delta : delta;
+            mPredictor[c] = clamp16(predictor);
+            mIndex[c] = clampIndex(index + INDEX_TABLE[nibble]);
+            return nibble;
+        }
+    }
+
+    public static final class Decoder implements FrameDecoder {
+        private final int mChannels;
+        private final int mFramesPerBlock;
+
+        public Decoder(int channels, int blockAlign) {
+            mChannels = channels;
+            mFramesPerBlock = samplesPerBlock(blockAlign, channels);
+        }
+
+        public int framesPerBlock() {
+            return mFramesPerBlock;
+        }
+
+        @Override
+        public int maxDecodedBytes() {
+            return mFramesPerBlock * mChannels * 2;
+        }
+
+        @Override
+        public int decode(byte[] in, int offset, int length, byte[] pcm, int pcmOffset) {
+            int channels = mChannels;
+            int frames = samplesPerBlock(length, channels);
+            int frameBytes = channels * 2;
+            for (int c = 0; c < channels; c++) {
+                int h = offset + c * 4;
+                int predictor = (short) ((in[h] & 0xff) | (in[h + 1] << 8));
+                int index = clampIndex(in[h + 2] & 0xff);
+                int out = pcmOffset + c * 2;
+                put16(pcm, out, predictor);
+                // Channel c's 4 byte groups are interleaved with the other channels'.
+                int frame = 1;
+                for (int group = offset + 4 * channels + 4 * c; frame < frames;
+                        group += 4 * channels) {
+                    for (int b = 0; b < 4 && frame < frames; b++) {
+                        int packed = in[group + b] & 0xff;
+                        for (int shift = 0; shift <= 4 && frame < frames; shift += 4) {
+                            int nibble = (packed >> shift) & 0xf;
+                            int step = STEP_TABLE[index];
+                            int delta = step >> 3;
+                            if ((nibble & 4) != 0) {
+                                delta += step;
+                            }
+                            if ((nibble & 2) != 0) {
+                                delta += step >> 1;
+                            }
+                            if ((nibble & 1) != 0) {
+                                delta += step >> 2;
+                            }
+                            predictor = clamp16(predictor + ((nibble & 8) != 0 ? -delta : delta));
+                            index = clampIndex(index + INDEX_TABLE[nibble]);
+                            put16(pcm, out + frame * frameBytes, predictor);
+                            frame++;
+                        }
+                    }
+                }
+            }
+            return frames * frameBytes;
+        }
+    }
+
+    private static void put16(byte[] pcm, int i, int sample) {
+        pcm[i] = (byte) sample;
+        pcm[i + 1] = (byte) (sample >> 8);
+    }
+
+    private static int clamp16(int v) {
+        return v > 32767 ? 32767 : v < -32768 ? -32768 : v;
+    }
+
+    private static int clampIndex(int index) {
+        return index < 0 ? 0 : index > 88 ? 88 : index;
+    }
+}
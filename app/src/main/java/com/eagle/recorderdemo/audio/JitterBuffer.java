@@ -0,0 +1,243 @@
+package com.eagle.recorderdemo.audio;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds PCM16 frames between a producer paced by capture and a consumer paced by an output
+ * device, keeping the amount in between near a target latency.
+ *
+ * The two clocks never quite agree and both sides deliver in bursts, so the fill wanders. The
+ * target is for its low point, the cushion left right after a read. When that strays more than a
+ * step from the target over a window, the consumer drops the surplus or replays recent audio to
+ * make up the shortfall, a few frames per read. When it runs dry anyway it raises the target by
+ * a step and replays the most recent step of audio, instead of going silent, until the fill has
+ * built up to the new target. After enough audio without an underrun the target comes down a
+ * step again, so the latency settles just above what the device needs.
+ *
+ * {@link #write} is called by one producer thread and never blocks; {@link #read} by one consumer
+ * thread. Neither takes a lock or allocates.
+ */
+public final class JitterBuffer {
+
+    // At most this fraction of a read is dropped or made up to bring the fill back to the target.
+    private static final int DROP_DIVISOR = 8;
+    // Windows per second over which the lowest fill is watched.
+    private static final int WINDOWS_PER_SECOND = 2;
+    // Seconds of audio without an underrun before the target is lowered a step.
+    private static final int CALM_SECONDS = 10;
+
+    private final int mSampleRate;
+    private final int mFrameBytes;
+    private final int mCapacity;
+    private final byte[] mData;
+    private final int mMinTarget;
+    private final int mMaxTarget;
+    private final int mStep;
+
+    /** Frames written so far; advanced by the producer only. */
+    private final AtomicLong mHead = new AtomicLong();
+    /** Frames consumed or dropped so far; advanced by the consumer only. */
+    private final AtomicLong mTail = new AtomicLong();
+
+    private volatile int mTarget;
+    private volatile long mOverflowFrames;
+    private volatile long mDroppedFrames;
+    private volatile long mDuplicatedFrames;
+    private volatile long mUnderruns;
+
+    // Consumer only: the last step of audio handed out, replayed on underrun.
+    private final byte[] mHistory;
+    // Whether the fill reached the target since the last underrun, and ever.
+    private boolean mPrimed;
+    private boolean mStarted;
+    private long mCalmFrames;
+    private long mWindowFrames;
+    private long mWindowMinFill = Long.MAX_VALUE;
+    // Frames still to drop, or to make up if negative, to bring the fill back to the target.
+    private long mCorrection;
+
+    /**
+     * @param minTargetFrames lowest latency the buffer aims for, and where it starts
+     * @param maxTargetFrames highest latency it will grow to after underruns
+     * @param stepFrames how much the target moves at a time and how much is replayed when
+     *         the buffer runs dry; about one device burst
+     */
+    public JitterBuffer(int sampleRate, int frameBytes, int minTargetFrames, int maxTargetFrames,
+            int stepFrames) {
+        if (frameBytes <= 0 || stepFrames <= 0 || minTargetFrames <= 0
+                || maxTargetFrames < minTargetFrames) {
+            throw new IllegalArgumentException("bad jitter buffer bounds " + minTargetFrames
+                    + ".." + maxTargetFrames + " step " + stepFrames);
+        }
+        mSampleRate = sampleRate;
+        mFrameBytes = frameBytes;
+        mMinTarget = minTargetFrames;
+        mMaxTarget = maxTargetFrames;
+        mStep = stepFrames;
+        mCapacity = 2 * (maxTargetFrames + stepFrames);
+        mData = new byte[mCapacity * frameBytes];
+        mHistory = new byte[stepFrames * frameBytes];
+        mTarget = minTargetFrames;
+    }
+
+    /**
+     * Queues whole frames of {@code src}. If there is no room the oldest part of {@code src} is
+     * dropped, so the most recent audio is always kept.
+     */
+    public void write(byte[] src, int offset, int length) {
+        int frames = length / mFrameBytes;
+        long head = mHead.get();
+        long free = mCapacity - (head - mTail.get());
+        if (frames > free) {
+            int skip = (int) (frames - free);
+            mOverflowFrames += skip;
+            offset += skip * mFrameBytes;
+            frames -= skip;
+        }
+        int at = (int) (head % mCapacity);
+        int first = Math.min(frames, mCapacity - at);
+        System.arraycopy(src, offset, mData, at * mFrameBytes, first * mFrameBytes);
+        System.arraycopy(src, offset + first * mFrameBytes, mData, 0,
+                (frames - first) * mFrameBytes);
+        mHead.lazySet(head + frames);
+    }
+
+    /**
+     * Fills all of {@code dst} with whole frames: silence until the buffer first reaches its
+     * target, queued audio after that, and replayed audio while it builds up again after
+     * running dry.
+     *
+     * @return frames of queued audio in {@code dst}
+     */
+    public int read(byte[] dst, int offset, int length) {
+        int frames = length / mFrameBytes;
+        long tail = mTail.get();
+        long fill = mHead.get() - tail;
+        if (!mPrimed) {
+            if (fill < mTarget + frames) {
+                if (mStarted) {
+                    conceal(dst, offset, frames);
+                    mDuplicatedFrames += frames;
+                } else {
+                    Arrays.fill(dst, offset, offset + frames * mFrameBytes, (byte) 0);
+                }
+                return 0;
+            }
+            mPrimed = true;
+            mStarted = true;
+        }
+        // Spread the correction of the last window over several reads.
+        int limit = Math.max(1, frames / DROP_DIVISOR);
+        if (mCorrection > 0) {
+            int drop = (int) Math.min(Math.min(mCorrection, limit), Math.max(0, fill - frames));
+            tail += drop;
+            fill -= drop;
+            mCorrection -= drop;
+            mDroppedFrames += drop;
+        }
+        int want = frames;
+        if (mCorrection < 0) {
+            int insert = (int) Math.min(-mCorrection, limit);
+            want -= insert;
+            mCorrection += insert;
+        }
+        int copy = (int) Math.min(want, fill);
+        int at = (int) (tail % mCapacity);
+        int first = Math.min(copy, mCapacity - at);
+        System.arraycopy(mData, at * mFrameBytes, dst, offset, first * mFrameBytes);
+        System.arraycopy(mData, 0, dst, offset + first * mFrameBytes,
+                (copy - first) * mFrameBytes);
+        mTail.lazySet(tail + copy);
+        remember(dst, offset, copy);
+        if (copy < frames) {
+            conceal(dst, offset + copy * mFrameBytes, frames - copy);
+            mDuplicatedFrames += frames - copy;
+        }
+
+        if (copy < want) {
+            mUnderruns++;
+            mTarget = Math.min(mMaxTarget, mTarget + mStep);
+            mPrimed = false;
+            mCalmFrames = 0;
+            mWindowFrames = 0;
+            mWindowMinFill = Long.MAX_VALUE;
+            mCorrection = 0;
+            return copy;
+        }
+        mWindowMinFill = Math.min(mWindowMinFill, fill - copy);
+        mWindowFrames += frames;
+        if (mWindowFrames >= mSampleRate / WINDOWS_PER_SECOND) {
+            // Drift: keep the low point of the fill within a step of the target.
+            if (mWindowMinFill > mTarget + mStep || mWindowMinFill < mTarget - mStep) {
+                mCorrection = mWindowMinFill - mTarget;
+            }
+            mWindowFrames = 0;
+            mWindowMinFill = Long.MAX_VALUE;
+        }
+        mCalmFrames += frames;
+        if (mCalmFrames >= (long) mSampleRate * CALM_SECONDS) {
+            mTarget = Math.max(mMinTarget, mTarget - mStep);
+            mCalmFrames = 0;
+        }
+        return copy;
+    }
+
+    /** Keeps the last {@code frames} frames handed out, up to a step, for {@link #conceal}. */
+    private void remember(byte[] src, int offset, int frames) {
+        int keep = Math.min(frames, mStep);
+        int shift = mStep - keep;
+        System.arraycopy(mHistory, keep * mFrameBytes, mHistory, 0, shift * mFrameBytes);
+        System.arraycopy(src, offset + (frames - keep) * mFrameBytes, mHistory,
+                shift * mFrameBytes, keep * mFrameBytes);
+    }
+
+    /** Fills {@code frames} frames by looping over the last step of audio handed out. */
+    private void conceal(byte[] dst, int offset, int frames) {
+        while (frames > 0) {
+            int chunk = Math.min(frames, mStep);
+            System.arraycopy(mHistory, 0, dst, offset, chunk * mFrameBytes);
+            offset += chunk * mFrameBytes;
+            frames -= chunk;
+        }
+    }
+
+    /** Frames queued right now. */
+    public int getFill() {
+        return (int) (mHead.get() - mTail.get());
+    }
+
+    /** Frames the buffer currently tries to hold. */
+    public int getTarget() {
+        return mTarget;
+    }
+
+    /** Frames of new audio discarded by {@link #write} because the buffer was full. */
+    public long getOverflowFrames() {
+        return mOverflowFrames;
+    }
+
+    /** Frames skipped by the consumer to bring the latency down to the target. */
+    public long getDroppedFrames() {
+        return mDroppedFrames;
+    }
+
+    /** Frames the consumer made up by replaying audio. */
+    public long getDuplicatedFrames() {
+        return mDuplicatedFrames;
+    }
+
+    /** Reads that found the buffer short of what they asked for. */
+    public long getUnderruns() {
+        return mUnderruns;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "JitterBuffer{fill=%d, target=%d (%.1f ms), "
+                + "bounds=%d..%d, underruns=%d, duplicated=%d, dropped=%d, overflow=%d}",
+                getFill(), mTarget, mTarget * 1000f / mSampleRate, mMinTarget, mMaxTarget,
+                mUnderruns, mDuplicatedFrames, mDroppedFrames, mOverflowFrames);
+    }
+}
@@ -0,0 +1,225 @@
+package com.eagle.recorderdemo.audio;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Per-channel peak and RMS metering of interleaved little-endian PCM16.
+ *
+ * {@link #process} makes a single pass over the samples and allocates nothing. Every
+ * {@code sampleRate / publishRate} frames the accumulated levels are published; readers on any
+ * thread copy the latest published values with {@link #read(Snapshot)}, which is lock-free and
+ * never observes a half-written publication. A {@link Listener} can instead have each publication
+ * pushed to it.
+ */
+public final class LevelMeter {
+
+    /** Level reported for digital silence. */
+    public static final float SILENCE_DB = -120f;
+
+    private static final float FULL_SCALE = 32768f;
+
+    /**
+     * Levels of one publishing period. Preallocate one per reader and reuse it.
+     */
+    public static final class Snapshot {
+        /** Linear peak per channel, 1.0 is full scale. */
+        public final float[] peak;
+        /** Linear RMS per channel, 1.0 is a full scale square wave. */
+        public final float[] rms;
+        /** Number of periods published before this one was taken. */
+        public long sequence;
+
+        public Snapshot(int channels) {
+            peak = new float[channels];
+            rms = new float[channels];
+        }
+
+        public float peakDb(int channel) {
+            return toDb(peak[channel]);
+        }
+
+        public float rmsDb(int channel) {
+            return toDb(rms[channel]);
+        }
+
+        public float maxPeak() {
+            float max = 0;
+            for (float p : peak) {
+                max = Math.max(max, p);
+            }
+            return max;
+        }
+
+        public float maxRms() {
+            float max = 0;
+            for (float r : rms) {
+                max = Math.max(max, r);
+            }
+            return max;
+        }
+    }
+
+    /**
+     * Receives every publication on the processing thread; must return quickly.
+     */
+    public interface Listener {
+        /**
+         * @param peak linear peak of the loudest channel over the period
+         * @param rms linear RMS of the loudest channel over the period
+         */
+        void onLevels(float peak, float rms);
+    }
+
+    private final int mChannels;
+    private final int mFramesPerPublish;
+
+    // Writer-side accumulators.
+    private final int[] mPeak;
+    private final long[] mSumSquares;
+    private int mChannel;
+    private int mFrames;
+
+    // Seqlock: odd while a publication is in progress. The data slots are volatile too, which
+    // keeps the retry check sound under the Java memory model.
+    private volatile long mSequence;
+    private final AtomicLongArray mPublished;
+    private volatile Listener mListener;
+
+    /**
+     * @param publishRate publications per second
+     */
+    public LevelMeter(int channels, int sampleRate, int publishRate) {
+        mChannels = channels;
+        mFramesPerPublish = Math.max(1, sampleRate / Math.max(1, publishRate));
+        mPeak = new int[channels];
+        mSumSquares = new long[channels];
+        mPublished = new AtomicLongArray(channels);
+    }
+
+    public int getChannels() {
+        return mChannels;
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Meters {@code length} bytes of interleaved PCM16. Must be called from a single thread.
+     */
+    public void process(byte[] pcm, int offset, int length) {
+        int[] peak = mPeak;
+        long[] sumSquares = mSumSquares;
+        int channel = mChannel;
+        int frames = mFrames;
+        for (int i = offset, end = offset + (length & ~1); i < end; i += 2) {
+            int s = (short) ((pcm[i] & 0xff) | (pcm[i + 1] << 8));
+            int abs = s < 0 ? -s : s;
+            if (abs > peak[channel]) {
+                peak[channel] = abs;
+            }
+            sumSquares[channel] += s * s;
+            if (++channel == mChannels) {
+                channel = 0;
+                if (++frames == mFramesPerPublish) {
+                    publish(frames);
+                    frames = 0;
+                }
+            }
+        }
+        mChannel = channel;
+        mFrames = frames;
+    }
+
+    private void publish(int frames) {
+        float maxPeak = 0;
+        float maxRms = 0;
+        long sequence = mSequence;
+        mSequence = sequence + 1;
+        for (int c = 0; c < mChannels; c++) {
+            float peak = mPeak[c] / FULL_SCALE;
+            float rms = (float) Math.sqrt((double) mSumSquares[c] / frames) / FULL_SCALE;
+            mPublished.set(c, (long) Float.floatToRawIntBits(peak) << 32
+                    | (Float.floatToRawIntBits(rms) & 0xFFFFFFFFL));
+            mPeak[c] = 0;
+            mSumSquares[c] = 0;
+            maxPeak = Math.max(maxPeak, peak);
+            maxRms = Math.max(maxRms, rms);
+        }
+        mSequence = sequence + 2;
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onLevels(maxPeak, maxRms);
+        }
+    }
+
+    /**
+     * Clears accumulated and published levels. Must be called from the processing thread.
+     */
+    public void reset() {
+        mChannel = 0;
+        mFrames = 0;
+        for (int c = 0; c < mChannels; c++) {
+            mPeak[c] = 0;
+            mSumSquares[c] = 0;
+        }
+        long sequence = mSequence;
+        mSequence = sequence + 1;
+        for (int c = 0; c < mChannels; c++) {
+            mPublished.set(c, 0);
+        }
+        mSequence = sequence + 2;
+    }
+
+    /**
+     * Copies the latest published levels into {@code into}.
+     */
+    public void read(Snapshot into) {
+        while (true) {
+            long before = mSequence;
+            if ((before & 1) != 0) {
+                Thread.yield();
+                continue;
+            }
+            for (int c = 0; c < mChannels; c++) {
+                long packed = mPublished.get(c);
+                into.peak[c] = Float.intBitsToFloat((int) (packed >>> 32));
+                into.rms[c] = Float.intBitsToFloat((int) packed);
+            }
+            if (mSequence == before) {
+                into.sequence = before >> 1;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Maps the loudest channel's RMS onto 0..100 over a {@code floorDb}..0 dBFS scale, which is
+     * what the needle of a VU meter shows.
+     */
+    public int getAmplitude(float floorDb) {
+        float rms = 0;
+        for (int c = 0; c < mChannels; c++) {
+            rms = Math.max(rms, Float.intBitsToFloat((int) mPublished.get(c)));
+        }
+        return (int) (toScale(rms, floorDb) * 100);
+    }
+
+    /**
+     * Maps a linear level onto 0..1 over a {@code floorDb}..0 dBFS scale.
+     */
+    public static float toScale(float linear, float floorDb) {
+        float db = toDb(linear);
+        if (db <= floorDb) {
+            return 0;
+        }
+        return Math.min(1f, (db - floorDb) / -floorDb);
+    }
+
+    public static float toDb(float linear) {
+        if (linear <= 0) {
+            return SILENCE_DB;
+        }
+        return Math.max(SILENCE_DB, (float) (20 * Math.log10(linear)));
+    }
+}
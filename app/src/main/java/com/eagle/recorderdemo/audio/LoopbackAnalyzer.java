@@ -0,0 +1,104 @@
+package com.eagle.recorderdemo.audio;
+
+import java.util.Random;
+
+/**
+ * Finds a known noise burst in captured audio, for measuring the round trip from the speaker
+ * back to the microphone.
+ *
+ * The burst is white noise, whose autocorrelation is a single sharp peak, so it stands out from
+ * room noise and echoes and its position is found to the frame. {@link #find} slides the burst
+ * over the capture mixed down to mono and picks the offset of the highest normalized
+ * correlation, which is independent of how loud the burst came back.
+ */
+public final class LoopbackAnalyzer {
+
+    /** Correlation below which a match is considered noise. */
+    public static final double MIN_CORRELATION = 0.3;
+
+    private static final int AMPLITUDE = Short.MAX_VALUE / 2;
+
+    private final int mChannels;
+    private final short[] mBurst;
+    private final double mBurstEnergy;
+    private double mCorrelation;
+
+    public LoopbackAnalyzer(int channels, int burstFrames, long seed) {
+        mChannels = channels;
+        mBurst = new short[burstFrames];
+        Random random = new Random(seed);
+        double energy = 0;
+        for (int i = 0; i < burstFrames; i++) {
+            mBurst[i] = (short) (random.nextBoolean() ? AMPLITUDE : -AMPLITUDE);
+            energy += (double) mBurst[i] * mBurst[i];
+        }
+        mBurstEnergy = energy;
+    }
+
+    public int getBurstFrames() {
+        return mBurst.length;
+    }
+
+    /** The burst as interleaved little-endian PCM16, the same on every channel. */
+    public byte[] getBurst() {
+        byte[] pcm = new byte[mBurst.length * mChannels * 2];
+        int at = 0;
+        for (short sample : mBurst) {
+            for (int channel = 0; channel < mChannels; channel++) {
+                pcm[at++] = (byte) sample;
+                pcm[at++] = (byte) (sample >> 8);
+            }
+        }
+        return pcm;
+    }
+
+    /**
+     * Returns the frame of {@code pcm} at which the burst starts, or -1 if nothing correlates
+     * better than {@link #MIN_CORRELATION}.
+     *
+     * @param frames interleaved PCM16 frames of capture starting at {@code offset}
+     */
+    public int find(byte[] pcm, int offset, int frames) {
+        int frameBytes = mChannels * 2;
+        float[] mono = new float[frames];
+        for (int i = 0, at = offset; i < frames; i++, at += frameBytes) {
+            int sum = 0;
+            for (int channel = 0; channel < mChannels; channel++) {
+                int b = at + channel * 2;
+                sum += (short) ((pcm[b] & 0xFF) | (pcm[b + 1] << 8));
+            }
+            mono[i] = sum / (float) mChannels;
+        }
+        // Energy of every window the burst is compared with, from prefix sums.
+        double[] prefix = new double[frames + 1];
+        for (int i = 0; i < frames; i++) {
+            prefix[i + 1] = prefix[i] + (double) mono[i] * mono[i];
+        }
+        int length = mBurst.length;
+        int best = -1;
+        double bestCorrelation = 0;
+        for (int lag = 0; lag + length <= frames; lag++) {
+            double window = prefix[lag + length] - prefix[lag];
+            if (window <= 0) {
+                continue;
+            }
+            double dot = 0;
+            for (int i = 0; i < length; i++) {
+                dot += mono[lag + i] * mBurst[i];
+            }
+            // The acoustic path may invert polarity.
+            double correlation = Math.abs(dot) / Math.sqrt(window * mBurstEnergy);
+            if (correlation > bestCorrelation) {
+                bestCorrelation = correlation;
+                best = lag;
+            }
+        }
+        mCorrelation = bestCorrelation;
+        return bestCorrelation >= MIN_CORRELATION ? best : -1;
+    }
+
+    /** Normalized correlation of the best match of the last {@link #find}, 0 to 1. */
+    public double getCorrelation() {
+        return mCorrelation;
+    }
+}
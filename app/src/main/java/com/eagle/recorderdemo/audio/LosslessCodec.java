@@ -0,0 +1,396 @@
+package com.eagle.recorderdemo.audio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Lossless PCM16 compression in the spirit of FLAC: fixed polynomial (order 0-4) linear
+ * prediction per channel, optional left/side stereo decorrelation, and Rice-coded residuals.
+ *
+ * A stream is a {@link #HEADER_SIZE} byte header followed by self-delimiting blocks:
+ * <pre>
+ *   sync 0xFF 0xF8 | payload length (3 bytes) | mode (1) | frames (2) | subframe per channel
+ *   subframe: order (1, 0xFF = verbatim) | rice parameter (1) | bit-packed warm-up + residuals
+ * </pre>
+ * All multi-byte fields are big-endian.
+ */
+public final class LosslessCodec {
+
+    public static final int HEADER_SIZE = 16;
+    public static final int BLOCK_HEADER_SIZE = 8;
+
+    private static final int MAGIC = 0x524C4143; // "RLAC"
+    private static final int VERSION = 1;
+    private static final int MAX_ORDER = 4;
+    private static final int VERBATIM = 0xFF;
+    private static final int MODE_INDEPENDENT = 0;
+    private static final int MODE_LEFT_SIDE = 1;
+
+    private LosslessCodec() {
+    }
+
+    /**
+     * Writes the stream header: magic, version, channels, sample rate.
+     */
+    public static void writeHeader(SegmentWriter out, int sampleRate, int channels)
+            throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.BIG_ENDIAN);
+        header.putInt(MAGIC);
+        header.putShort((short) VERSION);
+        header.putShort((short) channels);
+        header.putInt(sampleRate);
+        out.write(header.array(), 0, HEADER_SIZE);
+    }
+
+    /**
+     * Parses a stream header; returns {@code {sampleRate, channels}} or {@code null}.
+     */
+    public static int[] readHeader(ByteBuffer header) {
+        if (header.remaining() < HEADER_SIZE || header.getInt(0) != MAGIC) {
+            return null;
+        }
+        return new int[] {header.getInt(8), header.getShort(6)};
+    }
+
+    /** Payload length of the block whose 8 byte header starts at {@code offset}, or -1. */
+    public static int blockLength(byte[] header, int offset) {
+        if ((header[offset] & 0xff) != 0xFF || (header[offset + 1] & 0xff) != 0xF8) {
+            return -1;
+        }
+        return (header[offset + 2] & 0xff) << 16 | (header[offset + 3] & 0xff) << 8
+                | (header[offset + 4] & 0xff);
+    }
+
+    /** Size of a whole block with {@code payloadLength}, which counts from the mode byte on. */
+    public static int blockSize(int payloadLength) {
+        return payloadLength + 5;
+    }
+
+    /** Frames in the block whose 8 byte header starts at {@code offset}. */
+    public static int blockFrames(byte[] header, int offset) {
+        return (header[offset + 6] & 0xff) << 8 | (header[offset + 7] & 0xff);
+    }
+
+    public static final class Encoder implements FrameEncoder {
+        private final int mChannels;
+        private final int mFramesPerBlock;
+        private final int[][] mSamples;
+        private final int[] mSide;
+        private final long[] mErrors = new long[MAX_ORDER + 1];
+        private final BitWriter mBits = new BitWriter();
+
+        public Encoder(int channels, int framesPerBlock) {
+            if (framesPerBlock <= MAX_ORDER || framesPerBlock > 0xFFFF) {
+                throw new IllegalArgumentException("bad framesPerBlock " + framesPerBlock);
+            }
+            mChannels = channels;
+            mFramesPerBlock = framesPerBlock;
+            mSamples = new int[channels][framesPerBlock];
+            mSide = new int[framesPerBlock];
+        }
+
+        @Override
+        public int framesPerBlock() {
+            return mFramesPerBlock;
+        }
+
+        @Override
+        public int maxEncodedBytes() {
+            // Verbatim at 17 bits per sample plus headers.
+            return BLOCK_HEADER_SIZE + mChannels * (2 + (mFramesPerBlock * 17 + 7) / 8 + 8);
+        }
+
+        @Override
+        public int encode(byte[] pcm, int offset, int frames, byte[] out) {
+            int channels = mChannels;
+            for (int f = 0, i = offset; f < frames; f++) {
+                for (int c = 0; c < channels; c++, i += 2) {
+                    mSamples[c][f] = (short) ((pcm[i] & 0xff) | (pcm[i + 1] << 8));
+                }
+            }
+            int mode = MODE_INDEPENDENT;
+            if (channels == 2) {
+                for (int f = 0; f < frames; f++) {
+                    mSide[f] = mSamples[0][f] - mSamples[1][f];
+                }
+                long right = cost(mSamples[1], frames);
+                long side = cost(mSide, frames);
+                if (side < right) {
+                    mode = MODE_LEFT_SIDE;
+                }
+            }
+
+            int o = BLOCK_HEADER_SIZE;
+            for (int c = 0; c < channels; c++) {
+                boolean isSide = mode == MODE_LEFT_SIDE && c == 1;
+                o = encodeChannel(isSide ? mSide : mSamples[c], frames, isSide ? 17 : 16, out, o);
+            }
+            int payload = o - 5;
+            out[0] = (byte) 0xFF;
+            out[1] = (byte) 0xF8;
+            out[2] = (byte) (payload >> 16);
+            out[3] = (byte) (payload >> 8);
+            out[4] = (byte) payload;
+            out[5] = (byte) mode;
+            out[6] = (byte) (frames >> 8);
+            out[7] = (byte) frames;
+            return o;
+        }
+
+        /** Sum of absolute residuals of the best fixed predictor. */
+        private long cost(int[] x, int frames) {
+            return mErrors[bestOrder(x, frames)];
+        }
+
+        /** Fills mErrors with the residual magnitude of each order and returns the best. */
+        private int bestOrder(int[] x, int frames) {
+            long e0 = 0, e1 = 0, e2 = 0, e3 = 0, e4 = 0;
+            for (int n = MAX_ORDER; n < frames; n++) {
+                int r0 = x[n];
+                int r1 = r0 - x[n - 1];
+                int r2 = r1 - (x[n - 1] - x[n - 2]);
+                int r3 = r2 - (x[n - 1] - 2 * x[n - 2] + x[n - 3]);
+                int r4 = r3 - (x[n - 1] - 3 * x[n - 2] + 3 * x[n - 3] - x[n - 4]);
+                e0 += Math.abs(r0);
+                e1 += Math.abs(r1);
+                e2 += Math.abs(r2);
+                e3 += Math.abs(r3);
+                e4 += Math.abs(r4);
+            }
+            long[] errors = mErrors;
+            errors[0] = e0;
+            errors[1] = e1;
+            errors[2] = e2;
+            errors[3] = e3;
+            errors[4] = e4;
+            int best = 0;
+            for (int order = 1; order <= MAX_ORDER; order++) {
+                if (errors[order] < errors[best]) {
+                    best = order;
+                }
+            }
+            return best;
+        }
+
+        private int encodeChannel(int[] x, int frames, int width, byte[] out, int o) {
+            int order = frames > MAX_ORDER ? bestOrder(x, frames) : 0;
+            long sum = 0;
+            for (int n = order; n < frames; n++) {
+                sum += zigzag(residual(x, n, order));
+            }
+            int count = frames - order;
+            int k = 0;
+            while (k < 30 && ((long) count << (k + 1)) < sum) {
+                k++;
+            }
+            long riceBits = (long) order * width + (long) count * (k + 1);
+            for (int n = order; n < frames && riceBits < (long) frames * width; n++) {
+                riceBits += zigzag(residual(x, n, order)) >>> k;
+            }
+
+            BitWriter bits = mBits;
+            if (riceBits >= (long) frames * width) {
+                out[o++] = (byte) VERBATIM;
+                out[o++] = 0;
+                bits.reset(out, o);
+                for (int n = 0; n < frames; n++) {
+                    bits.write(x[n] & ((1 << width) - 1), width);
+                }
+                return bits.finish();
+            }
+            out[o++] = (byte) order;
+            out[o++] = (byte) k;
+            bits.reset(out, o);
+            for (int n = 0; n < order; n++) {
+                bits.write(x[n] & ((1 << width) - 1), width);
+            }
+            for (int n = order; n < frames; n++) {
+                int v = zigzag(residual(x, n, order));
+                bits.writeUnary(v >>> k);
+                if (k > 0) {
+                    bits.write(v & ((1 << k) - 1), k);
+                }
+            }
+            return bits.finish();
+        }
+    }
+
+    public static final class Decoder implements FrameDecoder {
+        private final int mChannels;
+        private final int mMaxFrames;
+        private final int[][] mSamples;
+        private final BitReader mBits = new BitReader();
+
+        public Decoder(int channels, int maxFramesPerBlock) {
+            mChannels = channels;
+            mMaxFrames = maxFramesPerBlock;
+            mSamples = new int[channels][maxFramesPerBlock];
+        }
+
+        @Override
+        public int maxDecodedBytes() {
+            return mMaxFrames * mChannels * 2;
+        }
+
+        /**
+         * Decodes a whole block including its 8 byte header.
+         */
+        @Override
+        public int decode(byte[] in, int offset, int length, byte[] pcm, int pcmOffset) {
+            int mode = in[offset + 5] & 0xff;
+            int frames = (in[offset + 6] & 0xff) << 8 | (in[offset + 7] & 0xff);
+            if (frames > mMaxFrames) {
+                throw new IllegalArgumentException("block of " + frames + " frames");
+            }
+            int o = offset + BLOCK_HEADER_SIZE;
+            for (int c = 0; c < mChannels; c++) {
+                int width = mode == MODE_LEFT_SIDE && c == 1 ? 17 : 16;
+                o = decodeChannel(in, o, mSamples[c], frames, width);
+            }
+            if (mode == MODE_LEFT_SIDE) {
+                int[] left = mSamples[0];
+                int[] right = mSamples[1];
+                for (int f = 0; f < frames; f++) {
+                    right[f] = left[f] - right[f];
+                }
+            }
+            int p = pcmOffset;
+            for (int f = 0; f < frames; f++) {
+                for (int c = 0; c < mChannels; c++) {
+                    int s = mSamples[c][f];
+                    pcm[p++] = (byte) s;
+                    pcm[p++] = (byte) (s >> 8);
+                }
+            }
+            return p - pcmOffset;
+        }
+
+        private int decodeChannel(byte[] in, int o, int[] x, int frames, int width) {
+            int order = in[o++] & 0xff;
+            int k = in[o++] & 0xff;
+            BitReader bits = mBits;
+            bits.reset(in, o);
+            int shift = 32 - width;
+            if (order == VERBATIM) {
+                for (int n = 0; n < frames; n++) {
+                    x[n] = bits.read(width) << shift >> shift;
+                }
+                return bits.finish();
+            }
+            for (int n = 0; n < order; n++) {
+                x[n] = bits.read(width) << shift >> shift;
+            }
+            for (int n = order; n < frames; n++) {
+                int v = bits.readUnary() << k;
+                if (k > 0) {
+                    v |= bits.read(k);
+                }
+                x[n] = unzigzag(v) + prediction(x, n, order);
+            }
+            return bits.finish();
+        }
+    }
+
+    private static int prediction(int[] x, int n, int order) {
+        switch (order) {
+            case 0:
+                return 0;
+            case 1:
+                return x[n - 1];
+            case 2:
+                return 2 * x[n - 1] - x[n - 2];
+            case 3:
+                return 3 * x[n - 1] - 3 * x[n - 2] + x[n - 3];
+            default:
+                return 4 * x[n - 1] - 6 * x[n - 2] + 4 * x[n - 3] - x[n - 4];
+        }
+    }
+
+    private static int residual(int[] x, int n, int order) {
+        return x[n] - prediction(x, n, order);
+    }
+
+    private static int zigzag(int v) {
+        return (v << 1) ^ (v >> 31);
+    }
+
+    private static int unzigzag(int v) {
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    private static final class BitWriter {
+        private byte[] mOut;
+        private int mPos;
+        private long mAcc;
+        private int mCount;
+
+        void reset(byte[] out, int pos) {
+            mOut = out;
+            mPos = pos;
+            mAcc = 0;
+            mCount = 0;
+        }
+
+        void write(int value, int bits) {
+            mAcc = (mAcc << bits) | (value & ((1L << bits) - 1));
+            mCount += bits;
+            while (mCount >= 8) {
+                mCount -= 8;
+                mOut[mPos++] = (byte) (mAcc >>> mCount);
+            }
+        }
+
+        /** {@code q} zero bits followed by a one. */
+        void writeUnary(int q) {
+            while (q >= 24) {
+                write(0, 24);
+                q -= 24;
+            }
+            write(1, q + 1);
+        }
+
+        /** Pads to a byte boundary and returns the position after the last byte. */
+        int finish() {
+            if (mCount > 0) {
+                write(0, 8 - mCount);
+            }
+            return mPos;
+        }
+    }
+
+    private static final class BitReader {
+        private byte[] mIn;
+        private int mPos;
+        private long mAcc;
+        private int mCount;
+
+        void reset(byte[] in, int pos) {
+            mIn = in;
+            mPos = pos;
+            mAcc = 0;
+            mCount = 0;
+        }
+
+        int read(int bits) {
+            while (mCount < bits) {
+                mAcc = (mAcc << 8) | (mIn[mPos++] & 0xff);
+                mCount += 8;
+            }
+            mCount -= bits;
+            return (int) ((mAcc >>> mCount) & ((1L << bits) - 1));
+        }
+
+        int readUnary() {
+            int q = 0;
+            while (read(1) == 0) {
+                q++;
+            }
+            return q;
+        }
+
+        int finish() {
+            return mPos;
+        }
+    }
+}
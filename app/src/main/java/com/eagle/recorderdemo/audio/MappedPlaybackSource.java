@@ -0,0 +1,197 @@
+package com.eagle.recorderdemo.audio;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * {@link PlaybackSource} over uncompressed PCM16 that hands out slices of a memory mapping, so
+ * audio goes from the page cache to the output without being copied into the Java heap.
+ *
+ * The data region is mapped in windows, which keeps RF64 files beyond 2 GB playable. A
+ * background thread touches the pages ahead of the play position and maps the following window
+ * before it is needed, so a page fault never lands on the playback thread. Seeking only moves
+ * the position, to any frame.
+ */
+public final class MappedPlaybackSource implements PlaybackSource {
+
+    private static final long WINDOW_BYTES = 32L * 1024 * 1024;
+    private static final int PREFETCH_BYTES = 1024 * 1024;
+    private static final int PAGE_SIZE = 4096;
+
+    private static final ExecutorService PREFETCHER = Executors.newSingleThreadExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "PlaybackPrefetch");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    private final int mSampleRate;
+    private final int mChannels;
+    private final int mFrameBytes;
+    private final long mDataOffset;
+    private final long mDataSize;
+
+    // Written by the playback thread only; mPosition is relative to mDataOffset.
+    private volatile long mPosition;
+    private volatile MappedByteBuffer mWindow;
+    private volatile long mWindowStart = -1;
+    private ByteBuffer mView;
+
+    // Exchanged with the prefetch thread.
+    private volatile MappedByteBuffer mNextWindow;
+    private volatile long mNextWindowStart = -1;
+    private volatile long mPrefetchedTo;
+    private volatile boolean mPrefetchQueued;
+    private volatile boolean mClosed;
+
+    private final Runnable mPrefetch = new Runnable() {
+        @Override
+        public void run() {
+            mPrefetchQueued = false;
+            prefetch();
+        }
+    };
+
+    /**
+     * @param dataOffset file offset of the first audio byte
+     * @param dataSize audio bytes, rounded down to whole frames
+     */
+    public MappedPlaybackSource(RandomAccessFile file, int sampleRate, int channels,
+            long dataOffset, long dataSize) {
+        mFile = file;
+        mChannel = file.getChannel();
+        mSampleRate = sampleRate;
+        mChannels = channels;
+        mFrameBytes = channels * 2;
+        mDataOffset = dataOffset;
+        mDataSize = dataSize - dataSize % mFrameBytes;
+    }
+
+    @Override
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    @Override
+    public int getChannels() {
+        return mChannels;
+    }
+
+    @Override
+    public long getFrameCount() {
+        return mDataSize / mFrameBytes;
+    }
+
+    @Override
+    public long getFramePosition() {
+        return mPosition / mFrameBytes;
+    }
+
+    @Override
+    public void seekFrame(long frame) {
+        mPosition = Math.max(0, Math.min(frame, getFrameCount())) * mFrameBytes;
+        mPrefetchedTo = mPosition;
+        requestPrefetch();
+    }
+
+    @Override
+    public ByteBuffer next(int maxBytes) throws IOException {
+        if (mPosition >= mDataSize) {
+            return null;
+        }
+        long windowStart = mPosition - mPosition % WINDOW_BYTES;
+        if (windowStart != mWindowStart) {
+            selectWindow(windowStart);
+        }
+        int start = (int) (mPosition - windowStart);
+        int length = Math.min(maxBytes - maxBytes % mFrameBytes, mWindow.capacity() - start);
+        mView.limit(start + length).position(start);
+        if (mPrefetchedTo - mPosition < PREFETCH_BYTES / 2) {
+            requestPrefetch();
+        }
+        return mView;
+    }
+
+    @Override
+    public void advance(int bytes) {
+        mPosition = Math.min(mDataSize, mPosition + bytes - bytes % mFrameBytes);
+    }
+
+    private void selectWindow(long windowStart) throws IOException {
+        MappedByteBuffer next = mNextWindow;
+        if (next != null && mNextWindowStart == windowStart) {
+            mWindow = next;
+        } else {
+            mWindow = map(windowStart);
+        }
+        mNextWindow = null;
+        mNextWindowStart = -1;
+        mWindowStart = windowStart;
+        mView = mWindow.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private MappedByteBuffer map(long windowStart) throws IOException {
+        long size = Math.min(WINDOW_BYTES, mDataSize - windowStart);
+        return mChannel.map(FileChannel.MapMode.READ_ONLY, mDataOffset + windowStart, size);
+    }
+
+    private void requestPrefetch() {
+        if (!mPrefetchQueued && !mClosed) {
+            mPrefetchQueued = true;
+            PREFETCHER.execute(mPrefetch);
+        }
+    }
+
+    /**
+     * Faults in the pages ahead of the play position and maps the next window when it is close.
+     */
+    private void prefetch() {
+        long position = mPosition;
+        long from = Math.max(position, mPrefetchedTo);
+        long to = Math.min(mDataSize, position + PREFETCH_BYTES);
+        try {
+            long windowStart = position - position % WINDOW_BYTES;
+            long nextStart = windowStart + WINDOW_BYTES;
+            MappedByteBuffer window = mWindowStart == windowStart ? mWindow : null;
+            if (to > nextStart && nextStart < mDataSize && mNextWindowStart != nextStart) {
+                mNextWindow = map(nextStart);
+                mNextWindowStart = nextStart;
+            }
+            for (long p = from - from % PAGE_SIZE; p < to && !mClosed; p += PAGE_SIZE) {
+                if (p >= nextStart) {
+                    window = mNextWindowStart == nextStart ? mNextWindow : null;
+                    windowStart = nextStart;
+                    nextStart += WINDOW_BYTES;
+                }
+                if (window == null) {
+                    break;
+                }
+                window.get((int) Math.max(0, p - windowStart));
+            }
+            mPrefetchedTo = to;
+        } catch (IOException | RuntimeException e) {
+            // Prefetch is only a hint; the playback thread will fault the pages in itself.
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        mClosed = true;
+        mWindow = null;
+        mView = null;
+        mNextWindow = null;
+        mFile.close();
+    }
+}
@@ -0,0 +1,143 @@
+package com.eagle.recorderdemo.audio;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes through a sliding memory-mapped window, leaving write-back entirely to the kernel.
+ *
+ * Each window of {@code windowSize} bytes costs one {@code mmap} (counted as a syscall in the
+ * {@link WriterStats}) and implicitly extends the file, which doubles as preallocation.
+ * {@link #close()} trims the file back to the bytes actually written. A sync due under the
+ * {@link SyncPolicy} writes back the dirty pages of the window and forces the channel, which
+ * covers the earlier windows and header patches.
+ */
+public final class MappedSegmentWriter implements SegmentWriter {
+
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    private final int mWindowSize;
+    private final SyncPolicy mSync;
+    private final WriterStats mStats = new WriterStats();
+
+    private MappedByteBuffer mWindow;
+    private long mWindowStart;
+    private long mSynced;
+    private long mFirstUnsyncedNanos;
+
+    public MappedSegmentWriter(File file, int windowSize) throws IOException {
+        this(file, windowSize, SyncPolicy.NONE);
+    }
+
+    public MappedSegmentWriter(File file, int windowSize, SyncPolicy sync) throws IOException {
+        if (windowSize <= 0) {
+            throw new IllegalArgumentException("windowSize must be positive");
+        }
+        mFile = new RandomAccessFile(file, "rw");
+        mFile.setLength(0);
+        mChannel = mFile.getChannel();
+        mWindowSize = windowSize;
+        mSync = sync;
+    }
+
+    @Override
+    public void write(byte[] src, int offset, int length) throws IOException {
+        if (length > 0 && position() == mSynced) {
+            mFirstUnsyncedNanos = System.nanoTime();
+        }
+        while (length > 0) {
+            if (mWindow == null || !mWindow.hasRemaining()) {
+                nextWindow();
+            }
+            int chunk = Math.min(length, mWindow.remaining());
+            long start = System.nanoTime();
+            mWindow.put(src, offset, chunk);
+            mStats.onCopy(chunk, System.nanoTime() - start);
+            offset += chunk;
+            length -= chunk;
+        }
+        if (mSync.isDue(position() - mSynced, mFirstUnsyncedNanos, System.nanoTime())) {
+            sync();
+        }
+    }
+
+    /** Forces everything written so far to storage. */
+    public void sync() throws IOException {
+        long start = System.nanoTime();
+        if (mWindow != null) {
+            mWindow.force();
+        }
+        mChannel.force(false);
+        mStats.onSync(System.nanoTime() - start);
+        mSynced = position();
+    }
+
+    private void nextWindow() throws IOException {
+        if (mWindow != null) {
+            mWindowStart += mWindow.position();
+        }
+        long start = System.nanoTime();
+        mWindow = mChannel.map(FileChannel.MapMode.READ_WRITE, mWindowStart, mWindowSize);
+        mStats.onWrite(0, System.nanoTime() - start);
+        mStats.onPreallocate();
+    }
+
+    @Override
+    public void flush() {
+        // Dirty pages are already visible to the page cache.
+    }
+
+    @Override
+    public long position() {
+        return mWindow == null ? 0 : mWindowStart + mWindow.position();
+    }
+
+    @Override
+    public long committedPosition() {
+        return position();
+    }
+
+    @Override
+    public void writeAt(long position, ByteBuffer src) throws IOException {
+        if (position + src.remaining() > position()) {
+            throw new IOException("writeAt past end: " + position);
+        }
+        if (position >= mWindowStart) {
+            while (src.hasRemaining()) {
+                mWindow.put((int) (position++ - mWindowStart), src.get());
+            }
+            return;
+        }
+        // Earlier windows share the page cache with the channel.
+        long start = System.nanoTime();
+        int length = src.remaining();
+        while (src.hasRemaining()) {
+            position += mChannel.write(src, position);
+        }
+        mStats.onWrite(length, System.nanoTime() - start);
+    }
+
+    @Override
+    public WriterStats getStats() {
+        return mStats;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            mChannel.truncate(position());
+            if (mSync.isEnabled()) {
+                long start = System.nanoTime();
+                mChannel.force(true);
+                mStats.onSync(System.nanoTime() - start);
+            }
+        } finally {
+            mWindow = null;
+            mFile.close();
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package com.eagle.recorderdemo.audio;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Converts float samples in [-1, 1) to little-endian integer PCM in place.
+ *
+ * Output goes into a caller-supplied array or {@link ByteBuffer}, so a converter reused across
+ * buffers allocates nothing. Out-of-range input saturates instead of wrapping. For 16 and 24 bit
+ * output, optional TPDF dither (the sum of two uniform values, +/-1 LSB peak) decorrelates the
+ * quantisation error from the signal.
+ */
+public final class PcmConverter {
+
+    public enum Encoding {
+        PCM16(2, 32768.0),
+        PCM24(3, 8388608.0),
+        PCM32(4, 2147483648.0);
+
+        final int bytes;
+        final double scale;
+        final long min;
+        final long max;
+
+        Encoding(int bytes, double scale) {
+            this.bytes = bytes;
+            this.scale = scale;
+            this.min = -(long) scale;
+            this.max = (long) scale - 1;
+        }
+    }
+
+    private final Encoding mEncoding;
+    private final boolean mDither;
+    private int mSeed = 0x9E3779B9;
+
+    public PcmConverter(Encoding encoding, boolean dither) {
+        mEncoding = encoding;
+        // At 32 bit the float mantissa is already coarser than one LSB.
+        mDither = dither && encoding != Encoding.PCM32;
+    }
+
+    public Encoding getEncoding() {
+        return mEncoding;
+    }
+
+    public int bytesPerSample() {
+        return mEncoding.bytes;
+    }
+
+    /**
+     * Converts {@code count} samples into {@code dst} starting at {@code dstOffset}.
+     *
+     * @return number of bytes written
+     */
+    public int convert(float[] src, int offset, int count, byte[] dst, int dstOffset) {
+        int out = dstOffset;
+        switch (mEncoding) {
+            case PCM16:
+                for (int i = offset, end = offset + count; i < end; i++) {
+                    int s = (int) quantize(src[i]);
+                    dst[out++] = (byte) s;
+                    dst[out++] = (byte) (s >> 8);
+                }
+                break;
+            case PCM24:
+                for (int i = offset, end = offset + count; i < end; i++) {
+                    int s = (int) quantize(src[i]);
+                    dst[out++] = (byte) s;
+                    dst[out++] = (byte) (s >> 8);
+                    dst[out++] = (byte) (s >> 16);
+                }
+                break;
+            case PCM32:
+                for (int i = offset, end = offset + count; i < end; i++) {
+                    int s = (int) quantize(src[i]);
+                    dst[out++] = (byte) s;
+                    dst[out++] = (byte) (s >> 8);
+                    dst[out++] = (byte) (s >> 16);
+                    dst[out++] = (byte) (s >> 24);
+                }
+                break;
+        }
+        return out - dstOffset;
+    }
+
+    /**
+     * Converts {@code count} samples into {@code dst} at its position, advancing it. The byte
+     * order of the buffer is ignored; output is always little-endian.
+     *
+     * @return number of bytes written
+     */
+    public int convert(float[] src, int offset, int count, ByteBuffer dst) {
+        int bytes = mEncoding.bytes;
+        for (int i = offset, end = offset + count; i < end; i++) {
+            int s = (int) quantize(src[i]);
+            dst.put((byte) s);
+            dst.put((byte) (s >> 8));
+            if (bytes > 2) {
+                dst.put((byte) (s >> 16));
+                if (bytes > 3) {
+                    dst.put((byte) (s >> 24));
+                }
+            }
+        }
+        return count * bytes;
+    }
+
+    private long quantize(float sample) {
+        double v = sample * mEncoding.scale;
+        if (mDither) {
+            v += nextUniform() + nextUniform();
+        }
+        long s = (long) (v >= 0 ? v + 0.5 : v - 0.5);
+        if (s > mEncoding.max) {
+            return mEncoding.max;
+        }
+        if (s < mEncoding.min) {
+            return mEncoding.min;
+        }
+        return s;
+    }
+
+    /** Uniform in [-0.5, 0.5) from a xorshift32 generator. */
+    private double nextUniform() {
+        int x = mSeed;
+        x ^= x << 13;
+        x ^= x >>> 17;
+        x ^= x << 5;
+        mSeed = x;
+        return x * (1.0 / 4294967296.0);
+    }
+}
@@ -0,0 +1,352 @@
+package com.eagle.recorderdemo.audio;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Multi-resolution min/max/RMS overview of a recording, read from the sidecar a
+ * {@link PeakWriter} produces.
+ *
+ * Level 0 summarizes every {@code framesPerBin} frames, and each level above summarizes
+ * {@code ratio} bins of the one below (256, 4096 and 65536 frames by default). A bin record
+ * holds, for each channel, the minimum and maximum sample and the RMS, as little-endian shorts.
+ *
+ * The sidecar is append only: each time a level 0 bin completes, its record is written,
+ * followed by the record of every level it completed. Where a record lives therefore follows
+ * from its level and index alone (see {@link #recordIndex}), which keeps lookups O(1) without
+ * an index. Once the recording is closed, the header carries the frame count and the partial
+ * last bins follow the complete ones. A sidecar that is still being written can be read;
+ * {@link #refresh()} picks up what was appended since.
+ */
+public final class PeakFile implements Closeable {
+
+    public static final String EXTENSION = "peaks";
+
+    static final int MAGIC = 0x4B414550; // "PEAK"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 32;
+    static final int TOTAL_FRAMES_OFFSET = 24;
+
+    public static final int DEFAULT_FRAMES_PER_BIN = 256;
+    public static final int DEFAULT_RATIO = 16;
+    public static final int DEFAULT_LEVELS = 3;
+
+    // Shorts per channel in a record.
+    static final int VALUES = 3;
+
+    private final File mFile;
+    private final RandomAccessFile mRaf;
+    private final int mSampleRate;
+    private final int mChannels;
+    private final int mLevels;
+    private final int mRatio;
+    private final long[] mBinFrames;
+    private final int mRecordSize;
+
+    private MappedByteBuffer mMap;
+    private long mTotalFrames;
+    private long mRecords;
+    private final long[] mBinCounts;
+
+    private PeakFile(File file, RandomAccessFile raf) throws IOException {
+        mFile = file;
+        mRaf = raf;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        FileChannel channel = raf.getChannel();
+        while (header.hasRemaining() && channel.read(header, header.position()) > 0) {
+            // keep reading
+        }
+        if (header.hasRemaining() || header.getInt(0) != MAGIC) {
+            throw new IOException(file + " is not a peak file");
+        }
+        mChannels = header.getShort(6);
+        mSampleRate = header.getInt(8);
+        int framesPerBin = header.getInt(12);
+        mRatio = header.getShort(16);
+        mLevels = header.getShort(18);
+        if (mChannels <= 0 || framesPerBin <= 0 || mRatio < 2 || mLevels <= 0 || mLevels > 8) {
+            throw new IOException(file + " has a bad header");
+        }
+        mBinFrames = new long[mLevels];
+        for (int level = 0; level < mLevels; level++) {
+            mBinFrames[level] = level == 0 ? framesPerBin : mBinFrames[level - 1] * mRatio;
+        }
+        mRecordSize = mChannels * VALUES * 2;
+        mBinCounts = new long[mLevels];
+        refresh();
+    }
+
+    public static PeakFile open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            return new PeakFile(file, raf);
+        } catch (IOException | RuntimeException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    /** The peak sidecar of {@code recording}. */
+    public static File sidecarFor(File recording) {
+        String name = recording.getName();
+        int dot = name.lastIndexOf('.');
+        if (dot > 0) {
+            name = name.substring(0, dot);
+        }
+        return new File(recording.getParentFile(), name + "." + EXTENSION);
+    }
+
+    static ByteBuffer header(int sampleRate, int channels, int framesPerBin, int ratio,
+            int levels) {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putShort((short) VERSION).putShort((short) channels)
+                .putInt(sampleRate).putInt(framesPerBin).putShort((short) ratio)
+                .putShort((short) levels).putInt(0).putLong(-1);
+        header.position(0);
+        return header;
+    }
+
+    /**
+     * Position in the record sequence of bin {@code bin} of {@code level}, for a sidecar with
+     * {@code levels} levels.
+     */
+    static long recordIndex(int level, long bin, int ratio, int levels) {
+        long lastBase = level == 0 ? bin : (bin + 1) * pow(ratio, level) - 1;
+        long before = 0;
+        long step = 1;
+        for (int i = 0; i < levels; i++) {
+            before += lastBase / step;
+            step *= ratio;
+        }
+        return before + level;
+    }
+
+    private static long pow(int base, int exponent) {
+        long result = 1;
+        for (int i = 0; i < exponent; i++) {
+            result *= base;
+        }
+        return result;
+    }
+
+    /**
+     * Re-reads the header and maps what has been appended since the last call. Returns whether
+     * anything changed.
+     */
+    public synchronized boolean refresh() throws IOException {
+        FileChannel channel = mRaf.getChannel();
+        ByteBuffer total = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+        channel.read(total, TOTAL_FRAMES_OFFSET);
+        long totalFrames = total.getLong(0);
+        long records = Math.max(0, (channel.size() - HEADER_SIZE) / mRecordSize);
+        if (mMap != null && records == mRecords && totalFrames == mTotalFrames) {
+            return false;
+        }
+        mMap = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE, records * mRecordSize);
+        mMap.order(ByteOrder.LITTLE_ENDIAN);
+        mRecords = records;
+        mTotalFrames = totalFrames;
+        for (int level = 0; level < mLevels; level++) {
+            mBinCounts[level] = countBins(level);
+        }
+        return true;
+    }
+
+    private long countBins(int level) {
+        if (mTotalFrames >= 0) {
+            long count = (mTotalFrames + mBinFrames[level] - 1) / mBinFrames[level];
+            // The partial bins were not written if the recording was torn while closing.
+            return count == 0 || recordOf(level, count - 1) < mRecords
+                    ? count : mTotalFrames / mBinFrames[level];
+        }
+        // Still recording: the last complete bin whose record made it to disk.
+        long low = 0;
+        long high = mRecords;
+        while (low < high) {
+            long mid = (low + high) >>> 1;
+            if (recordIndex(level, mid, mRatio, mLevels) < mRecords) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /** Record of {@code bin}, including the partial last bins of a closed recording. */
+    private long recordOf(int level, long bin) {
+        if (mTotalFrames < 0 || (bin + 1) * mBinFrames[level] <= mTotalFrames) {
+            return recordIndex(level, bin, mRatio, mLevels);
+        }
+        long complete = mTotalFrames / mBinFrames[0];
+        long record = recordIndex(0, complete, mRatio, mLevels);
+        for (int i = 0; i < level; i++) {
+            if (mTotalFrames % mBinFrames[i] != 0) {
+                record++;
+            }
+        }
+        return record;
+    }
+
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    public int getChannels() {
+        return mChannels;
+    }
+
+    public int getLevelCount() {
+        return mLevels;
+    }
+
+    public long getFramesPerBin(int level) {
+        return mBinFrames[level];
+    }
+
+    /** Bins of {@code level} readable so far. */
+    public synchronized long getBinCount(int level) {
+        return mBinCounts[level];
+    }
+
+    /** Whether the recording was closed; otherwise {@link #refresh()} may find more bins. */
+    public synchronized boolean isComplete() {
+        return mTotalFrames >= 0;
+    }
+
+    /** Frames covered so far. */
+    public synchronized long getFrameCount() {
+        return mTotalFrames >= 0 ? mTotalFrames : mBinCounts[0] * mBinFrames[0];
+    }
+
+    /**
+     * Copies the min, max and RMS of each channel of bin {@code bin} into {@code dst} at
+     * {@code offset}.
+     */
+    public synchronized void readBin(int level, long bin, short[] dst, int offset) {
+        if (bin < 0 || bin >= mBinCounts[level]) {
+            throw new IndexOutOfBoundsException("bin " + bin + " of level " + level);
+        }
+        int base = (int) (recordOf(level, bin) * mRecordSize);
+        for (int i = 0; i < mChannels * VALUES; i++) {
+            dst[offset + i] = mMap.getShort(base + i * 2);
+        }
+    }
+
+    /**
+     * Fills {@code dst} with {@code columns} columns of min, max and RMS per channel covering
+     * frames {@code [startFrame, endFrame)}, reading from the coarsest level that still resolves
+     * one column. Columns past the data read so far are left untouched. Runs in time
+     * proportional to {@code columns}, whatever the length of the recording.
+     *
+     * @return the number of columns filled
+     */
+    public synchronized int overview(long startFrame, long endFrame, int columns, short[] dst) {
+        if (columns <= 0 || endFrame <= startFrame) {
+            return 0;
+        }
+        double perColumn = (endFrame - startFrame) / (double) columns;
+        int level = 0;
+        while (level + 1 < mLevels && mBinFrames[level + 1] <= perColumn) {
+            level++;
+        }
+        long binFrames = mBinFrames[level];
+        long bins = mBinCounts[level];
+        int stride = mChannels * VALUES;
+        for (int column = 0; column < columns; column++) {
+            long from = startFrame + (long) (column * perColumn);
+            long to = Math.max(from + 1, startFrame + (long) ((column + 1) * perColumn));
+            long first = from / binFrames;
+            long last = Math.min(bins - 1, (to - 1) / binFrames);
+            if (first >= bins) {
+                return column;
+            }
+            aggregate(level, first, last, dst, column * stride);
+        }
+        return columns;
+    }
+
+    private void aggregate(int level, long first, long last, short[] dst, int offset) {
+        for (int channel = 0; channel < mChannels; channel++) {
+            int min = Short.MAX_VALUE;
+            int max = Short.MIN_VALUE;
+            double squares = 0;
+            for (long bin = first; bin <= last; bin++) {
+                int base = (int) (recordOf(level, bin) * mRecordSize) + channel * VALUES * 2;
+                min = Math.min(min, mMap.getShort(base));
+                max = Math.max(max, mMap.getShort(base + 2));
+                int rms = mMap.getShort(base + 4);
+                squares += (double) rms * rms;
+            }
+            int out = offset + channel * VALUES;
+            dst[out] = (short) min;
+            dst[out + 1] = (short) max;
+            dst[out + 2] = (short) Math.round(Math.sqrt(squares / (last - first + 1)));
+        }
+    }
+
+    /**
+     * Returns the first frame at or after {@code fromFrame} of a level 0 bin whose RMS on any
+     * channel reaches {@code threshold}, or -1. Coarse bins whose peak stays below the threshold
+     * are skipped whole, since no bin inside them can have a higher RMS than that.
+     */
+    public synchronized long findLoud(long fromFrame, int threshold) {
+        int top = mLevels - 1;
+        long covered = mBinCounts[0] * mBinFrames[0];
+        for (long bin = Math.max(0, fromFrame) / mBinFrames[top];
+                bin * mBinFrames[top] < covered; bin++) {
+            long found = findLoud(top, bin, fromFrame, threshold);
+            if (found >= 0) {
+                return found;
+            }
+        }
+        return -1;
+    }
+
+    private long findLoud(int level, long bin, long fromFrame, int threshold) {
+        if ((bin + 1) * mBinFrames[level] <= fromFrame) {
+            return -1;
+        }
+        if (bin < mBinCounts[level]) {
+            int base = (int) (recordOf(level, bin) * mRecordSize);
+            boolean loud = false;
+            for (int channel = 0; channel < mChannels && !loud; channel++) {
+                int at = base + channel * VALUES * 2;
+                loud = level == 0 ? mMap.getShort(at + 4) >= threshold
+                        : -mMap.getShort(at) >= threshold || mMap.getShort(at + 2) >= threshold;
+            }
+            if (!loud) {
+                return -1;
+            }
+            if (level == 0) {
+                return Math.max(fromFrame, bin * mBinFrames[0]);
+            }
+        } else if (level == 0) {
+            return -1;
+        }
+        // Loud, or past what this level covers yet while recording: look at the children.
+        for (long child = bin * mRatio; child < (bin + 1) * mRatio; child++) {
+            long found = findLoud(level - 1, child, fromFrame, threshold);
+            if (found >= 0) {
+                return found;
+            }
+        }
+        return -1;
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        mMap = null;
+        mRaf.close();
+    }
+}
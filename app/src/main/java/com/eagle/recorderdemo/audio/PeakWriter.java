@@ -0,0 +1,308 @@
+package com.eagle.recorderdemo.audio;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Passes PCM16 on to another {@link SegmentWriter} unchanged while building the
+ * {@link PeakFile} sidecar of the recording.
+ *
+ * Every level keeps only its running min, max and sum of squares per channel, so memory stays
+ * the same however long the recording gets, and the RMS of the coarse levels is exact rather
+ * than averaged from the fine ones. Records are appended each time a top level bin completes
+ * and on {@link #flush()}, which bounds how far a reader of the sidecar lags behind. A failure
+ * of the sidecar abandons it and never fails the recording.
+ */
+public final class PeakWriter implements SegmentWriter {
+
+    private final SegmentWriter mOut;
+    private final File mFile;
+    private final int mChannels;
+    private final int mFrameBytes;
+    private final int mFramesPerBin;
+    private final int mRatio;
+    private final int mLevels;
+
+    // Per level and channel: running min, max and sum of squares.
+    private final int[] mMin;
+    private final int[] mMax;
+    private final long[] mSquares;
+    // Level 0 frames, or lower level bins, folded into the current bin of each level.
+    private final long[] mCount;
+
+    private final byte[] mCarry;
+    private int mCarryFill;
+    private long mFrames;
+
+    private final ByteBuffer mBuffer;
+    private RandomAccessFile mSidecar;
+    private boolean mFailed;
+
+    public PeakWriter(SegmentWriter out, File file, int sampleRate, int channels) {
+        this(out, file, sampleRate, channels, PeakFile.DEFAULT_FRAMES_PER_BIN,
+                PeakFile.DEFAULT_RATIO, PeakFile.DEFAULT_LEVELS);
+    }
+
+    /**
+     * @param file sidecar, see {@link PeakFile#sidecarFor(File)}
+     * @param framesPerBin frames summarized by a level 0 bin
+     * @param ratio bins of a level summarized by one bin of the level above
+     */
+    public PeakWriter(SegmentWriter out, File file, int sampleRate, int channels,
+            int framesPerBin, int ratio, int levels) {
+        mOut = out;
+        mFile = file;
+        mChannels = channels;
+        mFrameBytes = channels * 2;
+        mFramesPerBin = framesPerBin;
+        mRatio = ratio;
+        mLevels = levels;
+        mMin = new int[levels * channels];
+        mMax = new int[levels * channels];
+        mSquares = new long[levels * channels];
+        mCount = new long[levels];
+        for (int level = 0; level < levels; level++) {
+            resetBin(level);
+        }
+        mCarry = new byte[mFrameBytes];
+
+        // Room for everything one top level bin produces, plus the partial bins of close().
+        long records = PeakFile.recordIndex(levels - 1, 0, ratio, levels) + 1 + levels;
+        mBuffer = ByteBuffer.allocate((int) records * channels * PeakFile.VALUES * 2)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            mSidecar = new RandomAccessFile(file, "rw");
+            mSidecar.setLength(0);
+            mSidecar.getChannel().write(
+                    PeakFile.header(sampleRate, channels, framesPerBin, ratio, levels));
+        } catch (IOException e) {
+            abandon();
+        }
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    @Override
+    public void write(byte[] src, int offset, int length) throws IOException {
+        mOut.write(src, offset, length);
+        int end = offset + length;
+        if (mCarryFill > 0) {
+            int chunk = Math.min(end - offset, mFrameBytes - mCarryFill);
+            System.arraycopy(src, offset, mCarry, mCarryFill, chunk);
+            mCarryFill += chunk;
+            offset += chunk;
+            if (mCarryFill < mFrameBytes) {
+                return;
+            }
+            analyze(mCarry, 0, 1);
+            mCarryFill = 0;
+        }
+        int frames = (end - offset) / mFrameBytes;
+        analyze(src, offset, frames);
+        offset += frames * mFrameBytes;
+        mCarryFill = end - offset;
+        System.arraycopy(src, offset, mCarry, 0, mCarryFill);
+    }
+
+    private void analyze(byte[] src, int offset, int frames) {
+        int[] min = mMin;
+        int[] max = mMax;
+        long[] squares = mSquares;
+        while (frames > 0) {
+            int chunk = (int) Math.min(frames, mFramesPerBin - mCount[0]);
+            for (int channel = 0; channel < mChannels; channel++) {
+                int lo = min[channel];
+                int hi = max[channel];
+                long sum = squares[channel];
+                int at = offset + channel * 2;
+                for (int i = 0; i < chunk; i++, at += mFrameBytes) {
+                    int sample = (short) ((src[at] & 0xFF) | (src[at + 1] << 8));
+                    if (sample < lo) {
+                        lo = sample;
+                    }
+                    if (sample > hi) {
+                        hi = sample;
+                    }
+                    sum += sample * sample;
+                }
+                min[channel] = lo;
+                max[channel] = hi;
+                squares[channel] = sum;
+            }
+            mCount[0] += chunk;
+            mFrames += chunk;
+            offset += chunk * mFrameBytes;
+            frames -= chunk;
+            if (mCount[0] == mFramesPerBin) {
+                completeBins();
+            }
+        }
+    }
+
+    /**
+     * Emits the full level 0 bin and every level it completes, folding each into the next.
+     */
+    private void completeBins() {
+        for (int level = 0; level < mLevels; level++) {
+            if (level > 0 && mCount[level] < mRatio) {
+                return;
+            }
+            emit(level);
+            if (level + 1 < mLevels) {
+                fold(level, level + 1);
+            }
+            resetBin(level);
+            if (level + 1 == mLevels) {
+                drain();
+            }
+        }
+    }
+
+    private void fold(int from, int to) {
+        for (int channel = 0; channel < mChannels; channel++) {
+            int src = from * mChannels + channel;
+            int dst = to * mChannels + channel;
+            mMin[dst] = Math.min(mMin[dst], mMin[src]);
+            mMax[dst] = Math.max(mMax[dst], mMax[src]);
+            mSquares[dst] += mSquares[src];
+        }
+        mCount[to]++;
+    }
+
+    private void resetBin(int level) {
+        for (int channel = 0; channel < mChannels; channel++) {
+            int i = level * mChannels + channel;
+            mMin[i] = Short.MAX_VALUE;
+            mMax[i] = Short.MIN_VALUE;
+            mSquares[i] = 0;
+        }
+        mCount[level] = 0;
+    }
+
+    private void emit(int level) {
+        if (mFailed) {
+            return;
+        }
+        long binFrames = binFrames(level);
+        long frames = mFrames % binFrames == 0 ? binFrames : mFrames % binFrames;
+        for (int channel = 0; channel < mChannels; channel++) {
+            int i = level * mChannels + channel;
+            int rms = (int) Math.round(Math.sqrt(mSquares[i] / (double) Math.max(1, frames)));
+            mBuffer.putShort((short) mMin[i])
+                    .putShort((short) mMax[i])
+                    .putShort((short) Math.min(Short.MAX_VALUE, rms));
+        }
+    }
+
+    /** Appends the buffered records to the sidecar. */
+    private void drain() {
+        if (mFailed || mBuffer.position() == 0) {
+            mBuffer.clear();
+            return;
+        }
+        mBuffer.flip();
+        try {
+            FileChannel channel = mSidecar.getChannel();
+            long position = channel.size();
+            while (mBuffer.hasRemaining()) {
+                position += channel.write(mBuffer, position);
+            }
+        } catch (IOException e) {
+            abandon();
+        }
+        mBuffer.clear();
+    }
+
+    private void abandon() {
+        mFailed = true;
+        if (mSidecar != null) {
+            try {
+                mSidecar.close();
+            } catch (IOException e) { /* ignore */ }
+            mSidecar = null;
+        }
+    }
+
+    /** Whether the sidecar had to be given up on. */
+    public boolean hasFailed() {
+        return mFailed;
+    }
+
+    /** Passes the flush on and makes the complete bins so far visible to readers. */
+    @Override
+    public void flush() throws IOException {
+        mOut.flush();
+        drain();
+    }
+
+    @Override
+    public long position() {
+        return mOut.position();
+    }
+
+    @Override
+    public long committedPosition() {
+        return mOut.committedPosition();
+    }
+
+    @Override
+    public void writeAt(long position, ByteBuffer src) throws IOException {
+        mOut.writeAt(position, src);
+    }
+
+    @Override
+    public WriterStats getStats() {
+        return mOut.getStats();
+    }
+
+    /**
+     * Closes the stream, then appends the partial last bins and stores the frame count that
+     * marks the sidecar complete.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            mOut.close();
+        } finally {
+            finish();
+        }
+    }
+
+    private void finish() {
+        for (int level = 0; level < mLevels; level++) {
+            if (mFrames % binFrames(level) != 0) {
+                emit(level);
+                if (level + 1 < mLevels) {
+                    fold(level, level + 1);
+                }
+            }
+        }
+        drain();
+        if (mFailed) {
+            return;
+        }
+        try {
+            ByteBuffer total = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+            total.putLong(0, mFrames);
+            mSidecar.getChannel().write(total, PeakFile.TOTAL_FRAMES_OFFSET);
+            mSidecar.close();
+            mSidecar = null;
+        } catch (IOException e) {
+            abandon();
+        }
+    }
+
+    private long binFrames(int level) {
+        long frames = mFramesPerBin;
+        for (int i = 0; i < level; i++) {
+            frames *= mRatio;
+        }
+        return frames;
+    }
+}
@@ -0,0 +1,184 @@
+package com.eagle.recorderdemo.audio;
+
+import java.io.PrintWriter;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Health counters of one {@link AudioPipeline} run: how the source delivers (read sizes, short,
+ * empty and failed reads, spacing of reads against the expected cadence) and how long each sink
+ * takes to accept a buffer.
+ *
+ * Each counter has a single writer, the capture or the writer thread, and costs a volatile store
+ * or a {@link Histogram#record} per buffer. Readers on other threads see consistent-enough
+ * values without stopping either loop.
+ */
+public final class PipelineMetrics {
+
+    private final int mBytesPerSecond;
+    private final String[] mSinkNames;
+    private final Histogram[] mSinkLatency;
+
+    private final Histogram mReadSize = new Histogram();
+    private final Histogram mReadInterval = new Histogram();
+    private final Histogram mReadJitter = new Histogram();
+    private final Histogram mReadBlocked = new Histogram();
+
+    private volatile long mStartNanos;
+    private volatile long mLastReadNanos;
+    private volatile long mReads;
+    private volatile long mShortReads;
+    private volatile long mEmptyReads;
+    private volatile long mReadErrors;
+    private volatile int mLastError;
+    private volatile long mBytes;
+
+    // Rate over the interval since the previous dump; touched by dumping threads only.
+    private long mRateNanos;
+    private long mRateBytes;
+
+    /**
+     * @param sinkNames one label per sink, in the order they are passed to the pipeline
+     */
+    public PipelineMetrics(int sampleRate, int frameBytes, String... sinkNames) {
+        mBytesPerSecond = sampleRate * frameBytes;
+        mSinkNames = sinkNames;
+        mSinkLatency = new Histogram[sinkNames.length];
+        for (int i = 0; i < sinkNames.length; i++) {
+            mSinkLatency[i] = new Histogram();
+        }
+    }
+
+    void onStart(long nanos) {
+        mStartNanos = nanos;
+        mLastReadNanos = nanos;
+    }
+
+    /**
+     * A read asked for {@code requested} bytes, returned {@code read} and blocked from
+     * {@code startNanos} to {@code endNanos}.
+     */
+    void onRead(int requested, int read, long startNanos, long endNanos) {
+        mReads++;
+        mReadBlocked.record(endNanos - startNanos);
+        if (read <= 0) {
+            mEmptyReads++;
+            return;
+        }
+        mBytes += read;
+        mReadSize.record(read);
+        if (read < requested) {
+            mShortReads++;
+        }
+        long interval = endNanos - mLastReadNanos;
+        mLastReadNanos = endNanos;
+        mReadInterval.record(interval);
+        long expected = read * 1000000000L / mBytesPerSecond;
+        mReadJitter.record(Math.abs(interval - expected));
+    }
+
+    /** The source reported error {@code code} and returned nothing; called by the source. */
+    public void onReadError(int code) {
+        mReadErrors++;
+        mLastError = code;
+    }
+
+    void onSinkWrite(int sink, long nanos) {
+        mSinkLatency[sink].record(nanos);
+    }
+
+    public long getReads() {
+        return mReads;
+    }
+
+    /** Reads that returned less than asked for. */
+    public long getShortReads() {
+        return mShortReads;
+    }
+
+    /** Reads that returned nothing, including failed ones. */
+    public long getEmptyReads() {
+        return mEmptyReads;
+    }
+
+    public long getReadErrors() {
+        return mReadErrors;
+    }
+
+    public int getLastError() {
+        return mLastError;
+    }
+
+    /** Bytes read from the source. */
+    public long getBytes() {
+        return mBytes;
+    }
+
+    /** Bytes read per second since the run started. */
+    public long getBytesPerSecond() {
+        long start = mStartNanos;
+        long elapsed = System.nanoTime() - start;
+        return start == 0 || elapsed <= 0 ? 0 : mBytes * 1000000000L / elapsed;
+    }
+
+    public Histogram getReadSize() {
+        return mReadSize;
+    }
+
+    /** Time between the ends of two successful reads. */
+    public Histogram getReadInterval() {
+        return mReadInterval;
+    }
+
+    /** Distance of each read interval from the duration of audio it returned. */
+    public Histogram getReadJitter() {
+        return mReadJitter;
+    }
+
+    /** Time spent inside each read. */
+    public Histogram getReadBlocked() {
+        return mReadBlocked;
+    }
+
+    public int getSinkCount() {
+        return mSinkNames.length;
+    }
+
+    public String getSinkName(int sink) {
+        return mSinkNames[sink];
+    }
+
+    /** Time each write to {@code sink} took. */
+    public Histogram getSinkLatency(int sink) {
+        return mSinkLatency[sink];
+    }
+
+    /**
+     * Prints the counters, one group per line, each starting with {@code prefix}. Also reports
+     * the byte rate since the previous call.
+     */
+    public void dump(PrintWriter pw, String prefix) {
+        long now = System.nanoTime();
+        long bytes = mBytes;
+        long recent;
+        synchronized (this) {
+            long since = mRateNanos != 0 ? mRateNanos : mStartNanos;
+            recent = now > since ? (bytes - mRateBytes) * 1000000000L / (now - since) : 0;
+            mRateNanos = now;
+            mRateBytes = bytes;
+        }
+        long us = TimeUnit.MICROSECONDS.toNanos(1);
+        pw.println(String.format(Locale.US, "%sbytes=%d rate=%d B/s (recent %d, nominal %d)",
+                prefix, bytes, getBytesPerSecond(), recent, mBytesPerSecond));
+        pw.println(String.format(Locale.US,
+                "%sreads=%d short=%d empty=%d errors=%d lastError=%d", prefix, mReads,
+                mShortReads, mEmptyReads, mReadErrors, mLastError));
+        pw.println(prefix + "read size: " + mReadSize.format(1, "B"));
+        pw.println(prefix + "read blocked: " + mReadBlocked.format(us, "us"));
+        pw.println(prefix + "read interval: " + mReadInterval.format(us, "us"));
+        pw.println(prefix + "read jitter: " + mReadJitter.format(us, "us"));
+        for (int i = 0; i < mSinkNames.length; i++) {
+            pw.println(prefix + mSinkNames[i] + " write: " + mSinkLatency[i].format(us, "us"));
+        }
+    }
+}
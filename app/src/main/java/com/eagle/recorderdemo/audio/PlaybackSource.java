@@ -0,0 +1,42 @@
+package com.eagle.recorderdemo.audio;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Seekable interleaved PCM16 for playback, handed out as buffers the output can consume in place.
+ *
+ * {@link #next(int)} returns a view of the audio at the current position; the consumer reads
+ * from it (moving its position) and reports how much it took with {@link #advance(int)}. The
+ * view is reused, so it is only valid until the next call.
+ */
+public interface PlaybackSource extends Closeable {
+
+    int getSampleRate();
+
+    int getChannels();
+
+    /** Total frames, or -1 if not known up front. */
+    long getFrameCount();
+
+    /** Frame the next {@link #next(int)} starts at. */
+    long getFramePosition();
+
+    /**
+     * Moves to {@code frame}, clamped to the recording.
+     */
+    void seekFrame(long frame) throws IOException;
+
+    /**
+     * Returns up to {@code maxBytes} of audio from the current position, or {@code null} at the
+     * end of the recording.
+     */
+    ByteBuffer next(int maxBytes) throws IOException;
+
+    /**
+     * Moves the position past {@code bytes} bytes of the last {@link #next(int)}; whole frames
+     * only.
+     */
+    void advance(int bytes);
+}
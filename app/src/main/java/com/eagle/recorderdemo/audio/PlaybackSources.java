@@ -0,0 +1,53 @@
+package com.eagle.recorderdemo.audio;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+/**
+ * Picks the {@link PlaybackSource} for a recording.
+ */
+public final class PlaybackSources {
+
+    private PlaybackSources() {
+    }
+
+    /**
+     * Maps PCM16 WAVE/RF64 and headerless PCM, reads chunked recordings block by block and
+     * decodes everything else.
+     *
+     * @param defaultSampleRate assumed for headerless PCM
+     * @param defaultChannels assumed for headerless PCM
+     */
+    public static PlaybackSource open(File file, int defaultSampleRate, int defaultChannels)
+            throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            long size = raf.length();
+            WavFile wav = WavFile.read(raf.getChannel());
+            ByteBuffer header = ByteBuffer.allocate(LosslessCodec.HEADER_SIZE);
+            raf.getChannel().read(header, 0);
+            header.flip();
+            if (wav == null && ChunkedFile.isChunked(header)) {
+                raf.close();
+                return new ChunkedPlaybackSource(file);
+            }
+            if (wav == null && LosslessCodec.readHeader(header) == null) {
+                return new MappedPlaybackSource(raf, defaultSampleRate, defaultChannels, 0, size);
+            }
+            if (wav != null && wav.format.formatTag == WavFormat.FORMAT_PCM
+                    && wav.format.bitsPerSample == 16) {
+                // The header may lag behind a recording that was cut short.
+                long dataSize = Math.min(size - wav.dataOffset, wav.dataSize);
+                return new MappedPlaybackSource(raf, wav.format.sampleRate, wav.format.channels,
+                        wav.dataOffset, dataSize);
+            }
+        } catch (IOException | RuntimeException e) {
+            raf.close();
+            throw e;
+        }
+        raf.close();
+        return new DecodedPlaybackSource(file, defaultSampleRate, defaultChannels);
+    }
+}
@@ -0,0 +1,148 @@
+package com.eagle.recorderdemo.audio;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The most recent stretch of a PCM stream, held in a fixed direct buffer outside the Java heap.
+ *
+ * One thread {@link #write}s, overwriting the oldest bytes once the buffer is full; any number
+ * of {@link Reader}s copy out ranges by absolute stream position. Readers never hold the writer
+ * up: a reader checks after copying whether the writer got to the range meanwhile and reports
+ * the copy as lost if so. That is a seqlock, sound only with the {@link Fences} that keep the
+ * writer's bytes behind its announcement and the reader's copy ahead of its check; where they
+ * are not available writes and copies take a lock instead. The buffer is allocated once, so
+ * memory use is the same whether the stream runs for a minute or a month.
+ */
+public final class PreRollBuffer implements AudioSink {
+
+    private final ByteBuffer mBuffer;
+    private final ByteBuffer mWriteView;
+    private final int mCapacity;
+
+    /** Stream position up to which bytes are complete. */
+    private final AtomicLong mWritten = new AtomicLong();
+    /** Stream position up to which the writer may be overwriting; ahead of mWritten mid-write. */
+    private final AtomicLong mWriting = new AtomicLong();
+    // Without fences: held while bytes are written or copied, null otherwise.
+    private final Object mLock;
+
+    /**
+     * @param capacity bytes to hold, rounded down to whole frames of {@code frameBytes}
+     */
+    public PreRollBuffer(int capacity, int frameBytes) {
+        this(capacity, frameBytes, !Fences.isAvailable());
+    }
+
+    /** @param lock whether to lock instead of relying on {@link Fences} */
+    PreRollBuffer(int capacity, int frameBytes, boolean lock) {
+        mLock = lock ? new Object() : null;
+        mCapacity = Math.max(frameBytes, capacity / frameBytes * frameBytes);
+        mBuffer = ByteBuffer.allocateDirect(mCapacity);
+        mWriteView = mBuffer.duplicate();
+    }
+
+    public int capacity() {
+        return mCapacity;
+    }
+
+    @Override
+    public void write(byte[] src, int offset, int length) {
+        while (length > 0) {
+            long position = mWritten.get();
+            int at = (int) (position % mCapacity);
+            int chunk = Math.min(length, mCapacity - at);
+            mWriting.set(position + chunk);
+            if (mLock != null) {
+                synchronized (mLock) {
+                    put(at, src, offset, chunk);
+                }
+            } else {
+                // The bytes may otherwise become visible before the announcement.
+                Fences.storeFence();
+                put(at, src, offset, chunk);
+            }
+            mWritten.set(position + chunk);
+            offset += chunk;
+            length -= chunk;
+        }
+    }
+
+    private void put(int at, byte[] src, int offset, int length) {
+        mWriteView.clear();
+        mWriteView.position(at);
+        mWriteView.put(src, offset, length);
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() {
+    }
+
+    /** Stream position just past the newest complete byte, i.e. bytes written so far. */
+    public long getWrittenBytes() {
+        return mWritten.get();
+    }
+
+    /** Stream position of the oldest byte still held. */
+    public long getOldestPosition() {
+        return Math.max(0, mWriting.get() - mCapacity);
+    }
+
+    /** Returns a reader with a view of its own, for one thread. */
+    public Reader newReader() {
+        return new Reader(mBuffer.duplicate());
+    }
+
+    /**
+     * Copies ranges of the stream out of the buffer on one thread.
+     */
+    public final class Reader {
+        private final ByteBuffer mView;
+
+        Reader(ByteBuffer view) {
+            mView = view;
+        }
+
+        /**
+         * Copies the {@code length} bytes at stream {@code position}, which must all have been
+         * written, into {@code dst}.
+         *
+         * @return whether the copy is intact; {@code false} if the range was or may have been
+         *         overwritten before it was read
+         */
+        public boolean read(long position, byte[] dst, int offset, int length) {
+            if (position < getOldestPosition()) {
+                return false;
+            }
+            if (mLock != null) {
+                synchronized (mLock) {
+                    copy(position, dst, offset, length);
+                }
+            } else {
+                copy(position, dst, offset, length);
+                // The copy's loads may otherwise be satisfied after the check.
+                Fences.loadFence();
+            }
+            return position >= getOldestPosition();
+        }
+
+        private void copy(long position, byte[] dst, int offset, int length) {
+            long at = position;
+            int left = length;
+            while (left > 0) {
+                int index = (int) (at % mCapacity);
+                int chunk = Math.min(left, mCapacity - index);
+                mView.clear();
+                mView.position(index);
+                mView.get(dst, offset, chunk);
+                offset += chunk;
+                at += chunk;
+                left -= chunk;
+            }
+        }
+    }
+}
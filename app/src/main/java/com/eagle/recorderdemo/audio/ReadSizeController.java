@@ -0,0 +1,164 @@
+package com.eagle.recorderdemo.audio;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Picks how many bytes the capture loop asks its source for per read, between configured
+ * bounds.
+ *
+ * Small reads hand audio downstream sooner; large ones wake the capture thread less often and
+ * leave more slack when it is scheduled late. Once per window of wall time the controller looks
+ * at what the pipeline went through: how far read intervals strayed from the audio they
+ * returned, how full the ring got, whether frames were dropped and whether reads came back
+ * empty. Any sign of trouble doubles the read size at once. Only a run of quiet windows halves
+ * it again, so a busy device settles on a safe size and an idle one drifts back to low latency.
+ * Every change is reported to the {@link Listener} with its reason.
+ *
+ * {@link #onRead} is called on the capture thread only; the getters may be read from anywhere.
+ */
+public final class ReadSizeController {
+
+    public interface Listener {
+        /** Called on the capture thread when the read size changes. */
+        void onReadSizeChanged(int oldBytes, int newBytes, String reason);
+    }
+
+    static final long WINDOW_NANOS = TimeUnit.SECONDS.toNanos(1);
+    // Quiet windows in a row before the read size is halved.
+    static final int CALM_WINDOWS = 10;
+
+    private final long mBytesPerSecond;
+    private final int mFrameBytes;
+    private final int mMinBytes;
+    private final int mMaxBytes;
+    private final Listener mListener;
+
+    private volatile int mReadBytes;
+    private volatile long mDecisions;
+
+    private long mWindowStart;
+    private long mLastReadNanos;
+    private long mMaxJitterNanos;
+    private int mMaxFill;
+    private int mEmptyReads;
+    private long mLastOverflows;
+    private int mCalmWindows;
+
+    /**
+     * @param minBytes smallest read, rounded to whole frames
+     * @param maxBytes largest read; the ring frames must hold at least this much
+     * @param initialBytes where to start, e.g. what a previous recording settled on
+     * @param listener told about every change, may be {@code null}
+     */
+    public ReadSizeController(int sampleRate, int frameBytes, int minBytes, int maxBytes,
+            int initialBytes, Listener listener) {
+        mBytesPerSecond = (long) sampleRate * frameBytes;
+        mFrameBytes = frameBytes;
+        mMinBytes = Math.max(frameBytes, minBytes / frameBytes * frameBytes);
+        mMaxBytes = Math.max(mMinBytes, maxBytes / frameBytes * frameBytes);
+        mListener = listener;
+        mReadBytes = clamp(initialBytes);
+    }
+
+    private int clamp(int bytes) {
+        bytes = bytes / mFrameBytes * mFrameBytes;
+        return Math.max(mMinBytes, Math.min(mMaxBytes, bytes));
+    }
+
+    /** Bytes to ask for in the next read. */
+    public int getReadBytes() {
+        return mReadBytes;
+    }
+
+    public int getMinBytes() {
+        return mMinBytes;
+    }
+
+    public int getMaxBytes() {
+        return mMaxBytes;
+    }
+
+    /** Number of changes made so far. */
+    public long getDecisions() {
+        return mDecisions;
+    }
+
+    /**
+     * Accounts for a read that returned {@code read} bytes at {@code endNanos}, with
+     * {@code ring} as it stands afterwards.
+     */
+    void onRead(int read, long endNanos, FrameRingBuffer ring) {
+        if (mWindowStart == 0) {
+            mWindowStart = endNanos;
+            mLastReadNanos = endNanos;
+            mLastOverflows = ring.getOverflowCount();
+            return;
+        }
+        if (read <= 0) {
+            mEmptyReads++;
+        } else {
+            long interval = endNanos - mLastReadNanos;
+            long expected = read * 1000000000L / mBytesPerSecond;
+            mMaxJitterNanos = Math.max(mMaxJitterNanos, Math.abs(interval - expected));
+            mLastReadNanos = endNanos;
+        }
+        mMaxFill = Math.max(mMaxFill, ring.size());
+        if (endNanos - mWindowStart >= WINDOW_NANOS) {
+            decide(ring);
+            mWindowStart = endNanos;
+            mMaxJitterNanos = 0;
+            mMaxFill = 0;
+            mEmptyReads = 0;
+        }
+    }
+
+    private void decide(FrameRingBuffer ring) {
+        int current = mReadBytes;
+        long readNanos = current * 1000000000L / mBytesPerSecond;
+        long overflows = ring.getOverflowCount() - mLastOverflows;
+        mLastOverflows = ring.getOverflowCount();
+
+        String pressure = null;
+        if (overflows > 0) {
+            pressure = overflows + " frames dropped at the ring";
+        } else if (mMaxFill * 2 >= ring.capacity()) {
+            pressure = "ring " + mMaxFill + "/" + ring.capacity() + " full";
+        } else if (mMaxJitterNanos * 2 > readNanos) {
+            pressure = "read jitter " + TimeUnit.NANOSECONDS.toMicros(mMaxJitterNanos)
+                    + "us over half a read";
+        } else if (mEmptyReads > 0) {
+            pressure = mEmptyReads + " empty reads";
+        }
+        if (pressure != null) {
+            mCalmWindows = 0;
+            change(current, clamp(current * 2), pressure);
+            return;
+        }
+        boolean quiet = mMaxJitterNanos * 8 <= readNanos && mMaxFill <= 1;
+        mCalmWindows = quiet ? mCalmWindows + 1 : 0;
+        if (mCalmWindows >= CALM_WINDOWS) {
+            mCalmWindows = 0;
+            change(current, clamp(current / 2), CALM_WINDOWS + " quiet windows, max jitter "
+                    + TimeUnit.NANOSECONDS.toMicros(mMaxJitterNanos) + "us");
+        }
+    }
+
+    private void change(int oldBytes, int newBytes, String reason) {
+        if (oldBytes == newBytes) {
+            return;
+        }
+        mReadBytes = newBytes;
+        mDecisions++;
+        if (mListener != null) {
+            mListener.onReadSizeChanged(oldBytes, newBytes, reason);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "ReadSizeController{read=%d (%d ms), bounds=%d..%d, "
+                + "decisions=%d}", mReadBytes, mReadBytes * 1000 / mBytesPerSecond, mMinBytes,
+                mMaxBytes, mDecisions);
+    }
+}
@@ -0,0 +1,211 @@
+package com.eagle.recorderdemo.audio;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads any recording this app writes back as interleaved little-endian PCM16: PCM or IMA ADPCM
+ * WAVE/RF64, {@link LosslessCodec} streams, and headerless PCM. Buffers are allocated when the
+ * file is opened; reading allocates nothing unless a block is larger than any seen before.
+ */
+public final class RecordingDecoder implements Closeable {
+
+    private enum Kind { PCM, ADPCM, LOSSLESS }
+
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    private final Kind mKind;
+    private final int mSampleRate;
+    private final int mChannels;
+    private final FrameDecoder mDecoder;
+    private final long mDataEnd;
+    private final int mBlockAlign;
+    private long mFramesLeft;
+
+    private long mPosition;
+    private ByteBuffer mInput;
+    private final byte[] mDecoded;
+    private int mDecodedPos;
+    private int mDecodedEnd;
+
+    /**
+     * @param defaultSampleRate assumed for headerless PCM
+     * @param defaultChannels assumed for headerless PCM
+     */
+    public static RecordingDecoder open(File file, int defaultSampleRate, int defaultChannels)
+            throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            return new RecordingDecoder(raf, defaultSampleRate, defaultChannels);
+        } catch (IOException | RuntimeException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    private RecordingDecoder(RandomAccessFile file, int defaultSampleRate, int defaultChannels)
+            throws IOException {
+        mFile = file;
+        mChannel = file.getChannel();
+        long size = mChannel.size();
+
+        WavFile wav = WavFile.read(mChannel);
+        ByteBuffer header = ByteBuffer.allocate(LosslessCodec.HEADER_SIZE);
+        mChannel.read(header, 0);
+        header.flip();
+        int[] lossless = wav == null ? LosslessCodec.readHeader(header) : null;
+
+        if (wav != null) {
+            mSampleRate = wav.format.sampleRate;
+            mChannels = wav.format.channels;
+            mPosition = wav.dataOffset;
+            mDataEnd = Math.min(size, wav.dataOffset + wav.dataSize);
+            mFramesLeft = wav.frameCount;
+            mBlockAlign = wav.format.blockAlign;
+            if (wav.format.formatTag == WavFormat.FORMAT_IMA_ADPCM) {
+                mKind = Kind.ADPCM;
+                mDecoder = new ImaAdpcm.Decoder(mChannels, mBlockAlign);
+                mInput = ByteBuffer.allocate(mBlockAlign);
+            } else if (wav.format.formatTag == WavFormat.FORMAT_PCM
+                    && wav.format.bitsPerSample == 16) {
+                mKind = Kind.PCM;
+                mDecoder = null;
+            } else {
+                throw new IOException("unsupported " + wav.format);
+            }
+        } else if (lossless != null) {
+            mKind = Kind.LOSSLESS;
+            mSampleRate = lossless[0];
+            mChannels = lossless[1];
+            mPosition = LosslessCodec.HEADER_SIZE;
+            mDataEnd = size;
+            mFramesLeft = Long.MAX_VALUE;
+            mBlockAlign = 0;
+            mDecoder = new LosslessCodec.Decoder(mChannels, 0xFFFF);
+            mInput = ByteBuffer.allocate(64 * 1024);
+        } else {
+            mKind = Kind.PCM;
+            mSampleRate = defaultSampleRate;
+            mChannels = defaultChannels;
+            mDataEnd = size;
+            mFramesLeft = size / (2 * defaultChannels);
+            mBlockAlign = 2 * defaultChannels;
+            mDecoder = null;
+        }
+        mDecoded = mDecoder != null ? new byte[mDecoder.maxDecodedBytes()] : null;
+    }
+
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    public int getChannels() {
+        return mChannels;
+    }
+
+    /**
+     * Fills {@code pcm} with up to {@code length} bytes of PCM16.
+     *
+     * @return bytes read, or -1 at the end of the recording
+     */
+    public int read(byte[] pcm, int offset, int length) throws IOException {
+        if (mKind == Kind.PCM) {
+            return readPcm(pcm, offset, length);
+        }
+        if (mDecodedPos == mDecodedEnd && !decodeNextBlock()) {
+            return -1;
+        }
+        int chunk = Math.min(length, mDecodedEnd - mDecodedPos);
+        System.arraycopy(mDecoded, mDecodedPos, pcm, offset, chunk);
+        mDecodedPos += chunk;
+        return chunk;
+    }
+
+    private int readPcm(byte[] pcm, int offset, int length) throws IOException {
+        long remaining = Math.min(mDataEnd - mPosition, mFramesLeft * mBlockAlign);
+        if (remaining <= 0) {
+            return -1;
+        }
+        int chunk = (int) Math.min(length - length % mBlockAlign, remaining);
+        int read = mChannel.read(ByteBuffer.wrap(pcm, offset, chunk), mPosition);
+        if (read <= 0) {
+            return -1;
+        }
+        read -= read % mBlockAlign;
+        mPosition += read;
+        mFramesLeft -= read / mBlockAlign;
+        return read;
+    }
+
+    private boolean decodeNextBlock() throws IOException {
+        int frameBytes = mChannels * 2;
+        if (mFramesLeft <= 0) {
+            return false;
+        }
+        if (mKind == Kind.ADPCM) {
+            if (!readInput(mBlockAlign)) {
+                return false;
+            }
+        } else {
+            if (!readInput(LosslessCodec.BLOCK_HEADER_SIZE)) {
+                return false;
+            }
+            int payload = LosslessCodec.blockLength(mInput.array(), 0);
+            if (payload < 0) {
+                return false;
+            }
+            int total = LosslessCodec.blockSize(payload);
+            if (mInput.capacity() < total) {
+                ByteBuffer bigger = ByteBuffer.allocate(total);
+                bigger.put(mInput.array(), 0, LosslessCodec.BLOCK_HEADER_SIZE);
+                mInput = bigger;
+            }
+            mInput.limit(total).position(LosslessCodec.BLOCK_HEADER_SIZE);
+            if (!fill(mInput)) {
+                return false;
+            }
+        }
+        int decoded;
+        try {
+            decoded = mDecoder.decode(mInput.array(), 0, mInput.limit(), mDecoded, 0);
+        } catch (RuntimeException e) {
+            // A torn block at the end of a recording that was cut short.
+            return false;
+        }
+        if (mFramesLeft < decoded / frameBytes) {
+            decoded = (int) mFramesLeft * frameBytes;
+        }
+        mFramesLeft -= decoded / frameBytes;
+        mDecodedPos = 0;
+        mDecodedEnd = decoded;
+        return decoded > 0;
+    }
+
+    private boolean readInput(int length) throws IOException {
+        mInput.clear().limit(length);
+        return fill(mInput);
+    }
+
+    private boolean fill(ByteBuffer buffer) throws IOException {
+        if (mPosition + buffer.remaining() > mDataEnd) {
+            return false;
+        }
+        while (buffer.hasRemaining()) {
+            int read = mChannel.read(buffer, mPosition);
+            if (read < 0) {
+                return false;
+            }
+            mPosition += read;
+        }
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mFile.close();
+    }
+}
@@ -0,0 +1,201 @@
+package com.eagle.recorderdemo.audio;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Locale;
+
+/**
+ * What a catalog keeps about one recording, and how it is worked out from the file.
+ *
+ * {@link #probe} reads only headers: the container header for format and length (the block
+ * headers for lossless streams, which have no total) and the {@link PeakFile} sidecar for the
+ * levels, whose coarsest bins cover the whole recording in a few hundred records.
+ */
+public final class RecordingInfo {
+
+    public static final String FORMAT_WAV = "wav";
+    public static final String FORMAT_WAV_ADPCM = "wav-adpcm";
+    public static final String FORMAT_CHUNKED = "chunked";
+    public static final String FORMAT_LOSSLESS = "lossless";
+    public static final String FORMAT_PCM = "pcm";
+
+    private static final String[] EXTENSIONS = {"wav", "pcm", "rlac", ChunkedFile.EXTENSION};
+    private static final float FULL_SCALE = 32768f;
+
+    public final File file;
+    public final String format;
+    public final int sampleRate;
+    public final int channels;
+    /** Wall clock start; derived from the modification time unless the container dates it. */
+    public final long startMillis;
+    public final long durationMillis;
+    public final long sizeBytes;
+    public final long modifiedMillis;
+    /** Loudest sample and loudest channel RMS in dBFS, or NaN without a peak sidecar. */
+    public final float peakDb;
+    public final float rmsDb;
+
+    public RecordingInfo(File file, String format, int sampleRate, int channels,
+            long startMillis, long durationMillis, long sizeBytes, long modifiedMillis,
+            float peakDb, float rmsDb) {
+        this.file = file;
+        this.format = format;
+        this.sampleRate = sampleRate;
+        this.channels = channels;
+        this.startMillis = startMillis;
+        this.durationMillis = durationMillis;
+        this.sizeBytes = sizeBytes;
+        this.modifiedMillis = modifiedMillis;
+        this.peakDb = peakDb;
+        this.rmsDb = rmsDb;
+    }
+
+    /** Whether {@code file} is named like a recording rather than a sidecar or temporary. */
+    public static boolean isRecording(File file) {
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        if (dot < 0 || !file.isFile()) {
+            return false;
+        }
+        String extension = name.substring(dot + 1);
+        for (String candidate : EXTENSIONS) {
+            if (candidate.equals(extension)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Reads what is known about {@code file} from its headers and peak sidecar.
+     *
+     * @param defaultSampleRate assumed for headerless PCM
+     * @param defaultChannels assumed for headerless PCM
+     */
+    public static RecordingInfo probe(File file, int defaultSampleRate, int defaultChannels)
+            throws IOException {
+        long modified = file.lastModified();
+        String format;
+        int sampleRate;
+        int channels;
+        long frames;
+        long startMillis = -1;
+        long size;
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            size = channel.size();
+            ByteBuffer head = ByteBuffer.allocate(LosslessCodec.HEADER_SIZE);
+            while (head.hasRemaining() && channel.read(head, head.position()) > 0) {
+                // header read
+            }
+            head.flip();
+            WavFile wav = WavFile.read(channel);
+            int[] lossless;
+            if (wav != null) {
+                WavFormat wavFormat = wav.format;
+                format = wavFormat.formatTag == WavFormat.FORMAT_IMA_ADPCM
+                        ? FORMAT_WAV_ADPCM : FORMAT_WAV;
+                sampleRate = wavFormat.sampleRate;
+                channels = wavFormat.channels;
+                // The header may lag behind a recording that was cut short.
+                long data = Math.min(size - wav.dataOffset, wav.dataSize);
+                frames = Math.min(wav.frameCount,
+                        data / wavFormat.blockAlign * wavFormat.samplesPerBlock);
+            } else if (ChunkedFile.isChunked(head)) {
+                ChunkedFile chunked = ChunkedFile.open(file);
+                try {
+                    format = FORMAT_CHUNKED;
+                    sampleRate = chunked.getSampleRate();
+                    channels = chunked.getChannels();
+                    frames = chunked.getFrameCount();
+                    startMillis = chunked.getStartMicros() / 1000;
+                } finally {
+                    chunked.close();
+                }
+            } else if ((lossless = LosslessCodec.readHeader(head)) != null) {
+                format = FORMAT_LOSSLESS;
+                sampleRate = lossless[0];
+                channels = lossless[1];
+                frames = losslessFrames(channel, size);
+            } else {
+                format = FORMAT_PCM;
+                sampleRate = defaultSampleRate;
+                channels = defaultChannels;
+                frames = size / (channels * 2);
+            }
+        } finally {
+            raf.close();
+        }
+        long duration = sampleRate > 0 ? frames * 1000 / sampleRate : 0;
+        if (startMillis < 0) {
+            startMillis = modified - duration;
+        }
+        float[] levels = readLevels(PeakFile.sidecarFor(file));
+        return new RecordingInfo(file, format, sampleRate, channels, startMillis, duration, size,
+                modified, levels[0], levels[1]);
+    }
+
+    private static long losslessFrames(FileChannel channel, long size) throws IOException {
+        byte[] header = new byte[LosslessCodec.BLOCK_HEADER_SIZE];
+        ByteBuffer buffer = ByteBuffer.wrap(header);
+        long frames = 0;
+        long offset = LosslessCodec.HEADER_SIZE;
+        while (offset + header.length <= size) {
+            buffer.clear();
+            while (buffer.hasRemaining()
+                    && channel.read(buffer, offset + buffer.position()) > 0) {
+                // block header read
+            }
+            int payload = LosslessCodec.blockLength(header, 0);
+            if (payload < 0 || offset + LosslessCodec.blockSize(payload) > size) {
+                break;
+            }
+            frames += LosslessCodec.blockFrames(header, 0);
+            offset += LosslessCodec.blockSize(payload);
+        }
+        return frames;
+    }
+
+    /** Returns {@code {peakDb, rmsDb}} over the whole sidecar, NaN if there is none. */
+    private static float[] readLevels(File sidecar) {
+        float[] levels = {Float.NaN, Float.NaN};
+        if (!sidecar.isFile()) {
+            return levels;
+        }
+        try {
+            PeakFile peaks = PeakFile.open(sidecar);
+            try {
+                int channels = peaks.getChannels();
+                short[] column = new short[channels * PeakFile.VALUES];
+                if (peaks.overview(0, peaks.getFrameCount(), 1, column) == 0) {
+                    return levels;
+                }
+                int peak = 0;
+                int rms = 0;
+                for (int channel = 0; channel < channels; channel++) {
+                    int base = channel * PeakFile.VALUES;
+                    peak = Math.max(peak, Math.max(-column[base], column[base + 1]));
+                    rms = Math.max(rms, column[base + 2]);
+                }
+                levels[0] = LevelMeter.toDb(peak / FULL_SCALE);
+                levels[1] = LevelMeter.toDb(rms / FULL_SCALE);
+            } finally {
+                peaks.close();
+            }
+        } catch (IOException | RuntimeException e) {
+            // A damaged sidecar only costs the levels.
+        }
+        return levels;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "%s %s %dHz/%dch start=%d %dms %d bytes "
+                + "peak=%.1f rms=%.1f dBFS", file.getName(), format, sampleRate, channels,
+                startMillis, durationMillis, sizeBytes, peakDb, rmsDb);
+    }
+}
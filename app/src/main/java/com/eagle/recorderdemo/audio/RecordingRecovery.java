@@ -0,0 +1,262 @@
+package com.eagle.recorderdemo.audio;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Puts recordings that were cut short by a crash or power cut back into a consistent state.
+ *
+ * A recording that never got closed can end in a torn frame or block, in preallocated space
+ * that was never written (it reads back as zeros), and its header may lag behind the audio by
+ * up to a checkpoint or claim audio that never reached storage. Recovery cuts the file after
+ * the last complete frame or block that holds audio and, for WAVE files, rewrites the sizes in
+ * the header to match. A file that was closed properly already matches and is left untouched,
+ * so every recording can be passed through it.
+ *
+ * Trailing zeros beyond what the header declares are taken for preallocated space, so digital
+ * silence at the very end of an interrupted recording is cut along with it. Headerless PCM has
+ * no declared size at all; there any trailing zeros are cut.
+ */
+public final class RecordingRecovery {
+
+    public enum Outcome {
+        /** Consistent already; nothing was changed. */
+        CLEAN,
+        /** Cut back and, where it has one, its header rewritten. */
+        REPAIRED,
+        /** Not a recording this class can make sense of; left as it is. */
+        UNREADABLE
+    }
+
+    /** What recovery did to one file. */
+    public static final class Result {
+        public final File file;
+        public final Outcome outcome;
+        public final long oldLength;
+        public final long newLength;
+
+        Result(File file, Outcome outcome, long oldLength, long newLength) {
+            this.file = file;
+            this.outcome = outcome;
+            this.oldLength = oldLength;
+            this.newLength = newLength;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%s %s %d -> %d", file.getName(), outcome,
+                    oldLength, newLength);
+        }
+    }
+
+    private static final long MAX_RIFF_SIZE = 0xFFFFFFFFL;
+    private static final int SCAN_BYTES = 64 * 1024;
+
+    private RecordingRecovery() {
+    }
+
+    /**
+     * Recovers every recording in {@code dir} last modified before {@code modifiedBeforeMillis},
+     * which keeps it away from files being recorded right now.
+     *
+     * @param pcmFrameBytes frame size of headerless PCM recordings
+     */
+    public static List<Result> recoverAll(File dir, int pcmFrameBytes,
+            long modifiedBeforeMillis) {
+        List<Result> results = new ArrayList<>();
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return results;
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            if (!RecordingInfo.isRecording(file) || file.lastModified() >= modifiedBeforeMillis) {
+                continue;
+            }
+            long length = file.length();
+            try {
+                results.add(recover(file, pcmFrameBytes));
+            } catch (IOException | RuntimeException e) {
+                results.add(new Result(file, Outcome.UNREADABLE, length, length));
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Recovers one recording, telling the container from its first bytes; files without a
+     * known header are taken for headerless PCM if they are named {@code .pcm}.
+     */
+    public static Result recover(File file, int pcmFrameBytes) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel channel = raf.getChannel();
+            long length = channel.size();
+            ByteBuffer head = ByteBuffer.allocate(LosslessCodec.HEADER_SIZE);
+            readFully(channel, head, 0);
+            head.flip();
+            long end;
+            if (ChunkedFile.isChunked(head)) {
+                ChunkedFile chunked = ChunkedFile.open(file);
+                try {
+                    end = chunked.getIntactLength();
+                } finally {
+                    chunked.close();
+                }
+            } else if (LosslessCodec.readHeader(head) != null) {
+                end = losslessEnd(channel, length);
+            } else if (head.remaining() >= 4 && (head.getInt(0) == tag("RIFF")
+                    || head.getInt(0) == tag("RF64"))) {
+                return recoverWav(file, channel);
+            } else if (file.getName().endsWith(".pcm")) {
+                end = pcmEnd(channel, 0, length, pcmFrameBytes);
+            } else {
+                return new Result(file, Outcome.UNREADABLE, length, length);
+            }
+            if (end == length) {
+                return new Result(file, Outcome.CLEAN, length, length);
+            }
+            channel.truncate(end);
+            channel.force(true);
+            return new Result(file, Outcome.REPAIRED, length, end);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static Result recoverWav(File file, FileChannel channel) throws IOException {
+        long length = channel.size();
+        WavFile wav = WavFile.read(channel);
+        if (wav == null) {
+            return new Result(file, Outcome.UNREADABLE, length, length);
+        }
+        int blockAlign = Math.max(1, wav.format.blockAlign);
+        long available = length - wav.dataOffset;
+        long whole = available - available % blockAlign;
+        long declared = wav.dataSize;
+        long dataSize;
+        if (declared >= 0 && declared <= available) {
+            // Audio the header does not cover yet, up to where preallocated zeros begin.
+            dataSize = Math.min(whole, pcmEnd(channel, wav.dataOffset + declared, length,
+                    blockAlign) - wav.dataOffset);
+            dataSize = Math.max(dataSize, declared - declared % blockAlign);
+        } else {
+            dataSize = whole;
+        }
+        if (!wav.rf64) {
+            long room = MAX_RIFF_SIZE - (wav.dataOffset - 8) - 1;
+            dataSize = Math.min(dataSize, room - room % blockAlign);
+        }
+        long end = wav.dataOffset + dataSize + (dataSize & 1);
+        if (dataSize == declared && end == length) {
+            return new Result(file, Outcome.CLEAN, length, length);
+        }
+
+        channel.truncate(end);
+        if (end > wav.dataOffset + dataSize) {
+            channel.write(ByteBuffer.allocate(1), end - 1);
+        }
+        long riffSize = end - 8;
+        long frames = dataSize / blockAlign * wav.format.samplesPerBlock;
+        ByteBuffer patch = ByteBuffer.allocate(24).order(ByteOrder.LITTLE_ENDIAN);
+        if (wav.rf64 && wav.ds64Offset >= 0) {
+            patch.putLong(riffSize).putLong(dataSize).putLong(frames).flip();
+            writeFully(channel, patch, wav.ds64Offset);
+        } else {
+            patchInt(channel, patch, 4, riffSize);
+            patchInt(channel, patch, wav.dataOffset - 4, dataSize);
+            if (wav.factOffset >= 0) {
+                patchInt(channel, patch, wav.factOffset, frames);
+            }
+        }
+        channel.force(true);
+        return new Result(file, Outcome.REPAIRED, length, end);
+    }
+
+    /**
+     * Returns the end of the last whole lossless block, walking the block headers from the
+     * stream header on.
+     */
+    private static long losslessEnd(FileChannel channel, long length) throws IOException {
+        byte[] header = new byte[LosslessCodec.BLOCK_HEADER_SIZE];
+        ByteBuffer buffer = ByteBuffer.wrap(header);
+        long offset = LosslessCodec.HEADER_SIZE;
+        while (offset + LosslessCodec.BLOCK_HEADER_SIZE <= length) {
+            buffer.clear();
+            readFully(channel, buffer, offset);
+            int payload = LosslessCodec.blockLength(header, 0);
+            if (payload < 0) {
+                break;
+            }
+            long next = offset + LosslessCodec.blockSize(payload);
+            if (next > length) {
+                break;
+            }
+            offset = next;
+        }
+        return Math.min(offset, length);
+    }
+
+    /**
+     * Returns the end of the audio in {@code [from, to)}: just past the last frame of
+     * {@code frameBytes} that holds a nonzero byte, or {@code from} if there is none. Frames
+     * are counted from {@code from}, and a torn last frame does not count.
+     */
+    private static long pcmEnd(FileChannel channel, long from, long to, int frameBytes)
+            throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(SCAN_BYTES);
+        long end = to;
+        while (end > from) {
+            long start = Math.max(from, end - SCAN_BYTES);
+            buffer.clear().limit((int) (end - start));
+            readFully(channel, buffer, start);
+            for (int i = buffer.limit() - 1; i >= 0; i--) {
+                if (buffer.get(i) != 0) {
+                    long last = start + i - from;
+                    long frameEnd = from + (last / frameBytes + 1) * frameBytes;
+                    long whole = from + (to - from) / frameBytes * frameBytes;
+                    return Math.min(frameEnd, whole);
+                }
+            }
+            end = start;
+        }
+        return from;
+    }
+
+    private static void patchInt(FileChannel channel, ByteBuffer patch, long offset, long value)
+            throws IOException {
+        patch.clear();
+        patch.putInt((int) value).flip();
+        writeFully(channel, patch, offset);
+    }
+
+    private static int tag(String tag) {
+        return ByteBuffer.wrap(tag.getBytes()).order(ByteOrder.BIG_ENDIAN).getInt();
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer dst, long position)
+            throws IOException {
+        while (dst.hasRemaining()) {
+            int read = channel.read(dst, position);
+            if (read < 0) {
+                return;
+            }
+            position += read;
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer src, long position)
+            throws IOException {
+        while (src.hasRemaining()) {
+            position += channel.write(src, position);
+        }
+    }
+}
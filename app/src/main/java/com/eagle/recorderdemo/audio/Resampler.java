@@ -0,0 +1,140 @@
+package com.eagle.recorderdemo.audio;
+
+/**
+ * Converts a stream of mono PCM16 from one sample rate to another with a windowed sinc filter.
+ *
+ * Each output sample is the input around its position weighted by a Blackman windowed sinc,
+ * cut off just below the lower of the two Nyquist frequencies so downsampling does not alias.
+ * The kernel is tabulated once at a fine phase step and each tap interpolates linearly between
+ * the two nearest phases, so no trigonometry runs per sample, only a few multiplies and adds per
+ * tap. State carries over between calls; {@link #finish} drains what is left.
+ */
+public final class Resampler {
+
+    // Zero crossings of the sinc on either side of the centre, at the output rate.
+    private static final int HALF_TAPS = 16;
+    private static final int PHASES = 256;
+    private static final double CUTOFF = 0.95;
+
+    private final int mInRate;
+    private final int mOutRate;
+    private final double mStep;
+    private final double mScale;
+    private final int mHalfWidth;
+    private final float[] mKernel;
+
+    // Input still within reach of the filter; mPosition is where the next output is centred.
+    private float[] mBuffer;
+    private int mFill;
+    private final int mHistory;
+    private double mPosition;
+    private long mInputFrames;
+    private long mOutputFrames;
+
+    public Resampler(int inRate, int outRate) {
+        mInRate = inRate;
+        mOutRate = outRate;
+        mStep = inRate / (double) outRate;
+        double factor = Math.min(1.0, outRate / (double) inRate) * CUTOFF;
+        mScale = factor * PHASES;
+        mHalfWidth = (int) Math.ceil(HALF_TAPS / factor);
+        mKernel = new float[HALF_TAPS * PHASES + 2];
+        for (int i = 0; i < mKernel.length; i++) {
+            double u = i / (double) PHASES;
+            if (u > HALF_TAPS) {
+                break;
+            }
+            double sinc = u == 0 ? 1 : Math.sin(Math.PI * u) / (Math.PI * u);
+            double w = 0.5 + 0.5 * u / HALF_TAPS;
+            double window = 0.42 - 0.5 * Math.cos(2 * Math.PI * w)
+                    + 0.08 * Math.cos(4 * Math.PI * w);
+            mKernel[i] = (float) (factor * sinc * window);
+        }
+        mHistory = 2 * mHalfWidth;
+        mBuffer = new float[mHistory + 4096];
+        mFill = mHistory;
+        mPosition = mHistory;
+    }
+
+    public int getInputRate() {
+        return mInRate;
+    }
+
+    public int getOutputRate() {
+        return mOutRate;
+    }
+
+    /** Most output samples {@code inputSamples} more input can produce. */
+    public int maxOutput(int inputSamples) {
+        return (int) Math.ceil((inputSamples + mHistory) / mStep) + 1;
+    }
+
+    /**
+     * Resamples {@code count} samples of {@code in} into {@code out}, which must have room for
+     * {@link #maxOutput}{@code (count)} samples.
+     *
+     * @return samples written to {@code out}
+     */
+    public int process(short[] in, int offset, int count, short[] out, int outOffset) {
+        if (mFill + count > mBuffer.length) {
+            float[] grown = new float[mFill + count];
+            System.arraycopy(mBuffer, 0, grown, 0, mFill);
+            mBuffer = grown;
+        }
+        for (int i = 0; i < count; i++) {
+            mBuffer[mFill++] = in[offset + i];
+        }
+        mInputFrames += count;
+        return drain(out, outOffset);
+    }
+
+    /**
+     * Pushes the samples still inside the filter out, as many as the input calls for at the
+     * output rate. The resampler cannot be used afterwards.
+     */
+    public int finish(short[] out, int outOffset) {
+        long total = (mInputFrames * mOutRate + mInRate - 1) / mInRate;
+        short[] silence = new short[mHalfWidth + 1];
+        long inputFrames = mInputFrames;
+        int written = process(silence, 0, silence.length, out, outOffset);
+        mInputFrames = inputFrames;
+        // Flushing with silence may overshoot; only outputs the input covers count.
+        long excess = mOutputFrames - total;
+        if (excess > 0) {
+            written -= (int) excess;
+            mOutputFrames = total;
+        }
+        return Math.max(0, written);
+    }
+
+    private int drain(short[] out, int outOffset) {
+        int written = 0;
+        float[] buffer = mBuffer;
+        while ((int) mPosition + mHalfWidth < mFill) {
+            int centre = (int) mPosition;
+            double sum = 0;
+            for (int k = centre - mHalfWidth + 1; k <= centre + mHalfWidth; k++) {
+                double x = Math.abs(mPosition - k) * mScale;
+                int index = (int) x;
+                if (index + 1 >= mKernel.length) {
+                    continue;
+                }
+                float a = mKernel[index];
+                sum += buffer[k] * (a + (mKernel[index + 1] - a) * (float) (x - index));
+            }
+            int sample = (int) Math.round(sum);
+            out[outOffset + written++] = (short) Math.max(Short.MIN_VALUE,
+                    Math.min(Short.MAX_VALUE, sample));
+            mPosition += mStep;
+        }
+        mOutputFrames += written;
+        // Keep what the next output still reaches back to.
+        int consumed = (int) mPosition - mHistory;
+        if (consumed > 0) {
+            System.arraycopy(buffer, consumed, buffer, 0, mFill - consumed);
+            mFill -= consumed;
+            mPosition -= consumed;
+        }
+        return written;
+    }
+}
@@ -0,0 +1,155 @@
+package com.eagle.recorderdemo.audio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Splits one continuous stream into consecutive segment files.
+ *
+ * A new segment is opened as soon as the current one holds {@code maxSegmentBytes}. The split
+ * always falls on a frame boundary and every byte goes to exactly one segment, so concatenating
+ * the segments gives back the stream without a gap. While the optional {@link StorageJanitor}
+ * reports low space, the current segment is closed and incoming audio is discarded (and
+ * counted) until space is available again. The janitor is asked to look at the space again
+ * every {@link #SPACE_CHECK_BYTES}, so a long segment cannot fill the volume between closes.
+ */
+public final class RollingSegmentWriter implements SegmentWriter {
+
+    /**
+     * Creates the writers for the individual segments, e.g. a {@link WavWriter} per file.
+     */
+    public interface SegmentFactory {
+        SegmentWriter openSegment(int index) throws IOException;
+
+        /** Called after segment {@code index} has been closed. */
+        void onSegmentClosed(int index, SegmentWriter segment);
+    }
+
+    /** Bytes written between two requests to the janitor to sweep and check free space. */
+    public static final long SPACE_CHECK_BYTES = 4 * 1024 * 1024;
+
+    private final SegmentFactory mFactory;
+    private final long mMaxSegmentBytes;
+    private final StorageJanitor mJanitor;
+    private final WriterStats mClosedStats = new WriterStats();
+
+    private SegmentWriter mCurrent;
+    private int mIndex;
+    private long mClosedBytes;
+    private long mUncheckedBytes;
+    private volatile long mDroppedBytes;
+
+    /**
+     * @param maxSegmentBytes audio bytes per segment, rounded down to whole frames
+     * @param janitor pauses writing while space is low, may be {@code null}
+     */
+    public RollingSegmentWriter(SegmentFactory factory, long maxSegmentBytes, int frameBytes,
+            StorageJanitor janitor) {
+        mFactory = factory;
+        mMaxSegmentBytes = Math.max(frameBytes, maxSegmentBytes - maxSegmentBytes % frameBytes);
+        mJanitor = janitor;
+    }
+
+    @Override
+    public void write(byte[] src, int offset, int length) throws IOException {
+        if (mJanitor != null && mJanitor.isLowOnSpace()) {
+            if (mCurrent != null) {
+                closeSegment();
+            }
+            mDroppedBytes += length;
+            return;
+        }
+        if (mJanitor != null) {
+            mUncheckedBytes += length;
+            if (mUncheckedBytes >= SPACE_CHECK_BYTES) {
+                mUncheckedBytes = 0;
+                mJanitor.requestSweep();
+            }
+        }
+        while (length > 0) {
+            if (mCurrent == null) {
+                mCurrent = mFactory.openSegment(mIndex);
+            }
+            long room = mMaxSegmentBytes - mCurrent.position();
+            if (room <= 0) {
+                closeSegment();
+                continue;
+            }
+            int chunk = (int) Math.min(length, room);
+            mCurrent.write(src, offset, chunk);
+            offset += chunk;
+            length -= chunk;
+        }
+    }
+
+    private void closeSegment() throws IOException {
+        SegmentWriter segment = mCurrent;
+        mCurrent = null;
+        try {
+            segment.close();
+        } finally {
+            mClosedBytes += segment.position();
+            mClosedStats.add(segment.getStats());
+            mFactory.onSegmentClosed(mIndex++, segment);
+        }
+    }
+
+    /** Number of segments opened so far. */
+    public int getSegmentCount() {
+        return mIndex + (mCurrent != null ? 1 : 0);
+    }
+
+    /** Audio bytes discarded while storage was low. */
+    public long getDroppedBytes() {
+        return mDroppedBytes;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (mCurrent != null) {
+            mCurrent.flush();
+        }
+    }
+
+    @Override
+    public long position() {
+        return mClosedBytes + (mCurrent != null ? mCurrent.position() : 0);
+    }
+
+    @Override
+    public long committedPosition() {
+        return mClosedBytes + (mCurrent != null ? mCurrent.committedPosition() : 0);
+    }
+
+    /**
+     * Only positions inside the current segment can be patched.
+     */
+    @Override
+    public void writeAt(long position, ByteBuffer src) throws IOException {
+        if (mCurrent == null || position < mClosedBytes) {
+            throw new IOException("position " + position + " is in a closed segment");
+        }
+        mCurrent.writeAt(position - mClosedBytes, src);
+    }
+
+    /**
+     * Totals of all segments so far; a new object on every call.
+     */
+    @Override
+    public WriterStats getStats() {
+        WriterStats stats = new WriterStats();
+        stats.add(mClosedStats);
+        SegmentWriter current = mCurrent;
+        if (current != null) {
+            stats.add(current.getStats());
+        }
+        return stats;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (mCurrent != null) {
+            closeSegment();
+        }
+    }
+}
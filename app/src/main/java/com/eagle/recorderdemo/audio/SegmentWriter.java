@@ -0,0 +1,42 @@
+package com.eagle.recorderdemo.audio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Sink for the bytes of one recording file.
+ *
+ * Implementations differ in how they get the bytes to disk (one syscall per buffer, coalesced
+ * blocks through a {@link java.nio.channels.FileChannel}, or a memory-mapped window) but all of
+ * them keep a {@link WriterStats} so the paths can be compared on a device.
+ */
+public interface SegmentWriter extends AudioSink {
+
+    enum Mode {
+        /** One {@code write(2)} per buffer through a {@link java.io.FileOutputStream}. */
+        STREAM,
+        /** Coalesced, block-aligned writes from a direct buffer, with preallocated extents. */
+        CHANNEL,
+        /** Copies into a sliding memory-mapped window of the file. */
+        MAPPED
+    }
+
+    /**
+     * Number of bytes accepted so far, i.e. the logical length of the file.
+     */
+    long position();
+
+    /**
+     * Number of leading bytes that have already been handed to the OS, so that a reader of the
+     * file (or a crash) sees them. Never larger than {@link #position()}.
+     */
+    long committedPosition();
+
+    /**
+     * Overwrites bytes below {@link #position()} in place, without moving it. This is a
+     * positional write, used to patch container headers.
+     */
+    void writeAt(long position, ByteBuffer src) throws IOException;
+
+    WriterStats getStats();
+}
@@ -0,0 +1,62 @@
+package com.eagle.recorderdemo.audio;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Creates {@link SegmentWriter}s for a configured {@link SegmentWriter.Mode}.
+ */
+public final class SegmentWriters {
+
+    public static final int DEFAULT_BLOCK_SIZE = 256 * 1024;
+    public static final long DEFAULT_PREALLOCATE_BYTES = 8 * 1024 * 1024;
+
+    private SegmentWriters() {
+    }
+
+    /**
+     * Opens a writer that leaves write-back to the kernel, see {@link SyncPolicy#NONE}.
+     */
+    public static SegmentWriter open(File file, SegmentWriter.Mode mode, int blockSize,
+            long preallocateBytes, ChannelSegmentWriter.Preallocator preallocator)
+            throws IOException {
+        return open(file, mode, blockSize, preallocateBytes, preallocator, SyncPolicy.NONE);
+    }
+
+    /**
+     * @param blockSize coalescing block for {@link SegmentWriter.Mode#CHANNEL}, mapping window
+     *         for {@link SegmentWriter.Mode#MAPPED}
+     * @param preallocateBytes extent reserved ahead of the writer, 0 to disable
+     * @param preallocator how extents are reserved, {@code null} to disable
+     * @param sync when written data is forced to storage
+     */
+    public static SegmentWriter open(File file, SegmentWriter.Mode mode, int blockSize,
+            long preallocateBytes, ChannelSegmentWriter.Preallocator preallocator,
+            SyncPolicy sync) throws IOException {
+        switch (mode) {
+            case STREAM:
+                return new StreamSegmentWriter(file, sync);
+            case MAPPED:
+                return new MappedSegmentWriter(file, Math.max(blockSize, (int) preallocateBytes),
+                        sync);
+            case CHANNEL:
+            default:
+                return new ChannelSegmentWriter(file, blockSize, preallocateBytes, preallocator,
+                        sync);
+        }
+    }
+
+    /**
+     * Parses a mode name as used in system properties, falling back to {@code fallback}.
+     */
+    public static SegmentWriter.Mode parseMode(String name, SegmentWriter.Mode fallback) {
+        if (name != null) {
+            for (SegmentWriter.Mode mode : SegmentWriter.Mode.values()) {
+                if (mode.name().equalsIgnoreCase(name.trim())) {
+                    return mode;
+                }
+            }
+        }
+        return fallback;
+    }
+}
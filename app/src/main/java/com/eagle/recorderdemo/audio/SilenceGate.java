@@ -0,0 +1,315 @@
+package com.eagle.recorderdemo.audio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Voice activity gate that keeps silence out of another {@link SegmentWriter}.
+ *
+ * Incoming PCM16 is cut into short analysis windows. A window counts as active when its energy
+ * clears the threshold, or comes within {@link #WEAK_MARGIN_DB} of it with a zero-crossing rate
+ * typical of unvoiced speech (fricatives are quiet but noisy). Energy and zero crossings are
+ * taken over all channels, so content out of phase between them does not cancel. The threshold
+ * is kept above a noise floor tracked whether the gate is open or not: the quietest window of the
+ * last couple of seconds, which speech dips below between words but a steady hum never does, so
+ * a hum does not hold the gate open. Once open, the gate stays open for the hangover time after
+ * the last active window; while closed, the most recent pre-roll is kept in a preallocated ring
+ * and written in front of the next active window so word onsets are not clipped. Audio that
+ * falls out of the pre-roll is skipped and recorded in the {@link GapLog}.
+ *
+ * {@link #position()} counts captured bytes, skipped or not, so duration-based decisions upstream
+ * are not affected by the gating.
+ */
+public final class SilenceGate implements SegmentWriter {
+
+    /** How far below the threshold a window with a speech-like zero-crossing rate may be. */
+    public static final float WEAK_MARGIN_DB = 10f;
+
+    private static final int WINDOW_MS = 10;
+    // The threshold is kept at least this far above the tracked noise floor.
+    private static final float NOISE_MARGIN_DB = 9f;
+    // The noise floor is the quietest window of the last NOISE_BLOCKS blocks of
+    // NOISE_BLOCK_WINDOWS windows each, about 2 s.
+    private static final int NOISE_BLOCKS = 8;
+    private static final int NOISE_BLOCK_WINDOWS = 25;
+    // Zero crossings per sample for unvoiced speech.
+    private static final float ZCR_MIN = 0.25f;
+    private static final float ZCR_MAX = 0.75f;
+    private static final float FULL_SCALE_SQUARED = 32768f * 32768f;
+
+    private final SegmentWriter mOut;
+    private final GapLog mGapLog;
+    private final int mFrameBytes;
+    private final int mChannels;
+    private final int mSampleRate;
+    private final float mThresholdDb;
+    private final int mHangoverWindows;
+
+    private final byte[] mWindow;
+    private int mFill;
+
+    private final byte[] mPreRoll;
+    private int mPreRollStart;
+    private int mPreRollFill;
+
+    private final int[] mPrevious;
+    // Quietest window of each of the last blocks, a ring, and of the block in progress.
+    private final float[] mBlockMinDb = new float[NOISE_BLOCKS];
+    private int mBlock;
+    private int mBlockWindows;
+    private float mCurrentMinDb = Float.MAX_VALUE;
+    private float mNoiseFloorDb = LevelMeter.SILENCE_DB;
+    private boolean mOpen;
+    private int mHangover;
+    private long mPendingSkip;
+
+    private long mInputBytes;
+    private volatile long mSkippedBytes;
+    private volatile long mWrittenBytes;
+    private volatile int mOpenings;
+
+    /**
+     * @param gapLog receives a marker for every skipped stretch, may be {@code null}
+     * @param thresholdDb energy in dBFS above which a window is active
+     * @param hangoverMs how long the gate stays open after the last active window
+     * @param preRollMs how much audio before an active window is kept
+     */
+    public SilenceGate(SegmentWriter out, GapLog gapLog, int sampleRate, int frameBytes,
+            float thresholdDb, int hangoverMs, int preRollMs) {
+        mOut = out;
+        mGapLog = gapLog;
+        mFrameBytes = frameBytes;
+        mChannels = frameBytes / 2;
+        mSampleRate = sampleRate;
+        mThresholdDb = thresholdDb;
+        int windowFrames = Math.max(1, sampleRate * WINDOW_MS / 1000);
+        mWindow = new byte[windowFrames * frameBytes];
+        mHangoverWindows = Math.max(0, hangoverMs / WINDOW_MS);
+        mPreRoll = new byte[Math.max(0, preRollMs / WINDOW_MS) * mWindow.length];
+        mPrevious = new int[mChannels];
+        Arrays.fill(mBlockMinDb, LevelMeter.SILENCE_DB);
+    }
+
+    @Override
+    public void write(byte[] src, int offset, int length) throws IOException {
+        mInputBytes += length;
+        while (length > 0) {
+            int chunk = Math.min(length, mWindow.length - mFill);
+            System.arraycopy(src, offset, mWindow, mFill, chunk);
+            mFill += chunk;
+            offset += chunk;
+            length -= chunk;
+            if (mFill == mWindow.length) {
+                gateWindow();
+                mFill = 0;
+            }
+        }
+    }
+
+    private void gateWindow() throws IOException {
+        if (isActive(mWindow, mFill)) {
+            if (!mOpen) {
+                open();
+            }
+            mHangover = mHangoverWindows;
+        } else if (mOpen && mHangover-- <= 0) {
+            mOpen = false;
+        }
+        if (mOpen) {
+            writeOut(mWindow, 0, mFill);
+        } else {
+            keepPreRoll(mWindow, mFill);
+        }
+    }
+
+    private boolean isActive(byte[] pcm, int length) {
+        long sumSquares = 0;
+        int crossings = 0;
+        int samples = 0;
+        Arrays.fill(mPrevious, 0);
+        for (int i = 0; i + mFrameBytes <= length; i += mFrameBytes) {
+            for (int c = 0; c < mChannels; c++) {
+                int p = i + 2 * c;
+                int sample = (short) ((pcm[p] & 0xff) | (pcm[p + 1] << 8));
+                sumSquares += (long) sample * sample;
+                if ((sample ^ mPrevious[c]) < 0) {
+                    crossings++;
+                }
+                mPrevious[c] = sample;
+            }
+            samples += mChannels;
+        }
+        if (samples == 0) {
+            return false;
+        }
+        float db = sumSquares == 0 ? LevelMeter.SILENCE_DB
+                : (float) (10 * Math.log10(sumSquares / (samples * (double) FULL_SCALE_SQUARED)));
+        float zcr = crossings / (float) samples;
+        trackNoiseFloor(db);
+        float threshold = Math.max(mThresholdDb, mNoiseFloorDb + NOISE_MARGIN_DB);
+        return db >= threshold
+                || (db >= threshold - WEAK_MARGIN_DB && zcr >= ZCR_MIN && zcr <= ZCR_MAX);
+    }
+
+    /**
+     * Minimum statistics: the floor is the quietest window over the last few blocks, so it
+     * falls at once and rises to a level only once that level has lasted the whole span.
+     */
+    private void trackNoiseFloor(float db) {
+        mCurrentMinDb = Math.min(mCurrentMinDb, db);
+        float floor = mCurrentMinDb;
+        for (float blockMin : mBlockMinDb) {
+            floor = Math.min(floor, blockMin);
+        }
+        if (++mBlockWindows == NOISE_BLOCK_WINDOWS) {
+            mBlockMinDb[mBlock] = mCurrentMinDb;
+            mBlock = (mBlock + 1) % NOISE_BLOCKS;
+            mBlockWindows = 0;
+            mCurrentMinDb = Float.MAX_VALUE;
+        }
+        mNoiseFloorDb = floor;
+    }
+
+    /** The tracked noise floor in dBFS. */
+    public float getNoiseFloorDb() {
+        return mNoiseFloorDb;
+    }
+
+    private void open() throws IOException {
+        mOpen = true;
+        mOpenings++;
+        if (mPendingSkip > 0) {
+            if (mGapLog != null) {
+                mGapLog.append(mOut.position() / mFrameBytes, mPendingSkip / mFrameBytes);
+            }
+            mPendingSkip = 0;
+        }
+        int first = Math.min(mPreRollFill, mPreRoll.length - mPreRollStart);
+        writeOut(mPreRoll, mPreRollStart, first);
+        writeOut(mPreRoll, 0, mPreRollFill - first);
+        mPreRollStart = 0;
+        mPreRollFill = 0;
+    }
+
+    /** Appends a window to the pre-roll ring, skipping whatever it pushes out. */
+    private void keepPreRoll(byte[] window, int length) {
+        int capacity = mPreRoll.length;
+        if (capacity == 0) {
+            skip(length);
+            return;
+        }
+        int overflow = mPreRollFill + length - capacity;
+        if (overflow > 0) {
+            skip(overflow);
+            mPreRollStart = (mPreRollStart + overflow) % capacity;
+            mPreRollFill -= overflow;
+        }
+        int end = (mPreRollStart + mPreRollFill) % capacity;
+        int first = Math.min(length, capacity - end);
+        System.arraycopy(window, 0, mPreRoll, end, first);
+        System.arraycopy(window, first, mPreRoll, 0, length - first);
+        mPreRollFill += length;
+    }
+
+    private void skip(int length) {
+        mPendingSkip += length;
+        mSkippedBytes += length;
+    }
+
+    private void writeOut(byte[] src, int offset, int length) throws IOException {
+        if (length > 0) {
+            mOut.write(src, offset, length);
+            mWrittenBytes += length;
+        }
+    }
+
+    public boolean isOpen() {
+        return mOpen;
+    }
+
+    /** Captured bytes that were not written. */
+    public long getSkippedBytes() {
+        return mSkippedBytes;
+    }
+
+    /** Captured bytes passed on downstream. */
+    public long getWrittenBytes() {
+        return mWrittenBytes;
+    }
+
+    /**
+     * Average write bandwidth saved so far, in captured bytes per second of recording.
+     */
+    public long getSavedBytesPerSecond() {
+        long seconds = (mWrittenBytes + mSkippedBytes) / ((long) mSampleRate * mFrameBytes);
+        return seconds > 0 ? mSkippedBytes / seconds : 0;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        mOut.flush();
+    }
+
+    @Override
+    public long position() {
+        return mInputBytes;
+    }
+
+    /** Captured bytes that have been skipped or committed downstream. */
+    @Override
+    public long committedPosition() {
+        return mSkippedBytes + mOut.committedPosition();
+    }
+
+    @Override
+    public void writeAt(long position, ByteBuffer src) throws IOException {
+        throw new IOException("gated streams cannot be patched");
+    }
+
+    @Override
+    public WriterStats getStats() {
+        return mOut.getStats();
+    }
+
+    /**
+     * Gates a trailing partial window like a whole one. If the gate is closed then, the remaining
+     * pre-roll is skipped and closed off with a final marker so the capture length stays known.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            int tail = mFill - mFill % mFrameBytes;
+            if (tail > 0) {
+                mFill = tail;
+                gateWindow();
+            }
+            if (!mOpen) {
+                skip(mPreRollFill);
+                mPreRollFill = 0;
+                if (mPendingSkip > 0 && mGapLog != null) {
+                    mGapLog.append(mOut.position() / mFrameBytes, mPendingSkip / mFrameBytes);
+                }
+                mPendingSkip = 0;
+            }
+            mFill = 0;
+        } finally {
+            try {
+                mOut.close();
+            } finally {
+                if (mGapLog != null) {
+                    mGapLog.close();
+                }
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        long total = mWrittenBytes + mSkippedBytes;
+        return "SilenceGate{written=" + mWrittenBytes + ", skipped=" + mSkippedBytes
+                + " (" + (total > 0 ? mSkippedBytes * 100 / total : 0) + "%, "
+                + getSavedBytesPerSecond() + " B/s), openings=" + mOpenings
+                + ", markers=" + (mGapLog != null ? mGapLog.getCount() : 0) + "}";
+    }
+}
@@ -0,0 +1,209 @@
+package com.eagle.recorderdemo.audio;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Keeps a recording directory within a byte quota and above a free-space watermark.
+ *
+ * Sweeps run on a single background thread. Files are grouped by base name (everything before
+ * the first '.') so a recording and its sidecar files go together, and whole groups are evicted
+ * oldest first until the directory fits the quota. Only groups holding a file named like a
+ * {@link RecordingInfo#isRecording recording} are evicted, never temporaries such as files
+ * opened ahead of a recording; files being written must be protected. If the
+ * volume is still below {@code minFreeBytes} after eviction, {@link #isLowOnSpace()} turns true
+ * and stays true until free space climbs back above {@code resumeFreeBytes}; meanwhile the
+ * janitor re-checks periodically.
+ */
+public final class StorageJanitor {
+
+    public interface Listener {
+        void onEvicted(File file, long bytes);
+
+        void onLowSpaceChanged(boolean low, long freeBytes);
+    }
+
+    private static final long LOW_SPACE_RECHECK_SECONDS = 5;
+
+    private final File mDir;
+    private final long mQuotaBytes;
+    private final long mMinFreeBytes;
+    private final long mResumeFreeBytes;
+    private final Listener mListener;
+
+    private final Set<String> mProtected =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final AtomicBoolean mSweepQueued = new AtomicBoolean();
+    private final ScheduledExecutorService mExecutor;
+    private final Runnable mSweep = new Runnable() {
+        @Override
+        public void run() {
+            mSweepQueued.set(false);
+            sweep();
+        }
+    };
+
+    private volatile boolean mLowOnSpace;
+    private volatile long mEvictedFiles;
+    private volatile long mEvictedBytes;
+
+    /**
+     * @param quotaBytes maximum size of the directory, 0 for no quota
+     * @param minFreeBytes free space below which writing should pause, 0 to disable
+     * @param resumeFreeBytes free space at which writing may resume
+     */
+    public StorageJanitor(File dir, long quotaBytes, long minFreeBytes, long resumeFreeBytes,
+            Listener listener) {
+        mDir = dir;
+        mQuotaBytes = quotaBytes;
+        mMinFreeBytes = minFreeBytes;
+        mResumeFreeBytes = Math.max(minFreeBytes, resumeFreeBytes);
+        mListener = listener;
+        mExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "StorageJanitor");
+                t.setDaemon(true);
+                t.setPriority(Thread.MIN_PRIORITY);
+                return t;
+            }
+        });
+    }
+
+    /** Never evict {@code file} (and its sidecars) until {@link #unprotect}ed. */
+    public void protect(File file) {
+        mProtected.add(baseName(file));
+    }
+
+    public void unprotect(File file) {
+        mProtected.remove(baseName(file));
+    }
+
+    /**
+     * Queues a sweep unless one is already queued. Cheap enough to call after every segment.
+     */
+    public void requestSweep() {
+        if (mSweepQueued.compareAndSet(false, true)) {
+            mExecutor.execute(mSweep);
+        }
+    }
+
+    public boolean isLowOnSpace() {
+        return mLowOnSpace;
+    }
+
+    public long getEvictedFiles() {
+        return mEvictedFiles;
+    }
+
+    public long getEvictedBytes() {
+        return mEvictedBytes;
+    }
+
+    public void shutdown() {
+        mExecutor.shutdownNow();
+    }
+
+    private void sweep() {
+        File[] files = mDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        Map<String, List<File>> groups = new HashMap<>();
+        final Map<String, Long> groupTimes = new HashMap<>();
+        Set<String> recordings = new HashSet<>();
+        long total = 0;
+        for (File file : files) {
+            if (!file.isFile()) {
+                continue;
+            }
+            total += file.length();
+            String base = baseName(file);
+            List<File> group = groups.get(base);
+            if (group == null) {
+                group = new ArrayList<>();
+                groups.put(base, group);
+            }
+            group.add(file);
+            if (RecordingInfo.isRecording(file)) {
+                recordings.add(base);
+            }
+            Long time = groupTimes.get(base);
+            groupTimes.put(base, time == null ? file.lastModified()
+                    : Math.max(time, file.lastModified()));
+        }
+
+        List<String> oldestFirst = new ArrayList<>(groups.keySet());
+        Collections.sort(oldestFirst, new Comparator<String>() {
+            @Override
+            public int compare(String a, String b) {
+                int byTime = Long.compare(groupTimes.get(a), groupTimes.get(b));
+                return byTime != 0 ? byTime : a.compareTo(b);
+            }
+        });
+
+        for (String base : oldestFirst) {
+            boolean overQuota = mQuotaBytes > 0 && total > mQuotaBytes;
+            boolean lowSpace = mMinFreeBytes > 0 && mDir.getUsableSpace() < mResumeFreeBytes;
+            if (!overQuota && !lowSpace) {
+                break;
+            }
+            if (mProtected.contains(base) || !recordings.contains(base)) {
+                continue;
+            }
+            for (File file : groups.get(base)) {
+                long length = file.length();
+                if (file.delete()) {
+                    total -= length;
+                    mEvictedFiles++;
+                    mEvictedBytes += length;
+                    if (mListener != null) {
+                        mListener.onEvicted(file, length);
+                    }
+                }
+            }
+        }
+        updateLowSpace();
+    }
+
+    private void updateLowSpace() {
+        if (mMinFreeBytes <= 0) {
+            return;
+        }
+        long free = mDir.getUsableSpace();
+        boolean low = mLowOnSpace ? free < mResumeFreeBytes : free < mMinFreeBytes;
+        if (low != mLowOnSpace) {
+            mLowOnSpace = low;
+            if (mListener != null) {
+                mListener.onLowSpaceChanged(low, free);
+            }
+        }
+        if (low) {
+            mExecutor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    requestSweep();
+                }
+            }, LOW_SPACE_RECHECK_SECONDS, TimeUnit.SECONDS);
+        }
+    }
+
+    static String baseName(File file) {
+        String name = file.getName();
+        int dot = name.indexOf('.');
+        return dot < 0 ? name : name.substring(0, dot);
+    }
+}
@@ -0,0 +1,93 @@
+package com.eagle.recorderdemo.audio;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * The original write path: every buffer goes straight to an unbuffered
+ * {@link FileOutputStream}. Kept as the baseline the other writers are measured against.
+ */
+public final class StreamSegmentWriter implements SegmentWriter {
+
+    private final FileOutputStream mOut;
+    private final SyncPolicy mSync;
+    private final WriterStats mStats = new WriterStats();
+    private long mPosition;
+    private long mSynced;
+    private long mFirstUnsyncedNanos;
+
+    public StreamSegmentWriter(File file) throws IOException {
+        this(file, SyncPolicy.NONE);
+    }
+
+    public StreamSegmentWriter(File file, SyncPolicy sync) throws IOException {
+        mOut = new FileOutputStream(file);
+        mSync = sync;
+    }
+
+    @Override
+    public void write(byte[] src, int offset, int length) throws IOException {
+        long start = System.nanoTime();
+        if (length > 0 && mPosition == mSynced) {
+            mFirstUnsyncedNanos = start;
+        }
+        mOut.write(src, offset, length);
+        long end = System.nanoTime();
+        mStats.onWrite(length, end - start);
+        mPosition += length;
+        if (mSync.isDue(mPosition - mSynced, mFirstUnsyncedNanos, end)) {
+            sync();
+        }
+    }
+
+    /** Forces everything written so far to storage. */
+    public void sync() throws IOException {
+        long start = System.nanoTime();
+        mOut.getChannel().force(false);
+        mStats.onSync(System.nanoTime() - start);
+        mSynced = mPosition;
+    }
+
+    @Override
+    public void flush() {
+        // nothing is buffered
+    }
+
+    @Override
+    public long position() {
+        return mPosition;
+    }
+
+    @Override
+    public long committedPosition() {
+        return mPosition;
+    }
+
+    @Override
+    public void writeAt(long position, ByteBuffer src) throws IOException {
+        long start = System.nanoTime();
+        int length = src.remaining();
+        while (src.hasRemaining()) {
+            position += mOut.getChannel().write(src, position);
+        }
+        mStats.onWrite(length, System.nanoTime() - start);
+    }
+
+    @Override
+    public WriterStats getStats() {
+        return mStats;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (mSync.isEnabled()) {
+                sync();
+            }
+        } finally {
+            mOut.close();
+        }
+    }
+}
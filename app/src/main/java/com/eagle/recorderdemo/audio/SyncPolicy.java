@@ -0,0 +1,98 @@
+package com.eagle.recorderdemo.audio;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * When a file writer forces what it has written to storage.
+ *
+ * Without syncing, written bytes sit in the page cache until the kernel writes them back, and a
+ * power cut loses all of them along with the file length. An {@code fsync} per buffer would
+ * bound that loss to one buffer but stall the writer on every one. Instead the writer commits in
+ * groups: after {@link Mode#INTERVAL a time} or {@link Mode#BYTES an amount} of audio, one sync
+ * covers everything written since the last, so at most that much is lost.
+ */
+public final class SyncPolicy {
+
+    public enum Mode {
+        /** Left to the kernel; closing a file does not sync it either. */
+        NONE,
+        /** Once the oldest unsynced byte is a given time old. */
+        INTERVAL,
+        /** Once a given number of bytes are unsynced. */
+        BYTES
+    }
+
+    public static final SyncPolicy NONE = new SyncPolicy(Mode.NONE, 0);
+
+    private final Mode mMode;
+    private final long mThreshold;
+
+    private SyncPolicy(Mode mode, long threshold) {
+        mMode = mode;
+        mThreshold = threshold;
+    }
+
+    public static SyncPolicy interval(long millis) {
+        return millis > 0 ? new SyncPolicy(Mode.INTERVAL, TimeUnit.MILLISECONDS.toNanos(millis))
+                : NONE;
+    }
+
+    public static SyncPolicy bytes(long bytes) {
+        return bytes > 0 ? new SyncPolicy(Mode.BYTES, bytes) : NONE;
+    }
+
+    public Mode getMode() {
+        return mMode;
+    }
+
+    /** Whether files are synced at all, including when they are closed. */
+    public boolean isEnabled() {
+        return mMode != Mode.NONE;
+    }
+
+    /**
+     * Whether a sync is due.
+     *
+     * @param unsyncedBytes bytes written since the last sync
+     * @param firstUnsyncedNanos {@link System#nanoTime()} of the first of them
+     */
+    public boolean isDue(long unsyncedBytes, long firstUnsyncedNanos, long nowNanos) {
+        if (unsyncedBytes <= 0) {
+            return false;
+        }
+        switch (mMode) {
+            case INTERVAL:
+                return nowNanos - firstUnsyncedNanos >= mThreshold;
+            case BYTES:
+                return unsyncedBytes >= mThreshold;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Parses a mode name as used in system properties, falling back to {@code fallback}.
+     */
+    public static Mode parseMode(String name, Mode fallback) {
+        if (name != null) {
+            for (Mode mode : Mode.values()) {
+                if (mode.name().equalsIgnoreCase(name.trim())) {
+                    return mode;
+                }
+            }
+        }
+        return fallback;
+    }
+
+    @Override
+    public String toString() {
+        switch (mMode) {
+            case INTERVAL:
+                return "sync every " + TimeUnit.NANOSECONDS.toMillis(mThreshold) + " ms";
+            case BYTES:
+                return "sync every " + mThreshold + " bytes";
+            default:
+                return "no sync";
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package com.eagle.recorderdemo.audio;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Generated {@link AudioSource} for running the pipeline without a microphone.
+ *
+ * It produces a sine, white noise or a looped PCM16 fixture, either paced like a real device
+ * (optionally sped up) or as fast as the consumer takes it. Generation allocates nothing, so
+ * allocation measured during a soak run belongs to the pipeline under test.
+ */
+public final class SyntheticSource implements AudioSource {
+
+    public enum Signal {
+        SINE, NOISE, FIXTURE
+    }
+
+    private final Signal mSignal;
+    private final int mSampleRate;
+    private final int mChannels;
+    private final int mFrameBytes;
+    private final double mSpeed;
+    private final long mTotalFrames;
+    private final int mReadFrames;
+
+    // SINE
+    private final double mPhaseStep;
+    private final double mAmplitude;
+    private double mPhase;
+    // NOISE
+    private long mSeed = 0x2545f4914f6cdd1dL;
+    // FIXTURE
+    private final byte[] mFixture;
+    private int mFixturePosition;
+
+    private long mFrames;
+    private long mStartNanos;
+    private volatile boolean mRunning;
+
+    private SyntheticSource(Signal signal, int sampleRate, int channels, double frequency,
+            float amplitude, byte[] fixture, double speed, long totalFrames, int readFrames) {
+        mSignal = signal;
+        mSampleRate = sampleRate;
+        mChannels = channels;
+        mFrameBytes = channels * 2;
+        mPhaseStep = 2 * Math.PI * frequency / sampleRate;
+        mAmplitude = amplitude * 32767;
+        mFixture = fixture;
+        mSpeed = speed;
+        mTotalFrames = totalFrames;
+        mReadFrames = Math.max(1, readFrames);
+    }
+
+    /**
+     * @param amplitude linear peak, 1.0 is full scale
+     * @param speed multiple of real time to pace reads at, 0 for no pacing
+     * @param totalFrames frames until the source ends, negative for endless
+     * @param readFrames most frames returned per read, like a device period
+     */
+    public static SyntheticSource sine(int sampleRate, int channels, double frequency,
+            float amplitude, double speed, long totalFrames, int readFrames) {
+        return new SyntheticSource(Signal.SINE, sampleRate, channels, frequency, amplitude, null,
+                speed, totalFrames, readFrames);
+    }
+
+    /** White noise with the given linear peak; see {@link #sine} for the other parameters. */
+    public static SyntheticSource noise(int sampleRate, int channels, float amplitude,
+            double speed, long totalFrames, int readFrames) {
+        return new SyntheticSource(Signal.NOISE, sampleRate, channels, 0, amplitude, null,
+                speed, totalFrames, readFrames);
+    }
+
+    /**
+     * Loops interleaved PCM16 {@code pcm}, e.g. a recording decoded with
+     * {@link RecordingDecoder}; see {@link #sine} for the other parameters.
+     */
+    public static SyntheticSource fixture(byte[] pcm, int sampleRate, int channels,
+            double speed, long totalFrames, int readFrames) {
+        int frameBytes = channels * 2;
+        if (pcm.length < frameBytes) {
+            throw new IllegalArgumentException("fixture holds no frame");
+        }
+        byte[] fixture = pcm.length % frameBytes == 0 ? pcm
+                : Arrays.copyOf(pcm, pcm.length - pcm.length % frameBytes);
+        return new SyntheticSource(Signal.FIXTURE, sampleRate, channels, 0, 1f, fixture,
+                speed, totalFrames, readFrames);
+    }
+
+    /**
+     * Decodes a whole recording into memory for use as a {@link #fixture}.
+     */
+    public static byte[] loadFixture(RecordingDecoder decoder) throws IOException {
+        ByteArrayOutputStream pcm = new ByteArrayOutputStream();
+        byte[] buffer = new byte[64 * 1024];
+        int read;
+        while ((read = decoder.read(buffer, 0, buffer.length)) > 0) {
+            pcm.write(buffer, 0, read);
+        }
+        return pcm.toByteArray();
+    }
+
+    @Override
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    @Override
+    public int getChannels() {
+        return mChannels;
+    }
+
+    /** Frames produced so far. */
+    public long getFrames() {
+        return mFrames;
+    }
+
+    @Override
+    public void start() {
+        mStartNanos = System.nanoTime();
+        mRunning = true;
+    }
+
+    @Override
+    public int read(byte[] dst, int offset, int length) throws IOException {
+        if (!mRunning) {
+            throw new IOException("source not started");
+        }
+        long frames = Math.min(length / mFrameBytes, mReadFrames);
+        if (mTotalFrames >= 0) {
+            frames = Math.min(frames, mTotalFrames - mFrames);
+            if (frames <= 0) {
+                return -1;
+            }
+        }
+        pace(mFrames + frames);
+        int bytes = (int) frames * mFrameBytes;
+        switch (mSignal) {
+            case SINE:
+                sine(dst, offset, (int) frames);
+                break;
+            case NOISE:
+                noise(dst, offset, bytes);
+                break;
+            default:
+                fixture(dst, offset, bytes);
+                break;
+        }
+        mFrames += frames;
+        return bytes;
+    }
+
+    /** Sleeps until {@code frames} frames are due. */
+    private void pace(long frames) {
+        if (mSpeed <= 0) {
+            return;
+        }
+        long due = mStartNanos + (long) (frames * 1e9 / (mSampleRate * mSpeed));
+        long wait;
+        while (mRunning && (wait = due - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(wait);
+        }
+    }
+
+    private void sine(byte[] dst, int offset, int frames) {
+        double phase = mPhase;
+        for (int i = 0; i < frames; i++) {
+            int s = (int) Math.round(mAmplitude * Math.sin(phase));
+            phase += mPhaseStep;
+            for (int c = 0; c < mChannels; c++) {
+                dst[offset++] = (byte) s;
+                dst[offset++] = (byte) (s >> 8);
+            }
+        }
+        mPhase = phase % (2 * Math.PI);
+    }
+
+    private void noise(byte[] dst, int offset, int bytes) {
+        long seed = mSeed;
+        for (int end = offset + bytes; offset < end; offset += 2) {
+            seed ^= seed << 13;
+            seed ^= seed >>> 7;
+            seed ^= seed << 17;
+            int s = (int) (mAmplitude * ((int) seed / (double) Integer.MIN_VALUE));
+            dst[offset] = (byte) s;
+            dst[offset + 1] = (byte) (s >> 8);
+        }
+        mSeed = seed;
+    }
+
+    private void fixture(byte[] dst, int offset, int bytes) {
+        while (bytes > 0) {
+            int chunk = Math.min(bytes, mFixture.length - mFixturePosition);
+            System.arraycopy(mFixture, mFixturePosition, dst, offset, chunk);
+            offset += chunk;
+            bytes -= chunk;
+            mFixturePosition = (mFixturePosition + chunk) % mFixture.length;
+        }
+    }
+
+    @Override
+    public void stop() {
+        mRunning = false;
+    }
+
+    @Override
+    public void close() {
+        mRunning = false;
+    }
+}
@@ -0,0 +1,129 @@
+package com.eagle.recorderdemo.audio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Header of an existing WAVE or RF64 file, as written by {@link WavWriter}.
+ */
+public final class WavFile {
+
+    public final WavFormat format;
+    public final boolean rf64;
+    /** File offset of the first audio byte. */
+    public final long dataOffset;
+    /** Audio bytes declared by the header. */
+    public final long dataSize;
+    /** Sample frames declared by the {@code fact} chunk, or derived from the data size. */
+    public final long frameCount;
+    /** File offsets of the bodies of the {@code ds64} and {@code fact} chunks, or -1. */
+    public final long ds64Offset;
+    public final long factOffset;
+
+    private WavFile(WavFormat format, boolean rf64, long dataOffset, long dataSize,
+            long frameCount, long ds64Offset, long factOffset) {
+        this.format = format;
+        this.rf64 = rf64;
+        this.dataOffset = dataOffset;
+        this.dataSize = dataSize;
+        this.frameCount = frameCount;
+        this.ds64Offset = ds64Offset;
+        this.factOffset = factOffset;
+    }
+
+    /**
+     * Parses the chunks up to {@code data}. Returns {@code null} if the file is not a WAVE file.
+     */
+    public static WavFile read(FileChannel channel) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+        if (!readFully(channel, buffer, 0)) {
+            return null;
+        }
+        String riff = tag(buffer, 0);
+        boolean rf64 = "RF64".equals(riff);
+        if (!rf64 && !"RIFF".equals(riff) || !"WAVE".equals(tag(buffer, 8))) {
+            return null;
+        }
+        long ds64DataSize = -1;
+        long ds64Frames = -1;
+        long factFrames = -1;
+        long ds64Offset = -1;
+        long factOffset = -1;
+        WavFormat format = null;
+        long offset = 12;
+        ByteBuffer chunk = ByteBuffer.allocate(40).order(ByteOrder.LITTLE_ENDIAN);
+        while (true) {
+            chunk.clear().limit(8);
+            if (!readFully(channel, chunk, offset)) {
+                return null;
+            }
+            String id = tag(chunk, 0);
+            long size = chunk.getInt(4) & 0xFFFFFFFFL;
+            long body = offset + 8;
+            if ("data".equals(id)) {
+                if (format == null) {
+                    return null;
+                }
+                if (rf64 && size == 0xFFFFFFFFL) {
+                    size = ds64DataSize;
+                    factFrames = ds64Frames;
+                }
+                long frames = size / format.blockAlign * format.samplesPerBlock;
+                if (factFrames >= 0 && !format.isPcm()) {
+                    frames = Math.min(frames, factFrames);
+                }
+                return new WavFile(format, rf64, body, size, frames, ds64Offset, factOffset);
+            }
+            if ("ds64".equals(id) || "fmt ".equals(id) || "fact".equals(id)) {
+                chunk.clear().limit((int) Math.min(size, chunk.capacity()));
+                if (!readFully(channel, chunk, body)) {
+                    return null;
+                }
+                if ("ds64".equals(id)) {
+                    ds64DataSize = chunk.getLong(8);
+                    ds64Frames = chunk.getLong(16);
+                    ds64Offset = body;
+                } else if ("fact".equals(id)) {
+                    factFrames = chunk.getInt(0) & 0xFFFFFFFFL;
+                    factOffset = body;
+                } else {
+                    int tag = chunk.getShort(0) & 0xFFFF;
+                    int samplesPerBlock = tag == WavFormat.FORMAT_IMA_ADPCM && size >= 20
+                            ? chunk.getShort(18) & 0xFFFF : 1;
+                    format = new WavFormat(chunk.getShort(0) & 0xFFFF, chunk.getShort(2),
+                            chunk.getInt(4), chunk.getShort(14), chunk.getShort(12) & 0xFFFF,
+                            chunk.getInt(8), Math.max(1, samplesPerBlock));
+                }
+            }
+            offset = body + size + (size & 1);
+        }
+    }
+
+    private static boolean readFully(FileChannel channel, ByteBuffer buffer, long position)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                return false;
+            }
+            position += read;
+        }
+        return true;
+    }
+
+    private static String tag(ByteBuffer buffer, int offset) {
+        char[] chars = new char[4];
+        for (int i = 0; i < 4; i++) {
+            chars[i] = (char) buffer.get(offset + i);
+        }
+        return new String(chars);
+    }
+
+    @Override
+    public String toString() {
+        return "WavFile{" + format + ", rf64=" + rf64 + ", data=" + dataOffset + "+" + dataSize
+                + "}";
+    }
+}
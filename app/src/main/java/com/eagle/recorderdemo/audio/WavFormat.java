@@ -0,0 +1,68 @@
+package com.eagle.recorderdemo.audio;
+
+/**
+ * The contents of a WAVE {@code fmt } chunk.
+ */
+public final class WavFormat {
+
+    public static final int FORMAT_PCM = 0x0001;
+    public static final int FORMAT_IEEE_FLOAT = 0x0003;
+    public static final int FORMAT_IMA_ADPCM = 0x0011;
+
+    public final int formatTag;
+    public final int channels;
+    public final int sampleRate;
+    public final int bitsPerSample;
+    /** Bytes per sample frame (or per compressed block). */
+    public final int blockAlign;
+    public final int byteRate;
+    /** Sample frames per block; 1 for PCM. */
+    public final int samplesPerBlock;
+
+    public WavFormat(int formatTag, int channels, int sampleRate, int bitsPerSample,
+            int blockAlign, int byteRate) {
+        this(formatTag, channels, sampleRate, bitsPerSample, blockAlign, byteRate, 1);
+    }
+
+    public WavFormat(int formatTag, int channels, int sampleRate, int bitsPerSample,
+            int blockAlign, int byteRate, int samplesPerBlock) {
+        this.formatTag = formatTag;
+        this.channels = channels;
+        this.sampleRate = sampleRate;
+        this.bitsPerSample = bitsPerSample;
+        this.blockAlign = blockAlign;
+        this.byteRate = byteRate;
+        this.samplesPerBlock = samplesPerBlock;
+    }
+
+    /** Whether the data chunk holds plain (integer or float) samples, one frame per block. */
+    public boolean isPcm() {
+        return formatTag == FORMAT_PCM || formatTag == FORMAT_IEEE_FLOAT;
+    }
+
+    public static WavFormat pcm(int sampleRate, int channels, int bitsPerSample) {
+        int blockAlign = channels * bitsPerSample / 8;
+        return new WavFormat(FORMAT_PCM, channels, sampleRate, bitsPerSample, blockAlign,
+                sampleRate * blockAlign);
+    }
+
+    public static WavFormat ieeeFloat(int sampleRate, int channels) {
+        return new WavFormat(FORMAT_IEEE_FLOAT, channels, sampleRate, 32, channels * 4,
+                sampleRate * channels * 4);
+    }
+
+    /**
+     * IMA/DVI ADPCM as written by {@link ImaAdpcm.Encoder}, 4 bits per sample.
+     */
+    public static WavFormat imaAdpcm(int sampleRate, int channels, int blockAlign) {
+        int samplesPerBlock = ImaAdpcm.samplesPerBlock(blockAlign, channels);
+        return new WavFormat(FORMAT_IMA_ADPCM, channels, sampleRate, 4, blockAlign,
+                (int) ((long) sampleRate * blockAlign / samplesPerBlock), samplesPerBlock);
+    }
+
+    @Override
+    public String toString() {
+        return "WavFormat{tag=" + formatTag + ", " + sampleRate + "Hz, " + channels + "ch, "
+                + bitsPerSample + "bit, blockAlign=" + blockAlign + "}";
+    }
+}
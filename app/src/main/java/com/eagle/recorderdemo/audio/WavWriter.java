@@ -0,0 +1,236 @@
+package com.eagle.recorderdemo.audio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Streams audio into a WAVE container on top of another {@link SegmentWriter}.
+ *
+ * The header is written up front with a 28 byte {@code JUNK} chunk reserved behind the RIFF
+ * header. Every {@code checkpointBytes} of audio the RIFF and {@code data} sizes are patched with
+ * positional writes to cover the bytes already handed to the OS, so the file is a valid WAVE
+ * file at any moment and each checkpoint costs a couple of small writes, independent of the
+ * recording length. Once the sizes no longer fit in 32 bits, the reserved chunk is turned into a
+ * {@code ds64} chunk and the file becomes RF64 (EBU Tech 3306) in place. Formats other than
+ * PCM get the extended {@code fmt } chunk and a {@code fact} chunk whose sample count is kept up
+ * to date the same way.
+ *
+ * {@link #position()} and {@link #writeAt} are relative to the start of the audio data.
+ */
+public final class WavWriter implements SegmentWriter {
+
+    private static final int RIFF_SIZE_OFFSET = 4;
+    private static final int DS64_OFFSET = 12;
+    private static final int DS64_SIZE = 28;
+    private static final int FMT_OFFSET = DS64_OFFSET + 8 + DS64_SIZE;
+
+    private static final long MAX_RIFF_SIZE = 0xFFFFFFFFL;
+
+    private final SegmentWriter mOut;
+    private final WavFormat mFormat;
+    private final long mCheckpointBytes;
+    private final ByteBuffer mPatch = ByteBuffer.allocate(DS64_SIZE + 8)
+            .order(ByteOrder.LITTLE_ENDIAN);
+
+    private final int mFmtSize;
+    private final int mFactOffset;
+    private final int mDataSizeOffset;
+    private final int mHeaderSize;
+
+    private long mNextCheckpoint;
+    private long mPatchedDataSize = -1;
+    private long mFrameCount = -1;
+    private boolean mRf64;
+
+    /**
+     * @param checkpointBytes how much audio may be written between header patches
+     */
+    public WavWriter(SegmentWriter out, WavFormat format, long checkpointBytes)
+            throws IOException {
+        mOut = out;
+        mFormat = format;
+        mCheckpointBytes = Math.max(format.blockAlign, checkpointBytes);
+        mNextCheckpoint = mCheckpointBytes;
+        mFmtSize = format.isPcm() ? 16 : 20;
+        int factSize = format.isPcm() ? 0 : 12;
+        mFactOffset = FMT_OFFSET + 8 + mFmtSize + 8;
+        mDataSizeOffset = FMT_OFFSET + 8 + mFmtSize + factSize + 4;
+        mHeaderSize = mDataSizeOffset + 4;
+        writeHeader();
+    }
+
+    public WavFormat getFormat() {
+        return mFormat;
+    }
+
+    /** Offset of the first audio byte in the file. */
+    public int getHeaderSize() {
+        return mHeaderSize;
+    }
+
+    /**
+     * Sets the exact number of sample frames for the {@code fact} chunk, which otherwise is
+     * derived from the number of whole blocks. Encoders call this before {@link #close()} when the
+     * last block is padded.
+     */
+    public void setFrameCount(long frames) {
+        mFrameCount = frames;
+    }
+
+    private void writeHeader() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(mHeaderSize).order(ByteOrder.LITTLE_ENDIAN);
+        putTag(header, "RIFF");
+        header.putInt(mHeaderSize - 8);
+        putTag(header, "WAVE");
+        putTag(header, "JUNK");
+        header.putInt(DS64_SIZE);
+        header.position(header.position() + DS64_SIZE);
+        putTag(header, "fmt ");
+        header.putInt(mFmtSize);
+        header.putShort((short) mFormat.formatTag);
+        header.putShort((short) mFormat.channels);
+        header.putInt(mFormat.sampleRate);
+        header.putInt(mFormat.byteRate);
+        header.putShort((short) mFormat.blockAlign);
+        header.putShort((short) mFormat.bitsPerSample);
+        if (!mFormat.isPcm()) {
+            header.putShort((short) 2);
+            header.putShort((short) mFormat.samplesPerBlock);
+            putTag(header, "fact");
+            header.putInt(4);
+            header.putInt(0);
+        }
+        putTag(header, "data");
+        header.putInt(0);
+        mOut.write(header.array(), 0, mHeaderSize);
+    }
+
+    private static void putTag(ByteBuffer buffer, String tag) {
+        for (int i = 0; i < 4; i++) {
+            buffer.put((byte) tag.charAt(i));
+        }
+    }
+
+    @Override
+    public void write(byte[] src, int offset, int length) throws IOException {
+        mOut.write(src, offset, length);
+        if (position() >= mNextCheckpoint) {
+            checkpoint();
+            mNextCheckpoint = position() + mCheckpointBytes;
+        }
+    }
+
+    /**
+     * Patches the header to cover all whole frames the OS has seen so far. Does not flush.
+     */
+    public void checkpoint() throws IOException {
+        long committed = mOut.committedPosition() - mHeaderSize;
+        if (committed <= 0) {
+            return;
+        }
+        patchSizes(committed - committed % mFormat.blockAlign);
+    }
+
+    private void patchSizes(long dataSize) throws IOException {
+        if (dataSize == mPatchedDataSize) {
+            return;
+        }
+        long riffSize = mHeaderSize - 8 + dataSize + (dataSize & 1);
+        long frames = dataSize / mFormat.blockAlign * mFormat.samplesPerBlock;
+        if (mFrameCount >= 0) {
+            frames = Math.min(frames, mFrameCount);
+        }
+        if (!mRf64 && riffSize > MAX_RIFF_SIZE) {
+            promoteToRf64();
+        }
+        if (mRf64) {
+            mPatch.clear();
+            mPatch.putLong(riffSize);
+            mPatch.putLong(dataSize);
+            mPatch.putLong(frames);
+            mPatch.flip();
+            mOut.writeAt(DS64_OFFSET + 8, mPatch);
+        } else {
+            if (!mFormat.isPcm()) {
+                patchInt(mFactOffset, frames);
+            }
+            patchInt(mDataSizeOffset, dataSize);
+            patchInt(RIFF_SIZE_OFFSET, riffSize);
+        }
+        mPatchedDataSize = dataSize;
+    }
+
+    private void promoteToRf64() throws IOException {
+        // Fill in ds64 first; until the RIFF tag flips, readers still see a JUNK chunk.
+        mPatch.clear();
+        putTag(mPatch, "ds64");
+        mPatch.putInt(DS64_SIZE);
+        mPatch.flip();
+        mOut.writeAt(DS64_OFFSET, mPatch);
+        patchInt(mDataSizeOffset, MAX_RIFF_SIZE);
+        if (!mFormat.isPcm()) {
+            patchInt(mFactOffset, MAX_RIFF_SIZE);
+        }
+        mPatch.clear();
+        putTag(mPatch, "RF64");
+        mPatch.putInt((int) MAX_RIFF_SIZE);
+        mPatch.flip();
+        mOut.writeAt(0, mPatch);
+        mRf64 = true;
+    }
+
+    private void patchInt(long offset, long value) throws IOException {
+        mPatch.clear();
+        mPatch.putInt((int) value);
+        mPatch.flip();
+        mOut.writeAt(offset, mPatch);
+    }
+
+    public boolean isRf64() {
+        return mRf64;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        mOut.flush();
+    }
+
+    @Override
+    public long position() {
+        return mOut.position() - mHeaderSize;
+    }
+
+    @Override
+    public long committedPosition() {
+        return Math.max(0, mOut.committedPosition() - mHeaderSize);
+    }
+
+    @Override
+    public void writeAt(long position, ByteBuffer src) throws IOException {
+        mOut.writeAt(mHeaderSize + position, src);
+    }
+
+    @Override
+    public WriterStats getStats() {
+        return mOut.getStats();
+    }
+
+    /**
+     * Writes the final sizes (padding the data chunk to an even length) and closes the file.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            long dataSize = position();
+            if ((dataSize & 1) != 0) {
+                mOut.write(new byte[1], 0, 1);
+            }
+            mOut.flush();
+            mPatchedDataSize = -1;
+            patchSizes(dataSize);
+        } finally {
+            mOut.close();
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package com.eagle.recorderdemo.audio;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps background work within a share of a CPU and a disk bandwidth, by making each worker
+ * sleep after every step it reports.
+ *
+ * A worker that spent {@code w} working on a step sleeps {@code w * (1 - share) / share} so
+ * that it runs at most {@code share} of the time; the time is measured on the wall clock, which
+ * never undercounts the CPU used. Disk traffic is paced against a rate shared by all workers:
+ * each step books its bytes after what was booked before and waits until then. Work is spread
+ * out rather than cut short, so a job under budget takes longer but never more than its share.
+ */
+public final class WorkBudget {
+
+    private final float mCpuShare;
+    private final long mBytesPerSecond;
+
+    // Guarded by this: when the bytes booked so far will have been transferred at the rate.
+    private long mIoFreeNanos;
+
+    private final AtomicLong mThrottledNanos = new AtomicLong();
+    private final AtomicLong mBytes = new AtomicLong();
+
+    /**
+     * @param cpuShare share of one CPU each worker may use, up to 1
+     * @param bytesPerSecond disk traffic all workers together may cause, or 0 for no limit
+     */
+    public WorkBudget(float cpuShare, long bytesPerSecond) {
+        mCpuShare = Math.max(0.01f, Math.min(1f, cpuShare));
+        mBytesPerSecond = bytesPerSecond;
+        mIoFreeNanos = System.nanoTime();
+    }
+
+    /**
+     * Reports a step that took {@code workNanos} and moved {@code bytes} to or from
+     * the disk, and waits as long as that calls for.
+     */
+    public void charge(long workNanos, long bytes) throws InterruptedException {
+        long now = System.nanoTime();
+        long until = now + (long) (workNanos * (1 - mCpuShare) / mCpuShare);
+        if (mBytesPerSecond > 0 && bytes > 0) {
+            synchronized (this) {
+                mIoFreeNanos = Math.max(mIoFreeNanos, now)
+                        + TimeUnit.SECONDS.toNanos(bytes) / mBytesPerSecond;
+                until = Math.max(until, mIoFreeNanos);
+            }
+        }
+        mBytes.addAndGet(bytes);
+        long wait = until - now;
+        if (wait > 0) {
+            mThrottledNanos.addAndGet(wait);
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+    }
+
+    /** Time workers spent waiting for the budget. */
+    public long getThrottledNanos() {
+        return mThrottledNanos.get();
+    }
+
+    public long getBytes() {
+        return mBytes.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "WorkBudget{cpu=%.0f%%, io=%d B/s, bytes=%d, "
+                + "throttled=%d ms}", mCpuShare * 100, mBytesPerSecond, mBytes.get(),
+                TimeUnit.NANOSECONDS.toMillis(mThrottledNanos.get()));
+    }
+}
@@ -0,0 +1,298 @@
+package com.eagle.recorderdemo.audio;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A fixed number of writer threads shared by any number of capture sessions.
+ *
+ * Each session writes through a {@link Lane}: a bounded queue of filled {@link BufferPool}
+ * buffers and the sinks they go to. A lane with work is run on whichever pool thread is free and
+ * writes its buffers in order, a batch at a time before giving the thread up, so no lane waits
+ * long behind another and buffers of one session never overtake each other. The threads a
+ * process needs for writing stay the same however many sessions record.
+ */
+public final class WriterPool {
+
+    // Buffers a lane writes before it lets the next lane have the thread.
+    private static final int BATCH = 8;
+
+    private final ExecutorService mExecutor;
+    private final int mThreads;
+
+    public WriterPool(int threads, final String name) {
+        mThreads = threads;
+        mExecutor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, name + "-" + mCount.incrementAndGet());
+            }
+        });
+    }
+
+    public int getThreadCount() {
+        return mThreads;
+    }
+
+    /**
+     * Opens a lane writing to {@code sinks} in this order and handing each buffer back to
+     * {@code buffers} once written.
+     *
+     * @param maxQueued buffers the lane holds before it refuses more
+     */
+    public Lane newLane(BufferPool buffers, int maxQueued, AudioSink... sinks) {
+        return new Lane(buffers, maxQueued, sinks);
+    }
+
+    /**
+     * Stops the threads once the lanes still scheduled have run. A lane that is on a thread then
+     * finishes its queue there; one that is not can take no more buffers and fails.
+     */
+    public void shutdown() {
+        mExecutor.shutdown();
+    }
+
+    public final class Lane implements Runnable {
+        private final BufferPool mBuffers;
+        private final AudioSink[] mSinks;
+
+        // Guarded by this: a ring of queued buffers, and whether the lane is on a thread or
+        // queued for one.
+        private final byte[][] mQueue;
+        private final int[] mLengths;
+        private final long[] mStamps;
+        private int mHead;
+        private int mCount;
+        private boolean mScheduled;
+        private int mHighWaterMark;
+
+        private volatile PipelineMetrics mMetrics;
+        private volatile Throwable mFailure;
+        private volatile long mWrittenBytes;
+        private volatile long mRefused;
+        private volatile long mLatencyCount;
+        private volatile long mLatencyNanos;
+        private volatile long mMaxLatencyNanos;
+
+        Lane(BufferPool buffers, int maxQueued, AudioSink[] sinks) {
+            mBuffers = buffers;
+            mSinks = sinks;
+            mQueue = new byte[maxQueued][];
+            mLengths = new int[maxQueued];
+            mStamps = new long[maxQueued];
+        }
+
+        /** Has the time each sink takes per buffer recorded in {@code metrics}. */
+        public void setMetrics(PipelineMetrics metrics) {
+            mMetrics = metrics;
+        }
+
+        /**
+         * Queues {@code length} bytes of {@code buffer}, captured at {@code nanos}, for the
+         * sinks; the lane releases the buffer to the pool once they have it. Never blocks.
+         *
+         * @return {@code false} if the lane is full or the pool shut down, in which case the
+         *         caller keeps the buffer
+         */
+        public boolean submit(byte[] buffer, int length, long nanos) {
+            boolean schedule;
+            synchronized (this) {
+                if (mCount == mQueue.length) {
+                    mRefused++;
+                    return false;
+                }
+                int tail = (mHead + mCount) % mQueue.length;
+                mQueue[tail] = buffer;
+                mLengths[tail] = length;
+                mStamps[tail] = nanos;
+                mCount++;
+                mHighWaterMark = Math.max(mHighWaterMark, mCount);
+                schedule = !mScheduled;
+                mScheduled = true;
+            }
+            if (schedule) {
+                try {
+                    mExecutor.execute(this);
+                } catch (RejectedExecutionException e) {
+                    abandon(buffer, e);
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Gives up on the queue when the lane cannot get a thread: hands every buffer but
+         * {@code kept} back to the pool and lets {@link #close()} proceed.
+         */
+        private synchronized void abandon(byte[] kept, RejectedExecutionException e) {
+            for (; mCount > 0; mCount--) {
+                byte[] buffer = mQueue[mHead];
+                mQueue[mHead] = null;
+                mHead = (mHead + 1) % mQueue.length;
+                if (buffer != kept) {
+                    mBuffers.release(buffer);
+                }
+            }
+            if (mFailure == null) {
+                mFailure = e;
+            }
+            mScheduled = false;
+            notifyAll();
+        }
+
+        @Override
+        public void run() {
+            while (writeBatch()) {
+                try {
+                    // Still scheduled: back in line behind the other lanes.
+                    mExecutor.execute(this);
+                    return;
+                } catch (RejectedExecutionException e) {
+                    // The pool is shutting down; finish the queue on this thread.
+                }
+            }
+        }
+
+        /**
+         * Writes up to a batch of buffers.
+         *
+         * @return whether buffers are left; if not, the lane is no longer scheduled
+         */
+        private boolean writeBatch() {
+            PipelineMetrics metrics = mMetrics;
+            for (int written = 0; written < BATCH; written++) {
+                byte[] buffer;
+                int length;
+                long stamp;
+                synchronized (this) {
+                    if (mCount == 0) {
+                        mScheduled = false;
+                        notifyAll();
+                        return false;
+                    }
+                    buffer = mQueue[mHead];
+                    length = mLengths[mHead];
+                    stamp = mStamps[mHead];
+                    mQueue[mHead] = null;
+                    mHead = (mHead + 1) % mQueue.length;
+                    mCount--;
+                }
+                try {
+                    if (mFailure == null) {
+                        write(buffer, length, metrics);
+                    }
+                } catch (IOException | RuntimeException e) {
+                    mFailure = e;
+                } finally {
+                    mBuffers.release(buffer);
+                }
+                long latency = System.nanoTime() - stamp;
+                mLatencyCount++;
+                mLatencyNanos += latency;
+                if (latency > mMaxLatencyNanos) {
+                    mMaxLatencyNanos = latency;
+                }
+            }
+            return true;
+        }
+
+        private void write(byte[] buffer, int length, PipelineMetrics metrics)
+                throws IOException {
+            long before = metrics != null ? System.nanoTime() : 0;
+            for (int i = 0; i < mSinks.length; i++) {
+                mSinks[i].write(buffer, 0, length);
+                if (metrics != null) {
+                    long after = System.nanoTime();
+                    metrics.onSinkWrite(i, after - before);
+                    before = after;
+                }
+            }
+            mWrittenBytes += length;
+        }
+
+        /**
+         * Waits until every queued buffer is written, then flushes the sinks, which stay open.
+         */
+        public void drain() throws IOException, InterruptedException {
+            awaitIdle();
+            if (mFailure == null) {
+                for (AudioSink sink : mSinks) {
+                    sink.flush();
+                }
+            }
+        }
+
+        /**
+         * Waits until every queued buffer is written, then closes the sinks in order. Nothing
+         * may be submitted after.
+         */
+        public void close() throws IOException, InterruptedException {
+            awaitIdle();
+            IOException error = null;
+            for (AudioSink sink : mSinks) {
+                try {
+                    sink.close();
+                } catch (IOException e) {
+                    if (error == null) {
+                        error = e;
+                    }
+                }
+            }
+            if (error != null) {
+                throw error;
+            }
+        }
+
+        private synchronized void awaitIdle() throws InterruptedException {
+            while (mScheduled) {
+                wait();
+            }
+        }
+
+        /** The first error of a sink, after which the lane only recycles buffers. */
+        public Throwable getFailure() {
+            return mFailure;
+        }
+
+        public long getWrittenBytes() {
+            return mWrittenBytes;
+        }
+
+        /** Buffers turned away because the lane was full. */
+        public long getRefusedCount() {
+            return mRefused;
+        }
+
+        public synchronized int size() {
+            return mCount;
+        }
+
+        public long getMeanLatencyNanos() {
+            long count = mLatencyCount;
+            return count > 0 ? mLatencyNanos / count : 0;
+        }
+
+        public long getMaxLatencyNanos() {
+            return mMaxLatencyNanos;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return String.format(Locale.US, "Lane{queued=%d/%d, highWater=%d, written=%d, "
+                    + "refused=%d, latency mean/max=%d/%dus%s}", mCount, mQueue.length,
+                    mHighWaterMark, mWrittenBytes, mRefused,
+                    TimeUnit.NANOSECONDS.toMicros(getMeanLatencyNanos()),
+                    TimeUnit.NANOSECONDS.toMicros(mMaxLatencyNanos),
+                    mFailure != null ? ", failed=" + mFailure : "");
+        }
+    }
+}
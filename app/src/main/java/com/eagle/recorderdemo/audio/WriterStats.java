@@ -0,0 +1,117 @@
+package com.eagle.recorderdemo.audio;
+
+import java.util.Locale;
+
+/**
+ * Counters kept by a {@link SegmentWriter}. Only the writer thread updates them; other threads
+ * may read them at any time.
+ */
+public final class WriterStats {
+
+    private volatile long mBytes;
+    private volatile long mSyscalls;
+    private volatile long mWriteNanos;
+    private volatile long mMaxWriteNanos;
+    private volatile long mPreallocations;
+    private volatile long mSyncs;
+    private volatile long mSyncNanos;
+    private volatile long mMaxSyncNanos;
+
+    void onWrite(long bytes, long nanos) {
+        mBytes += bytes;
+        mSyscalls++;
+        mWriteNanos += nanos;
+        if (nanos > mMaxWriteNanos) {
+            mMaxWriteNanos = nanos;
+        }
+    }
+
+    /** A copy that did not involve a syscall, e.g. into a mapped window. */
+    void onCopy(long bytes, long nanos) {
+        mBytes += bytes;
+        mWriteNanos += nanos;
+        if (nanos > mMaxWriteNanos) {
+            mMaxWriteNanos = nanos;
+        }
+    }
+
+    void onPreallocate() {
+        mPreallocations++;
+    }
+
+    void onSync(long nanos) {
+        mSyncs++;
+        mSyncNanos += nanos;
+        if (nanos > mMaxSyncNanos) {
+            mMaxSyncNanos = nanos;
+        }
+    }
+
+    /**
+     * Adds the counters of {@code other} to this one; used to total up several files.
+     */
+    void add(WriterStats other) {
+        mBytes += other.mBytes;
+        mSyscalls += other.mSyscalls;
+        mWriteNanos += other.mWriteNanos;
+        mMaxWriteNanos = Math.max(mMaxWriteNanos, other.mMaxWriteNanos);
+        mPreallocations += other.mPreallocations;
+        mSyncs += other.mSyncs;
+        mSyncNanos += other.mSyncNanos;
+        mMaxSyncNanos = Math.max(mMaxSyncNanos, other.mMaxSyncNanos);
+    }
+
+    /** Bytes handed to the OS. */
+    public long getBytes() {
+        return mBytes;
+    }
+
+    /** Number of write/map calls issued to the OS. */
+    public long getSyscalls() {
+        return mSyscalls;
+    }
+
+    /** Total time spent inside those calls. */
+    public long getWriteNanos() {
+        return mWriteNanos;
+    }
+
+    /** Longest single call, which is what a capture thread would have stalled for. */
+    public long getMaxWriteNanos() {
+        return mMaxWriteNanos;
+    }
+
+    public long getPreallocations() {
+        return mPreallocations;
+    }
+
+    /** Number of times written data was forced to storage. */
+    public long getSyncs() {
+        return mSyncs;
+    }
+
+    /** Total time spent forcing data to storage. */
+    public long getSyncNanos() {
+        return mSyncNanos;
+    }
+
+    /** Longest single sync. */
+    public long getMaxSyncNanos() {
+        return mMaxSyncNanos;
+    }
+
+    /** Throughput while inside write calls, in MB/s. */
+    public double getWriteThroughput() {
+        return mWriteNanos == 0 ? 0 : mBytes * 1000.0 / mWriteNanos;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US,
+                "bytes=%d syscalls=%d avgWrite=%d max=%dus time=%dms %.1fMB/s prealloc=%d"
+                        + " syncs=%d syncTime=%dms maxSync=%dus",
+                mBytes, mSyscalls, mSyscalls == 0 ? 0 : mBytes / mSyscalls,
+                mMaxWriteNanos / 1000, mWriteNanos / 1000000, getWriteThroughput(), mPreallocations,
+                mSyncs, mSyncNanos / 1000000, mMaxSyncNanos / 1000);
+    }
+}
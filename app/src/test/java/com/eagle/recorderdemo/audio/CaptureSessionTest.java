@@ -0,0 +1,148 @@
+package com.eagle.recorderdemo.audio;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CaptureSessionTest {
+
+    private static final int RATE = 8000;
+    private static final int READ_BYTES = 64;
+    private static final int READ_FRAMES = READ_BYTES / 2;
+    private static final int READS = 40;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final WriterPool mPool = new WriterPool(1, "TestWriter");
+
+    @After
+    public void tearDown() {
+        mPool.shutdown();
+    }
+
+    /** Audio dropped while the writer is stuck is marked where it is missing from the file. */
+    @Test
+    public void dropsAreLoggedAsGaps() throws Exception {
+        final CountDownLatch proceed = new CountDownLatch(1);
+        final MemoryWriter sink = new MemoryWriter();
+        AudioSink gate = new AudioSink() {
+            @Override
+            public void write(byte[] src, int offset, int length) {
+                try {
+                    proceed.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                sink.write(src, offset, length);
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+                sink.close();
+            }
+        };
+        BufferPool buffers = new BufferPool(READ_BYTES, 4);
+        File gaps = mFolder.newFile("rec.gaps");
+        CaptureSession session = new CaptureSession("test", new CountingSource(proceed, buffers),
+                buffers, mPool.newLane(buffers, 2, gate), new GapLog(gaps, RATE, 2),
+                READ_BYTES, null, null);
+        session.start("TestCapture");
+        assertTrue(session.join(5000));
+
+        assertEquals(CaptureSession.State.STOPPED, session.getState());
+        assertTrue(session.getDroppedBytes() > 0);
+        assertEquals(READS * READ_BYTES, session.getCapturedBytes());
+        byte[] stored = sink.toByteArray();
+        assertEquals(session.getCapturedBytes() - session.getDroppedBytes(), stored.length);
+
+        // Putting the gaps back gives every stored read its place in the capture.
+        long[][] markers = GapLog.read(gaps);
+        assertTrue(markers[0][0] < stored.length / 2);
+        long skipped = 0;
+        int next = 0;
+        for (int frame = 0; frame < stored.length / 2; frame += READ_FRAMES) {
+            while (next < markers.length && markers[next][0] == frame) {
+                skipped += markers[next++][1];
+            }
+            assertEquals((frame + skipped) / READ_FRAMES, stored[2 * frame]);
+        }
+        while (next < markers.length) {
+            assertEquals(stored.length / 2, markers[next][0]);
+            skipped += markers[next++][1];
+        }
+        assertEquals(session.getDroppedBytes() / 2, skipped);
+        assertEquals(0, buffers.getInUse());
+    }
+
+    /**
+     * Mono reads filled with their index. Halfway it lets the sink proceed and waits for the
+     * buffers to come back, so that audio is stored again after the drops.
+     */
+    private static final class CountingSource implements AudioSource {
+        private final CountDownLatch mProceed;
+        private final BufferPool mBuffers;
+        private int mReads;
+
+        CountingSource(CountDownLatch proceed, BufferPool buffers) {
+            mProceed = proceed;
+            mBuffers = buffers;
+        }
+
+        @Override
+        public int getSampleRate() {
+            return RATE;
+        }
+
+        @Override
+        public int getChannels() {
+            return 1;
+        }
+
+        @Override
+        public void start() {
+        }
+
+        @Override
+        public int read(byte[] dst, int offset, int length) throws InterruptedIOException {
+            if (mReads == READS) {
+                return -1;
+            }
+            if (mReads == READS / 2) {
+                mProceed.countDown();
+                long deadline = System.currentTimeMillis() + 5000;
+                // The one left is the buffer being read into, if there was one free.
+                while (mBuffers.getInUse() > 1 && System.currentTimeMillis() < deadline) {
+                    try {
+                        Thread.sleep(1);
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException();
+                    }
+                }
+            }
+            Arrays.fill(dst, offset, offset + length, (byte) mReads++);
+            return length;
+        }
+
+        @Override
+        public void stop() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package com.eagle.recorderdemo.audio;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ChannelSegmentWriterTest {
+
+    private static final int BLOCK = 64 * 1024;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void patchesWrittenAndStagedBytes() throws IOException {
+        File file = mFolder.newFile("rec.raw");
+        ChannelSegmentWriter writer = new ChannelSegmentWriter(file, BLOCK, 0, null);
+        byte[] data = filled(BLOCK + 100, (byte) 1);
+        writer.write(data, 0, data.length);
+        assertEquals(BLOCK, writer.committedPosition());
+
+        writer.writeAt(0, ByteBuffer.wrap(new byte[] {9, 9}));
+        // Straddles the written block and the staged one.
+        writer.writeAt(BLOCK - 1, ByteBuffer.wrap(new byte[] {7, 7}));
+        writer.writeAt(BLOCK + 98, ByteBuffer.wrap(new byte[] {5, 5}));
+        writer.close();
+
+        byte[] expected = data.clone();
+        expected[0] = expected[1] = 9;
+        expected[BLOCK - 1] = expected[BLOCK] = 7;
+        expected[BLOCK + 98] = expected[BLOCK + 99] = 5;
+        assertArrayEquals(expected, read(file, 0, expected.length));
+        assertEquals(expected.length, file.length());
+    }
+
+    @Test(expected = IOException.class)
+    public void refusesPatchPastTheEnd() throws IOException {
+        ChannelSegmentWriter writer =
+                new ChannelSegmentWriter(mFolder.newFile("rec.raw"), BLOCK, 0, null);
+        try {
+            writer.write(new byte[10], 0, 10);
+            writer.writeAt(8, ByteBuffer.wrap(new byte[4]));
+        } finally {
+            writer.close();
+        }
+    }
+
+    /** Patching the header of a recording past 2 GiB, as WavWriter does at every checkpoint. */
+    @Test
+    public void patchesHeaderBeyondTwoGigabytes() throws IOException {
+        File file = mFolder.newFile("rec.raw");
+        int block = 4 * 1024 * 1024;
+        ChannelSegmentWriter writer = new ChannelSegmentWriter(file, block, 0, null);
+        byte[] data = filled(block, (byte) 1);
+        long flushed = (1L << 31) + block;
+        for (long written = 0; written < flushed; written += block) {
+            writer.write(data, 0, block);
+        }
+        writer.write(data, 0, 100);
+        assertEquals(flushed, writer.committedPosition());
+
+        writer.writeAt(4, ByteBuffer.wrap(new byte[] {9, 9, 9, 9}));
+        writer.writeAt(flushed - 2, ByteBuffer.wrap(new byte[] {7, 7, 7, 7}));
+        writer.close();
+
+        assertEquals(flushed + 100, file.length());
+        assertArrayEquals(new byte[] {1, 9, 9, 9, 9, 1}, read(file, 3, 6));
+        assertArrayEquals(new byte[] {1, 7, 7, 7, 7, 1}, read(file, flushed - 3, 6));
+        assertTrue(file.delete());
+    }
+
+    private static byte[] filled(int length, byte value) {
+        byte[] data = new byte[length];
+        Arrays.fill(data, value);
+        return data;
+    }
+
+    private static byte[] read(File file, long offset, int length) throws IOException {
+        byte[] bytes = new byte[length];
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            raf.seek(offset);
+            raf.readFully(bytes);
+        } finally {
+            raf.close();
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,205 @@
+package com.eagle.recorderdemo.audio;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ChunkedFileTest {
+
+    private static final int RATE = 8000;
+    private static final int FRAMES_PER_BLOCK = 64;
+    private static final int BLOCK_BYTES = FRAMES_PER_BLOCK * 2;
+    private static final long BLOCK_NANOS = TimeUnit.SECONDS.toNanos(FRAMES_PER_BLOCK) / RATE;
+    private static final int FULL_BLOCKS = 40;
+    private static final int LAST_FRAMES = FRAMES_PER_BLOCK / 2;
+    private static final long STRIDE = ChunkedFile.BLOCK_HEADER_SIZE + BLOCK_BYTES;
+    // Audio lost before block GAP_BLOCK, so capture time drifts from the frame count there.
+    private static final int GAP_BLOCK = 20;
+    private static final long GAP_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mFile;
+    private long[] mBlockMicros;
+
+    /** Writes 40.5 blocks of mono audio whose samples count the frames. */
+    @Before
+    public void setUp() throws IOException {
+        mFile = new File(mFolder.getRoot(), "rec." + ChunkedFile.EXTENSION);
+        CaptureClock clock = new CaptureClock();
+        MemoryWriter out = new MemoryWriter();
+        ChunkedWriter writer = new ChunkedWriter(out, ChunkedFile.indexFor(mFile), RATE, 1,
+                FRAMES_PER_BLOCK, clock);
+        long start = System.nanoTime();
+        mBlockMicros = new long[FULL_BLOCKS + 1];
+        int frame = 0;
+        for (int i = 0; i <= FULL_BLOCKS; i++) {
+            int frames = i < FULL_BLOCKS ? FRAMES_PER_BLOCK : LAST_FRAMES;
+            long first = start + i * BLOCK_NANOS + (i >= GAP_BLOCK ? GAP_NANOS : 0);
+            mBlockMicros[i] = clock.toEpochMicros(first);
+            clock.mark(first + TimeUnit.SECONDS.toNanos(frames) / RATE);
+            ByteBuffer audio = ByteBuffer.allocate(frames * 2).order(ByteOrder.LITTLE_ENDIAN);
+            for (int j = 0; j < frames; j++) {
+                audio.putShort((short) frame++);
+            }
+            writer.write(audio.array(), 0, audio.capacity());
+        }
+        writer.close();
+        write(mFile, out.toByteArray());
+    }
+
+    @Test
+    public void blocksRoundTrip() throws IOException, InterruptedException {
+        assertEquals(ChunkedFile.HEADER_SIZE + FULL_BLOCKS * STRIDE
+                + ChunkedFile.BLOCK_HEADER_SIZE + LAST_FRAMES * 2, mFile.length());
+        // Blocks 0, 16 and 32 are indexed.
+        assertEquals(ChunkedFile.INDEX_HEADER_SIZE + 3 * ChunkedFile.INDEX_ENTRY_SIZE,
+                ChunkedFile.indexFor(mFile).length());
+
+        ChunkedFile chunked = ChunkedFile.open(mFile);
+        try {
+            assertEquals(RATE, chunked.getSampleRate());
+            assertEquals(1, chunked.getChannels());
+            assertEquals(FRAMES_PER_BLOCK, chunked.getFramesPerBlock());
+            assertEquals(FULL_BLOCKS + 1, chunked.getBlockCount());
+            assertEquals(FULL_BLOCKS * FRAMES_PER_BLOCK + LAST_FRAMES, chunked.getFrameCount());
+            assertEquals(FULL_BLOCKS, chunked.findBlockByFrame(FULL_BLOCKS * FRAMES_PER_BLOCK));
+
+            ByteBuffer payload = ByteBuffer.allocate(BLOCK_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            ChunkedFile.Block block = new ChunkedFile.Block();
+            for (int i = 0; i <= FULL_BLOCKS; i++) {
+                payload.clear();
+                chunked.readBlock(i, payload, block);
+                assertTrue("block " + i, block.valid);
+                assertEquals(i, block.sequence);
+                assertEquals((long) i * FRAMES_PER_BLOCK, block.firstFrame);
+                assertEquals(mBlockMicros[i], block.captureMicros);
+                assertEquals(i < FULL_BLOCKS ? BLOCK_BYTES : LAST_FRAMES * 2, block.length);
+                assertEquals(block.length, payload.remaining());
+                for (int j = 0; j < block.length / 2; j++) {
+                    assertEquals((short) (block.firstFrame + j), payload.getShort());
+                }
+            }
+            assertEquals(mFile.length(), chunked.getIntactLength());
+            assertTrue(chunked.verify(4).isEmpty());
+        } finally {
+            chunked.close();
+        }
+    }
+
+    @Test
+    public void findsBlocksByTimeWithIndex() throws IOException {
+        assertFindsBlocksByTime();
+    }
+
+    @Test
+    public void findsBlocksByTimeWithoutIndex() throws IOException {
+        assertTrue(ChunkedFile.indexFor(mFile).delete());
+        assertFindsBlocksByTime();
+    }
+
+    /** A sidecar cut short, as after a crash, is completed from the block headers. */
+    @Test
+    public void findsBlocksByTimeWithPartOfTheIndex() throws IOException {
+        RandomAccessFile index = new RandomAccessFile(ChunkedFile.indexFor(mFile), "rw");
+        try {
+            index.setLength(ChunkedFile.INDEX_HEADER_SIZE + ChunkedFile.INDEX_ENTRY_SIZE + 5);
+        } finally {
+            index.close();
+        }
+        assertFindsBlocksByTime();
+    }
+
+    @Test
+    public void tornTailIsLeftOut() throws IOException {
+        long whole = ChunkedFile.HEADER_SIZE + FULL_BLOCKS * STRIDE;
+        truncate(mFile, mFile.length() - 3);
+
+        ChunkedFile chunked = ChunkedFile.open(mFile);
+        try {
+            assertEquals(FULL_BLOCKS, chunked.getBlockCount());
+            assertEquals(FULL_BLOCKS * FRAMES_PER_BLOCK, chunked.getFrameCount());
+            assertEquals(whole, chunked.getIntactLength());
+        } finally {
+            chunked.close();
+        }
+    }
+
+    @Test
+    public void damagedBlocksAreFound() throws IOException, InterruptedException {
+        // One payload byte of block 3, the sequence of block 17 and the last payload byte.
+        corrupt(mFile, ChunkedFile.HEADER_SIZE + 3 * STRIDE + ChunkedFile.BLOCK_HEADER_SIZE + 7);
+        corrupt(mFile, ChunkedFile.HEADER_SIZE + 17 * STRIDE + 4);
+        corrupt(mFile, mFile.length() - 1);
+
+        ChunkedFile chunked = ChunkedFile.open(mFile);
+        try {
+            assertEquals(Arrays.asList(3, 17, FULL_BLOCKS), chunked.verify(3));
+            assertEquals(ChunkedFile.HEADER_SIZE + FULL_BLOCKS * STRIDE,
+                    chunked.getIntactLength());
+        } finally {
+            chunked.close();
+        }
+    }
+
+    private void assertFindsBlocksByTime() throws IOException {
+        ChunkedFile chunked = ChunkedFile.open(mFile);
+        try {
+            assertEquals(0, chunked.findBlockByTime(mBlockMicros[0] - 1000000));
+            for (int i = 0; i <= FULL_BLOCKS; i++) {
+                assertEquals(i, chunked.findBlockByTime(mBlockMicros[i]));
+                assertEquals(i, chunked.findBlockByTime(mBlockMicros[i] + 1));
+            }
+            // Within the lost audio, the block before it is the last one captured.
+            assertEquals(GAP_BLOCK - 1,
+                    chunked.findBlockByTime(mBlockMicros[GAP_BLOCK] - 1000000));
+            assertEquals(FULL_BLOCKS, chunked.findBlockByTime(Long.MAX_VALUE));
+        } finally {
+            chunked.close();
+        }
+    }
+
+    private static void corrupt(File file, long position) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(position);
+            int value = raf.read();
+            raf.seek(position);
+            raf.write(value ^ 0x55);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static void truncate(File file, long length) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(length);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static void write(File file, byte[] bytes) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package com.eagle.recorderdemo.audio;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Round trips of {@link ImaAdpcm} and {@link LosslessCodec} blocks, whole and partial, over
+ * mono, stereo and an odd channel count.
+ */
+public class CodecRoundTripTest {
+
+    private static final int[] CHANNEL_COUNTS = {1, 2, 3};
+
+    @Test
+    public void lossless_restoresEveryBlockExactly() {
+        for (int channels : CHANNEL_COUNTS) {
+            int blockFrames = 4096;
+            LosslessCodec.Encoder encoder = new LosslessCodec.Encoder(channels, blockFrames);
+            LosslessCodec.Decoder decoder = new LosslessCodec.Decoder(channels, blockFrames);
+            for (int frames : new int[] {blockFrames, 1000, 5, 1}) {
+                for (byte[] pcm : signals(channels, frames)) {
+                    assertArrayEquals(channels + " channels, " + frames + " frames", pcm,
+                            losslessRoundTrip(encoder, decoder, pcm, frames));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void lossless_blockHeaderDescribesBlock() {
+        LosslessCodec.Encoder encoder = new LosslessCodec.Encoder(2, 256);
+        byte[] out = new byte[encoder.maxEncodedBytes()];
+        int length = encoder.encode(noise(2, 100, 1), 0, 100, out);
+        assertEquals(length, LosslessCodec.blockSize(LosslessCodec.blockLength(out, 0)));
+        assertEquals(100, LosslessCodec.blockFrames(out, 0));
+    }
+
+    @Test
+    public void lossless_compressesQuietSignal() {
+        LosslessCodec.Encoder encoder = new LosslessCodec.Encoder(2, 4096);
+        byte[] pcm = sine(2, 4096, 0.05);
+        byte[] out = new byte[encoder.maxEncodedBytes()];
+        assertTrue(encoder.encode(pcm, 0, 4096, out) < pcm.length / 2);
+    }
+
+    @Test
+    public void adpcm_tracksSignalWithinQuantizationNoise() {
+        for (int channels : CHANNEL_COUNTS) {
+            int blockAlign = 4 * channels + 4 * channels * 128;
+            ImaAdpcm.Encoder encoder = new ImaAdpcm.Encoder(channels, blockAlign);
+            ImaAdpcm.Decoder decoder = new ImaAdpcm.Decoder(channels, blockAlign);
+            int frames = encoder.framesPerBlock();
+            assertEquals(frames, decoder.framesPerBlock());
+            byte[] pcm = sine(channels, frames, 0.5);
+            byte[] decoded = adpcmRoundTrip(encoder, decoder, pcm, frames, blockAlign);
+            assertEquals(pcm.length, decoded.length);
+            assertTrue(channels + " channels, SNR " + snrDb(pcm, decoded, 0, frames * channels),
+                    snrDb(pcm, decoded, 0, frames * channels) > 20);
+        }
+    }
+
+    @Test
+    public void adpcm_padsPartialBlockWithLastSample() {
+        for (int channels : CHANNEL_COUNTS) {
+            int blockAlign = 4 * channels + 4 * channels * 64;
+            ImaAdpcm.Encoder encoder = new ImaAdpcm.Encoder(channels, blockAlign);
+            ImaAdpcm.Decoder decoder = new ImaAdpcm.Decoder(channels, blockAlign);
+            int frames = encoder.framesPerBlock() / 3;
+            byte[] pcm = new byte[frames * channels * 2];
+            for (int i = 0; i < frames * channels; i++) {
+                put16(pcm, i * 2, 1000);
+            }
+            byte[] decoded = adpcmRoundTrip(encoder, decoder, pcm, frames, blockAlign);
+            assertEquals(encoder.framesPerBlock() * channels * 2, decoded.length);
+            // The padding repeats the final sample, so a constant signal stays constant.
+            int total = encoder.framesPerBlock() * channels;
+            assertTrue(snrDb(constant(total, 1000), decoded, 0, total) > 20);
+        }
+    }
+
+    @Test
+    public void adpcm_encodesSilenceExactly() {
+        int channels = 3;
+        int blockAlign = 4 * channels + 4 * channels * 16;
+        ImaAdpcm.Encoder encoder = new ImaAdpcm.Encoder(channels, blockAlign);
+        ImaAdpcm.Decoder decoder = new ImaAdpcm.Decoder(channels, blockAlign);
+        int frames = encoder.framesPerBlock();
+        byte[] pcm = new byte[frames * channels * 2];
+        assertArrayEquals(pcm, adpcmRoundTrip(encoder, decoder, pcm, frames, blockAlign));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void adpcm_rejectsBlockAlignNotMatchingChannels() {
+        new ImaAdpcm.Encoder(3, 1024);
+    }
+
+    private static byte[] losslessRoundTrip(LosslessCodec.Encoder encoder,
+            LosslessCodec.Decoder decoder, byte[] pcm, int frames) {
+        byte[] encoded = new byte[encoder.maxEncodedBytes()];
+        int length = encoder.encode(pcm, 0, frames, encoded);
+        assertTrue(length <= encoder.maxEncodedBytes());
+        byte[] decoded = new byte[decoder.maxDecodedBytes()];
+        int decodedLength = decoder.decode(encoded, 0, length, decoded, 0);
+        return Arrays.copyOf(decoded, decodedLength);
+    }
+
+    private static byte[] adpcmRoundTrip(ImaAdpcm.Encoder encoder, ImaAdpcm.Decoder decoder,
+            byte[] pcm, int frames, int blockAlign) {
+        byte[] encoded = new byte[encoder.maxEncodedBytes()];
+        assertEquals(blockAlign, encoder.encode(pcm, 0, frames, encoded));
+        byte[] decoded = new byte[decoder.maxDecodedBytes()];
+        int decodedLength = decoder.decode(encoded, 0, blockAlign, decoded, 0);
+        return Arrays.copyOf(decoded, decodedLength);
+    }
+
+    /** Silence, a sine, noise and full scale square waves, {@code frames} frames each. */
+    private static byte[][] signals(int channels, int frames) {
+        byte[] square = new byte[frames * channels * 2];
+        for (int i = 0; i < frames * channels; i++) {
+            put16(square, i * 2, (i / channels) % 2 == 0 ? Short.MAX_VALUE : Short.MIN_VALUE);
+        }
+        return new byte[][] {
+                new byte[frames * channels * 2], sine(channels, frames, 0.9),
+                noise(channels, frames, channels), square
+        };
+    }
+
+    private static byte[] sine(int channels, int frames, double amplitude) {
+        byte[] pcm = new byte[frames * channels * 2];
+        for (int f = 0; f < frames; f++) {
+            for (int c = 0; c < channels; c++) {
+                double phase = 2 * Math.PI * 440 * (c + 1) * f / 32000;
+                put16(pcm, (f * channels + c) * 2, (int) (amplitude * 32767 * Math.sin(phase)));
+            }
+        }
+        return pcm;
+    }
+
+    private static byte[] noise(int channels, int frames, long seed) {
+        Random random = new Random(seed);
+        byte[] pcm = new byte[frames * channels * 2];
+        for (int i = 0; i < frames * channels; i++) {
+            put16(pcm, i * 2, random.nextInt(65536) - 32768);
+        }
+        return pcm;
+    }
+
+    private static byte[] constant(int samples, int value) {
+        byte[] pcm = new byte[samples * 2];
+        for (int i = 0; i < samples; i++) {
+            put16(pcm, i * 2, value);
+        }
+        return pcm;
+    }
+
+    private static double snrDb(byte[] reference, byte[] actual, int from, int samples) {
+        double signal = 0;
+        double noise = 0;
+        for (int i = from; i < from + samples; i++) {
+            int expected = (short) ((reference[i * 2] & 0xff) | (reference[i * 2 + 1] << 8));
+            int got = (short) ((actual[i * 2] & 0xff) | (actual[i * 2 + 1] << 8));
+            signal += (double) expected * expected;
+            noise += (double) (expected - got) * (expected - got);
+        }
+        return noise == 0 ? Double.POSITIVE_INFINITY : 10 * Math.log10(signal / noise);
+    }
+
+    private static void put16(byte[] pcm, int i, int sample) {
+        pcm[i] = (byte) sample;
+        pcm[i + 1] = (byte) (sample >> 8);
+    }
+}
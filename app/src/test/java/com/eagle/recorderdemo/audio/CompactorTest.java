@@ -0,0 +1,148 @@
+package com.eagle.recorderdemo.audio;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CompactorTest {
+
+    private static final int RATE = 16000;
+    private static final int CHANNELS = 2;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final Compactor mCompactor = new Compactor(8000, Compactor.Codec.LOSSLESS,
+            new WorkBudget(1f, 0), RATE, CHANNELS);
+
+    @Test
+    public void replacesTheOriginal() throws Exception {
+        File original = pcm("rec.pcm", 2);
+        Compactor.Result result = mCompactor.compact(original, null);
+
+        assertEquals(new File(mFolder.getRoot(), "rec.rlac"), result.output);
+        assertTrue(result.output.isFile());
+        assertFalse(original.exists());
+        assertEquals(2 * 8000, result.frames, 8);
+        assertTrue(result.newBytes < result.oldBytes);
+    }
+
+    /** A crash after the rename but before the delete leaves both; the next run finishes. */
+    @Test
+    public void finishesAnInterruptedRun() throws Exception {
+        File original = pcm("rec.pcm", 2);
+        byte[] audio = Files.readAllBytes(original.toPath());
+        File output = mCompactor.compact(original, null).output;
+        write(original, audio);
+
+        Compactor.Result result = mCompactor.compact(original, null);
+        assertEquals(output, result.output);
+        assertTrue(output.isFile());
+        assertFalse(original.exists());
+    }
+
+    @Test
+    public void leavesAnotherRecordingInTheWay() throws Exception {
+        File longer = pcm("rec.pcm", 3);
+        File other = mCompactor.compact(longer, null).output;
+        long otherBytes = other.length();
+        File original = pcm("rec.pcm", 2);
+
+        try {
+            mCompactor.compact(original, null);
+            fail("compacted over " + other);
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("in the way"));
+        }
+        assertTrue(original.isFile());
+        assertEquals(otherBytes, other.length());
+        assertFalse(new File(mFolder.getRoot(), "rec.rlac.compact").exists());
+    }
+
+    /** Compaction runs beside a recording in progress; only the stop signal ends it. */
+    @Test
+    public void compactsWhileRecording() throws Exception {
+        File original = pcm("old.pcm", 4);
+        File live = new File(mFolder.getRoot(), "live.wav");
+        final WavWriter recording = new WavWriter(new ChannelSegmentWriter(live, 4096, 0, null),
+                WavFormat.pcm(RATE, CHANNELS, 16), RATE * CHANNELS * 2);
+        final AtomicBoolean stop = new AtomicBoolean();
+        final AtomicLong recorded = new AtomicLong();
+        final Throwable[] failure = new Throwable[1];
+        Thread recorder = new Thread("TestRecording") {
+            @Override
+            public void run() {
+                // 10 ms of audio every 10 ms, like a capture thread.
+                byte[] audio = new byte[RATE / 100 * CHANNELS * 2];
+                try {
+                    while (!stop.get()) {
+                        recording.write(audio, 0, audio.length);
+                        recorded.addAndGet(audio.length);
+                        Thread.sleep(10);
+                    }
+                    recording.close();
+                } catch (IOException | InterruptedException e) {
+                    failure[0] = e;
+                }
+            }
+        };
+        recorder.start();
+        final AtomicBoolean stopped = new AtomicBoolean();
+        Compactor.Control control = new Compactor.Control() {
+            @Override
+            public boolean isStopped() {
+                return stopped.get();
+            }
+        };
+        Compactor compactor = new Compactor(8000, Compactor.Codec.ADPCM,
+                new WorkBudget(0.25f, 1024 * 1024), RATE, CHANNELS);
+        try {
+            long before = recorded.get();
+            Compactor.Result result = compactor.compact(original, control);
+            assertTrue(recorder.isAlive());
+            assertTrue(recorded.get() > before);
+            assertTrue(result.output.isFile());
+            assertFalse(original.exists());
+        } finally {
+            stop.set(true);
+            recorder.join(5000);
+        }
+        assertNull(failure[0]);
+        assertTrue(live.length() > 0);
+    }
+
+    /** Writes {@code seconds} of a stereo tone as headerless PCM. */
+    private File pcm(String name, int seconds) throws IOException {
+        byte[] audio = new byte[seconds * RATE * CHANNELS * 2];
+        for (int i = 0; i < audio.length / 2; i++) {
+            int sample = (int) (8000 * Math.sin(i / CHANNELS * 2 * Math.PI * 440 / RATE));
+            audio[2 * i] = (byte) sample;
+            audio[2 * i + 1] = (byte) (sample >> 8);
+        }
+        File file = new File(mFolder.getRoot(), name);
+        write(file, audio);
+        return file;
+    }
+
+    private static void write(File file, byte[] bytes) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package com.eagle.recorderdemo.audio;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class Crc32cTest {
+
+    @Test
+    public void checkString() {
+        byte[] check = "123456789".getBytes(StandardCharsets.US_ASCII);
+        assertEquals(0xE3069283, Crc32c.compute(check, 0, check.length));
+    }
+
+    /** The test patterns of RFC 3720, appendix B.4. */
+    @Test
+    public void iscsiVectors() {
+        byte[] data = new byte[32];
+        assertEquals(0x8A9136AA, Crc32c.compute(data, 0, 32));
+        Arrays.fill(data, (byte) 0xFF);
+        assertEquals(0x62A8AB43, Crc32c.compute(data, 0, 32));
+        for (int i = 0; i < 32; i++) {
+            data[i] = (byte) i;
+        }
+        assertEquals(0x46DD794E, Crc32c.compute(data, 0, 32));
+        for (int i = 0; i < 32; i++) {
+            data[i] = (byte) (31 - i);
+        }
+        assertEquals(0x113FDB5C, Crc32c.compute(data, 0, 32));
+    }
+
+    @Test
+    public void emptyInputIsZero() {
+        assertEquals(0, Crc32c.compute(new byte[0], 0, 0));
+    }
+
+    @Test
+    public void incrementalUpdatesMatchOneShot() {
+        byte[] data = new byte[1000];
+        new Random(7).nextBytes(data);
+        int expected = Crc32c.compute(data, 0, data.length);
+        // Splits on and off the 8 byte stride of the slicing loop.
+        for (int split : new int[] {1, 3, 7, 8, 9, 500, 999}) {
+            Crc32c crc = new Crc32c();
+            crc.update(data, 0, split);
+            crc.update(data, split, data.length - split);
+            assertEquals("split at " + split, expected, crc.getValue());
+        }
+        Crc32c crc = new Crc32c();
+        crc.update(data, 0, 10);
+        crc.reset();
+        crc.update(data, 0, data.length);
+        assertEquals(expected, crc.getValue());
+    }
+
+    @Test
+    public void byteBuffersMatchArrays() {
+        byte[] data = new byte[333];
+        new Random(11).nextBytes(data);
+        int expected = Crc32c.compute(data, 5, 300);
+
+        Crc32c heap = new Crc32c();
+        ByteBuffer wrapped = ByteBuffer.wrap(data, 5, 300);
+        heap.update(wrapped);
+        assertEquals(expected, heap.getValue());
+        assertEquals(0, wrapped.remaining());
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+        direct.put(data).position(5).limit(305);
+        Crc32c fromDirect = new Crc32c();
+        fromDirect.update(direct);
+        assertEquals(expected, fromDirect.getValue());
+    }
+}
@@ -0,0 +1,131 @@
+package com.eagle.recorderdemo.audio;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class EventCaptureTest {
+
+    private static final int RATE = 8000;
+    private static final int FRAME_BYTES = 2;
+    private static final int READ_MS = 20;
+
+    @Test
+    public void eventIsDatedFromItsFirstFrame() {
+        CaptureClock clock = new CaptureClock();
+        Outputs outputs = new Outputs();
+        EventCapture events = new EventCapture(RATE, FRAME_BYTES, 1000, 0, 500, clock, outputs,
+                outputs);
+
+        // Three seconds captured, the last buffer finishing at a known time.
+        long end = System.nanoTime();
+        byte[] buffer = new byte[RATE * FRAME_BYTES * READ_MS / 1000];
+        for (int i = 0; i < 3000 / READ_MS; i++) {
+            clock.mark(end - TimeUnit.MILLISECONDS.toNanos(3000 - (i + 1) * READ_MS));
+            events.write(buffer, 0, buffer.length);
+        }
+        events.trigger("test");
+        events.close();
+
+        assertNotNull(outputs.mClock);
+        // One second of pre-roll before the end of the last buffer.
+        long expected = clock.toEpochMicros(end - TimeUnit.SECONDS.toNanos(1));
+        assertEquals(expected, outputs.mClock.getStartMicros(), 1000);
+        assertEquals(0, outputs.mClock.getMarkNanos());
+        assertEquals(RATE * FRAME_BYTES, outputs.mWriter.toByteArray().length);
+    }
+
+    @Test
+    public void eventWithoutClockIsNotDated() {
+        Outputs outputs = new Outputs();
+        EventCapture events = new EventCapture(RATE, FRAME_BYTES, 1000, 0, 500, null, outputs,
+                outputs);
+        byte[] buffer = new byte[RATE * FRAME_BYTES];
+        events.write(buffer, 0, buffer.length);
+        assertTrue(events.trigger("test"));
+        events.close();
+        assertNull(outputs.mClock);
+        assertEquals(buffer.length, outputs.mWriter.toByteArray().length);
+    }
+
+    /** A pre-roll read racing the writer is either intact or reported as lost. */
+    @Test
+    public void preRollReaderNeverReportsATornCopy() throws InterruptedException {
+        assertNoTornCopies(new PreRollBuffer(4096, 4));
+    }
+
+    /** The same where fences are not available and the buffer locks instead. */
+    @Test
+    public void lockedPreRollReaderNeverReportsATornCopy() throws InterruptedException {
+        assertNoTornCopies(new PreRollBuffer(4096, 4, true));
+    }
+
+    /** Races a reader of the oldest frames against a writer of frames holding their index. */
+    private static void assertNoTornCopies(final PreRollBuffer buffer)
+            throws InterruptedException {
+        final int frames = 2000000;
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                ByteBuffer chunk = ByteBuffer.allocate(64 * 4);
+                for (int frame = 0; frame < frames; frame += 64) {
+                    chunk.clear();
+                    for (int i = 0; i < 64; i++) {
+                        chunk.putInt(frame + i);
+                    }
+                    buffer.write(chunk.array(), 0, chunk.capacity());
+                }
+            }
+        };
+        writer.start();
+
+        PreRollBuffer.Reader reader = buffer.newReader();
+        byte[] copy = new byte[1024];
+        ByteBuffer frame = ByteBuffer.wrap(copy);
+        int intact = 0;
+        while (writer.isAlive()) {
+            long position = buffer.getOldestPosition() / 4 * 4;
+            if (buffer.getWrittenBytes() - position < copy.length) {
+                continue;
+            }
+            if (!reader.read(position, copy, 0, copy.length)) {
+                continue;
+            }
+            for (int i = 0; i < copy.length / 4; i++) {
+                assertEquals("torn copy after " + intact + " reads",
+                        position / 4 + i, frame.getInt(4 * i));
+            }
+            intact++;
+        }
+        writer.join();
+        assertTrue(intact > 0);
+    }
+
+    private static final class Outputs implements EventCapture.OutputFactory,
+            EventCapture.Listener {
+        volatile CaptureClock mClock;
+        volatile MemoryWriter mWriter;
+
+        @Override
+        public SegmentWriter open(String reason, CaptureClock clock) {
+            mClock = clock;
+            mWriter = new MemoryWriter();
+            return mWriter;
+        }
+
+        @Override
+        public void onEventStarted(String reason) {
+        }
+
+        @Override
+        public void onEventFinished(long bytes, long lostBytes, Throwable failure) {
+            assertNull(failure);
+        }
+    }
+}
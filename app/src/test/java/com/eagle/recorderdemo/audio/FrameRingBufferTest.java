@@ -0,0 +1,237 @@
+package com.eagle.recorderdemo.audio;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class FrameRingBufferTest {
+
+    private static final int FRAME_BYTES = 64;
+
+    @Test
+    public void writerSeesFramesInOrder() {
+        FrameRingBuffer ring = newRing(4, FrameRingBuffer.OverflowPolicy.DROP_NEWEST, 0);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(publish(ring, i));
+            assertEquals(i, ring.peek()[0]);
+            assertEquals(FRAME_BYTES, ring.peekLength());
+            ring.release();
+        }
+        assertNull(ring.peek());
+        assertEquals(10, ring.getPublishedCount());
+    }
+
+    @Test
+    public void dropNewestWhenFull() {
+        FrameRingBuffer ring = newRing(4, FrameRingBuffer.OverflowPolicy.DROP_NEWEST, 0);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(publish(ring, i));
+        }
+        assertFalse(publish(ring, 4));
+        assertEquals(1, ring.getOverflowCount());
+        assertEquals(4, ring.getHighWaterMark());
+
+        // The frames already queued are kept, the dropped one is gone.
+        for (int i = 0; i < 4; i++) {
+            assertEquals(i, ring.peek()[0]);
+            ring.release();
+        }
+        assertNull(ring.peek());
+    }
+
+    @Test
+    public void waitThenDropGivesUpAfterTheTimeout() {
+        FrameRingBuffer ring = newRing(2, FrameRingBuffer.OverflowPolicy.WAIT_THEN_DROP, 30);
+        publish(ring, 0);
+        publish(ring, 1);
+        long start = System.nanoTime();
+        assertFalse(publish(ring, 2));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(30));
+        assertEquals(1, ring.getOverflowCount());
+    }
+
+    @Test
+    public void waitThenDropTakesSpaceFreedMeanwhile() throws InterruptedException {
+        final FrameRingBuffer ring =
+                newRing(2, FrameRingBuffer.OverflowPolicy.WAIT_THEN_DROP, 5000);
+        publish(ring, 0);
+        publish(ring, 1);
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                ring.release();
+            }
+        };
+        writer.start();
+        assertTrue(publish(ring, 2));
+        writer.join();
+        assertEquals(0, ring.getOverflowCount());
+    }
+
+    @Test
+    public void blockingConsumerHoldsTheProducerBack() {
+        FrameRingBuffer ring = newRing(4, FrameRingBuffer.OverflowPolicy.DROP_NEWEST, 0);
+        FrameRingBuffer.Consumer consumer = ring.addConsumer(FrameRingBuffer.ConsumerPolicy.BLOCK);
+        for (int i = 0; i < 4; i++) {
+            publish(ring, i);
+            ring.release();
+        }
+        // The writer is done with every frame, the consumer with none.
+        assertFalse(publish(ring, 4));
+
+        byte[] dst = new byte[FRAME_BYTES];
+        assertEquals(FRAME_BYTES, consumer.read(dst, 0));
+        assertEquals(0, dst[0]);
+        assertTrue(publish(ring, 4));
+        for (int i = 1; i <= 4; i++) {
+            consumer.read(dst, 0);
+            assertEquals(i, dst[0]);
+        }
+        assertEquals(0, consumer.getLostCount());
+
+        ring.removeConsumer(consumer);
+        for (int i = 5; i < 9; i++) {
+            ring.release();
+            assertTrue(publish(ring, i));
+        }
+    }
+
+    @Test
+    public void droppingConsumerLosesTheOldestFrames() {
+        FrameRingBuffer ring = newRing(4, FrameRingBuffer.OverflowPolicy.DROP_NEWEST, 0);
+        FrameRingBuffer.Consumer consumer = ring.addConsumer(FrameRingBuffer.ConsumerPolicy.DROP);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(publish(ring, i));
+            ring.release();
+        }
+        byte[] dst = new byte[FRAME_BYTES];
+        for (int i = 6; i < 10; i++) {
+            assertEquals(FRAME_BYTES, consumer.read(dst, 0));
+            assertEquals(i, dst[0]);
+        }
+        assertEquals(-1, consumer.read(dst, 0));
+        assertEquals(6, consumer.getLostCount());
+    }
+
+    @Test
+    public void skipAheadConsumerJumpsToTheNewestFrame() {
+        FrameRingBuffer ring = newRing(8, FrameRingBuffer.OverflowPolicy.DROP_NEWEST, 0);
+        FrameRingBuffer.Consumer consumer =
+                ring.addConsumer(FrameRingBuffer.ConsumerPolicy.SKIP_AHEAD);
+        byte[] dst = new byte[FRAME_BYTES];
+
+        // Up to half the ring behind, it reads everything.
+        for (int i = 0; i < 4; i++) {
+            publish(ring, i);
+            ring.release();
+        }
+        for (int i = 0; i < 4; i++) {
+            consumer.read(dst, 0);
+            assertEquals(i, dst[0]);
+        }
+        for (int i = 4; i < 11; i++) {
+            publish(ring, i);
+            ring.release();
+        }
+        assertEquals(FRAME_BYTES, consumer.read(dst, 0));
+        assertEquals(10, dst[0]);
+        assertEquals(-1, consumer.read(dst, 0));
+        assertEquals(6, consumer.getLostCount());
+    }
+
+    @Test
+    public void consumerStartsAtTheHead() {
+        FrameRingBuffer ring = newRing(4, FrameRingBuffer.OverflowPolicy.DROP_NEWEST, 0);
+        publish(ring, 0);
+        ring.release();
+        FrameRingBuffer.Consumer consumer = ring.addConsumer(FrameRingBuffer.ConsumerPolicy.DROP);
+        byte[] dst = new byte[FRAME_BYTES];
+        assertEquals(-1, consumer.read(dst, 0));
+        publish(ring, 1);
+        consumer.read(dst, 0);
+        assertEquals(1, dst[0]);
+
+        ring.close();
+        assertTrue(consumer.isDrained());
+    }
+
+    /** A consumer racing the producer either gets a whole frame or counts it as lost. */
+    @Test
+    public void droppingConsumerNeverSeesATornFrame() throws InterruptedException {
+        assertNoTornFrames(newRing(4, FrameRingBuffer.OverflowPolicy.DROP_NEWEST, 0));
+    }
+
+    /** The same where fences are not available and slots are locked instead. */
+    @Test
+    public void slotLockedConsumerNeverSeesATornFrame() throws InterruptedException {
+        assertNoTornFrames(new FrameRingBuffer(4, FRAME_BYTES,
+                FrameRingBuffer.OverflowPolicy.DROP_NEWEST, 0, true));
+    }
+
+    @Test
+    public void fencesAreAvailable() {
+        assertTrue(Fences.isAvailable());
+    }
+
+    private static void assertNoTornFrames(final FrameRingBuffer ring)
+            throws InterruptedException {
+        final int frames = 200000;
+        FrameRingBuffer.Consumer consumer = ring.addConsumer(FrameRingBuffer.ConsumerPolicy.DROP);
+        Thread producer = new Thread() {
+            @Override
+            public void run() {
+                for (int i = 0; i < frames; i++) {
+                    publish(ring, i);
+                    ring.release();
+                }
+                ring.close();
+            }
+        };
+        producer.start();
+
+        byte[] dst = new byte[FRAME_BYTES];
+        long read = 0;
+        while (true) {
+            int length = consumer.read(dst, 0);
+            if (length < 0) {
+                if (consumer.isDrained()) {
+                    break;
+                }
+                continue;
+            }
+            byte[] expected = new byte[FRAME_BYTES];
+            Arrays.fill(expected, dst[0]);
+            assertTrue("torn frame after " + read + " reads", Arrays.equals(expected, dst));
+            read++;
+        }
+        producer.join();
+        assertEquals(frames, read + consumer.getLostCount());
+    }
+
+    private static FrameRingBuffer newRing(int capacity, FrameRingBuffer.OverflowPolicy policy,
+            long maxWaitMillis) {
+        return new FrameRingBuffer(capacity, FRAME_BYTES, policy, maxWaitMillis);
+    }
+
+    /** Publishes a frame filled with {@code value}, or returns {@code false} if it was dropped. */
+    private static boolean publish(FrameRingBuffer ring, int value) {
+        byte[] frame = ring.claim();
+        if (frame == null) {
+            return false;
+        }
+        Arrays.fill(frame, (byte) value);
+        ring.publish(FRAME_BYTES);
+        return true;
+    }
+}
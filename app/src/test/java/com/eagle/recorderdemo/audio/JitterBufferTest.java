@@ -0,0 +1,128 @@
+package com.eagle.recorderdemo.audio;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/** Mono PCM16 whose samples count the frames written, so every read shows where it came from. */
+public class JitterBufferTest {
+
+    private static final int RATE = 8000;
+    private static final int MIN_TARGET = 80;
+    private static final int MAX_TARGET = 400;
+    private static final int STEP = 40;
+    private static final int CAPACITY = 2 * (MAX_TARGET + STEP);
+    private static final int CALM_FRAMES = 10 * RATE;
+
+    private final JitterBuffer mBuffer = new JitterBuffer(RATE, 2, MIN_TARGET, MAX_TARGET, STEP);
+    private int mWritten;
+
+    @Test
+    public void silentUntilTheTargetIsReached() {
+        write(MIN_TARGET);
+        byte[] dst = read(STEP, 0);
+        assertArrayEquals(new byte[STEP * 2], dst);
+        assertEquals(MIN_TARGET, mBuffer.getFill());
+
+        // Playing starts once a read still leaves the target behind.
+        write(STEP);
+        dst = read(STEP, STEP);
+        assertFrames(dst, 0, 0, STEP);
+        assertEquals(MIN_TARGET, mBuffer.getFill());
+        assertEquals(0, mBuffer.getDuplicatedFrames());
+    }
+
+    @Test
+    public void underrunRaisesTheTargetAndReplays() {
+        write(MIN_TARGET + STEP);
+        for (int i = 0; i < 3; i++) {
+            assertFrames(read(STEP, STEP), 0, i * STEP, STEP);
+        }
+        assertEquals(0, mBuffer.getUnderruns());
+
+        // Dry: the last step handed out is played again.
+        byte[] dst = read(STEP, 0);
+        assertFrames(dst, 0, 2 * STEP, STEP);
+        assertEquals(1, mBuffer.getUnderruns());
+        assertEquals(MIN_TARGET + STEP, mBuffer.getTarget());
+
+        // And again until the fill has built up to the new target.
+        write(MIN_TARGET + STEP);
+        assertFrames(read(STEP, 0), 0, 2 * STEP, STEP);
+        write(STEP);
+        assertFrames(read(STEP, STEP), 0, MIN_TARGET + STEP, STEP);
+        assertEquals(2 * STEP, mBuffer.getDuplicatedFrames());
+    }
+
+    @Test
+    public void calmLowersTheTargetToTheMinimum() {
+        underrun();
+        assertEquals(MIN_TARGET + STEP, mBuffer.getTarget());
+        write(MIN_TARGET + 2 * STEP);
+
+        // A device that keeps pace: the fill stays on the target and nothing is corrected.
+        for (int read = 0; read < CALM_FRAMES - STEP; read += STEP) {
+            read(STEP, STEP);
+            write(STEP);
+        }
+        assertEquals(MIN_TARGET + STEP, mBuffer.getTarget());
+        read(STEP, STEP);
+        write(STEP);
+        assertEquals(MIN_TARGET, mBuffer.getTarget());
+
+        for (int read = 0; read < CALM_FRAMES; read += STEP) {
+            read(STEP, STEP);
+            write(STEP);
+        }
+        assertEquals(MIN_TARGET, mBuffer.getTarget());
+        assertEquals(1, mBuffer.getUnderruns());
+        assertEquals(0, mBuffer.getDroppedFrames());
+    }
+
+    @Test
+    public void writeDropsTheOldestPartOfWhatDoesNotFit() {
+        write(CAPACITY - 30);
+        write(100);
+        assertEquals(70, mBuffer.getOverflowFrames());
+        assertEquals(CAPACITY, mBuffer.getFill());
+
+        byte[] dst = new byte[CAPACITY * 2];
+        for (int at = 0; at < CAPACITY; at += STEP) {
+            System.arraycopy(read(STEP, STEP), 0, dst, at * 2, STEP * 2);
+        }
+        assertFrames(dst, 0, 0, CAPACITY - 30);
+        assertFrames(dst, CAPACITY - 30, CAPACITY + 40, 30);
+    }
+
+    /** Primes the buffer at the minimum target and reads it dry. */
+    private void underrun() {
+        write(MIN_TARGET + STEP);
+        while (mBuffer.getUnderruns() == 0) {
+            read(STEP, mBuffer.getFill() > 0 ? STEP : 0);
+        }
+    }
+
+    private void write(int frames) {
+        byte[] src = new byte[frames * 2];
+        for (int i = 0; i < frames; i++, mWritten++) {
+            src[2 * i] = (byte) mWritten;
+            src[2 * i + 1] = (byte) (mWritten >> 8);
+        }
+        mBuffer.write(src, 0, src.length);
+    }
+
+    /** Reads {@code frames} frames, of which {@code queued} are expected to be queued audio. */
+    private byte[] read(int frames, int queued) {
+        byte[] dst = new byte[frames * 2];
+        assertEquals(queued, mBuffer.read(dst, 0, dst.length));
+        return dst;
+    }
+
+    private static void assertFrames(byte[] dst, int at, int first, int count) {
+        for (int i = 0; i < count; i++) {
+            int frame = (dst[2 * (at + i)] & 0xFF) | (dst[2 * (at + i) + 1] & 0xFF) << 8;
+            assertEquals("frame " + (at + i), first + i, frame);
+        }
+    }
+}
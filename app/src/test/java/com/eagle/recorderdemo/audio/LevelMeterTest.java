@@ -0,0 +1,150 @@
+package com.eagle.recorderdemo.audio;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LevelMeterTest {
+
+    private static final int RATE = 8000;
+    private static final int PUBLISH_RATE = 10;
+    private static final int PERIOD = RATE / PUBLISH_RATE;
+
+    /** Each channel gets its own peak and RMS, computed over one period. */
+    @Test
+    public void metersEveryChannel() {
+        int channels = 3;
+        short[] samples = new short[PERIOD * channels];
+        for (int frame = 0; frame < PERIOD; frame++) {
+            samples[frame * channels] = (short) Math.round(
+                    8000 * Math.sin(2 * Math.PI * 440 * frame / RATE));
+            samples[frame * channels + 1] = frame % 2 == 0 ? Short.MIN_VALUE : Short.MAX_VALUE;
+        }
+        LevelMeter meter = new LevelMeter(channels, RATE, PUBLISH_RATE);
+        meter.process(toBytes(samples), 0, samples.length * 2);
+
+        LevelMeter.Snapshot snapshot = new LevelMeter.Snapshot(channels);
+        meter.read(snapshot);
+        assertEquals(1, snapshot.sequence);
+        for (int channel = 0; channel < channels; channel++) {
+            float[] expected = levels(samples, channels, channel);
+            assertEquals("peak " + channel, expected[0], snapshot.peak[channel], 1e-6f);
+            assertEquals("rms " + channel, expected[1], snapshot.rms[channel], 1e-6f);
+        }
+        assertEquals(1f, snapshot.maxPeak(), 0f);
+        assertEquals(LevelMeter.SILENCE_DB, snapshot.rmsDb(2), 0f);
+    }
+
+    /** A period is published after its last frame however the stream is cut into calls. */
+    @Test
+    public void publishesEveryPeriodAcrossCalls() {
+        final List<float[]> published = new ArrayList<float[]>();
+        LevelMeter meter = new LevelMeter(2, RATE, PUBLISH_RATE);
+        meter.setListener(new LevelMeter.Listener() {
+            @Override
+            public void onLevels(float peak, float rms) {
+                published.add(new float[] {peak, rms});
+            }
+        });
+
+        // Period k holds samples of value 1000 * (k + 1) on the left, half that on the right.
+        int periods = 5;
+        short[] samples = new short[periods * PERIOD * 2];
+        for (int i = 0; i < samples.length; i++) {
+            int value = 1000 * (i / 2 / PERIOD + 1);
+            samples[i] = (short) (i % 2 == 0 ? value : value / 2);
+        }
+        byte[] pcm = toBytes(samples);
+        // Chunks that split frames and periods, ending one frame short of the last period.
+        int[] chunks = {2, 6, 1598, 402, 4, 3000};
+        int offset = 0;
+        int end = pcm.length - 4;
+        for (int i = 0; offset < end; i++) {
+            int length = Math.min(chunks[i % chunks.length], end - offset);
+            meter.process(pcm, offset, length);
+            offset += length;
+        }
+        assertEquals(periods - 1, published.size());
+        for (int k = 0; k < periods - 1; k++) {
+            assertEquals(1000 * (k + 1) / 32768f, published.get(k)[0], 1e-6f);
+            assertEquals(1000 * (k + 1) / 32768f, published.get(k)[1], 1e-6f);
+        }
+        meter.process(pcm, end, 4);
+        assertEquals(periods, published.size());
+
+        LevelMeter.Snapshot snapshot = new LevelMeter.Snapshot(2);
+        meter.read(snapshot);
+        assertEquals(periods, snapshot.sequence);
+        assertEquals(1000 * periods / 32768f, snapshot.peak[0], 1e-6f);
+        assertEquals(500 * periods / 32768f, snapshot.rms[1], 1e-6f);
+    }
+
+    /** A reader racing the processing thread always sees the channels of one period. */
+    @Test
+    public void readNeverMixesPeriods() throws InterruptedException {
+        final int channels = 8;
+        final int periods = 20000;
+        final LevelMeter meter = new LevelMeter(channels, RATE, RATE);
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                // One frame per period, every channel at the same level.
+                byte[] frame = new byte[channels * 2];
+                for (int k = 0; k < periods; k++) {
+                    int value = 1 + k % 30000;
+                    for (int c = 0; c < channels; c++) {
+                        frame[2 * c] = (byte) value;
+                        frame[2 * c + 1] = (byte) (value >> 8);
+                    }
+                    meter.process(frame, 0, frame.length);
+                }
+            }
+        };
+        writer.start();
+
+        LevelMeter.Snapshot snapshot = new LevelMeter.Snapshot(channels);
+        long last = 0;
+        int reads = 0;
+        while (last < periods) {
+            meter.read(snapshot);
+            assertTrue(snapshot.sequence >= last);
+            last = snapshot.sequence;
+            for (int c = 1; c < channels; c++) {
+                assertEquals("period " + last, snapshot.peak[0], snapshot.peak[c], 0f);
+                assertEquals("period " + last, snapshot.rms[0], snapshot.rms[c], 0f);
+            }
+            if (last > 0) {
+                assertEquals(1 + (last - 1) % 30000, snapshot.peak[0] * 32768f, 1e-3f);
+            }
+            reads++;
+        }
+        writer.join();
+        assertTrue(reads > 1);
+    }
+
+    /** Peak and RMS of {@code channel} computed the long way. */
+    private static float[] levels(short[] samples, int channels, int channel) {
+        int peak = 0;
+        double squares = 0;
+        int frames = samples.length / channels;
+        for (int frame = 0; frame < frames; frame++) {
+            int sample = samples[frame * channels + channel];
+            peak = Math.max(peak, Math.abs(sample));
+            squares += (double) sample * sample;
+        }
+        return new float[] {peak / 32768f, (float) Math.sqrt(squares / frames) / 32768f};
+    }
+
+    private static byte[] toBytes(short[] samples) {
+        byte[] pcm = new byte[samples.length * 2];
+        for (int i = 0; i < samples.length; i++) {
+            pcm[2 * i] = (byte) samples[i];
+            pcm[2 * i + 1] = (byte) (samples[i] >> 8);
+        }
+        return pcm;
+    }
+}
@@ -0,0 +1,59 @@
+package com.eagle.recorderdemo.audio;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * {@link SegmentWriter} keeping everything in memory, for tests of the writers stacked on it.
+ */
+final class MemoryWriter implements SegmentWriter {
+
+    private final ByteArrayOutputStream mBytes = new ByteArrayOutputStream();
+    private final WriterStats mStats = new WriterStats();
+    private boolean mClosed;
+
+    @Override
+    public void write(byte[] src, int offset, int length) {
+        mBytes.write(src, offset, length);
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public long position() {
+        return mBytes.size();
+    }
+
+    @Override
+    public long committedPosition() {
+        return mBytes.size();
+    }
+
+    @Override
+    public void writeAt(long position, ByteBuffer src) {
+        byte[] bytes = toByteArray();
+        src.get(bytes, (int) position, src.remaining());
+        mBytes.reset();
+        mBytes.write(bytes, 0, bytes.length);
+    }
+
+    @Override
+    public WriterStats getStats() {
+        return mStats;
+    }
+
+    @Override
+    public void close() {
+        mClosed = true;
+    }
+
+    boolean isClosed() {
+        return mClosed;
+    }
+
+    byte[] toByteArray() {
+        return mBytes.toByteArray();
+    }
+}
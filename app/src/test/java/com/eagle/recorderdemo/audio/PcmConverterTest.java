@@ -0,0 +1,120 @@
+package com.eagle.recorderdemo.audio;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PcmConverterTest {
+
+    private static final float[] EDGES = {1.0f, 2.0f, -1.0f, -2.0f, 0.5f, -0.5f, 0f};
+
+    @Test
+    public void saturatesAtFullScale() {
+        for (PcmConverter.Encoding encoding : PcmConverter.Encoding.values()) {
+            long max = (1L << (8 * encoding.bytes - 1)) - 1;
+            long min = -(1L << (8 * encoding.bytes - 1));
+            long[] expected = {max, max, min, min, (max + 1) / 2, min / 2, 0};
+            for (boolean buffer : new boolean[] {false, true}) {
+                long[] actual = decode(encoding, convert(new PcmConverter(encoding, false),
+                        EDGES, buffer));
+                String where = encoding + (buffer ? " into a buffer" : " into an array");
+                for (int i = 0; i < EDGES.length; i++) {
+                    assertEquals(where + ", " + EDGES[i], expected[i], actual[i]);
+                }
+            }
+        }
+    }
+
+    /** Full scale stays in range with dither on, instead of wrapping around. */
+    @Test
+    public void ditheredFullScaleSaturates() {
+        for (PcmConverter.Encoding encoding : PcmConverter.Encoding.values()) {
+            float[] src = new float[1000];
+            for (int i = 0; i < src.length; i++) {
+                src[i] = i % 2 == 0 ? 1.0f : -1.0f;
+            }
+            long[] actual = decode(encoding, convert(new PcmConverter(encoding, true), src,
+                    false));
+            long max = (1L << (8 * encoding.bytes - 1)) - 1;
+            for (int i = 0; i < src.length; i++) {
+                long sample = actual[i];
+                assertTrue(encoding + " " + sample,
+                        i % 2 == 0 ? sample >= max - 1 : sample <= -max);
+            }
+        }
+    }
+
+    /** Dither moves a sample by at most one step from where rounding alone would put it. */
+    @Test
+    public void ditherStaysWithinOneLsb() {
+        Random random = new Random(42);
+        float[] src = new float[100000];
+        for (int i = 0; i < src.length; i++) {
+            src[i] = random.nextFloat() * 1.8f - 0.9f;
+        }
+        for (PcmConverter.Encoding encoding : new PcmConverter.Encoding[] {
+                PcmConverter.Encoding.PCM16, PcmConverter.Encoding.PCM24}) {
+            long[] plain = decode(encoding, convert(new PcmConverter(encoding, false), src,
+                    false));
+            long[] dithered = decode(encoding, convert(new PcmConverter(encoding, true), src,
+                    true));
+            int moved = 0;
+            double error = 0;
+            for (int i = 0; i < src.length; i++) {
+                long difference = dithered[i] - plain[i];
+                assertTrue(encoding + " sample " + i + " moved " + difference,
+                        Math.abs(difference) <= 1);
+                if (difference != 0) {
+                    moved++;
+                }
+                error += dithered[i] - src[i] * encoding.scale;
+            }
+            // It does add noise, and the noise has no offset.
+            assertTrue(encoding + " moved " + moved, moved > src.length / 4);
+            assertEquals(encoding.toString(), 0, error / src.length, 0.01);
+        }
+    }
+
+    /** The float mantissa is already coarser than one LSB at 32 bit, so no dither is added. */
+    @Test
+    public void noDitherAt32Bit() {
+        float[] src = {0.1f, -0.3f, 0.77f, -0.999f};
+        PcmConverter.Encoding encoding = PcmConverter.Encoding.PCM32;
+        assertArrayEquals(convert(new PcmConverter(encoding, false), src, false),
+                convert(new PcmConverter(encoding, true), src, false));
+    }
+
+    private static byte[] convert(PcmConverter converter, float[] src, boolean buffer) {
+        byte[] dst = new byte[src.length * converter.bytesPerSample()];
+        int length;
+        if (buffer) {
+            ByteBuffer out = ByteBuffer.wrap(dst);
+            length = converter.convert(src, 0, src.length, out);
+            assertEquals(length, out.position());
+        } else {
+            length = converter.convert(src, 0, src.length, dst, 0);
+        }
+        assertEquals(dst.length, length);
+        return dst;
+    }
+
+    /** Reads back little-endian signed samples. */
+    private static long[] decode(PcmConverter.Encoding encoding, byte[] pcm) {
+        int bytes = encoding.bytes;
+        long[] samples = new long[pcm.length / bytes];
+        for (int i = 0; i < samples.length; i++) {
+            long sample = 0;
+            for (int b = bytes - 1; b >= 0; b--) {
+                sample = sample << 8 | (pcm[i * bytes + b] & 0xFF);
+            }
+            int shift = 64 - 8 * bytes;
+            samples[i] = sample << shift >> shift;
+        }
+        return samples;
+    }
+}
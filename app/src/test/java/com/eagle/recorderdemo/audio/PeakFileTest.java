@@ -0,0 +1,204 @@
+package com.eagle.recorderdemo.audio;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PeakFileTest {
+
+    private static final int RATE = 8000;
+    private static final int CHANNELS = 2;
+    private static final int FRAMES_PER_BIN = 16;
+    private static final int RATIO = 4;
+    private static final int LEVELS = 3;
+    // Frames of a top level bin.
+    private static final int TOP_FRAMES = FRAMES_PER_BIN * RATIO * RATIO;
+    private static final int STRIDE = CHANNELS * PeakFile.VALUES;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    /** Ends inside a bin of every level. */
+    @Test
+    public void endsMidBin() throws IOException {
+        assertRoundTrip(5 * TOP_FRAMES + 100);
+    }
+
+    /** Ends on a level 0 bin but inside the bins above it, whose records then come first. */
+    @Test
+    public void endsOnALevel0Bin() throws IOException {
+        assertRoundTrip(5 * TOP_FRAMES + 6 * FRAMES_PER_BIN);
+    }
+
+    @Test
+    public void endsOnATopBin() throws IOException {
+        assertRoundTrip(3 * TOP_FRAMES);
+    }
+
+    /**
+     * Writes {@code frames} frames in uneven chunks, checks what a reader sees after a flush
+     * halfway, then every bin and a few overviews of the closed sidecar against the samples.
+     */
+    private void assertRoundTrip(int frames) throws IOException {
+        short[] samples = signal(frames);
+        byte[] pcm = new byte[samples.length * 2];
+        for (int i = 0; i < samples.length; i++) {
+            pcm[2 * i] = (byte) samples[i];
+            pcm[2 * i + 1] = (byte) (samples[i] >> 8);
+        }
+        File file = new File(mFolder.getRoot(), "rec." + PeakFile.EXTENSION);
+        MemoryWriter out = new MemoryWriter();
+        PeakWriter writer = new PeakWriter(out, file, RATE, CHANNELS, FRAMES_PER_BIN, RATIO,
+                LEVELS);
+
+        // Chunks that split frames, and a flush inside the second top level bin.
+        int flushAt = (TOP_FRAMES + TOP_FRAMES / 2 + 3) * CHANNELS * 2;
+        int[] chunks = {7, 130, 1, 333, 64};
+        int offset = 0;
+        for (int i = 0; offset < pcm.length; i++) {
+            int length = Math.min(chunks[i % chunks.length], pcm.length - offset);
+            if (offset < flushAt && offset + length >= flushAt) {
+                length = flushAt - offset;
+                writer.write(pcm, offset, length);
+                writer.flush();
+                assertWhileRecording(file, samples, flushAt / (CHANNELS * 2));
+            } else {
+                writer.write(pcm, offset, length);
+            }
+            offset += length;
+        }
+        writer.close();
+        assertFalse(writer.hasFailed());
+        assertEquals(pcm.length, out.toByteArray().length);
+
+        PeakFile peaks = PeakFile.open(file);
+        try {
+            assertTrue(peaks.isComplete());
+            assertEquals(RATE, peaks.getSampleRate());
+            assertEquals(CHANNELS, peaks.getChannels());
+            assertEquals(frames, peaks.getFrameCount());
+            long records = 0;
+            for (int level = 0; level < LEVELS; level++) {
+                long binFrames = peaks.getFramesPerBin(level);
+                long bins = (frames + binFrames - 1) / binFrames;
+                assertEquals(bins, peaks.getBinCount(level));
+                assertBins(peaks, samples, level, bins);
+                records += bins;
+            }
+            // Nothing was written twice or left out.
+            assertEquals(PeakFile.HEADER_SIZE + records * STRIDE * 2, file.length());
+
+            for (int level = 0; level < LEVELS; level++) {
+                assertOverview(peaks, samples, level);
+            }
+        } finally {
+            peaks.close();
+        }
+    }
+
+    /** Only the complete bins are visible, and all of them, until the recording is closed. */
+    private static void assertWhileRecording(File file, short[] samples, int written)
+            throws IOException {
+        PeakFile peaks = PeakFile.open(file);
+        try {
+            assertFalse(peaks.isComplete());
+            for (int level = 0; level < LEVELS; level++) {
+                long bins = written / peaks.getFramesPerBin(level);
+                assertEquals(bins, peaks.getBinCount(level));
+                assertBins(peaks, samples, level, bins);
+            }
+        } finally {
+            peaks.close();
+        }
+    }
+
+    private static void assertBins(PeakFile peaks, short[] samples, int level, long bins) {
+        int binFrames = (int) peaks.getFramesPerBin(level);
+        short[] actual = new short[STRIDE];
+        for (int bin = 0; bin < bins; bin++) {
+            peaks.readBin(level, bin, actual, 0);
+            for (int channel = 0; channel < CHANNELS; channel++) {
+                int[] expected = summarize(samples, channel, bin * binFrames,
+                        (bin + 1) * binFrames);
+                String where = "level " + level + " bin " + bin + " channel " + channel;
+                assertEquals(where, expected[0], actual[channel * PeakFile.VALUES]);
+                assertEquals(where, expected[1], actual[channel * PeakFile.VALUES + 1]);
+                assertEquals(where, expected[2], actual[channel * PeakFile.VALUES + 2]);
+            }
+        }
+    }
+
+    /**
+     * With as many columns as {@code level} has whole bins, each column covers the bins of that
+     * level its frames fall in: the min and max of those samples, and the RMS of the bins taken
+     * as equal parts.
+     */
+    private static void assertOverview(PeakFile peaks, short[] samples, int level) {
+        int frames = samples.length / CHANNELS;
+        int binFrames = (int) peaks.getFramesPerBin(level);
+        int columns = frames / binFrames;
+        short[] actual = new short[columns * STRIDE];
+        assertEquals(columns, peaks.overview(0, frames, columns, actual));
+        double perColumn = frames / (double) columns;
+        for (int column = 0; column < columns; column++) {
+            int first = (int) (column * perColumn) / binFrames;
+            int last = ((int) ((column + 1) * perColumn) - 1) / binFrames;
+            for (int channel = 0; channel < CHANNELS; channel++) {
+                int[] range = summarize(samples, channel, first * binFrames,
+                        (last + 1) * binFrames);
+                double squares = 0;
+                for (int bin = first; bin <= last; bin++) {
+                    int rms = summarize(samples, channel, bin * binFrames,
+                            (bin + 1) * binFrames)[2];
+                    squares += (double) rms * rms;
+                }
+                int at = column * STRIDE + channel * PeakFile.VALUES;
+                String where = columns + " columns, column " + column + " channel " + channel;
+                assertEquals(where, range[0], actual[at]);
+                assertEquals(where, range[1], actual[at + 1]);
+                assertEquals(where, Math.round(Math.sqrt(squares / (last - first + 1))),
+                        actual[at + 2]);
+            }
+        }
+    }
+
+    /** Min, max and RMS of {@code channel} over frames {@code [from, to)}, cut at the end. */
+    private static int[] summarize(short[] samples, int channel, int from, int to) {
+        to = Math.min(to, samples.length / CHANNELS);
+        int min = Short.MAX_VALUE;
+        int max = Short.MIN_VALUE;
+        double squares = 0;
+        for (int frame = from; frame < to; frame++) {
+            int sample = samples[frame * CHANNELS + channel];
+            min = Math.min(min, sample);
+            max = Math.max(max, sample);
+            squares += (double) sample * sample;
+        }
+        int rms = (int) Math.min(Short.MAX_VALUE, Math.round(Math.sqrt(squares / (to - from))));
+        return new int[] {min, max, rms};
+    }
+
+    /**
+     * Noise whose loudness changes every few bins on the left, and full scale square waves
+     * of either sign on the right.
+     */
+    private static short[] signal(int frames) {
+        Random random = new Random(frames);
+        short[] samples = new short[frames * CHANNELS];
+        for (int frame = 0; frame < frames; frame++) {
+            int amplitude = 1000 + (frame / 40 % 7) * 4000;
+            samples[frame * CHANNELS] = (short) (random.nextInt(2 * amplitude + 1) - amplitude);
+            samples[frame * CHANNELS + 1] = frame / 300 % 2 == 0 ? Short.MIN_VALUE
+                    : frame % 5 == 0 ? Short.MAX_VALUE : 0;
+        }
+        return samples;
+    }
+}
@@ -0,0 +1,158 @@
+package com.eagle.recorderdemo.audio;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Mono PCM16 at 8 kHz, so a read of 80, 160, 320 or 640 bytes lasts 5, 10, 20 or 40 ms and a
+ * window holds a whole number of them.
+ */
+public class ReadSizeControllerTest {
+
+    private static final int RATE = 8000;
+    private static final int BYTES_PER_SECOND = RATE * 2;
+    private static final int MIN_BYTES = 80;
+    private static final int MAX_BYTES = 640;
+
+    private final FrameRingBuffer mRing = new FrameRingBuffer(8, MAX_BYTES,
+            FrameRingBuffer.OverflowPolicy.DROP_NEWEST, 0);
+    private final List<String> mReasons = new ArrayList<String>();
+    private ReadSizeController mController;
+    private long mNow = ReadSizeController.WINDOW_NANOS;
+
+    @Before
+    public void setUp() {
+        mController = new ReadSizeController(RATE, 2, MIN_BYTES, MAX_BYTES, 320,
+                new ReadSizeController.Listener() {
+                    @Override
+                    public void onReadSizeChanged(int oldBytes, int newBytes, String reason) {
+                        mReasons.add(reason);
+                    }
+                });
+        mController.onRead(320, mNow, mRing);
+    }
+
+    @Test
+    public void halvesOnlyAfterTheCalmWindows() {
+        for (int i = 1; i < ReadSizeController.CALM_WINDOWS; i++) {
+            quietWindow();
+            assertEquals(320, mController.getReadBytes());
+        }
+        quietWindow();
+        assertEquals(160, mController.getReadBytes());
+        assertEquals(1, mController.getDecisions());
+
+        // The count starts over, and stops at the minimum.
+        for (int i = 1; i < ReadSizeController.CALM_WINDOWS; i++) {
+            quietWindow();
+            assertEquals(160, mController.getReadBytes());
+        }
+        for (int i = 0; i < 3 * ReadSizeController.CALM_WINDOWS; i++) {
+            quietWindow();
+        }
+        assertEquals(MIN_BYTES, mController.getReadBytes());
+        assertEquals(2, mController.getDecisions());
+    }
+
+    @Test
+    public void pressureDoublesAtTheEndOfTheWindow() {
+        // A read that came back empty straight away, in an otherwise quiet window.
+        int reads = readsPerWindow();
+        for (int i = 0; i < reads; i++) {
+            read(mController.getReadBytes(), 0);
+            if (i == reads / 2) {
+                mController.onRead(0, mNow, mRing);
+            }
+        }
+        assertEquals(640, mController.getReadBytes());
+        assertTrue(mReasons.get(0), mReasons.get(0).contains("empty reads"));
+
+        // Stays at the maximum whatever happens.
+        jitteryWindow();
+        assertEquals(MAX_BYTES, mController.getReadBytes());
+        assertEquals(1, mController.getDecisions());
+    }
+
+    @Test
+    public void jitterDoubles() {
+        jitteryWindow();
+        assertEquals(640, mController.getReadBytes());
+        assertTrue(mReasons.get(0), mReasons.get(0).contains("jitter"));
+    }
+
+    @Test
+    public void ringFillAndOverflowDouble() {
+        mController = new ReadSizeController(RATE, 2, MIN_BYTES, MAX_BYTES, MIN_BYTES, null);
+        mController.onRead(MIN_BYTES, mNow, mRing);
+
+        // Half the ring waiting for the writer.
+        for (int i = 0; i < mRing.capacity() / 2; i++) {
+            mRing.claim();
+            mRing.publish(MIN_BYTES);
+        }
+        quietWindow();
+        assertEquals(160, mController.getReadBytes());
+
+        // And frames dropped because it was full.
+        while (mRing.claim() != null) {
+            mRing.publish(MIN_BYTES);
+        }
+        for (int i = 0; i < mRing.capacity(); i++) {
+            mRing.release();
+        }
+        quietWindow();
+        assertEquals(320, mController.getReadBytes());
+        assertEquals(2, mController.getDecisions());
+    }
+
+    /** A window of pressure in the middle of a quiet run restarts the count. */
+    @Test
+    public void pressureRestartsTheCalmCount() {
+        for (int i = 1; i < ReadSizeController.CALM_WINDOWS; i++) {
+            quietWindow();
+        }
+        jitteryWindow();
+        assertEquals(640, mController.getReadBytes());
+        for (int i = 1; i < ReadSizeController.CALM_WINDOWS; i++) {
+            quietWindow();
+            assertEquals(640, mController.getReadBytes());
+        }
+        quietWindow();
+        assertEquals(320, mController.getReadBytes());
+    }
+
+    /** Reads arriving exactly as long apart as the audio they return. */
+    private void quietWindow() {
+        for (int i = readsPerWindow(); i > 0; i--) {
+            read(mController.getReadBytes(), 0);
+        }
+    }
+
+    /** One read three quarters of a read late, the one after it on time again. */
+    private void jitteryWindow() {
+        int reads = readsPerWindow();
+        long late = duration(mController.getReadBytes()) * 3 / 4;
+        for (int i = 0; i < reads; i++) {
+            read(mController.getReadBytes(), i == 1 ? late : i == 2 ? -late : 0);
+        }
+    }
+
+    private int readsPerWindow() {
+        return (int) (ReadSizeController.WINDOW_NANOS / duration(mController.getReadBytes()));
+    }
+
+    private void read(int bytes, long lateNanos) {
+        mNow += duration(mController.getReadBytes()) + lateNanos;
+        mController.onRead(bytes, mNow, mRing);
+    }
+
+    private static long duration(int bytes) {
+        return bytes * 1000000000L / BYTES_PER_SECOND;
+    }
+}
@@ -0,0 +1,263 @@
+package com.eagle.recorderdemo.audio;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RecordingRecoveryTest {
+
+    private static final int RATE = 16000;
+    private static final int CHANNELS = 2;
+    private static final int FRAME_BYTES = 2 * CHANNELS;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void closedWavIsClean() throws IOException {
+        byte[] wav = wav(1000);
+        File file = write("clean.wav", wav);
+        RecordingRecovery.Result result = RecordingRecovery.recover(file, FRAME_BYTES);
+        assertEquals(RecordingRecovery.Outcome.CLEAN, result.outcome);
+        assertArrayEquals(wav, read(file));
+    }
+
+    @Test
+    public void wavCutAfterTheLastWholeFrame() throws IOException {
+        byte[] wav = wav(1000);
+        int headerSize = wav.length - 1000 * FRAME_BYTES;
+        // The header lags at a checkpoint and the last frame is torn.
+        setDataSize(wav, headerSize, 400 * FRAME_BYTES);
+        File file = write("torn.wav", Arrays.copyOf(wav, wav.length - 1));
+
+        RecordingRecovery.Result result = RecordingRecovery.recover(file, FRAME_BYTES);
+        assertEquals(RecordingRecovery.Outcome.REPAIRED, result.outcome);
+        assertEquals(wav.length - 1, result.oldLength);
+        assertEquals(headerSize + 999 * FRAME_BYTES, result.newLength);
+        assertEquals(result.newLength, file.length());
+        assertHeader(file, headerSize, 999 * FRAME_BYTES);
+        assertEquals(RecordingRecovery.Outcome.CLEAN,
+                RecordingRecovery.recover(file, FRAME_BYTES).outcome);
+    }
+
+    @Test
+    public void wavLosesPreallocatedZeros() throws IOException {
+        byte[] wav = wav(1000);
+        int headerSize = wav.length - 1000 * FRAME_BYTES;
+        setDataSize(wav, headerSize, 0);
+        File file = write("prealloc.wav", Arrays.copyOf(wav, wav.length + 64 * 1024));
+
+        RecordingRecovery.Result result = RecordingRecovery.recover(file, FRAME_BYTES);
+        assertEquals(RecordingRecovery.Outcome.REPAIRED, result.outcome);
+        assertEquals(wav.length, file.length());
+        assertHeader(file, headerSize, 1000 * FRAME_BYTES);
+    }
+
+    @Test
+    public void wavHeaderClaimingMoreThanWasWritten() throws IOException {
+        byte[] wav = wav(1000);
+        int headerSize = wav.length - 1000 * FRAME_BYTES;
+        File file = write("short.wav", Arrays.copyOf(wav, headerSize + 600 * FRAME_BYTES + 3));
+
+        assertEquals(RecordingRecovery.Outcome.REPAIRED,
+                RecordingRecovery.recover(file, FRAME_BYTES).outcome);
+        assertEquals(headerSize + 600 * FRAME_BYTES, file.length());
+        assertHeader(file, headerSize, 600 * FRAME_BYTES);
+    }
+
+    @Test
+    public void rf64SizesAreRewrittenInDs64() throws IOException {
+        byte[] wav = wav(1000);
+        int headerSize = wav.length - 1000 * FRAME_BYTES;
+        // The same file as WavWriter leaves it after promotion, with a stale ds64.
+        ByteBuffer header = ByteBuffer.wrap(wav).order(ByteOrder.LITTLE_ENDIAN);
+        header.put(0, (byte) 'R').put(1, (byte) 'F').put(2, (byte) '6').put(3, (byte) '4');
+        header.putInt(4, -1);
+        header.put(12, (byte) 'd').put(13, (byte) 's').put(14, (byte) '6').put(15, (byte) '4');
+        header.putLong(20, 100).putLong(28, 100).putLong(36, 25);
+        header.putInt(headerSize - 4, -1);
+        File file = write("big.wav", Arrays.copyOf(wav, wav.length - 2));
+
+        assertEquals(RecordingRecovery.Outcome.REPAIRED,
+                RecordingRecovery.recover(file, FRAME_BYTES).outcome);
+        long dataSize = 999 * FRAME_BYTES;
+        assertEquals(headerSize + dataSize, file.length());
+        ByteBuffer ds64 = ByteBuffer.wrap(read(file), 20, 24).order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals(file.length() - 8, ds64.getLong());
+        assertEquals(dataSize, ds64.getLong());
+        assertEquals(999, ds64.getLong());
+        WavFile parsed = readHeader(file);
+        assertTrue(parsed.rf64);
+        assertEquals(dataSize, parsed.dataSize);
+    }
+
+    @Test
+    public void pcmCutAtTheLastFrameWithAudio() throws IOException {
+        byte[] pcm = new byte[1000 * FRAME_BYTES + 2 + 8192];
+        Arrays.fill(pcm, 0, 1000 * FRAME_BYTES + 2, (byte) 1);
+        File file = write("rec.pcm", pcm);
+
+        RecordingRecovery.Result result = RecordingRecovery.recover(file, FRAME_BYTES);
+        assertEquals(RecordingRecovery.Outcome.REPAIRED, result.outcome);
+        // The torn frame is followed by preallocated zeros, which complete it.
+        assertEquals(1001 * FRAME_BYTES, file.length());
+    }
+
+    @Test
+    public void losslessCutAfterTheLastWholeBlock() throws IOException {
+        MemoryWriter out = new MemoryWriter();
+        LosslessCodec.writeHeader(out, RATE, CHANNELS);
+        EncodingWriter encoder = new EncodingWriter(out,
+                new LosslessCodec.Encoder(CHANNELS, 256), FRAME_BYTES);
+        byte[] audio = audio(512);
+        encoder.write(audio, 0, audio.length);
+        int twoBlocks = out.toByteArray().length;
+        encoder.write(audio, 0, 256 * FRAME_BYTES);
+        encoder.close();
+        byte[] encoded = out.toByteArray();
+        assertTrue(encoded.length > twoBlocks + LosslessCodec.BLOCK_HEADER_SIZE);
+
+        File file = write("rec.rlac", Arrays.copyOf(encoded, encoded.length - 5));
+        assertEquals(RecordingRecovery.Outcome.REPAIRED,
+                RecordingRecovery.recover(file, FRAME_BYTES).outcome);
+        assertEquals(twoBlocks, file.length());
+
+        File whole = write("whole.rlac", encoded);
+        assertEquals(RecordingRecovery.Outcome.CLEAN,
+                RecordingRecovery.recover(whole, FRAME_BYTES).outcome);
+    }
+
+    @Test
+    public void chunkedCutAfterTheLastWholeBlock() throws IOException {
+        File file = new File(mFolder.getRoot(), "rec." + ChunkedFile.EXTENSION);
+        MemoryWriter out = new MemoryWriter();
+        ChunkedWriter chunked = new ChunkedWriter(out, ChunkedFile.indexFor(file), RATE,
+                CHANNELS, 256, null);
+        byte[] audio = audio(3 * 256 + 100);
+        chunked.write(audio, 0, audio.length);
+        chunked.close();
+        byte[] encoded = out.toByteArray();
+        long threeBlocks = ChunkedFile.HEADER_SIZE
+                + 3 * (ChunkedFile.BLOCK_HEADER_SIZE + 256 * FRAME_BYTES);
+        assertEquals(threeBlocks + ChunkedFile.BLOCK_HEADER_SIZE + 100 * FRAME_BYTES,
+                encoded.length);
+
+        write(file.getName(), encoded);
+        assertEquals(RecordingRecovery.Outcome.CLEAN,
+                RecordingRecovery.recover(file, FRAME_BYTES).outcome);
+        assertArrayEquals(encoded, read(file));
+
+        write(file.getName(), Arrays.copyOf(encoded, encoded.length - 3));
+        RecordingRecovery.Result result = RecordingRecovery.recover(file, FRAME_BYTES);
+        assertEquals(RecordingRecovery.Outcome.REPAIRED, result.outcome);
+        assertEquals(threeBlocks, result.newLength);
+        assertEquals(threeBlocks, file.length());
+        assertEquals(RecordingRecovery.Outcome.CLEAN,
+                RecordingRecovery.recover(file, FRAME_BYTES).outcome);
+    }
+
+    @Test
+    public void unknownFileIsLeftAlone() throws IOException {
+        byte[] junk = "not a recording at all".getBytes(StandardCharsets.US_ASCII);
+        File file = write("junk.wav", junk);
+        assertEquals(RecordingRecovery.Outcome.UNREADABLE,
+                RecordingRecovery.recover(file, FRAME_BYTES).outcome);
+        assertArrayEquals(junk, read(file));
+    }
+
+    @Test
+    public void recoverAllSkipsRecentFiles() throws IOException {
+        byte[] wav = wav(1000);
+        File old = write("old.wav", Arrays.copyOf(wav, wav.length - 1));
+        File recent = write("recent.wav", Arrays.copyOf(wav, wav.length - 1));
+        write("notes.txt", new byte[10]);
+        long now = System.currentTimeMillis();
+        assertTrue(old.setLastModified(now - 60000));
+        assertTrue(recent.setLastModified(now + 60000));
+
+        List<RecordingRecovery.Result> results =
+                RecordingRecovery.recoverAll(mFolder.getRoot(), FRAME_BYTES, now);
+        assertEquals(1, results.size());
+        assertEquals(old, results.get(0).file);
+        assertEquals(RecordingRecovery.Outcome.REPAIRED, results.get(0).outcome);
+        assertEquals(wav.length - 1, recent.length());
+    }
+
+    /** A closed WAVE file of {@code frames} frames of audio without digital silence. */
+    private static byte[] wav(int frames) throws IOException {
+        MemoryWriter out = new MemoryWriter();
+        WavWriter wav = new WavWriter(out, WavFormat.pcm(RATE, CHANNELS, 16), Long.MAX_VALUE);
+        byte[] audio = audio(frames);
+        wav.write(audio, 0, audio.length);
+        wav.close();
+        return out.toByteArray();
+    }
+
+    private static byte[] audio(int frames) {
+        byte[] audio = new byte[frames * FRAME_BYTES];
+        for (int i = 0; i < audio.length; i++) {
+            audio[i] = (byte) (i % 251 + 1);
+        }
+        return audio;
+    }
+
+    private static void setDataSize(byte[] wav, int headerSize, int dataSize) {
+        ByteBuffer header = ByteBuffer.wrap(wav).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(4, headerSize - 8 + dataSize);
+        header.putInt(headerSize - 4, dataSize);
+    }
+
+    private static void assertHeader(File file, int headerSize, long dataSize)
+            throws IOException {
+        WavFile wav = readHeader(file);
+        assertEquals(headerSize, wav.dataOffset);
+        assertEquals(dataSize, wav.dataSize);
+        ByteBuffer bytes = ByteBuffer.wrap(read(file)).order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals(file.length() - 8, bytes.getInt(4) & 0xFFFFFFFFL);
+    }
+
+    private static WavFile readHeader(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            return WavFile.read(raf.getChannel());
+        } finally {
+            raf.close();
+        }
+    }
+
+    private File write(String name, byte[] bytes) throws IOException {
+        File file = new File(mFolder.getRoot(), name);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private static byte[] read(File file) throws IOException {
+        byte[] bytes = new byte[(int) file.length()];
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            raf.readFully(bytes);
+        } finally {
+            raf.close();
+        }
+        return bytes;
+    }
+}
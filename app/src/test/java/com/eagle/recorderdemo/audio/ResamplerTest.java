@@ -0,0 +1,76 @@
+package com.eagle.recorderdemo.audio;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ResamplerTest {
+
+    private static final int IN_RATE = 32000;
+    private static final int OUT_RATE = 16000;
+    private static final int SECONDS = 2;
+    private static final double AMPLITUDE = 16000;
+
+    /** A tone well inside the passband comes out as the same tone, with little else. */
+    @Test
+    public void passesATone() {
+        short[] out = resample(1000);
+        assertEquals(SECONDS * OUT_RATE, out.length);
+
+        // Fit the tone by least squares over the part the filter fully covers.
+        int from = OUT_RATE / 10;
+        int to = out.length - OUT_RATE / 10;
+        double omega = 2 * Math.PI * 1000 / OUT_RATE;
+        double sinSum = 0;
+        double cosSum = 0;
+        for (int n = from; n < to; n++) {
+            sinSum += out[n] * Math.sin(omega * n);
+            cosSum += out[n] * Math.cos(omega * n);
+        }
+        double a = 2 * sinSum / (to - from);
+        double b = 2 * cosSum / (to - from);
+        double signal = 0;
+        double noise = 0;
+        for (int n = from; n < to; n++) {
+            double tone = a * Math.sin(omega * n) + b * Math.cos(omega * n);
+            signal += tone * tone;
+            noise += (out[n] - tone) * (out[n] - tone);
+        }
+        double snr = 10 * Math.log10(signal / noise);
+        assertTrue("SNR " + snr + " dB", snr > 90);
+        assertEquals(AMPLITUDE, Math.hypot(a, b), AMPLITUDE * 0.01);
+    }
+
+    /** A tone above the output Nyquist frequency is filtered out instead of folding back. */
+    @Test
+    public void rejectsATonePastNyquist() {
+        short[] out = resample(12000);
+        int from = OUT_RATE / 10;
+        int to = out.length - OUT_RATE / 10;
+        for (int n = from; n < to; n++) {
+            assertEquals("sample " + n, 0, out[n]);
+        }
+    }
+
+    /** Resamples {@link #SECONDS} of a sine of {@code frequency} fed in uneven chunks. */
+    private static short[] resample(double frequency) {
+        short[] in = new short[SECONDS * IN_RATE];
+        for (int n = 0; n < in.length; n++) {
+            in[n] = (short) Math.round(AMPLITUDE * Math.sin(2 * Math.PI * frequency * n / IN_RATE));
+        }
+        Resampler resampler = new Resampler(IN_RATE, OUT_RATE);
+        short[] out = new short[resampler.maxOutput(in.length) + resampler.maxOutput(0)];
+        int written = 0;
+        int[] chunks = {1, 441, 1024, 37};
+        for (int offset = 0, i = 0; offset < in.length; i++) {
+            int count = Math.min(chunks[i % chunks.length], in.length - offset);
+            written += resampler.process(in, offset, count, out, written);
+            offset += count;
+        }
+        written += resampler.finish(out, written);
+        short[] result = new short[written];
+        System.arraycopy(out, 0, result, 0, written);
+        return result;
+    }
+}
@@ -0,0 +1,121 @@
+package com.eagle.recorderdemo.audio;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SilenceGateTest {
+
+    private static final int RATE = 16000;
+    private static final float THRESHOLD_DB = -45;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void skipsSilenceAndLogsTheGaps() throws IOException {
+        File gaps = mFolder.newFile("rec.gaps");
+        MemoryWriter out = new MemoryWriter();
+        SilenceGate gate = new SilenceGate(out, new GapLog(gaps, RATE, 2), RATE, 2,
+                THRESHOLD_DB, 100, 50);
+        byte[] silence = tone(1, 1000, 0, false);
+        gate.write(silence, 0, silence.length);
+        byte[] speech = tone(1, 500, 0.3, false);
+        gate.write(speech, 0, speech.length);
+        gate.write(silence, 0, silence.length);
+        gate.close();
+
+        long input = 2L * silence.length + speech.length;
+        assertEquals(input, gate.position());
+        assertEquals(input, gate.getWrittenBytes() + gate.getSkippedBytes());
+        assertEquals(gate.getWrittenBytes(), out.toByteArray().length);
+        // The tone, the pre-roll in front of it and the hangover after it.
+        assertTrue(gate.getWrittenBytes() >= speech.length + bytes(1, 50));
+        assertTrue(gate.getWrittenBytes() <= speech.length + bytes(1, 50 + 100 + 20));
+        long skippedFrames = 0;
+        for (long[] gap : GapLog.read(gaps)) {
+            skippedFrames += gap[1];
+        }
+        assertEquals(gate.getSkippedBytes() / 2, skippedFrames);
+    }
+
+    @Test
+    public void steadyHumDoesNotHoldTheGateOpen() throws IOException {
+        MemoryWriter out = new MemoryWriter();
+        SilenceGate gate = new SilenceGate(out, null, RATE, 2, THRESHOLD_DB, 100, 0);
+        byte[] hum = tone(1, 1000, 0.1, false);
+        for (int i = 0; i < 5; i++) {
+            gate.write(hum, 0, hum.length);
+        }
+        assertFalse(gate.isOpen());
+        assertTrue(gate.getNoiseFloorDb() > THRESHOLD_DB);
+        // Once the floor caught up, the rest of the hum is skipped.
+        assertTrue(gate.getSkippedBytes() >= 2 * hum.length);
+    }
+
+    @Test
+    public void pausesBetweenWordsKeepTheFloorDown() throws IOException {
+        SilenceGate gate = new SilenceGate(new MemoryWriter(), null, RATE, 2, THRESHOLD_DB,
+                100, 0);
+        byte[] word = tone(1, 300, 0.3, false);
+        byte[] pause = tone(1, 200, 0, false);
+        for (int i = 0; i < 10; i++) {
+            gate.write(word, 0, word.length);
+            gate.write(pause, 0, pause.length);
+        }
+        assertEquals(LevelMeter.SILENCE_DB, gate.getNoiseFloorDb(), 0.01);
+        assertTrue(gate.getWrittenBytes() >= 10 * word.length);
+    }
+
+    @Test
+    public void outOfPhaseChannelsDoNotCancel() throws IOException {
+        MemoryWriter out = new MemoryWriter();
+        SilenceGate gate = new SilenceGate(out, null, RATE, 4, THRESHOLD_DB, 100, 0);
+        byte[] stereo = tone(2, 500, 0.3, true);
+        gate.write(stereo, 0, stereo.length);
+        assertTrue(gate.isOpen());
+        assertEquals(stereo.length, gate.getWrittenBytes());
+    }
+
+    @Test
+    public void trailingPartialWindowIsGatedOnClose() throws IOException {
+        MemoryWriter out = new MemoryWriter();
+        SilenceGate gate = new SilenceGate(out, null, RATE, 2, THRESHOLD_DB, 100, 0);
+        byte[] silence = tone(1, 500, 0, false);
+        gate.write(silence, 0, silence.length);
+        byte[] click = tone(1, 5, 0.5, false);
+        gate.write(click, 0, click.length);
+        assertEquals(0, gate.getWrittenBytes());
+        gate.close();
+        assertEquals(click.length, gate.getWrittenBytes());
+        assertEquals(silence.length, gate.getSkippedBytes());
+        assertTrue(out.isClosed());
+    }
+
+    /** A 440 Hz tone at linear {@code amplitude}; the second channel inverted if asked. */
+    private static byte[] tone(int channels, int ms, double amplitude, boolean invert) {
+        int frames = RATE * ms / 1000;
+        byte[] pcm = new byte[frames * channels * 2];
+        for (int f = 0; f < frames; f++) {
+            int sample = (int) (amplitude * 32767 * Math.sin(2 * Math.PI * 440 * f / RATE));
+            for (int c = 0; c < channels; c++) {
+                int value = invert && c == 1 ? -sample : sample;
+                int i = (f * channels + c) * 2;
+                pcm[i] = (byte) value;
+                pcm[i + 1] = (byte) (value >> 8);
+            }
+        }
+        return pcm;
+    }
+
+    private static long bytes(int channels, int ms) {
+        return (long) RATE * ms / 1000 * channels * 2;
+    }
+}
@@ -0,0 +1,213 @@
+package com.eagle.recorderdemo.audio;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class WavWriterTest {
+
+    private static final long NO_CHECKPOINT = Long.MAX_VALUE / 2;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void pcmHeaderMatchesTheAudio() throws IOException {
+        MemoryWriter out = new MemoryWriter();
+        WavWriter wav = new WavWriter(out, WavFormat.pcm(16000, 2, 16), NO_CHECKPOINT);
+        byte[] audio = new byte[4000];
+        wav.write(audio, 0, audio.length);
+        assertEquals(audio.length, wav.position());
+        wav.close();
+        assertTrue(out.isClosed());
+
+        byte[] bytes = out.toByteArray();
+        assertEquals(wav.getHeaderSize() + audio.length, bytes.length);
+        assertEquals("RIFF", tag(bytes, 0));
+        assertEquals(bytes.length - 8, le32(bytes, 4));
+        // The reserved chunk stays JUNK while the file is small.
+        assertEquals("JUNK", tag(bytes, 12));
+
+        WavFile file = parse(bytes);
+        assertFalse(file.rf64);
+        assertEquals(wav.getHeaderSize(), file.dataOffset);
+        assertEquals(audio.length, file.dataSize);
+        assertEquals(1000, file.frameCount);
+        assertEquals(WavFormat.FORMAT_PCM, file.format.formatTag);
+        assertEquals(2, file.format.channels);
+        assertEquals(16000, file.format.sampleRate);
+        assertEquals(16, file.format.bitsPerSample);
+        assertEquals(64000, file.format.byteRate);
+    }
+
+    @Test
+    public void checkpointsKeepTheHeaderCurrent() throws IOException {
+        MemoryWriter out = new MemoryWriter();
+        WavWriter wav = new WavWriter(out, WavFormat.pcm(8000, 1, 16), 1000);
+        byte[] audio = new byte[600];
+        wav.write(audio, 0, audio.length);
+        assertEquals(0, parse(out.toByteArray()).dataSize);
+        wav.write(audio, 0, audio.length);
+        assertEquals(1200, parse(out.toByteArray()).dataSize);
+        assertEquals(out.toByteArray().length - 8, le32(out.toByteArray(), 4));
+    }
+
+    @Test
+    public void oddDataIsPadded() throws IOException {
+        MemoryWriter out = new MemoryWriter();
+        WavWriter wav = new WavWriter(out, WavFormat.pcm(8000, 1, 8), NO_CHECKPOINT);
+        wav.write(new byte[] {1, 2, 3}, 0, 3);
+        wav.close();
+
+        byte[] bytes = out.toByteArray();
+        assertEquals(wav.getHeaderSize() + 4, bytes.length);
+        assertEquals(bytes.length - 8, le32(bytes, 4));
+        assertEquals(3, parse(bytes).dataSize);
+    }
+
+    @Test
+    public void adpcmHasFactChunk() throws IOException {
+        WavFormat format = WavFormat.imaAdpcm(16000, 1, 256);
+        MemoryWriter out = new MemoryWriter();
+        WavWriter wav = new WavWriter(out, format, NO_CHECKPOINT);
+        byte[] blocks = new byte[3 * 256];
+        wav.write(blocks, 0, blocks.length);
+        wav.setFrameCount(2 * format.samplesPerBlock + 10);
+        wav.close();
+
+        WavFile file = parse(out.toByteArray());
+        assertEquals(WavFormat.FORMAT_IMA_ADPCM, file.format.formatTag);
+        assertEquals(format.samplesPerBlock, file.format.samplesPerBlock);
+        assertEquals(blocks.length, file.dataSize);
+        assertTrue(file.factOffset > 0);
+        assertEquals(2 * format.samplesPerBlock + 10, file.frameCount);
+    }
+
+    @Test
+    public void becomesRf64PastFourGigabytes() throws IOException {
+        SparseWriter out = new SparseWriter();
+        WavWriter wav = new WavWriter(out, WavFormat.pcm(48000, 2, 16), 64 * 1024 * 1024);
+        byte[] audio = new byte[1024 * 1024];
+        long limit = 0xFFFFFFFFL - wav.getHeaderSize();
+        while (wav.position() + audio.length <= limit - 64 * 1024 * 1024) {
+            wav.write(audio, 0, audio.length);
+        }
+        assertFalse(wav.isRf64());
+        while (wav.position() <= limit) {
+            wav.write(audio, 0, audio.length);
+        }
+        wav.write(audio, 0, 6);
+        long dataSize = wav.position();
+        wav.close();
+        assertTrue(wav.isRf64());
+
+        byte[] header = out.getHead();
+        assertEquals("RF64", tag(header, 0));
+        assertEquals(0xFFFFFFFFL, le32(header, 4));
+        assertEquals("ds64", tag(header, 12));
+        ByteBuffer ds64 = ByteBuffer.wrap(header, 20, 24).order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals(out.position() - 8, ds64.getLong());
+        assertEquals(dataSize, ds64.getLong());
+        assertEquals(dataSize / 4, ds64.getLong());
+
+        WavFile file = parse(header);
+        assertTrue(file.rf64);
+        assertEquals(20, file.ds64Offset);
+        assertEquals(dataSize, file.dataSize);
+        assertEquals(dataSize / 4, file.frameCount);
+        assertEquals(0xFFFFFFFFL, le32(header, (int) file.dataOffset - 4));
+    }
+
+    private WavFile parse(byte[] bytes) throws IOException {
+        File file = mFolder.newFile();
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            WavFile wav = WavFile.read(raf.getChannel());
+            assertNotNull(wav);
+            return wav;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static String tag(byte[] bytes, int offset) {
+        return new String(bytes, offset, 4, StandardCharsets.US_ASCII);
+    }
+
+    private static long le32(byte[] bytes, int offset) {
+        return ByteBuffer.wrap(bytes, offset, 4).order(ByteOrder.LITTLE_ENDIAN).getInt()
+                & 0xFFFFFFFFL;
+    }
+
+    /** Keeps the first bytes written, where the header is, and only counts the rest. */
+    private static final class SparseWriter implements SegmentWriter {
+        private static final int HEAD = 4096;
+
+        private final byte[] mHead = new byte[HEAD];
+        private final WriterStats mStats = new WriterStats();
+        private long mPosition;
+
+        @Override
+        public void write(byte[] src, int offset, int length) {
+            if (mPosition < HEAD) {
+                System.arraycopy(src, offset, mHead, (int) mPosition,
+                        (int) Math.min(length, HEAD - mPosition));
+            }
+            mPosition += length;
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public long position() {
+            return mPosition;
+        }
+
+        @Override
+        public long committedPosition() {
+            return mPosition;
+        }
+
+        @Override
+        public void writeAt(long position, ByteBuffer src) throws IOException {
+            if (position + src.remaining() > HEAD) {
+                throw new IOException("patch outside the header at " + position);
+            }
+            src.get(mHead, (int) position, src.remaining());
+        }
+
+        @Override
+        public WriterStats getStats() {
+            return mStats;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        byte[] getHead() {
+            return mHead.clone();
+        }
+    }
+}
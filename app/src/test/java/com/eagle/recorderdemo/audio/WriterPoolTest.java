@@ -0,0 +1,131 @@
+package com.eagle.recorderdemo.audio;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class WriterPoolTest {
+
+    private static final int BUFFER_BYTES = 16;
+
+    private final WriterPool mPool = new WriterPool(2, "TestWriter");
+    private final BufferPool mBuffers = new BufferPool(BUFFER_BYTES, 32);
+
+    @After
+    public void tearDown() {
+        mPool.shutdown();
+    }
+
+    @Test
+    public void writesBuffersInOrder() throws Exception {
+        MemoryWriter sink = new MemoryWriter();
+        WriterPool.Lane lane = mPool.newLane(mBuffers, 8, sink);
+        for (int i = 0; i < 200; i++) {
+            byte[] buffer = mBuffers.acquire();
+            while (buffer == null) {
+                Thread.sleep(1);
+                buffer = mBuffers.acquire();
+            }
+            buffer[0] = (byte) i;
+            while (!lane.submit(buffer, 1, System.nanoTime())) {
+                Thread.sleep(1);
+            }
+        }
+        lane.close();
+
+        byte[] written = sink.toByteArray();
+        assertEquals(200, written.length);
+        for (int i = 0; i < written.length; i++) {
+            assertEquals((byte) i, written[i]);
+        }
+        assertTrue(sink.isClosed());
+        assertEquals(0, mBuffers.getInUse());
+        assertNull(lane.getFailure());
+    }
+
+    @Test
+    public void submitAfterShutdownIsRefused() throws Exception {
+        MemoryWriter sink = new MemoryWriter();
+        WriterPool.Lane lane = mPool.newLane(mBuffers, 8, sink);
+        mPool.shutdown();
+
+        byte[] buffer = mBuffers.acquire();
+        assertFalse(lane.submit(buffer, BUFFER_BYTES, System.nanoTime()));
+        assertTrue(lane.getFailure() instanceof RejectedExecutionException);
+        assertEquals(0, lane.size());
+        mBuffers.release(buffer);
+        assertEquals(0, mBuffers.getInUse());
+
+        assertTrue(closes(lane));
+        assertTrue(sink.isClosed());
+    }
+
+    @Test
+    public void scheduledLaneFinishesAfterShutdown() throws Exception {
+        final CountDownLatch writing = new CountDownLatch(1);
+        final CountDownLatch proceed = new CountDownLatch(1);
+        final MemoryWriter sink = new MemoryWriter();
+        AudioSink gate = new AudioSink() {
+            @Override
+            public void write(byte[] src, int offset, int length) {
+                writing.countDown();
+                try {
+                    proceed.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                sink.write(src, offset, length);
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+                sink.close();
+            }
+        };
+        WriterPool.Lane lane = mPool.newLane(mBuffers, 24, gate);
+        assertTrue(lane.submit(mBuffers.acquire(), BUFFER_BYTES, System.nanoTime()));
+        assertTrue(writing.await(5, TimeUnit.SECONDS));
+        // More than a batch queued behind the write in progress.
+        for (int i = 0; i < 20; i++) {
+            assertTrue(lane.submit(mBuffers.acquire(), BUFFER_BYTES, System.nanoTime()));
+        }
+        mPool.shutdown();
+        proceed.countDown();
+
+        assertTrue(closes(lane));
+        assertEquals(21 * BUFFER_BYTES, sink.toByteArray().length);
+        assertEquals(0, mBuffers.getInUse());
+        assertNull(lane.getFailure());
+    }
+
+    /** Closes {@code lane} on another thread, which must not hang. */
+    private static boolean closes(final WriterPool.Lane lane) throws InterruptedException {
+        final Throwable[] failure = new Throwable[1];
+        Thread closer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    lane.close();
+                } catch (Exception e) {
+                    failure[0] = e;
+                }
+            }
+        };
+        closer.start();
+        closer.join(5000);
+        assertNull(failure[0]);
+        return !closer.isAlive();
+    }
+}
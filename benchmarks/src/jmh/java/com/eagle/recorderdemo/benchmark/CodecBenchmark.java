@@ -0,0 +1,64 @@
+package com.eagle.recorderdemo.benchmark;
+
+import com.eagle.recorderdemo.audio.FrameDecoder;
+import com.eagle.recorderdemo.audio.FrameEncoder;
+import com.eagle.recorderdemo.audio.ImaAdpcm;
+import com.eagle.recorderdemo.audio.LosslessCodec;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding and decoding of one codec block.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class CodecBenchmark {
+
+    private static final int ADPCM_BLOCK_ALIGN = 2048;
+    private static final int LOSSLESS_BLOCK_FRAMES = 4096;
+
+    @Param({"adpcm", "lossless"})
+    public String codec;
+
+    private FrameEncoder mEncoder;
+    private FrameDecoder mDecoder;
+    private byte[] mPcm;
+    private byte[] mEncoded;
+    private int mEncodedLength;
+    private byte[] mDecoded;
+
+    @Setup
+    public void setUp() {
+        if ("adpcm".equals(codec)) {
+            mEncoder = new ImaAdpcm.Encoder(Signals.CHANNELS, ADPCM_BLOCK_ALIGN);
+            mDecoder = new ImaAdpcm.Decoder(Signals.CHANNELS, ADPCM_BLOCK_ALIGN);
+        } else {
+            mEncoder = new LosslessCodec.Encoder(Signals.CHANNELS, LOSSLESS_BLOCK_FRAMES);
+            mDecoder = new LosslessCodec.Decoder(Signals.CHANNELS, LOSSLESS_BLOCK_FRAMES);
+        }
+        mPcm = Signals.pcmSpeechLike(mEncoder.framesPerBlock());
+        mEncoded = new byte[mEncoder.maxEncodedBytes()];
+        mEncodedLength = mEncoder.encode(mPcm, 0, mEncoder.framesPerBlock(), mEncoded);
+        mDecoded = new byte[mDecoder.maxDecodedBytes()];
+    }
+
+    @Benchmark
+    public int encode() {
+        return mEncoder.encode(mPcm, 0, mEncoder.framesPerBlock(), mEncoded);
+    }
+
+    @Benchmark
+    public int decode() {
+        return mDecoder.decode(mEncoded, 0, mEncodedLength, mDecoded, 0);
+    }
+}
@@ -0,0 +1,58 @@
+package com.eagle.recorderdemo.benchmark;
+
+import com.eagle.recorderdemo.audio.LevelMeter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Level computation per captured buffer: the original byte-wise mean square in
+ * {@code startRecording()} against {@link LevelMeter}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class LevelMeterBenchmark {
+
+    /** Bytes per AudioRecord read. */
+    @Param({"2560", "15360"})
+    public int bytes;
+
+    private byte[] mBuffer;
+    private LevelMeter mMeter;
+    private LevelMeter.Snapshot mSnapshot;
+
+    @Setup
+    public void setUp() {
+        mBuffer = Signals.pcmSpeechLike(bytes / Signals.FRAME_BYTES);
+        mMeter = new LevelMeter(Signals.CHANNELS, Signals.SAMPLE_RATE, 30);
+        mSnapshot = new LevelMeter.Snapshot(Signals.CHANNELS);
+    }
+
+    @Benchmark
+    public double legacyAmplitude() {
+        byte[] buffer = mBuffer;
+        int read = buffer.length;
+        long v = 0;
+        for (int i = 0; i < read; i++) {
+            v += buffer[i] * buffer[i];
+        }
+        double mean = v / (double) read;
+        return 10 * Math.log10(mean);
+    }
+
+    @Benchmark
+    public LevelMeter.Snapshot meter() {
+        mMeter.process(mBuffer, 0, mBuffer.length);
+        mMeter.read(mSnapshot);
+        return mSnapshot;
+    }
+}
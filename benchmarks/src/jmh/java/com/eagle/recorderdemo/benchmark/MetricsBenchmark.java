@@ -0,0 +1,39 @@
+package com.eagle.recorderdemo.benchmark;
+
+import com.eagle.recorderdemo.audio.Histogram;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What the health counters add to each captured buffer: a {@link Histogram} sample, and the
+ * pair of clock reads that time a read.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class MetricsBenchmark {
+
+    private final Histogram mHistogram = new Histogram();
+    private long mValue = 40000000;
+
+    @Benchmark
+    public Histogram record() {
+        // Vary the bucket like read intervals do.
+        mValue = mValue * 6364136223846793005L + 1442695040888963407L;
+        mHistogram.record((mValue >>> 40) & 0xFFFFFF);
+        return mHistogram;
+    }
+
+    @Benchmark
+    public long timeRead() {
+        long start = System.nanoTime();
+        return System.nanoTime() - start;
+    }
+}
@@ -0,0 +1,79 @@
+package com.eagle.recorderdemo.benchmark;
+
+import com.eagle.recorderdemo.audio.PcmConverter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Float capture to PCM16: the original {@code convertTo16Bit}/{@code toByteArray} pair against
+ * {@link PcmConverter}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class PcmConversionBenchmark {
+
+    /** Samples per AudioRecord read. */
+    @Param({"1280", "7680"})
+    public int samples;
+
+    private float[] mInput;
+    private byte[] mOutput;
+    private PcmConverter mPlain;
+    private PcmConverter mDithered;
+
+    @Setup
+    public void setUp() {
+        mInput = Signals.floatSpeechLike(samples / Signals.CHANNELS);
+        mOutput = new byte[samples * 2];
+        mPlain = new PcmConverter(PcmConverter.Encoding.PCM16, false);
+        mDithered = new PcmConverter(PcmConverter.Encoding.PCM16, true);
+    }
+
+    @Benchmark
+    public byte[] legacyConvertTo16Bit() {
+        return convertTo16Bit(mInput);
+    }
+
+    @Benchmark
+    public byte[] converter() {
+        mPlain.convert(mInput, 0, mInput.length, mOutput, 0);
+        return mOutput;
+    }
+
+    @Benchmark
+    public byte[] converterDithered() {
+        mDithered.convert(mInput, 0, mInput.length, mOutput, 0);
+        return mOutput;
+    }
+
+    // Verbatim copy of the conversion SoundRecorder used before PcmConverter.
+    private static byte[] convertTo16Bit(float[] data) {
+        short[] shortValue = new short[data.length];
+        byte[] byte16bit = new byte[shortValue.length *2];
+        for (int i=0; i<data.length; i++) {
+            shortValue[i] = (short) (32768 * data[i]);
+        }
+        byte16bit = toByteArray(shortValue);
+        return byte16bit;
+    }
+
+    private static byte[] toByteArray(short[] src) {
+        int count = src.length;
+        byte[] dest = new byte[count << 1];
+        for (int i=0; i< count; i++) {
+            dest[i * 2] = (byte) (src[i]);
+            dest[i * 2 + 1] = (byte) (src[i] >> 8);
+        }
+        return dest;
+    }
+}
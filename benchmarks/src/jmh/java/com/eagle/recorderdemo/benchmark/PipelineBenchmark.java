@@ -0,0 +1,89 @@
+package com.eagle.recorderdemo.benchmark;
+
+import com.eagle.recorderdemo.audio.FrameRingBuffer;
+import com.eagle.recorderdemo.audio.SilenceGate;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-buffer stages between AudioRecord and the writer: the capture ring hand-off and the
+ * silence gate.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class PipelineBenchmark {
+
+    private static final int FRAME_BYTES = 15360;
+
+    private FrameRingBuffer mRing;
+    private FrameRingBuffer mBroadcast;
+    private FrameRingBuffer.Consumer mMonitor;
+    private FrameRingBuffer.Consumer mMeter;
+    private byte[] mCopy;
+    private byte[] mCapture;
+    private byte[] mSilence;
+    private SilenceGate mGate;
+    private int mOffset;
+
+    @Setup
+    public void setUp() {
+        mRing = new FrameRingBuffer(64, FRAME_BYTES, FrameRingBuffer.OverflowPolicy.DROP_NEWEST, 0);
+        mBroadcast = new FrameRingBuffer(64, FRAME_BYTES,
+                FrameRingBuffer.OverflowPolicy.DROP_NEWEST, 0);
+        mMonitor = mBroadcast.addConsumer(FrameRingBuffer.ConsumerPolicy.SKIP_AHEAD);
+        mMeter = mBroadcast.addConsumer(FrameRingBuffer.ConsumerPolicy.DROP);
+        mCopy = new byte[FRAME_BYTES];
+        mCapture = Signals.pcmSpeechLike(FRAME_BYTES / Signals.FRAME_BYTES);
+        mSilence = Signals.pcmMostlySilent(10 * Signals.SAMPLE_RATE);
+        mGate = new SilenceGate(new Signals.NullWriter(), null, Signals.SAMPLE_RATE,
+                Signals.FRAME_BYTES, -45, 600, 300);
+    }
+
+    /** Capture copies one buffer into the ring, the writer takes it out again. */
+    @Benchmark
+    public int ringHandOff() {
+        byte[] frame = mRing.claim();
+        System.arraycopy(mCapture, 0, frame, 0, FRAME_BYTES);
+        mRing.publish(FRAME_BYTES);
+        mRing.peek();
+        int length = mRing.peekLength();
+        mRing.release();
+        return length;
+    }
+
+    /**
+     * The same hand-off with two more consumers on cursors of their own, each copying the frame
+     * out as attached sinks do.
+     */
+    @Benchmark
+    public int broadcastHandOff() {
+        byte[] frame = mBroadcast.claim();
+        System.arraycopy(mCapture, 0, frame, 0, FRAME_BYTES);
+        mBroadcast.publish(FRAME_BYTES);
+        mBroadcast.peek();
+        int length = mBroadcast.peekLength();
+        mBroadcast.release();
+        return length + mMonitor.read(mCopy, 0) + mMeter.read(mCopy, 0);
+    }
+
+    /** One capture buffer of a mostly silent stream through the gate. */
+    @Benchmark
+    public long silenceGate() throws IOException {
+        if (mOffset + FRAME_BYTES > mSilence.length) {
+            mOffset = 0;
+        }
+        mGate.write(mSilence, mOffset, FRAME_BYTES);
+        mOffset += FRAME_BYTES;
+        return mGate.getSkippedBytes();
+    }
+}
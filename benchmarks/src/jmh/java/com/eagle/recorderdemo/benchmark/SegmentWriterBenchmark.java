@@ -0,0 +1,78 @@
+package com.eagle.recorderdemo.benchmark;
+
+import com.eagle.recorderdemo.audio.ChannelSegmentWriter;
+import com.eagle.recorderdemo.audio.SegmentWriter;
+import com.eagle.recorderdemo.audio.SegmentWriters;
+import com.eagle.recorderdemo.audio.WavFormat;
+import com.eagle.recorderdemo.audio.WavWriter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The file-write path: one minute of stereo audio written in capture-sized chunks, per writer mode
+ * and block size, with and without the WAV container.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class SegmentWriterBenchmark {
+
+    private static final int SECONDS = 60;
+    private static final int CHUNK_BYTES = 15360;
+
+    @Param({"STREAM", "CHANNEL", "MAPPED"})
+    public SegmentWriter.Mode mode;
+
+    @Param({"16", "64", "256", "1024"})
+    public int blockKb;
+
+    @Param({"false", "true"})
+    public boolean wav;
+
+    private byte[] mChunk;
+    private long mTotalBytes;
+    private File mFile;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mChunk = Signals.pcmSpeechLike(CHUNK_BYTES / Signals.FRAME_BYTES);
+        mTotalBytes = (long) SECONDS * Signals.SAMPLE_RATE * Signals.FRAME_BYTES;
+        mFile = File.createTempFile("writer-bench", ".wav");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Benchmark
+    public long writeMinute() throws IOException {
+        SegmentWriter out = SegmentWriters.open(mFile, mode, blockKb * 1024,
+                SegmentWriters.DEFAULT_PREALLOCATE_BYTES, ChannelSegmentWriter.EXTEND_LENGTH);
+        if (wav) {
+            WavFormat format = WavFormat.pcm(Signals.SAMPLE_RATE, Signals.CHANNELS, 16);
+            out = new WavWriter(out, format, format.byteRate);
+        }
+        try {
+            for (long written = 0; written < mTotalBytes; written += mChunk.length) {
+                out.write(mChunk, 0, mChunk.length);
+            }
+        } finally {
+            out.close();
+        }
+        return out.getStats().getSyscalls();
+    }
+}
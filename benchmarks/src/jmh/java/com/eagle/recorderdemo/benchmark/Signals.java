@@ -0,0 +1,109 @@
+package com.eagle.recorderdemo.benchmark;
+
+import com.eagle.recorderdemo.audio.SegmentWriter;
+import com.eagle.recorderdemo.audio.WriterStats;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Deterministic test signals, so runs on different releases measure the same input.
+ */
+final class Signals {
+
+    static final int SAMPLE_RATE = 32000;
+    static final int CHANNELS = 2;
+    static final int FRAME_BYTES = 4;
+    private static final long SEED = 0x5eed;
+
+    private Signals() {
+    }
+
+    /**
+     * Float capture: a 440/660 Hz pair at -6 dBFS plus a little noise, occasionally clipping.
+     */
+    static float[] floatSpeechLike(int frames) {
+        Random random = new Random(SEED);
+        float[] samples = new float[frames * CHANNELS];
+        for (int i = 0; i < frames; i++) {
+            double t = i / (double) SAMPLE_RATE;
+            double s = 0.5 * Math.sin(2 * Math.PI * 440 * t) + 0.3 * Math.sin(2 * Math.PI * 660 * t)
+                    + 0.01 * random.nextGaussian();
+            samples[i * CHANNELS] = (float) s;
+            samples[i * CHANNELS + 1] = (float) (s * 0.8);
+        }
+        return samples;
+    }
+
+    /** The same signal as interleaved little-endian PCM16. */
+    static byte[] pcmSpeechLike(int frames) {
+        float[] samples = floatSpeechLike(frames);
+        byte[] pcm = new byte[samples.length * 2];
+        for (int i = 0; i < samples.length; i++) {
+            int s = Math.max(-32768, Math.min(32767, Math.round(samples[i] * 32767)));
+            pcm[2 * i] = (byte) s;
+            pcm[2 * i + 1] = (byte) (s >> 8);
+        }
+        return pcm;
+    }
+
+    /**
+     * PCM16 that alternates two seconds of tone with eight seconds of low noise, the typical
+     * input of an always-on recorder.
+     */
+    static byte[] pcmMostlySilent(int frames) {
+        Random random = new Random(SEED);
+        byte[] pcm = new byte[frames * FRAME_BYTES];
+        for (int i = 0; i < frames; i++) {
+            double t = i / (double) SAMPLE_RATE;
+            boolean tone = ((int) t % 10) < 2;
+            int s = tone ? (int) (8000 * Math.sin(2 * Math.PI * 300 * t))
+                    : (int) (random.nextGaussian() * 30);
+            for (int c = 0; c < CHANNELS; c++) {
+                pcm[i * FRAME_BYTES + 2 * c] = (byte) s;
+                pcm[i * FRAME_BYTES + 2 * c + 1] = (byte) (s >> 8);
+            }
+        }
+        return pcm;
+    }
+
+    /**
+     * Swallows everything, for measuring a stage without the file system.
+     */
+    static final class NullWriter implements SegmentWriter {
+        private final WriterStats mStats = new WriterStats();
+        private long mPosition;
+
+        @Override
+        public void write(byte[] src, int offset, int length) {
+            mPosition += length;
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public long position() {
+            return mPosition;
+        }
+
+        @Override
+        public long committedPosition() {
+            return mPosition;
+        }
+
+        @Override
+        public void writeAt(long position, ByteBuffer src) {
+        }
+
+        @Override
+        public WriterStats getStats() {
+            return mStats;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
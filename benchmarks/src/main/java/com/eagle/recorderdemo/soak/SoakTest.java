@@ -0,0 +1,266 @@
+package com.eagle.recorderdemo.soak;
+
+import com.eagle.recorderdemo.audio.AudioPipeline;
+import com.eagle.recorderdemo.audio.AudioSource;
+import com.eagle.recorderdemo.audio.ChannelSegmentWriter;
+import com.eagle.recorderdemo.audio.EncodingWriter;
+import com.eagle.recorderdemo.audio.FrameRingBuffer;
+import com.eagle.recorderdemo.audio.ImaAdpcm;
+import com.eagle.recorderdemo.audio.LevelMeter;
+import com.eagle.recorderdemo.audio.LosslessCodec;
+import com.eagle.recorderdemo.audio.RecordingDecoder;
+import com.eagle.recorderdemo.audio.SegmentWriter;
+import com.eagle.recorderdemo.audio.SegmentWriters;
+import com.eagle.recorderdemo.audio.SyntheticSource;
+import com.eagle.recorderdemo.audio.WavFormat;
+import com.eagle.recorderdemo.audio.WavWriter;
+import com.eagle.recorderdemo.audio.WriterStats;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the recording pipeline against a synthetic source for as long as asked and prints
+ * throughput, hand-off latency, drops and allocation once per report interval.
+ *
+ * <pre>
+ *   ./gradlew :benchmarks:soak -Psoak.args="--duration=3600 --source=noise --speed=0"
+ * </pre>
+ *
+ * Options (defaults in brackets): {@code --duration} seconds of wall time [60], {@code --source}
+ * sine|noise|fixture:&lt;file&gt; [sine], {@code --speed} multiple of real time, 0 for unpaced
+ * [0], {@code --writer} stream|channel|mapped|null [channel], {@code --codec}
+ * pcm|wav|adpcm|lossless [wav], {@code --dir} output directory [tmp], {@code --ring-ms} [2000],
+ * {@code --read-frames} frames per read [1280], {@code --report} seconds [10].
+ */
+public final class SoakTest {
+
+    private static final int SAMPLE_RATE = 32000;
+    private static final int CHANNELS = 2;
+    private static final int FRAME_BYTES = CHANNELS * 2;
+    private static final long START_NANOS = System.nanoTime();
+
+    private SoakTest() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parse(args);
+        long duration = Long.parseLong(get(options, "duration", "60"));
+        double speed = Double.parseDouble(get(options, "speed", "0"));
+        int readFrames = Integer.parseInt(get(options, "read-frames", "1280"));
+        int ringMs = Integer.parseInt(get(options, "ring-ms", "2000"));
+        long reportSeconds = Long.parseLong(get(options, "report", "10"));
+        File dir = new File(get(options, "dir", System.getProperty("java.io.tmpdir")));
+
+        AudioSource source = openSource(get(options, "source", "sine"), speed, readFrames);
+        int frameBytes = readFrames * FRAME_BYTES;
+        int frames = Math.max(2, (int) ((long) SAMPLE_RATE * FRAME_BYTES * ringMs / 1000
+                / frameBytes));
+        FrameRingBuffer ring = new FrameRingBuffer(frames, frameBytes,
+                FrameRingBuffer.OverflowPolicy.DROP_NEWEST, 0);
+        LevelMeter meter = new LevelMeter(CHANNELS, SAMPLE_RATE, 30);
+        File file = new File(dir, "soak." + get(options, "codec", "wav"));
+        SegmentWriter out = openWriter(file, get(options, "writer", "channel"),
+                get(options, "codec", "wav"));
+        final AudioPipeline pipeline = new AudioPipeline(source, ring, meter, out);
+
+        Thread capture = new Thread(pipeline, "SoakCapture");
+        System.out.println("soak " + options + " ring " + ring);
+        long start = System.nanoTime();
+        long startAllocated = allocatedBytes();
+        capture.start();
+
+        Report previous = new Report(start, 0, startAllocated, gcCount());
+        long end = start + TimeUnit.SECONDS.toNanos(duration);
+        while (capture.isAlive() && System.nanoTime() < end) {
+            capture.join(Math.min(TimeUnit.SECONDS.toMillis(reportSeconds),
+                    Math.max(1, TimeUnit.NANOSECONDS.toMillis(end - System.nanoTime()))));
+            previous = report(pipeline, previous);
+        }
+        pipeline.stop();
+        capture.join();
+        out.close();
+        source.close();
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        double audioSeconds = pipeline.getCapturedBytes() / (double) (SAMPLE_RATE * FRAME_BYTES);
+        System.out.println(String.format(Locale.US,
+                "done: %.0f s wall, %.0f s audio (%.1fx real time), %d MB allocated, %s, %s",
+                seconds, audioSeconds, audioSeconds / seconds,
+                (allocatedBytes() - startAllocated) >> 20, pipeline, out.getStats()));
+        file.delete();
+        System.exit(pipeline.hasFailed() ? 1 : 0);
+    }
+
+    private static AudioSource openSource(String name, double speed, int readFrames)
+            throws IOException {
+        if (name.startsWith("fixture:")) {
+            RecordingDecoder decoder = RecordingDecoder.open(new File(name.substring(8)),
+                    SAMPLE_RATE, CHANNELS);
+            try {
+                if (decoder.getChannels() != CHANNELS) {
+                    throw new IOException("fixture must be stereo");
+                }
+                return SyntheticSource.fixture(SyntheticSource.loadFixture(decoder),
+                        decoder.getSampleRate(), CHANNELS, speed, -1, readFrames);
+            } finally {
+                decoder.close();
+            }
+        }
+        if ("noise".equals(name)) {
+            return SyntheticSource.noise(SAMPLE_RATE, CHANNELS, 0.5f, speed, -1, readFrames);
+        }
+        return SyntheticSource.sine(SAMPLE_RATE, CHANNELS, 440, 0.5f, speed, -1, readFrames);
+    }
+
+    private static SegmentWriter openWriter(File file, String writer, String codec)
+            throws IOException {
+        if ("null".equals(writer)) {
+            return new NullWriter();
+        }
+        SegmentWriter out = SegmentWriters.open(file,
+                SegmentWriters.parseMode(writer, SegmentWriter.Mode.CHANNEL),
+                SegmentWriters.DEFAULT_BLOCK_SIZE, SegmentWriters.DEFAULT_PREALLOCATE_BYTES,
+                ChannelSegmentWriter.EXTEND_LENGTH);
+        switch (codec) {
+            case "adpcm": {
+                WavFormat format = WavFormat.imaAdpcm(SAMPLE_RATE, CHANNELS, 2048);
+                return new EncodingWriter(new WavWriter(out, format, format.byteRate),
+                        new ImaAdpcm.Encoder(CHANNELS, 2048), FRAME_BYTES);
+            }
+            case "lossless":
+                LosslessCodec.writeHeader(out, SAMPLE_RATE, CHANNELS);
+                return new EncodingWriter(out, new LosslessCodec.Encoder(CHANNELS, 4096),
+                        FRAME_BYTES);
+            case "pcm":
+                return out;
+            default:
+                WavFormat format = WavFormat.pcm(SAMPLE_RATE, CHANNELS, 16);
+                return new WavWriter(out, format, format.byteRate);
+        }
+    }
+
+    private static Report report(AudioPipeline pipeline, Report previous) {
+        long now = System.nanoTime();
+        Report current = new Report(now, pipeline.getCapturedBytes(), allocatedBytes(),
+                gcCount());
+        double seconds = (now - previous.nanos) / 1e9;
+        double realTime = (current.captured - previous.captured)
+                / (double) (SAMPLE_RATE * FRAME_BYTES) / seconds;
+        System.out.println(String.format(Locale.US,
+                "%6.0f s  %6.1fx  latency mean/max %d/%d us  dropped %d  high water %d/%d"
+                        + "  alloc %.1f KB/s  gc %d",
+                (now - START_NANOS) / 1e9, realTime,
+                TimeUnit.NANOSECONDS.toMicros(pipeline.getMeanLatencyNanos()),
+                TimeUnit.NANOSECONDS.toMicros(pipeline.getMaxLatencyNanos()),
+                pipeline.getRing().getOverflowCount(), pipeline.getRing().getHighWaterMark(),
+                pipeline.getRing().capacity(),
+                (current.allocated - previous.allocated) / 1024.0 / seconds,
+                current.gcs - previous.gcs));
+        return current;
+    }
+
+    /** Bytes allocated by all live threads so far, where the JVM reports it. */
+    private static long allocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+            return 0;
+        }
+        long total = 0;
+        com.sun.management.ThreadMXBean sun = (com.sun.management.ThreadMXBean) threads;
+        for (long allocated : sun.getThreadAllocatedBytes(threads.getAllThreadIds())) {
+            if (allocated > 0) {
+                total += allocated;
+            }
+        }
+        return total;
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static Map<String, String> parse(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                throw new IllegalArgumentException("unexpected argument " + arg);
+            }
+            int eq = arg.indexOf('=');
+            options.put(eq < 0 ? arg.substring(2) : arg.substring(2, eq),
+                    eq < 0 ? "true" : arg.substring(eq + 1));
+        }
+        return options;
+    }
+
+    private static String get(Map<String, String> options, String key, String fallback) {
+        String value = options.get(key);
+        return value != null ? value : fallback;
+    }
+
+    private static final class Report {
+        final long nanos;
+        final long captured;
+        final long allocated;
+        final long gcs;
+
+        Report(long nanos, long captured, long allocated, long gcs) {
+            this.nanos = nanos;
+            this.captured = captured;
+            this.allocated = allocated;
+            this.gcs = gcs;
+        }
+    }
+
+    /**
+     * Discards the audio, for measuring the pipeline without storage.
+     */
+    private static final class NullWriter implements SegmentWriter {
+        private final WriterStats mStats = new WriterStats();
+        private long mPosition;
+
+        @Override
+        public void write(byte[] src, int offset, int length) {
+            mPosition += length;
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public long position() {
+            return mPosition;
+        }
+
+        @Override
+        public long committedPosition() {
+            return mPosition;
+        }
+
+        @Override
+        public void writeAt(long position, ByteBuffer src) {
+        }
+
+        @Override
+        public WriterStats getStats() {
+            return mStats;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}